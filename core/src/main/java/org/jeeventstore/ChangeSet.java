@@ -60,6 +60,18 @@ public interface ChangeSet extends Serializable {
      * @return the unique identifer
      */
     String changeSetId();
+
+    /**
+     * Gets the checkpoint assigned to this ChangeSet when it was persisted.
+     * Checkpoints increase monotonically within a bucket in the order in
+     * which change sets become visible to
+     * {@link EventStorePersistence#allChangesSince}, such that a reader can
+     * resume from the checkpoint of the last ChangeSet it has processed.
+     * 
+     * @return  the checkpoint, or {@code 0} if it is not known, e.g., because
+     *  this ChangeSet has not been read back from a persistence
+     */
+    long checkpoint();
     
     /**
      * Gets an iterator to the events contained within this ChangeSet.
@@ -21,6 +21,8 @@
 
 package org.jeeventstore;
 
+import java.util.Date;
+
 /**
  * The EventStore orchestrates the creation of event streams.
  * This is the main entry point to clients of the event store.
@@ -37,6 +39,18 @@ public interface EventStore {
      */
     boolean existsStream(String bucketId, String streamId);
 
+    /**
+     * Gets the latest version of the stream identified by {@code streamId}
+     * in the bucket identified by {@code bucketId}, without loading its events.
+     * Can be used to {@link #openStreamForWriting open a stream for writing}
+     * when the events of the stream are not needed.
+     * 
+     * @param bucketId  the identifier of the bucket to which the stream belongs
+     * @param streamId  the identifier of the stream
+     * @return  the latest version of the stream, or {@code 0} if the stream does not exist
+     */
+    long streamVersion(String bucketId, String streamId);
+
     /**
      * Opens the latest version of the stream identified by {@code streamId} in the
      * bucket identified by {@code bucketId} for reading.
@@ -66,6 +80,40 @@ public interface EventStore {
     ReadableEventStream openStreamForReading(String bucketId, String streamId, long maxVersion)
             throws StreamNotFoundException;
 
+    /**
+     * Opens the stream identified by {@code streamId} in the
+     * bucket identified by {@code bucketId} for reading, in the version
+     * it had at the time {@code asOf}, see
+     * {@link EventStorePersistence#streamVersionAt}.
+     * Can be used to look at the state of a stream at a point in time.
+     * 
+     * @param bucketId  the identifier of the bucket to which the stream belongs
+     * @param streamId  the identifier of the stream that is opened for reading
+     * @param asOf  the point in time, not null
+     * @return  the requested event stream as readable event stream
+     * @throws StreamNotFoundException  if the stream did not exist at the given time
+     */
+    ReadableEventStream openStreamForReading(String bucketId, String streamId, Date asOf)
+            throws StreamNotFoundException;
+
+    /**
+     * Opens the latest version of the stream identified by {@code streamId}
+     * in the bucket identified by {@code bucketId} for reading, but only with
+     * the events of its last {@code count} change sets, see
+     * {@link EventStorePersistence#getLatest}.
+     * Can be used if only the most recent events of a long stream are needed.
+     * The {@link ReadableEventStream#version() version} of the stream is
+     * its latest version nevertheless.
+     * 
+     * @param bucketId  the identifier of the bucket to which the stream belongs
+     * @param streamId  the identifier of the stream that is opened for reading
+     * @param count  the maximum number of change sets to read, at least 1
+     * @return  the requested event stream as readable event stream
+     * @throws StreamNotFoundException  if a stream with the given identifier cannot be found in the bucket
+     */
+    ReadableEventStream openStreamTail(String bucketId, String streamId, int count)
+            throws StreamNotFoundException;
+
     /**
      * Creates a new stream with identifier {@code streamId} in the bucket
      * identified by {@code bucketId}.
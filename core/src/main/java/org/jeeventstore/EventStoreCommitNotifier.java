@@ -21,6 +21,8 @@
 
 package org.jeeventstore;
 
+import java.util.List;
+
 /**
  * Responsible for notifying interested listeners about committed changes to the event store.
  */
@@ -31,13 +33,23 @@ public interface EventStoreCommitNotifier {
      * Non-delivered notifications are not persisted during application
      * restarts to avoid expensive 2-phase-commits.  If the server crashes or
      * stops while the notification is in progress, clients are expected to 
-     * recover manually on the next server startup (e.g., by replaying the full
-     * event store on application startup using {@link EventStorePersistence#allChanges}).
+     * recover manually on the next server startup, e.g., by keeping the
+     * {@link ChangeSet#checkpoint} of the last change set they processed and
+     * reading the changes they missed using {@link EventStorePersistence#allChangesSince}.
      * 
      * @param changeSet  the change set that has been committed, not null
      */
     void notifyListeners(ChangeSet changeSet);
 
+    /**
+     * Notifies all registered listeners about the committed {@link ChangeSet}s,
+     * like {@link #notifyListeners} for each of them in the given order, but
+     * as a single notification task.
+     * 
+     * @param changeSets  the change sets that have been committed, not null, without null elements
+     */
+    void notifyBatch(List<ChangeSet> changeSets);
+
     /**
      * Adds an interested listener for the given bucket.
      * The listener must not be registered in that bucket already.
@@ -22,6 +22,7 @@
 package org.jeeventstore;
 
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Persistence provider for the event store.
@@ -37,6 +38,34 @@ public interface EventStorePersistence {
      * @return  whether the specified stream exists
      */
     boolean existsStream(String bucketId, String streamId);
+
+    /**
+     * Gets the latest version of the event stream with identifier
+     * {@code streamId} in the bucket identified by {@code bucketId}, i.e.,
+     * the highest {@link ChangeSet#streamVersion} persisted to the stream.
+     * Implementations are expected to answer this without reading the
+     * change sets of the stream.
+     * 
+     * @param bucketId  the identifier of the bucket to which the stream belongs, not null
+     * @param streamId  the identifier of the stream, not null
+     * @return  the latest version of the stream, or {@code 0} if the stream does not exist
+     */
+    long streamVersion(String bucketId, String streamId);
+
+    /**
+     * Gets the version the event stream with identifier {@code streamId}
+     * in the bucket identified by {@code bucketId} had at the given time,
+     * i.e., the highest {@link ChangeSet#streamVersion} persisted to the
+     * stream at or before {@code timestamp}, as measured by the clock of
+     * the node persisting it.
+     *
+     * @param bucketId  the identifier of the bucket to which the stream belongs, not null
+     * @param streamId  the identifier of the stream, not null
+     * @param timestamp  the time in milliseconds since the epoch
+     * @return  the version of the stream at that time, or {@code 0} if the
+     *  stream did not exist at that time
+     */
+    long streamVersionAt(String bucketId, String streamId, long timestamp);
     
     /**
      * Gets an iterator to all changes persisted to the given bucket.
@@ -54,6 +83,50 @@ public interface EventStorePersistence {
      */
     Iterator<ChangeSet> allChanges(String bucketId);
 
+    /**
+     * Gets an iterator to the changes persisted to the given bucket after
+     * the change set with the given {@link ChangeSet#checkpoint checkpoint},
+     * ordered by strictly increasing checkpoint.
+     * <p>
+     * This allows a reader, e.g., a projection, to resume from the checkpoint
+     * of the last {@link ChangeSet} it has processed instead of reading the
+     * whole bucket again.  The iterator never skips a change set that becomes
+     * visible later on: where concurrent transactions may commit in a
+     * different order than their checkpoints were assigned, implementations
+     * hold back the most recent change sets until all change sets with a
+     * lower checkpoint are known to be visible.  Hence the changes returned
+     * may lag slightly behind {@link #allChanges}.
+     * <p>
+     * Checkpoints are specific to the persistence a bucket is stored in, and
+     * must not be compared across buckets or persistence implementations.
+     * Regarding transactions, the same rules apply as for {@link #allChanges}.
+     *
+     * @param bucketId  the identifier of the bucket from which the changes are fetched, not null
+     * @param checkpoint  the checkpoint (exclusive) after which changes are fetched,
+     *  {@code 0} to fetch all changes of the bucket
+     * @return  the iterator to the changes
+     */
+    Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint);
+
+    /**
+     * Gets an iterator to the changes persisted to the given bucket at or
+     * after {@code from} and before {@code to}, as measured by the clock of
+     * the node persisting them, in milliseconds since the epoch.
+     * <p>
+     * The changes are returned in the order of the time they were persisted.
+     * Whether the order within a stream is guaranteed where the clocks of
+     * several writing nodes are skewed depends on the persistence
+     * implementation.  Implementations are expected to locate the time
+     * range through an index rather than by reading the whole bucket.
+     * Regarding transactions, the same rules apply as for {@link #allChanges}.
+     *
+     * @param bucketId  the identifier of the bucket from which the changes are fetched, not null
+     * @param from  the time (inclusive) from which changes are fetched
+     * @param to  the time (exclusive) up to which changes are fetched
+     * @return  the iterator to the changes
+     */
+    Iterator<ChangeSet> changesBetween(String bucketId, long from, long to);
+
     /**
      * Gets an iterator to all changes ({@link ChangeSet}s) between version
      * {@code minVersion} (exclusive) and version {@code maxVersion} (inclusive)
@@ -80,6 +153,24 @@ public interface EventStorePersistence {
             long minVersion,
             long maxVersion) throws StreamNotFoundException;
 
+    /**
+     * Gets an iterator to the last {@code count} changes ({@link ChangeSet}s)
+     * of the specified event stream, or to all of them if the stream has
+     * fewer, reading the stream backwards from its latest version.
+     * The order of the respective {@link ChangeSet#streamVersion} is guaranteed
+     * to be strictly decreasing.
+     * <p>
+     * Implementations are expected to read only the change sets returned,
+     * not the whole stream.
+     * Regarding transactions, the same rules apply as for {@link #getFrom}.
+     *
+     * @param bucketId  the identifier of the bucket to which the stream belongs, not null
+     * @param streamId  the identifier of the stream that is to be retrieved from, not null
+     * @param count  the maximum number of {@link ChangeSet}s to fetch, not negative
+     * @return  the iterator to the {@link ChangeSet}s, empty if the stream does not exist
+     */
+    Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count);
+
     /**
      * Persists the given {@link ChangeSet} to the durable storage.
      * 
@@ -92,5 +183,25 @@ public interface EventStorePersistence {
      */
     void persistChanges(ChangeSet changeSet)
             throws ConcurrencyException, DuplicateCommitException;
+
+    /**
+     * Persists the given {@link ChangeSet}s to the durable storage, like
+     * calling {@link #persistChanges} for each of them in the given order,
+     * but with fewer round trips to the storage where the implementation
+     * supports it.
+     * <p>
+     * A change set that conflicts with the stored changes, or with an earlier
+     * change set of the batch, is not persisted, and the exception that
+     * {@link #persistChanges} would have thrown for it is returned at its
+     * position.  The other change sets of the batch are persisted
+     * nevertheless.  Regarding transactions, the same rules apply as for
+     * {@link #persistChanges}.
+     *
+     * @param changeSets  the changes to be persisted, not null, without null elements
+     * @return  for each change set, the {@link ConcurrencyException} or
+     *  {@link DuplicateCommitException} that prevented it from being persisted,
+     *  or {@code null} if it has been persisted
+     */
+    List<Exception> persistBatch(List<ChangeSet> changeSets);
     
 }
@@ -87,6 +87,17 @@ public abstract class AbstractEventStoreCommitNotifier
         this.performNotification(notification);
     }
 
+    /**
+     * Checks the argument of {@link #notifyBatch}.
+     */
+    protected void checkBatch(List<ChangeSet> changeSets) {
+        if (changeSets == null)
+            throw new IllegalArgumentException("changeSets must not be null");
+        for (ChangeSet changeSet : changeSets)
+            if (changeSet == null)
+                throw new IllegalArgumentException("changeSets must not contain null");
+    }
+
     protected List<EventStoreCommitListener> listFor(String bucketId, boolean create) {
         List<EventStoreCommitListener> list = listeners.get(bucketId);
         if (list == null && create) {
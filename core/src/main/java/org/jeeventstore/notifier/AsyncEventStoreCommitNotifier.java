@@ -28,6 +28,8 @@ import org.jeeventstore.EventStoreCommitNotifier;
 import javax.annotation.Resource;
 import javax.ejb.*;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -50,6 +52,9 @@ import java.util.logging.Logger;
  * per commit, so the listeners should make sure that receiving notifications
  * is an idempotent operation.
  * <p>
+ * The change sets passed to {@link #notifyBatch} are notified in a single
+ * transaction, and are retried together.
+ * <p>
  * The retry interval for failed notifications can be configured with the
  * {@code retryInterval} environment entry (in milliseconds) on application
  * servers that support this (supported: JBoss AS, TomEE; not supported: Glassfish (fixed @ 1000 ms)).
@@ -90,6 +95,17 @@ public class AsyncEventStoreCommitNotifier
         TimerConfig config = new TimerConfig(changeSet, false);
         timerService.createIntervalTimer(0, retryInterval, config);
     }
+
+    @Override
+    @Lock(LockType.READ)
+    public void notifyBatch(List<ChangeSet> changeSets) {
+        checkBatch(changeSets);
+        if (changeSets.isEmpty())
+            return;
+        // a single timer for the batch, see notifyListeners
+        TimerConfig config = new TimerConfig(new ArrayList<>(changeSets), false);
+        timerService.createIntervalTimer(0, retryInterval, config);
+    }
     
     /**
      * Handle the EJB TimerService timeout and notify any registered append
@@ -102,8 +118,15 @@ public class AsyncEventStoreCommitNotifier
     @Override
     public void ejbTimeout(Timer timer) {
         try {
-            ChangeSet changeSet = (ChangeSet) timer.getInfo();
-            this.performNotification(changeSet);
+            Object info = timer.getInfo();
+            if (info instanceof ChangeSet) {
+                this.performNotification((ChangeSet) info);
+            } else {
+                @SuppressWarnings("unchecked")
+                List<ChangeSet> changeSets = (List<ChangeSet>) info;
+                for (ChangeSet changeSet : changeSets)
+                    this.performNotification(changeSet);
+            }
             // if we reach this line, no exception was thrown, i.e., the
             // notification was successful and the timer can be cancelled
             timer.cancel();
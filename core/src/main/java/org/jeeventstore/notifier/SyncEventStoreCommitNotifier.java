@@ -22,6 +22,7 @@
 package org.jeeventstore.notifier;
 
 import org.jeeventstore.EventStoreCommitNotifier;
+import java.util.List;
 import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Lock;
@@ -53,5 +54,13 @@ public class SyncEventStoreCommitNotifier
             throw new IllegalArgumentException("changeSet must not be null");
         this.performNotification(changeSet);
     }
+
+    @Override
+    @Lock(LockType.READ)
+    public void notifyBatch(List<ChangeSet> changeSets) {
+        checkBatch(changeSets);
+        for (ChangeSet changeSet : changeSets)
+            this.performNotification(changeSet);
+    }
     
 }
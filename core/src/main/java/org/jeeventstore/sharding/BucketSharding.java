@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.sharding;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns whole buckets to shards.  Buckets that are not assigned explicitly
+ * are left to a fallback strategy.
+ */
+public class BucketSharding implements ShardingStrategy {
+
+    private final Map<String, Integer> buckets;
+    private final ShardingStrategy fallback;
+
+    /**
+     * Creates the strategy.
+     *
+     * @param buckets  maps bucket identifiers to shard indexes, not null
+     * @param fallback  the strategy for unassigned buckets, not null
+     */
+    public BucketSharding(Map<String, Integer> buckets, ShardingStrategy fallback) {
+        if (buckets == null)
+            throw new IllegalArgumentException("buckets must not be null");
+        if (fallback == null)
+            throw new IllegalArgumentException("fallback must not be null");
+        this.buckets = new HashMap<>(buckets);
+        this.fallback = fallback;
+    }
+
+    /**
+     * Parses a bucket-to-shard map of the form {@code BUCKET1=0,BUCKET2=1}.
+     */
+    public static Map<String, Integer> parse(String mapping) {
+        Map<String, Integer> result = new HashMap<>();
+        if (mapping == null)
+            return result;
+        for (String pair : mapping.split(",")) {
+            if (pair.trim().isEmpty())
+                continue;
+            int idx = pair.indexOf('=');
+            if (idx < 0)
+                throw new IllegalArgumentException("Invalid bucket mapping: " + pair);
+            result.put(pair.substring(0, idx).trim(), Integer.valueOf(pair.substring(idx + 1).trim()));
+        }
+        return result;
+    }
+
+    @Override
+    public int shardFor(String bucketId, String streamId) {
+        Integer shard = buckets.get(bucketId);
+        return shard != null ? shard : fallback.shardFor(bucketId, streamId);
+    }
+
+    @Override
+    public int shardForBucket(String bucketId) {
+        Integer shard = buckets.get(bucketId);
+        return shard != null ? shard : fallback.shardForBucket(bucketId);
+    }
+
+}
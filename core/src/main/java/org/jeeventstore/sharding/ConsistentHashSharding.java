@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.sharding;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spreads streams over the shards by consistent hashing of the bucket and
+ * stream identifiers.
+ * <p>
+ * Every shard owns a number of points on a hash ring, a stream belongs to
+ * the shard that owns the first point at or after the hash of the stream.
+ * When a shard is added, only about {@code 1/n} of the streams change their
+ * shard, which then need to be migrated.
+ */
+public class ConsistentHashSharding implements ShardingStrategy {
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final int shards;
+
+    /**
+     * Creates the hash ring.
+     *
+     * @param shards  the number of shards, at least 1
+     * @param virtualNodes  the number of points per shard on the hash ring,
+     *      more points give a more even distribution
+     */
+    public ConsistentHashSharding(int shards, int virtualNodes) {
+        if (shards < 1)
+            throw new IllegalArgumentException("shards must be at least 1");
+        if (virtualNodes < 1)
+            throw new IllegalArgumentException("virtualNodes must be at least 1");
+        this.shards = shards;
+        for (int shard = 0; shard < shards; shard++)
+            for (int node = 0; node < virtualNodes; node++)
+                ring.put(hash("shard-" + shard, Integer.toString(node)), shard);
+    }
+
+    @Override
+    public int shardFor(String bucketId, String streamId) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(bucketId, streamId));
+        if (entry == null)
+            entry = ring.firstEntry();
+        return entry.getValue();
+    }
+
+    @Override
+    public int shardForBucket(String bucketId) {
+        return shards == 1 ? 0 : -1;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the two identifiers, with the bits mixed
+     * afterwards to spread them evenly over the ring.
+     */
+    static long hash(String first, String second) {
+        long h = 0xcbf29ce484222325l;
+        for (int i = 0; i < first.length(); i++)
+            h = (h ^ first.charAt(i)) * 0x100000001b3l;
+        h = (h ^ 0xffff) * 0x100000001b3l;
+        for (int i = 0; i < second.length(); i++)
+            h = (h ^ second.charAt(i)) * 0x100000001b3l;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdl;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53l;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
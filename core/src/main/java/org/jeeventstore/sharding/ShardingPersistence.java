@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.sharding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.util.PersistenceUtils;
+
+/**
+ * An {@link EventStorePersistence} that spreads the streams over several
+ * underlying persistence instances ("shards"), as decided by a
+ * {@link ShardingStrategy}.
+ * <p>
+ * All change sets of a stream are stored in the same shard, so
+ * {@link #existsStream}, {@link #getFrom}, {@link #getLatest} and
+ * {@link #persistChanges} are served by a single shard.  {@link #allChanges}
+ * reads the shards one after the other if the bucket is spread over several
+ * shards, which keeps the per-stream ordering guarantee.
+ * {@link #allChangesSince} and {@link #changesBetween} are only supported
+ * for buckets assigned to a single shard, as the checkpoints of different
+ * shards are unrelated, and the change sets of different shards cannot be
+ * merged by the time they were persisted.  The duplicate commit check is
+ * only performed within a shard.
+ * <p>
+ * Can be used as a plain object, or be configured as a singleton or
+ * stateless EJB.  When writing to several shards within one transaction,
+ * the shards must support distributed (XA) transactions.
+ * <p>
+ * The following EJBs and services are expected to be injected when used as EJB:
+ * <p>
+ * The ejb-local-refs of type {@link EventStorePersistence} named in the
+ *    {@code shards} env-entry.
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code shards} (required): Comma-separated names of the
+ *   ejb-local-refs of the shards, in shard order.  The order must never
+ *   change, as it determines where the streams are stored.
+ * <p>
+ * Env-entry {@code bucketShards} (optional, default: none): Assigns whole
+ *   buckets to a shard, e.g., {@code DEFAULT=0,AUDIT=2}.
+ * <p>
+ * Env-entry {@code virtualNodes} (optional, default: 128): The number of
+ *   points per shard on the consistent hash ring that spreads the streams
+ *   of the remaining buckets.
+ * <p>
+ * Env-entry {@code checkpointBuckets} (optional, default: none):
+ *   Comma-separated buckets that are read by {@link #allChangesSince} or
+ *   {@link #changesBetween}.  These must be assigned to a single shard by
+ *   {@code bucketShards}, otherwise the deployment fails.
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ShardingPersistence implements EventStorePersistence {
+
+    @Resource(name="shards")
+    private String shardNames;
+
+    @Resource(name="bucketShards")
+    private String bucketShards = "";
+
+    @Resource(name="virtualNodes")
+    private Integer virtualNodes = 128;
+
+    @Resource(name="checkpointBuckets")
+    private String checkpointBuckets = "";
+
+    @Resource
+    private SessionContext sessionContext;
+
+    private List<EventStorePersistence> shards;
+    private ShardingStrategy strategy;
+
+    /**
+     * Required for EJB, do not use.
+     */
+    public ShardingPersistence() { }
+
+    public ShardingPersistence(List<EventStorePersistence> shards, ShardingStrategy strategy) {
+        this(shards, strategy, Collections.<String>emptyList());
+    }
+
+    /**
+     * Creates the persistence.
+     *
+     * @param shards  the shards, in shard order, not empty
+     * @param strategy  decides the shard of every stream, not null
+     * @param checkpointBuckets  the buckets that are read by
+     *      {@link #allChangesSince} or {@link #changesBetween}, each must
+     *      be assigned to a single shard by the strategy
+     */
+    public ShardingPersistence(List<EventStorePersistence> shards, ShardingStrategy strategy,
+            Collection<String> checkpointBuckets) {
+        if (shards == null || shards.isEmpty())
+            throw new IllegalArgumentException("shards must not be empty");
+        if (strategy == null)
+            throw new IllegalArgumentException("strategy must not be null");
+        if (checkpointBuckets == null)
+            throw new IllegalArgumentException("checkpointBuckets must not be null");
+        for (String bucketId : checkpointBuckets)
+            if (strategy.shardForBucket(bucketId) < 0)
+                throw new IllegalArgumentException(spread(bucketId));
+        this.shards = new ArrayList<>(shards);
+        this.strategy = strategy;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (shards != null)
+            return;
+        if (shardNames == null || shardNames.trim().isEmpty())
+            throw new IllegalStateException("No shards have been configured");
+        List<EventStorePersistence> list = new ArrayList<>();
+        for (String name : shardNames.split(",")) {
+            Object shard = sessionContext.lookup(name.trim());
+            if (!(shard instanceof EventStorePersistence))
+                throw new IllegalStateException("Shard " + name + " is not an EventStorePersistence");
+            list.add((EventStorePersistence) shard);
+        }
+        ShardingStrategy hashing = new ConsistentHashSharding(list.size(), virtualNodes);
+        Map<String, Integer> buckets = BucketSharding.parse(bucketShards);
+        for (Integer shard : buckets.values())
+            if (shard < 0 || shard >= list.size())
+                throw new IllegalStateException("No such shard: " + shard);
+        ShardingStrategy configured = buckets.isEmpty() ? hashing : new BucketSharding(buckets, hashing);
+        for (String bucketId : checkpointBuckets.split(","))
+            if (!bucketId.trim().isEmpty() && configured.shardForBucket(bucketId.trim()) < 0)
+                throw new IllegalStateException(spread(bucketId.trim()));
+        this.shards = Collections.unmodifiableList(list);
+        this.strategy = configured;
+    }
+
+    private static String spread(String bucketId) {
+        return "Bucket " + bucketId + " is read by checkpoint or time, "
+                + "but spread over several shards, assign it to a single shard in bucketShards";
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        return shard(bucketId, streamId).existsStream(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        return shard(bucketId, streamId).streamVersion(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        return shard(bucketId, streamId).streamVersionAt(bucketId, streamId, timestamp);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(final String bucketId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        int shard = strategy.shardForBucket(bucketId);
+        if (shard >= 0)
+            return shards.get(shard).allChanges(bucketId);
+        return new ConcatenatingIterator() {
+            @Override
+            protected Iterator<ChangeSet> open(EventStorePersistence shard) {
+                return shard.allChanges(bucketId);
+            }
+        };
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        int shard = strategy.shardForBucket(bucketId);
+        if (shard < 0)
+            // every shard counts its own checkpoints, a single one cannot resume them all
+            throw new UnsupportedOperationException(
+                    "Bucket " + bucketId + " is spread over several shards, "
+                    + "assign it to a single shard to read it by checkpoint");
+        return shards.get(shard).allChangesSince(bucketId, checkpoint);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        int shard = strategy.shardForBucket(bucketId);
+        if (shard < 0)
+            // change sets do not carry the time they were persisted to merge the shards by
+            throw new UnsupportedOperationException(
+                    "Bucket " + bucketId + " is spread over several shards, "
+                    + "assign it to a single shard to read it by time");
+        return shards.get(shard).changesBetween(bucketId, from, to);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion)
+            throws StreamNotFoundException {
+        return shard(bucketId, streamId).getFrom(bucketId, streamId, minVersion, maxVersion);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        return shard(bucketId, streamId).getLatest(bucketId, streamId, count);
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (changeSet == null)
+            throw new IllegalArgumentException("changeSet must not be null");
+        shard(changeSet.bucketId(), changeSet.streamId()).persistChanges(changeSet);
+    }
+
+    /**
+     * Splits the batch by shard and passes every shard its part as a batch.
+     */
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        PersistenceUtils.checkBatch(changeSets);
+        Map<Integer, List<Integer>> positions = new TreeMap<>();
+        for (int i = 0; i < changeSets.size(); i++) {
+            ChangeSet cs = changeSets.get(i);
+            int shard = shardIndex(cs.bucketId(), cs.streamId());
+            List<Integer> list = positions.get(shard);
+            if (list == null) {
+                list = new ArrayList<>();
+                positions.put(shard, list);
+            }
+            list.add(i);
+        }
+        Exception[] failures = new Exception[changeSets.size()];
+        for (Map.Entry<Integer, List<Integer>> e : positions.entrySet()) {
+            List<ChangeSet> part = new ArrayList<>(e.getValue().size());
+            for (int i : e.getValue())
+                part.add(changeSets.get(i));
+            List<Exception> partFailures = shards.get(e.getKey()).persistBatch(part);
+            for (int j = 0; j < part.size(); j++)
+                failures[e.getValue().get(j)] = partFailures.get(j);
+        }
+        return Arrays.asList(failures);
+    }
+
+    private EventStorePersistence shard(String bucketId, String streamId) {
+        return shards.get(shardIndex(bucketId, streamId));
+    }
+
+    private int shardIndex(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        return strategy.shardFor(bucketId, streamId);
+    }
+
+    /**
+     * Reads all shards one after the other.  The iterator of a shard is only
+     * requested when the previous shard is exhausted.
+     */
+    private abstract class ConcatenatingIterator implements Iterator<ChangeSet> {
+
+        private int shard = 0;
+        private Iterator<ChangeSet> current = null;
+
+        /**
+         * Requests the changes of the given shard.
+         */
+        protected abstract Iterator<ChangeSet> open(EventStorePersistence shard);
+
+        @Override
+        public boolean hasNext() {
+            if (current == null)
+                current = open(shards.get(0));
+            while (!current.hasNext()) {
+                if (shard + 1 >= shards.size())
+                    return false;
+                current = open(shards.get(++shard));
+            }
+            return true;
+        }
+
+        @Override
+        public ChangeSet next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No next ChangeSet");
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.sharding;
+
+/**
+ * Decides which shard of a {@link ShardingPersistence} stores a stream.
+ * All change sets of a stream must be stored in the same shard.
+ */
+public interface ShardingStrategy {
+
+    /**
+     * Gets the shard that stores the given stream.
+     *
+     * @param bucketId  the identifier of the bucket to which the stream belongs, not null
+     * @param streamId  the identifier of the stream, not null
+     * @return  the index of the shard, between 0 (inclusive) and the number of shards (exclusive)
+     */
+    int shardFor(String bucketId, String streamId);
+
+    /**
+     * Gets the shard that stores all streams of the given bucket, if there is one.
+     *
+     * @param bucketId  the identifier of the bucket, not null
+     * @return  the index of the shard, or -1 if the bucket is spread over several shards
+     */
+    int shardForBucket(String bucketId);
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+
+/**
+ * A decorator for {@link EventStorePersistence} that caches the
+ * deserialized change sets of streams, such that streams that are opened
+ * repeatedly need not be read and deserialized again.
+ * <p>
+ * A stream enters the cache when it has been read up to its most recent
+ * version, or when its first change set is persisted through this
+ * decorator.  Subsequent changes persisted through this decorator are
+ * appended, as read back from the decorated persistence such that they
+ * carry their checkpoints.  {@link #getFrom} is served from the cache as
+ * far as the cached change sets cover the requested range, only the
+ * versions before them are read from the decorated persistence.
+ * Likewise, {@link #getLatest} is served from the cache if enough change
+ * sets, or the whole stream, are cached.
+ * <p>
+ * The cache is bounded by its weight, the number of events of all cached
+ * change sets (every change set counts as at least one event).  The least
+ * recently used streams are evicted first.  The numbers of hits, misses and
+ * evictions are available for monitoring.
+ * <p>
+ * The cache is only correct if all changes are written through this
+ * decorator, as {@link OptimisticEventStream} does.  A stream whose
+ * changes conflict with the cached state is evicted.  When running inside
+ * a transaction, persisted changes enter the cache after the transaction
+ * has been committed, and the writing transaction reads the streams it
+ * wrote from the decorated persistence.
+ * <p>
+ * Change sets and their events are shared between all readers and must
+ * not be modified.
+ * <p>
+ * Can be used as a plain object, or be configured as a singleton EJB.
+ * <p>
+ * The following EJBs and services are expected to be injected when used as EJB:
+ * <p>
+ * {@code persistence} of type {@link EventStorePersistence}: the decorated persistence
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code maxWeight} (optional, default: 100000): The maximum number of
+ *   events kept in the cache.
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CachingPersistenceDecorator implements EventStorePersistence {
+
+    @EJB(name="persistence")
+    private EventStorePersistence persistence;
+
+    @Resource
+    private TransactionSynchronizationRegistry transactionRegistry;
+
+    @Resource(name="maxWeight")
+    private Long maxWeight = 100000l;
+
+    private StreamTailCache cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Required for EJB, do not use.
+     */
+    public CachingPersistenceDecorator() { }
+
+    public CachingPersistenceDecorator(EventStorePersistence persistence, long maxWeight) {
+        this.persistence = persistence;
+        this.maxWeight = maxWeight;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (persistence == null)
+            throw new IllegalStateException("No persistence has been injected");
+        this.cache = new Cache();
+    }
+
+    /**
+     * Gets the number of {@link #getFrom} and {@link #getLatest} calls that
+     * were served from the cache.
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of {@link #getFrom} and {@link #getLatest} calls that
+     * were passed through.
+     */
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of streams that have been evicted to bound the weight.
+     */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the current weight of the cache, in events.
+     */
+    public long weight() {
+        return cache.weight();
+    }
+
+    /**
+     * Gets the number of cached streams.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (cache.contains(new StreamKey(bucketId, streamId)))
+            return true;
+        return persistence.existsStream(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        // other writers may have advanced the stream beyond what is held in memory
+        return persistence.streamVersion(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        return persistence.streamVersionAt(bucketId, streamId, timestamp);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        return persistence.allChanges(bucketId);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        return persistence.allChangesSince(bucketId, checkpoint);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        return persistence.changesBetween(bucketId, from, to);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion)
+            throws StreamNotFoundException {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        return cache.getFrom(new StreamKey(bucketId, streamId), minVersion, maxVersion);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+        return cache.getLatest(new StreamKey(bucketId, streamId), count);
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (changeSet == null)
+            throw new IllegalArgumentException("changeSet must not be null");
+        try {
+            persistence.persistChanges(changeSet);
+        } catch (ConcurrencyException e) {
+            // someone else has written to the stream, the cached state is stale
+            cache.evict(new StreamKey(changeSet.bucketId(), changeSet.streamId()));
+            throw e;
+        }
+        cache.written(Collections.singletonList(changeSet));
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        List<Exception> failures = persistence.persistBatch(changeSets);
+        List<ChangeSet> written = new ArrayList<>();
+        for (int i = 0; i < changeSets.size(); i++) {
+            ChangeSet changeSet = changeSets.get(i);
+            if (failures.get(i) == null)
+                written.add(changeSet);
+            else if (failures.get(i) instanceof ConcurrencyException)
+                cache.evict(new StreamKey(changeSet.bucketId(), changeSet.streamId()));
+        }
+        cache.written(written);
+        return failures;
+    }
+
+    /**
+     * Keeps whole streams, or the change sets read from a version on, up to
+     * a total of {@code maxWeight} events.
+     */
+    private class Cache extends StreamTailCache {
+
+        Cache() {
+            super(persistence, transactionRegistry);
+        }
+
+        @Override
+        protected Tail append(Tail tail, ChangeSet changeSet) {
+            long version = changeSet.streamVersion();
+            if (tail == null) {
+                // only the first change set of a new stream starts a cached stream
+                if (version != 1)
+                    return null;
+                tail = new Tail(0);
+            } else if (version != tail.to() + 1)
+                return null;
+            tail.add(changeSet);
+            return tail;
+        }
+
+        @Override
+        protected boolean keeps(Tail tail, long version) {
+            return tail == null ? version == 1 : version == tail.to() + 1;
+        }
+
+        @Override
+        protected int maxCollected() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        protected boolean admits(long weight) {
+            return weight <= maxWeight;
+        }
+
+        @Override
+        protected void trim() {
+            while (weight() > maxWeight && evictEldest())
+                evictions.incrementAndGet();
+        }
+
+        @Override
+        protected void hit() {
+            hits.incrementAndGet();
+        }
+
+        @Override
+        protected void miss() {
+            misses.incrementAndGet();
+        }
+
+    }
+
+}
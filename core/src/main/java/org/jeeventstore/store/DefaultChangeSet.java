@@ -38,6 +38,7 @@ public class DefaultChangeSet implements ChangeSet {
     private long streamVersion;
     private String changeSetId;
     private List<Serializable> events;
+    private long checkpoint;
 
     public DefaultChangeSet(
             String bucketId,
@@ -46,6 +47,17 @@ public class DefaultChangeSet implements ChangeSet {
             String changeSetId,
             List<? extends Serializable> events) {
 
+        this(bucketId, streamId, streamVersion, changeSetId, events, 0);
+    }
+
+    public DefaultChangeSet(
+            String bucketId,
+            String streamId,
+            long streamVersion,
+            String changeSetId,
+            List<? extends Serializable> events,
+            long checkpoint) {
+
         if (bucketId == null)
             throw new NullPointerException("bucketId must not be null");
         if (streamId == null)
@@ -56,12 +68,15 @@ public class DefaultChangeSet implements ChangeSet {
             throw new NullPointerException("changeSetId must not be null");
         if (events == null)
             throw new NullPointerException("events must not be null");
+        if (checkpoint < 0)
+            throw new IllegalArgumentException("checkpoint must not be negative");
 
         this.bucketId = bucketId;
         this.streamId = streamId;
         this.streamVersion = streamVersion;
         this.changeSetId = changeSetId;
         this.events = Collections.unmodifiableList(new ArrayList<>(events));
+        this.checkpoint = checkpoint;
     }
 
     @Override
@@ -84,6 +99,11 @@ public class DefaultChangeSet implements ChangeSet {
         return changeSetId;
     }
 
+    @Override
+    public long checkpoint() {
+        return checkpoint;
+    }
+
     @Override
     public Iterator<Serializable> events() {
         return this.events.iterator();
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StorageException;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.util.PersistenceUtils;
+
+/**
+ * A decorator for {@link EventStorePersistence} that coalesces concurrent
+ * calls to {@link #persistChanges} into groups that are written in a single
+ * transaction, such that the database syncs its log once per group instead
+ * of once per change set.
+ * <p>
+ * Callers queue their change sets.  One of them becomes the leader: it
+ * waits up to {@code maxWaitMillis} for further change sets, takes up to
+ * {@code maxGroupSize} of them and writes them via {@link #persistGroup}.
+ * Change sets that arrive in the meantime form the next group, so groups
+ * grow with the load even without a waiting period.  Every caller returns
+ * once its own change set has been written, with its own exception if the
+ * change set could not be written.  If the write of a group fails as a
+ * whole, the change sets are written one at a time to find out which
+ * of them failed.
+ * <p>
+ * When used as EJB, {@link #persistGroup} is invoked through the container
+ * and runs in a new transaction, which commits before the callers return.
+ * Hence the change sets are not part of the callers' transactions, and
+ * are not rolled back with them.  The bean must therefore expose a
+ * no-interface view in addition to {@link EventStorePersistence}
+ * ({@code <local-bean/>} in {@code ejb-jar.xml}).
+ * Reads are passed through to the decorated persistence.
+ * <p>
+ * Can be used as a plain object, or be configured as a singleton EJB.
+ * <p>
+ * The following EJBs and services are expected to be injected when used as EJB:
+ * <p>
+ * {@code persistence} of type {@link EventStorePersistence}: the decorated persistence
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code maxGroupSize} (optional, default: 100): The maximum number of
+ *   change sets written in a single transaction.
+ * <p>
+ * Env-entry {@code maxWaitMillis} (optional, default: 0): The time the leader
+ *   waits for further change sets before it writes a group that has not
+ *   reached {@code maxGroupSize} yet.
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class GroupCommitPersistenceDecorator implements EventStorePersistence {
+
+    @EJB(name="persistence")
+    private EventStorePersistence persistence;
+
+    @Resource
+    private SessionContext sessionContext;
+
+    @Resource(name="maxGroupSize")
+    private Integer maxGroupSize = 100;
+
+    @Resource(name="maxWaitMillis")
+    private Integer maxWaitMillis = 0;
+
+    private final Object lock = new Object();
+    private final List<Pending> queue = new ArrayList<>();
+    private boolean leaderActive = false;
+
+    /**
+     * Required for EJB, do not use.
+     */
+    public GroupCommitPersistenceDecorator() { }
+
+    public GroupCommitPersistenceDecorator(EventStorePersistence persistence, int maxGroupSize, int maxWaitMillis) {
+        this.persistence = persistence;
+        this.maxGroupSize = maxGroupSize;
+        this.maxWaitMillis = maxWaitMillis;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (persistence == null)
+            throw new IllegalStateException("No persistence has been injected");
+        if (maxGroupSize < 1)
+            throw new IllegalStateException("maxGroupSize must be at least 1");
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        return persistence.existsStream(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        return persistence.streamVersion(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        return persistence.streamVersionAt(bucketId, streamId, timestamp);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        return persistence.allChanges(bucketId);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        return persistence.allChangesSince(bucketId, checkpoint);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        return persistence.changesBetween(bucketId, from, to);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion)
+            throws StreamNotFoundException {
+        return persistence.getFrom(bucketId, streamId, minVersion, maxVersion);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        return persistence.getLatest(bucketId, streamId, count);
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (changeSet == null)
+            throw new IllegalArgumentException("changeSet must not be null");
+
+        Pending pending = new Pending(changeSet);
+        boolean interrupted = false;
+        synchronized (lock) {
+            queue.add(pending);
+            if (queue.size() >= maxGroupSize)
+                lock.notifyAll();
+        }
+        // waits uninterruptibly, the change set may already be on its way
+        // and the caller must learn whether it has been written
+        while (true) {
+            List<Pending> group;
+            synchronized (lock) {
+                while (!pending.done && leaderActive) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (pending.done)
+                    break;
+                leaderActive = true;
+                interrupted |= awaitGroup();
+                group = new ArrayList<>(queue.subList(0, Math.min(maxGroupSize, queue.size())));
+                queue.subList(0, group.size()).clear();
+            }
+            try {
+                write(group);
+            } finally {
+                synchronized (lock) {
+                    for (Pending p : group) {
+                        if (!p.done) {
+                            p.failure = new StorageException("Writing the group failed");
+                            p.done = true;
+                        }
+                    }
+                    leaderActive = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        Exception failure = pending.failure;
+        if (failure == null)
+            return;
+        if (failure instanceof ConcurrencyException)
+            throw (ConcurrencyException) failure;
+        if (failure instanceof DuplicateCommitException)
+            throw (DuplicateCommitException) failure;
+        throw (RuntimeException) failure;
+    }
+
+    /**
+     * Writes the batch as a group of its own, in a single new transaction,
+     * without waiting for other change sets.  If the transaction fails as
+     * a whole, nothing has been written and the exception is thrown.
+     */
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        PersistenceUtils.checkBatch(changeSets);
+        if (changeSets.isEmpty())
+            return new ArrayList<>();
+        return self().persistGroup(changeSets);
+    }
+
+    /**
+     * Writes a group of change sets in a single transaction.
+     * Not to be called by clients.
+     *
+     * @return  for each change set, the exception that prevented it from
+     *          being written, or {@code null} if it has been written
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<Exception> persistGroup(List<ChangeSet> changeSets) {
+        return persistence.persistBatch(changeSets);
+    }
+
+    /**
+     * Waits until the group is full or {@code maxWaitMillis} have passed.
+     * Must be called while holding the lock.
+     *
+     * @return  whether the thread has been interrupted while waiting
+     */
+    private boolean awaitGroup() {
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        long remaining;
+        while (queue.size() < maxGroupSize && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    private void write(List<Pending> group) {
+        List<ChangeSet> changeSets = new ArrayList<>(group.size());
+        for (Pending p : group)
+            changeSets.add(p.changeSet);
+        try {
+            complete(group, self().persistGroup(changeSets));
+        } catch (RuntimeException e) {
+            if (group.size() == 1) {
+                complete(group, Collections.<Exception>singletonList(e));
+                return;
+            }
+            // the transaction has been rolled back as a whole,
+            // find the culprits by writing one change set at a time
+            for (Pending p : group) {
+                List<Exception> failure;
+                try {
+                    failure = self().persistGroup(Collections.singletonList(p.changeSet));
+                } catch (RuntimeException single) {
+                    failure = Collections.<Exception>singletonList(single);
+                }
+                complete(Collections.singletonList(p), failure);
+            }
+        }
+    }
+
+    private void complete(List<Pending> group, List<Exception> failures) {
+        synchronized (lock) {
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).failure = failures.get(i);
+                group.get(i).done = true;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private GroupCommitPersistenceDecorator self() {
+        if (sessionContext == null)
+            return this;
+        return sessionContext.getBusinessObject(GroupCommitPersistenceDecorator.class);
+    }
+
+    private static final class Pending {
+
+        private final ChangeSet changeSet;
+        private Exception failure = null;
+        private boolean done = false;
+
+        Pending(ChangeSet changeSet) {
+            this.changeSet = changeSet;
+        }
+
+    }
+
+}
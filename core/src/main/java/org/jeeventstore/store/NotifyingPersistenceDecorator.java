@@ -22,7 +22,9 @@
 package org.jeeventstore.store;
 
 import org.jeeventstore.ConcurrencyException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import org.jeeventstore.ChangeSet;
 import org.jeeventstore.DuplicateCommitException;
 import org.jeeventstore.EventStoreCommitNotifier;
@@ -33,6 +35,8 @@ import org.jeeventstore.StreamNotFoundException;
  * A decorator for {@link EventStorePersistence} that initiates a notification
  * of listeners at the configured {@link EventStoreCommitNotifier} when
  * changes are persisted.
+ * The change sets persisted by {@link #persistBatch} are passed to the
+ * notifier as a whole.
  */
 public class NotifyingPersistenceDecorator implements EventStorePersistence {
 
@@ -51,22 +55,59 @@ public class NotifyingPersistenceDecorator implements EventStorePersistence {
         return persistence.existsStream(bucketId, streamId);
     }
 
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        return persistence.streamVersion(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        return persistence.streamVersionAt(bucketId, streamId, timestamp);
+    }
+
     @Override
     public Iterator<ChangeSet> allChanges(String bucketId) {
         return persistence.allChanges(bucketId);
     }
 
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        return persistence.allChangesSince(bucketId, checkpoint);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        return persistence.changesBetween(bucketId, from, to);
+    }
+
     @Override
     public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion) 
             throws StreamNotFoundException {
         return persistence.getFrom(bucketId, streamId, minVersion, maxVersion);
     }
 
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        return persistence.getLatest(bucketId, streamId, count);
+    }
+
     @Override
     public void persistChanges(ChangeSet changeSet) 
             throws ConcurrencyException, DuplicateCommitException {
         persistence.persistChanges(changeSet);
         notifier.notifyListeners(changeSet);
     }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        List<Exception> failures = persistence.persistBatch(changeSets);
+        List<ChangeSet> persisted = new ArrayList<>(changeSets.size());
+        for (int i = 0; i < changeSets.size(); i++)
+            if (failures.get(i) == null)
+                persisted.add(changeSets.get(i));
+        if (!persisted.isEmpty())
+            notifier.notifyBatch(persisted);
+        return failures;
+    }
     
 }
@@ -23,6 +23,7 @@ package org.jeeventstore.store;
 
 import org.jeeventstore.*;
 
+import java.util.Date;
 import javax.ejb.EJB;
 
 /**
@@ -68,6 +69,25 @@ public class OptimisticEventStoreService implements EventStore {
         return OptimisticEventStream.createReadable(bucketId, streamId, version, persistence);
     }
 
+    @Override
+    public ReadableEventStream openStreamForReading(String bucketId, String streamId, Date asOf)
+            throws StreamNotFoundException {
+        if (asOf == null)
+            throw new IllegalArgumentException("asOf must not be null");
+        long version = persistence.streamVersionAt(bucketId, streamId, asOf.getTime());
+        if (version == 0)
+            throw new StreamNotFoundException();
+        return OptimisticEventStream.createReadable(bucketId, streamId, version, persistence);
+    }
+
+    @Override
+    public ReadableEventStream openStreamTail(String bucketId, String streamId, int count)
+            throws StreamNotFoundException {
+        if (count < 1)
+            throw new IllegalArgumentException("count must be at least 1");
+        return OptimisticEventStream.createTail(bucketId, streamId, count, persistence);
+    }
+
     @Override
     public WritableEventStream createStream(String bucketId, String streamId) {
         return this.openStreamForWriting(bucketId, streamId, 0l);
@@ -85,4 +105,9 @@ public class OptimisticEventStoreService implements EventStore {
         return persistence.existsStream(bucketId, streamId);
     }
 
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        return persistence.streamVersion(bucketId, streamId);
+    }
+
 }
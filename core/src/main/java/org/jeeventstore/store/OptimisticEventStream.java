@@ -24,6 +24,7 @@ package org.jeeventstore.store;
 import org.jeeventstore.StreamNotFoundException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
@@ -35,6 +36,7 @@ import org.jeeventstore.ChangeSet;
 import org.jeeventstore.ReadWriteEventStream;
 import org.jeeventstore.ReadableEventStream;
 import org.jeeventstore.WritableEventStream;
+import org.jeeventstore.util.IteratorUtils;
 
 /**
  * An event stream that uses optimistic locking.
@@ -48,6 +50,7 @@ final class OptimisticEventStream
     private final String bucketId;                      // the ID of the bucket this streams belongs to
     private final String streamId;                      // the ID of this stream within the bucket
     private long version = 0l;                          // the version of this stream
+    private long baseVersion = 0l;                      // the version preceding the first committed change
 
     private final List<ChangeSet> committedChanges;     // change sets that have been persisted
     private final List<Serializable> appendedEvents;    // events that have been appended but not yet persisted
@@ -130,6 +133,34 @@ final class OptimisticEventStream
         return createReadWritable(bucketId, streamId, version, persistence);
     }
 
+    /**
+     * Factory method to create a new readable event stream holding only the
+     * last change sets of the stream.
+     * Queries the persistence layer upon creation to populate the stream.
+     * 
+     * @param bucketId  the identifier of the bucket the stream belongs to
+     * @param streamId  the identifier of the stream
+     * @param count  the maximum number of change sets to read
+     * @param persistence  the persistence layer from which changes are read
+     * @return   the stream, at its latest version
+     */
+    protected static ReadableEventStream createTail(
+            String bucketId,
+            String streamId, 
+            int count,
+            EventStorePersistence persistence) throws StreamNotFoundException {
+
+        List<ChangeSet> latest = IteratorUtils.toList(persistence.getLatest(bucketId, streamId, count));
+        if (latest.isEmpty())
+            throw new StreamNotFoundException();
+        Collections.reverse(latest);
+        long base = latest.get(0).streamVersion() - 1;
+        OptimisticEventStream oes = new OptimisticEventStream(bucketId, streamId, base, persistence);
+        oes.baseVersion = base;
+        oes.populateWith(latest.iterator());
+        return oes;
+    }
+
     @Override
     public String bucketId() {
         return this.bucketId;
@@ -147,7 +178,7 @@ final class OptimisticEventStream
 
     @Override
     public Iterator<Serializable> events() {
-        if (this.version != this.committedChanges.size())
+        if (this.version - this.baseVersion != this.committedChanges.size())
             throw new IllegalStateException("Cannot retrieve events from unpopulated stream");
         return new EventsIterator(this.committedChanges.iterator());
     }
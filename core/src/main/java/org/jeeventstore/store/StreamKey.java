@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+/**
+ * Identifies a stream within a bucket, for use as key in maps.
+ */
+final class StreamKey {
+
+    private final String bucketId;
+    private final String streamId;
+
+    StreamKey(String bucketId, String streamId) {
+        this.bucketId = bucketId;
+        this.streamId = streamId;
+    }
+
+    String bucketId() {
+        return bucketId;
+    }
+
+    String streamId() {
+        return streamId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof StreamKey))
+            return false;
+        StreamKey other = (StreamKey) obj;
+        return bucketId.equals(other.bucketId) && streamId.equals(other.streamId);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * bucketId.hashCode() + streamId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return bucketId + "/" + streamId;
+    }
+
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+
+/**
+ * Holds the most recent change sets ("tails") of streams in memory and
+ * serves {@link EventStorePersistence#getFrom} and
+ * {@link EventStorePersistence#getLatest} from them, falling through to
+ * the decorated persistence otherwise.  Shared by
+ * {@link TieredPersistenceDecorator} and {@link CachingPersistenceDecorator},
+ * which decide how tails grow and which tails are evicted.
+ * <p>
+ * A tail is created when a stream is read up to its most recent version,
+ * and is extended by the change sets written through the decorator.  When
+ * running inside a transaction, written change sets enter the tails after
+ * the transaction has been committed, and the writing transaction reads
+ * the streams it wrote from the decorated persistence.
+ * <p>
+ * A read of a range that starts before the tail and ends within it only
+ * reads the versions before the tail from the decorated persistence.
+ * <p>
+ * The change sets passed to the decorator carry no checkpoint yet.  A tail
+ * is therefore only extended by the written change sets as read back from
+ * the decorated persistence, such that reads served from memory return
+ * the same checkpoints as the decorated persistence.  This costs one
+ * {@link EventStorePersistence#getLatest} per written stream whose tail
+ * is kept.
+ * <p>
+ * A read up to the most recent version installs the tail it collected
+ * only if the stream has not been written since the read began, as the
+ * write may not be part of what has been read.  Every write through the
+ * decorator, and every eviction, therefore records a generation for its
+ * stream.  The generations of the most recently written streams are kept,
+ * older ones are folded into a single generation that applies to all
+ * other streams.
+ * <p>
+ * The tails are kept in least recently used order and are guarded by the
+ * lock on this object.
+ */
+abstract class StreamTailCache {
+
+    /**
+     * The number of streams whose last write generation is kept.
+     */
+    private static final int WRITE_MARKS = 4096;
+
+    private final EventStorePersistence persistence;
+    private final TransactionSynchronizationRegistry transactionRegistry;
+    private final LinkedHashMap<StreamKey, Tail> tails = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long generation = 0;
+    private long forgotten = 0;
+    private final LinkedHashMap<StreamKey, Long> marks = new LinkedHashMap<StreamKey, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StreamKey, Long> eldest) {
+            if (size() <= WRITE_MARKS)
+                return false;
+            forgotten = eldest.getValue();
+            return true;
+        }
+    };
+
+    StreamTailCache(EventStorePersistence persistence, TransactionSynchronizationRegistry transactionRegistry) {
+        this.persistence = persistence;
+        this.transactionRegistry = transactionRegistry;
+    }
+
+    /**
+     * Extends the tail of a stream by a change set written through the
+     * decorator.  Called while holding the lock.
+     *
+     * @param tail  the current tail of the stream, or null
+     * @param changeSet  the written change set
+     * @return the new tail of the stream, or null to drop it
+     */
+    protected abstract Tail append(Tail tail, ChangeSet changeSet);
+
+    /**
+     * Whether {@link #append} keeps a tail for the written change set with
+     * the given version, which is then read back from the decorated
+     * persistence.  Called while holding the lock.
+     *
+     * @param tail  the current tail of the stream, or null
+     * @param version  the version of the written change set
+     */
+    protected abstract boolean keeps(Tail tail, long version);
+
+    /**
+     * Gets the maximum number of change sets a tail collected from a read
+     * keeps, the earlier ones are dropped.
+     */
+    protected abstract int maxCollected();
+
+    /**
+     * Whether a tail of the given weight may be held.
+     */
+    protected abstract boolean admits(long weight);
+
+    /**
+     * Evicts tails, using {@link #evictEldest}, until the cache is within
+     * its bounds.  Called while holding the lock.
+     */
+    protected abstract void trim();
+
+    /**
+     * Called when a read has been served from memory.
+     */
+    protected void hit() { }
+
+    /**
+     * Called when a read has been passed through.
+     */
+    protected void miss() { }
+
+    /**
+     * Gets the number of events of all held change sets, every change set
+     * counts as at least one event.
+     */
+    synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * Gets the number of held tails.
+     */
+    synchronized int size() {
+        return tails.size();
+    }
+
+    synchronized boolean contains(StreamKey key) {
+        return tails.containsKey(key);
+    }
+
+    /**
+     * Discards the least recently used tail.  Called while holding the lock.
+     *
+     * @return whether a tail has been discarded
+     */
+    final boolean evictEldest() {
+        Iterator<Tail> it = tails.values().iterator();
+        if (!it.hasNext())
+            return false;
+        weight -= it.next().weight;
+        it.remove();
+        return true;
+    }
+
+    synchronized void evict(StreamKey key) {
+        mark(key);
+        remove(key);
+    }
+
+    Iterator<ChangeSet> getFrom(StreamKey key, long minVersion, long maxVersion)
+            throws StreamNotFoundException {
+        if (!writtenInCurrentTransaction(key)) {
+            List<ChangeSet> cached = null;
+            long from = 0;
+            synchronized (this) {
+                Tail tail = tails.get(key);
+                if (tail != null && minVersion >= tail.from) {
+                    hit();
+                    return tail.range(minVersion, maxVersion).iterator();
+                }
+                if (tail != null && maxVersion > tail.from) {
+                    hit();
+                    cached = tail.range(tail.from, maxVersion);
+                    from = tail.from;
+                }
+            }
+            if (cached != null)
+                // only the versions before the tail are read from the decorated persistence
+                return new PrefixedIterator(
+                        persistence.getFrom(key.bucketId(), key.streamId(), minVersion, from),
+                        cached.iterator());
+        }
+        miss();
+        long since = generation();
+        Iterator<ChangeSet> it = persistence.getFrom(key.bucketId(), key.streamId(), minVersion, maxVersion);
+        if (maxVersion != Long.MAX_VALUE || writtenInCurrentTransaction(key))
+            return it;
+        return new CollectingIterator(key, minVersion, since, it);
+    }
+
+    Iterator<ChangeSet> getLatest(StreamKey key, int count) {
+        if (!writtenInCurrentTransaction(key)) {
+            synchronized (this) {
+                Tail tail = tails.get(key);
+                if (tail != null && (tail.changeSets.size() >= count || tail.from == 0)) {
+                    hit();
+                    return tail.latest(count).iterator();
+                }
+            }
+        }
+        miss();
+        return persistence.getLatest(key.bucketId(), key.streamId(), count);
+    }
+
+    /**
+     * Records the change sets that have been persisted through the decorator,
+     * in the order they have been persisted.
+     */
+    void written(List<ChangeSet> changeSets) {
+        Map<StreamKey, List<ChangeSet>> streams = new LinkedHashMap<>();
+        for (ChangeSet changeSet : changeSets) {
+            StreamKey key = new StreamKey(changeSet.bucketId(), changeSet.streamId());
+            List<ChangeSet> written = streams.get(key);
+            if (written == null)
+                streams.put(key, written = new ArrayList<>());
+            written.add(changeSet);
+        }
+        for (Map.Entry<StreamKey, List<ChangeSet>> entry : streams.entrySet())
+            written(entry.getKey(), entry.getValue());
+    }
+
+    private void written(final StreamKey key, List<ChangeSet> changeSets) {
+        final List<ChangeSet> stored = readBack(key, changeSets);
+        if (transactionRegistry == null || transactionRegistry.getTransactionKey() == null) {
+            committed(key, stored);
+            return;
+        }
+        transactionRegistry.putResource(key, Boolean.TRUE);
+        transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() { }
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    committed(key, stored);
+            }
+        });
+    }
+
+    /**
+     * Gets the written change sets of a stream as stored by the decorated
+     * persistence.  The caller's change sets carry no checkpoint, which is
+     * assigned when they are persisted, so they are read back unless the
+     * tail would not keep them anyway.
+     *
+     * @return the stored change sets, or null if the tail is to be dropped
+     */
+    private List<ChangeSet> readBack(StreamKey key, List<ChangeSet> written) {
+        boolean checkpointed = true;
+        for (ChangeSet changeSet : written)
+            checkpointed &= changeSet.checkpoint() != 0;
+        if (checkpointed)
+            return written;
+        synchronized (this) {
+            if (!keeps(tails.get(key), written.get(0).streamVersion()))
+                return null;
+        }
+        List<ChangeSet> stored = new ArrayList<>();
+        Iterator<ChangeSet> it = persistence.getLatest(key.bucketId(), key.streamId(), written.size());
+        while (it.hasNext())
+            stored.add(it.next());
+        Collections.reverse(stored);
+        if (stored.size() != written.size())
+            return null;
+        for (int i = 0; i < written.size(); i++)
+            if (stored.get(i).streamVersion() != written.get(i).streamVersion())
+                return null;
+        return stored;
+    }
+
+    private boolean writtenInCurrentTransaction(StreamKey key) {
+        return transactionRegistry != null
+                && transactionRegistry.getTransactionKey() != null
+                && transactionRegistry.getResource(key) != null;
+    }
+
+    private synchronized void committed(StreamKey key, List<ChangeSet> changeSets) {
+        mark(key);
+        Tail tail = remove(key);
+        if (changeSets == null)
+            return;
+        for (ChangeSet changeSet : changeSets) {
+            tail = append(tail, changeSet);
+            if (tail == null)
+                return;
+        }
+        if (admits(tail.weight)) {
+            tails.put(key, tail);
+            weight += tail.weight;
+        }
+        trim();
+    }
+
+    /**
+     * Installs a tail collected by a read that began at generation
+     * {@code since}, unless the stream has been written since.
+     */
+    private synchronized void install(StreamKey key, Tail tail, long since) {
+        Long mark = marks.get(key);
+        if ((mark != null ? mark : forgotten) > since)
+            return;
+        // a tail created by a concurrent write is at least as recent
+        if (tails.containsKey(key) || !admits(tail.weight))
+            return;
+        tails.put(key, tail);
+        weight += tail.weight;
+        trim();
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Records a write to a stream.  Called while holding the lock.
+     */
+    private void mark(StreamKey key) {
+        marks.remove(key);
+        marks.put(key, ++generation);
+    }
+
+    private Tail remove(StreamKey key) {
+        Tail old = tails.remove(key);
+        if (old != null)
+            weight -= old.weight;
+        return old;
+    }
+
+    private static long weigh(ChangeSet changeSet) {
+        long events = 0;
+        Iterator<Serializable> it = changeSet.events();
+        while (it.hasNext()) {
+            it.next();
+            events++;
+        }
+        return Math.max(1, events);
+    }
+
+    /**
+     * The change sets of a stream with a version greater than {@code from},
+     * up to version {@code to}, ordered by version.
+     * Guarded by the lock on the cache once held.
+     */
+    static final class Tail {
+
+        private long from;
+        private long to;
+        private final List<ChangeSet> changeSets = new ArrayList<>();
+        private long weight = 0;
+
+        Tail(long from) {
+            this.from = from;
+            this.to = from;
+        }
+
+        long from() {
+            return from;
+        }
+
+        long to() {
+            return to;
+        }
+
+        int size() {
+            return changeSets.size();
+        }
+
+        long weight() {
+            return weight;
+        }
+
+        /**
+         * Appends the change set following version {@code to}.
+         */
+        void add(ChangeSet changeSet) {
+            changeSets.add(changeSet);
+            to = changeSet.streamVersion();
+            weight += weigh(changeSet);
+        }
+
+        /**
+         * Drops the change set following version {@code from}.
+         */
+        void removeFirst() {
+            ChangeSet first = changeSets.remove(0);
+            from = first.streamVersion();
+            weight -= weigh(first);
+        }
+
+        /**
+         * Copies the change sets between {@code minVersion} (exclusive) and
+         * {@code maxVersion} (inclusive).
+         */
+        List<ChangeSet> range(long minVersion, long maxVersion) {
+            int start = 0;
+            while (start < changeSets.size() && changeSets.get(start).streamVersion() <= minVersion)
+                start++;
+            int end = start;
+            while (end < changeSets.size() && changeSets.get(end).streamVersion() <= maxVersion)
+                end++;
+            return new ArrayList<>(changeSets.subList(start, end));
+        }
+
+        /**
+         * Copies the last {@code count} change sets, the latest first.
+         */
+        List<ChangeSet> latest(int count) {
+            List<ChangeSet> list = new ArrayList<>(
+                    changeSets.subList(Math.max(0, changeSets.size() - count), changeSets.size()));
+            Collections.reverse(list);
+            return list;
+        }
+
+    }
+
+    /**
+     * Returns the change sets of the prefix, followed by those of the tail.
+     */
+    private static class PrefixedIterator implements Iterator<ChangeSet> {
+
+        private Iterator<ChangeSet> current;
+        private final Iterator<ChangeSet> tail;
+
+        PrefixedIterator(Iterator<ChangeSet> prefix, Iterator<ChangeSet> tail) {
+            this.current = prefix;
+            this.tail = tail;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!current.hasNext())
+                current = tail;
+            return current.hasNext();
+        }
+
+        @Override
+        public ChangeSet next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No next ChangeSet");
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+    /**
+     * Passes through the change sets read from the decorated persistence and
+     * collects the last ones, which become the tail of the stream once the
+     * iterator is exhausted.
+     */
+    private class CollectingIterator implements Iterator<ChangeSet> {
+
+        private final StreamKey key;
+        private final long since;
+        private final Iterator<ChangeSet> delegate;
+        private Tail collected;
+
+        CollectingIterator(StreamKey key, long minVersion, long since, Iterator<ChangeSet> delegate) {
+            this.key = key;
+            this.since = since;
+            this.delegate = delegate;
+            this.collected = new Tail(minVersion);
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = delegate.hasNext();
+            if (!hasNext && collected != null) {
+                if (collected.size() > 0)
+                    install(key, collected, since);
+                collected = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public ChangeSet next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No next ChangeSet");
+            ChangeSet changeSet = delegate.next();
+            if (collected != null) {
+                collected.add(changeSet);
+                if (collected.size() > maxCollected())
+                    collected.removeFirst();
+                if (!admits(collected.weight))
+                    collected = null;
+            }
+            return changeSet;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+}
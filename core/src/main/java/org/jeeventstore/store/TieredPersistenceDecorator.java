@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+
+/**
+ * A decorator for {@link EventStorePersistence} that keeps the most recent
+ * change sets ("tail") of recently used streams in memory, while the full
+ * history remains in the decorated persistence.
+ * <p>
+ * A tail covers all change sets of a stream within a version range, up to
+ * the most recent version.  Tails are created when a stream is read up to
+ * its most recent version and extended when changes are persisted through
+ * this decorator, by the change sets as read back from the decorated
+ * persistence such that they carry their checkpoints.  {@link #getFrom} is
+ * served from memory as far as the requested range lies within the tail,
+ * only the versions before the tail are read from the decorated
+ * persistence.  {@link #getLatest} is served from memory if the tail holds
+ * enough change sets, or the whole stream.  The number of tails is
+ * bounded, the least recently used tail is discarded first.
+ * <p>
+ * The tails are only correct if all changes are written through this
+ * decorator with increasing versions, as {@link OptimisticEventStream} does.
+ * When running inside a transaction, persisted changes enter the tails
+ * after the transaction has been committed, and the writing transaction
+ * reads the streams it wrote from the decorated persistence.
+ * <p>
+ * Can be used as a plain object, or be configured as a singleton EJB.
+ * <p>
+ * The following EJBs and services are expected to be injected when used as EJB:
+ * <p>
+ * {@code persistence} of type {@link EventStorePersistence}: the decorated persistence
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code tailSize} (optional, default: 50): The maximum number of
+ *   change sets kept per stream.
+ * <p>
+ * Env-entry {@code maxStreams} (optional, default: 10000): The maximum number
+ *   of streams kept in memory.
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class TieredPersistenceDecorator implements EventStorePersistence {
+
+    @EJB(name="persistence")
+    private EventStorePersistence persistence;
+
+    @Resource
+    private TransactionSynchronizationRegistry transactionRegistry;
+
+    @Resource(name="tailSize")
+    private Integer tailSize = 50;
+
+    @Resource(name="maxStreams")
+    private Integer maxStreams = 10000;
+
+    private StreamTailCache tails;
+
+    /**
+     * Required for EJB, do not use.
+     */
+    public TieredPersistenceDecorator() { }
+
+    public TieredPersistenceDecorator(EventStorePersistence persistence, int tailSize, int maxStreams) {
+        this.persistence = persistence;
+        this.tailSize = tailSize;
+        this.maxStreams = maxStreams;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (persistence == null)
+            throw new IllegalStateException("No persistence has been injected");
+        if (tailSize < 1)
+            throw new IllegalStateException("tailSize must be at least 1");
+        this.tails = new Tails();
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (tails.contains(new StreamKey(bucketId, streamId)))
+            return true;
+        return persistence.existsStream(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        // other writers may have advanced the stream beyond what is held in memory
+        return persistence.streamVersion(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        return persistence.streamVersionAt(bucketId, streamId, timestamp);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        return persistence.allChanges(bucketId);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        return persistence.allChangesSince(bucketId, checkpoint);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        return persistence.changesBetween(bucketId, from, to);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion)
+            throws StreamNotFoundException {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        return tails.getFrom(new StreamKey(bucketId, streamId), minVersion, maxVersion);
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+        return tails.getLatest(new StreamKey(bucketId, streamId), count);
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        persistence.persistChanges(changeSet);
+        tails.written(Collections.singletonList(changeSet));
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        List<Exception> failures = persistence.persistBatch(changeSets);
+        List<ChangeSet> written = new ArrayList<>();
+        for (int i = 0; i < changeSets.size(); i++)
+            if (failures.get(i) == null)
+                written.add(changeSets.get(i));
+        tails.written(written);
+        return failures;
+    }
+
+    /**
+     * Keeps the last {@code tailSize} change sets of at most
+     * {@code maxStreams} streams.
+     */
+    private class Tails extends StreamTailCache {
+
+        Tails() {
+            super(persistence, transactionRegistry);
+        }
+
+        @Override
+        protected Tail append(Tail tail, ChangeSet changeSet) {
+            long version = changeSet.streamVersion();
+            if (tail == null || version > tail.to() + 1)
+                // nothing is known about the versions in between
+                tail = new Tail(version - 1);
+            else if (version != tail.to() + 1)
+                return null;
+            tail.add(changeSet);
+            if (tail.size() > tailSize)
+                tail.removeFirst();
+            return tail;
+        }
+
+        @Override
+        protected boolean keeps(Tail tail, long version) {
+            return tail == null || version > tail.to();
+        }
+
+        @Override
+        protected int maxCollected() {
+            return tailSize;
+        }
+
+        @Override
+        protected boolean admits(long weight) {
+            return true;
+        }
+
+        @Override
+        protected void trim() {
+            while (size() > maxStreams)
+                evictEldest();
+        }
+
+    }
+
+}
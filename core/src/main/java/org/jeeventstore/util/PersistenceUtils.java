@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+
+/**
+ * Simple utility functions for implementing {@link EventStorePersistence}.
+ */
+public class PersistenceUtils {
+
+    /**
+     * Implements {@link EventStorePersistence#persistBatch} by persisting
+     * one change set after the other, for persistences that do not gain
+     * anything from writing them together.
+     *
+     * @param persistence  the persistence the change sets are written to
+     * @param changeSets  the changes to be persisted
+     * @return  for each change set, the exception that prevented it from
+     *          being persisted, or {@code null} if it has been persisted
+     */
+    public static List<Exception> persistEach(
+            EventStorePersistence persistence,
+            List<ChangeSet> changeSets) {
+
+        checkBatch(changeSets);
+        List<Exception> failures = new ArrayList<>(changeSets.size());
+        for (ChangeSet cs : changeSets) {
+            try {
+                persistence.persistChanges(cs);
+                failures.add(null);
+            } catch (ConcurrencyException | DuplicateCommitException e) {
+                failures.add(e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Checks the argument of {@link EventStorePersistence#persistBatch}.
+     *
+     * @param changeSets  the changes to be persisted
+     * @throws IllegalArgumentException  if the list or one of its elements is null
+     */
+    public static void checkBatch(List<ChangeSet> changeSets) {
+        if (changeSets == null)
+            throw new IllegalArgumentException("changeSets must not be null");
+        for (ChangeSet cs : changeSets)
+            if (cs == null)
+                throw new IllegalArgumentException("changeSets must not contain null");
+    }
+
+}
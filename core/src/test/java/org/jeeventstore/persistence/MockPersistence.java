@@ -22,6 +22,7 @@
 package org.jeeventstore.persistence;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import org.jeeventstore.ChangeSet;
@@ -30,6 +31,7 @@ import org.jeeventstore.DuplicateCommitException;
 import org.jeeventstore.EventStorePersistence;
 import org.jeeventstore.StreamNotFoundException;
 import org.jeeventstore.store.TestChangeSet;
+import org.jeeventstore.util.PersistenceUtils;
 
 public class MockPersistence implements EventStorePersistence {
 
@@ -43,11 +45,31 @@ public class MockPersistence implements EventStorePersistence {
         return !changeSets.isEmpty();
     }
 
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        return changeSets.size();
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public Iterator<ChangeSet> allChanges(String bucketId) {
         return changeSets.iterator();
     }
 
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion) 
             throws StreamNotFoundException {
@@ -58,6 +80,14 @@ public class MockPersistence implements EventStorePersistence {
         return changeSets.subList(min, max).iterator();
     }
 
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        List<ChangeSet> latest = new ArrayList<>(
+                changeSets.subList(Math.max(0, changeSets.size() - count), changeSets.size()));
+        Collections.reverse(latest);
+        return latest.iterator();
+    }
+
     @Override
     public void persistChanges(ChangeSet changeSet) 
             throws ConcurrencyException, DuplicateCommitException {
@@ -76,6 +106,11 @@ public class MockPersistence implements EventStorePersistence {
             throw new ConcurrencyException();
     }
 
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        return PersistenceUtils.persistEach(this, changeSets);
+    }
+
     private void cleanup() {
         changeSets.clear();
     }
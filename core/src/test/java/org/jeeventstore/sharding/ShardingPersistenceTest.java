@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.sharding;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.IteratorUtils;
+import org.jeeventstore.util.PersistenceUtils;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ShardingPersistenceTest {
+
+    private List<Shard> shards;
+    private List<EventStorePersistence> persistences;
+
+    @BeforeMethod(alwaysRun = true)
+    public void init() {
+        shards = new ArrayList<>();
+        persistences = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Shard shard = new Shard();
+            shards.add(shard);
+            persistences.add(shard);
+        }
+    }
+
+    @Test
+    public void test_streams_stay_on_one_shard() throws Exception {
+        ShardingPersistence persistence = new ShardingPersistence(
+                persistences, new ConsistentHashSharding(4, 64));
+        for (int version = 1; version <= 3; version++)
+            for (int i = 0; i < 100; i++)
+                persistence.persistChanges(changeSet("DEFAULT", "STREAM_" + i, version));
+
+        for (Shard shard : shards) {
+            // every shard got a share of the streams
+            assertFalse(shard.changeSets.isEmpty());
+            for (ChangeSet cs : shard.changeSets)
+                for (Shard other : shards)
+                    if (other != shard)
+                        assertFalse(other.existsStream("DEFAULT", cs.streamId()));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(persistence.existsStream("DEFAULT", "STREAM_" + i));
+            List<ChangeSet> stream = IteratorUtils.toList(
+                    persistence.getFrom("DEFAULT", "STREAM_" + i, 0, Long.MAX_VALUE));
+            assertEquals(stream.size(), 3);
+            assertEquals(persistence.streamVersion("DEFAULT", "STREAM_" + i), 3);
+            assertEquals(persistence.getLatest("DEFAULT", "STREAM_" + i, 1).next().streamVersion(), 3);
+        }
+        assertFalse(persistence.existsStream("DEFAULT", "STREAM_100"));
+        assertEquals(persistence.streamVersion("DEFAULT", "STREAM_100"), 0);
+    }
+
+    @Test
+    public void test_allChanges_keeps_stream_order() throws Exception {
+        ShardingPersistence persistence = new ShardingPersistence(
+                persistences, new ConsistentHashSharding(4, 64));
+        for (int version = 1; version <= 5; version++)
+            for (int i = 0; i < 20; i++)
+                persistence.persistChanges(changeSet("DEFAULT", "STREAM_" + i, version));
+        persistence.persistChanges(changeSet("OTHER", "STREAM_0", 1));
+
+        Map<String, Long> versions = new HashMap<>();
+        int count = 0;
+        for (Iterator<ChangeSet> it = persistence.allChanges("DEFAULT"); it.hasNext(); count++) {
+            ChangeSet cs = it.next();
+            assertEquals(cs.bucketId(), "DEFAULT");
+            Long last = versions.get(cs.streamId());
+            assertTrue(last == null || last < cs.streamVersion());
+            versions.put(cs.streamId(), cs.streamVersion());
+        }
+        assertEquals(count, 100);
+    }
+
+    @Test
+    public void test_bucket_sharding() throws Exception {
+        Map<String, Integer> buckets = BucketSharding.parse("AUDIT=2, ARCHIVE=3");
+        ShardingPersistence persistence = new ShardingPersistence(persistences,
+                new BucketSharding(buckets, new ConsistentHashSharding(4, 64)));
+        for (int i = 0; i < 10; i++)
+            persistence.persistChanges(changeSet("AUDIT", "STREAM_" + i, 1));
+        assertEquals(shards.get(2).changeSets.size(), 10);
+
+        // the bucket lives on a single shard, the others are not asked
+        shards.get(0).failOnAllChanges = true;
+        assertEquals(IteratorUtils.toList(persistence.allChanges("AUDIT")).size(), 10);
+        assertEquals(IteratorUtils.toList(persistence.allChanges("ARCHIVE")).size(), 0);
+    }
+
+    @Test
+    public void test_allChangesSince() throws Exception {
+        ShardingPersistence persistence = new ShardingPersistence(persistences,
+                new BucketSharding(BucketSharding.parse("AUDIT=1"), new ConsistentHashSharding(4, 64)));
+        for (int i = 0; i < 10; i++) {
+            persistence.persistChanges(changeSet("AUDIT", "STREAM_" + i, 1));
+            persistence.persistChanges(changeSet("DEFAULT", "STREAM_" + i, 1));
+        }
+        assertEquals(IteratorUtils.toList(persistence.allChangesSince("AUDIT", 4)).size(), 6);
+        try {
+            // checkpoints of different shards cannot be combined
+            persistence.allChangesSince("DEFAULT", 0);
+            fail("Should have failed by now");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_checkpoint_buckets_must_be_assigned() throws Exception {
+        ShardingStrategy strategy = new BucketSharding(
+                BucketSharding.parse("AUDIT=1"), new ConsistentHashSharding(4, 64));
+        new ShardingPersistence(persistences, strategy, Arrays.asList("AUDIT"));
+        try {
+            new ShardingPersistence(persistences, strategy, Arrays.asList("AUDIT", "DEFAULT"));
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // with a single shard, no bucket is spread
+        new ShardingPersistence(persistences.subList(0, 1), new ConsistentHashSharding(1, 64),
+                Arrays.asList("DEFAULT"));
+    }
+
+    @Test
+    public void test_persistBatch() throws Exception {
+        ShardingPersistence persistence = new ShardingPersistence(
+                persistences, new ConsistentHashSharding(4, 64));
+        persistence.persistChanges(changeSet("DEFAULT", "STREAM_7", 1));
+        List<ChangeSet> batch = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            batch.add(changeSet("DEFAULT", "STREAM_" + i, 1));
+        List<Exception> failures = persistence.persistBatch(batch);
+        assertEquals(failures.size(), 40);
+        for (int i = 0; i < 40; i++) {
+            if (i == 7)
+                assertTrue(failures.get(i) instanceof ConcurrencyException);
+            else
+                assertNull(failures.get(i));
+        }
+        for (Shard shard : shards)
+            // every shard got its part of the batch at once
+            assertEquals(shard.batches, 1);
+        for (int i = 0; i < 40; i++)
+            assertEquals(persistence.streamVersion("DEFAULT", "STREAM_" + i), 1);
+    }
+
+    @Test
+    public void test_changesBetween() throws Exception {
+        ShardingPersistence persistence = new ShardingPersistence(persistences,
+                new BucketSharding(BucketSharding.parse("AUDIT=1"), new ConsistentHashSharding(4, 64)));
+        for (int version = 1; version <= 3; version++) {
+            Shard.now = version * 1000;
+            for (int i = 0; i < 20; i++) {
+                persistence.persistChanges(changeSet("AUDIT", "STREAM_" + i, version));
+                persistence.persistChanges(changeSet("DEFAULT", "STREAM_" + i, version));
+            }
+        }
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.changesBetween("AUDIT", 2000, 3000));
+        assertEquals(changes.size(), 20);
+        for (ChangeSet cs : changes)
+            assertEquals(cs.streamVersion(), 2);
+        assertEquals(IteratorUtils.toList(persistence.changesBetween("AUDIT", 0, 5000)).size(), 60);
+        assertEquals(persistence.streamVersionAt("DEFAULT", "STREAM_3", 2500), 2);
+        assertEquals(persistence.streamVersionAt("DEFAULT", "STREAM_3", 999), 0);
+        try {
+            // the shards cannot be merged by time
+            persistence.changesBetween("DEFAULT", 0, 5000);
+            fail("Should have failed by now");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_distribution() {
+        ConsistentHashSharding sharding = new ConsistentHashSharding(4, 128);
+        int[] counts = new int[4];
+        for (int i = 0; i < 10000; i++)
+            counts[sharding.shardFor("DEFAULT", UUID.randomUUID().toString())]++;
+        for (int count : counts)
+            assertTrue(count > 1500 && count < 3500, "unbalanced: " + count);
+    }
+
+    @Test
+    public void test_adding_a_shard_moves_few_streams() {
+        ConsistentHashSharding four = new ConsistentHashSharding(4, 128);
+        ConsistentHashSharding five = new ConsistentHashSharding(5, 128);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String streamId = "STREAM_" + i;
+            int before = four.shardFor("DEFAULT", streamId);
+            int after = five.shardFor("DEFAULT", streamId);
+            if (before != after) {
+                moved++;
+                assertEquals(after, 4);
+            }
+        }
+        assertTrue(moved < 3000, "moved: " + moved);
+    }
+
+    @Test
+    public void test_nullargs() throws Exception {
+        ShardingPersistence persistence = new ShardingPersistence(
+                persistences, new ConsistentHashSharding(4, 64));
+        try {
+            persistence.existsStream(null, "FOO");
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            persistence.getFrom("DEFAULT", null, 0, 1);
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            persistence.allChanges(null);
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            persistence.allChangesSince(null, 0);
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            persistence.persistChanges(null);
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            persistence.persistBatch(Arrays.asList(changeSet("DEFAULT", "FOO", 1), null));
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static ChangeSet changeSet(String bucketId, String streamId, long version) {
+        return new DefaultChangeSet(bucketId, streamId, version,
+                UUID.randomUUID().toString(), new ArrayList<Serializable>());
+    }
+
+    private static class Shard implements EventStorePersistence {
+
+        /** The clock of all shards, set by the tests. */
+        private static long now = 0;
+
+        private final List<ChangeSet> changeSets = new ArrayList<>();
+        private final List<Long> times = new ArrayList<>();
+        private boolean failOnAllChanges = false;
+        private int batches = 0;
+
+        @Override
+        public boolean existsStream(String bucketId, String streamId) {
+            for (ChangeSet cs : changeSets)
+                if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId))
+                    return true;
+            return false;
+        }
+
+        @Override
+        public long streamVersion(String bucketId, String streamId) {
+            long version = 0;
+            for (ChangeSet cs : changeSets)
+                if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId))
+                    version = Math.max(version, cs.streamVersion());
+            return version;
+        }
+
+        @Override
+        public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+            long version = 0;
+            for (int i = 0; i < changeSets.size(); i++) {
+                ChangeSet cs = changeSets.get(i);
+                if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId)
+                        && times.get(i) <= timestamp)
+                    version = Math.max(version, cs.streamVersion());
+            }
+            return version;
+        }
+
+        @Override
+        public Iterator<ChangeSet> allChanges(String bucketId) {
+            if (failOnAllChanges)
+                throw new IllegalStateException("Shard should not be asked");
+            List<ChangeSet> result = new ArrayList<>();
+            for (ChangeSet cs : changeSets)
+                if (cs.bucketId().equals(bucketId))
+                    result.add(cs);
+            return result.iterator();
+        }
+
+        @Override
+        public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+            List<ChangeSet> result = new ArrayList<>();
+            long position = 0;
+            for (ChangeSet cs : changeSets)
+                if (cs.bucketId().equals(bucketId) && ++position > checkpoint)
+                    result.add(cs);
+            return result.iterator();
+        }
+
+        @Override
+        public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+            List<ChangeSet> result = new ArrayList<>();
+            for (int i = 0; i < changeSets.size(); i++)
+                if (changeSets.get(i).bucketId().equals(bucketId)
+                        && times.get(i) >= from && times.get(i) < to)
+                    result.add(changeSets.get(i));
+            return result.iterator();
+        }
+
+        @Override
+        public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion)
+                throws StreamNotFoundException {
+            List<ChangeSet> result = new ArrayList<>();
+            for (ChangeSet cs : changeSets)
+                if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId)
+                        && cs.streamVersion() > minVersion && cs.streamVersion() <= maxVersion)
+                    result.add(cs);
+            return result.iterator();
+        }
+
+        @Override
+        public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+            List<ChangeSet> result = new ArrayList<>();
+            for (int i = changeSets.size() - 1; i >= 0 && result.size() < count; i--)
+                if (changeSets.get(i).bucketId().equals(bucketId)
+                        && changeSets.get(i).streamId().equals(streamId))
+                    result.add(changeSets.get(i));
+            return result.iterator();
+        }
+
+        @Override
+        public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+            if (streamVersion(changeSet.bucketId(), changeSet.streamId()) >= changeSet.streamVersion())
+                throw new ConcurrencyException();
+            changeSets.add(changeSet);
+            times.add(now);
+        }
+
+        @Override
+        public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+            batches++;
+            return PersistenceUtils.persistEach(this, changeSets);
+        }
+
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.util.PersistenceUtils;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CachingPersistenceDecoratorTest implements EventStorePersistence {
+
+    private List<ChangeSet> stored;
+    private int backendReads;
+
+    @BeforeMethod(alwaysRun = true)
+    public void clear() {
+        stored = new ArrayList<>();
+        backendReads = 0;
+    }
+
+    @Test
+    public void test_full_read_is_cached() throws Exception {
+        for (long v = 1; v <= 5; v++)
+            persistChanges(changeSet("FOO", v, 2));
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 100);
+
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3, 4, 5));
+        assertEquals(cache.missCount(), 1);
+        assertEquals(cache.weight(), 10);
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3, 4, 5));
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 2, 4)), list(3, 4));
+        assertEquals(cache.hitCount(), 2);
+        assertEquals(backendReads, 1);
+    }
+
+    @Test
+    public void test_latest_changes_are_served_from_cache() throws Exception {
+        for (long v = 1; v <= 5; v++)
+            persistChanges(changeSet("FOO", v, 1));
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 100);
+
+        assertEquals(versions(cache.getLatest("TEST", "FOO", 2)), list(5, 4));
+        assertEquals(cache.missCount(), 1);
+        versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE));
+        assertEquals(versions(cache.getLatest("TEST", "FOO", 2)), list(5, 4));
+        assertEquals(versions(cache.getLatest("TEST", "FOO", 10)), list(5, 4, 3, 2, 1));
+        assertEquals(cache.hitCount(), 2);
+        assertEquals(backendReads, 2);
+    }
+
+    @Test
+    public void test_partial_reads_are_not_cached() throws Exception {
+        for (long v = 1; v <= 5; v++)
+            persistChanges(changeSet("FOO", v, 1));
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 100);
+
+        versions(cache.getFrom("TEST", "FOO", 0, 3));
+        Iterator<ChangeSet> unfinished = cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE);
+        unfinished.next();
+        assertEquals(cache.size(), 0);
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 2, Long.MAX_VALUE)), list(3, 4, 5));
+        assertEquals(cache.size(), 1);
+        // versions before the cached range are read from the backend, the rest from the cache
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 1, Long.MAX_VALUE)), list(2, 3, 4, 5));
+        assertEquals(cache.hitCount(), 1);
+        assertEquals(cache.missCount(), 3);
+        assertEquals(backendReads, 4);
+    }
+
+    @Test
+    public void test_writes_keep_cache_up_to_date() throws Exception {
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 100);
+        for (long v = 1; v <= 3; v++)
+            cache.persistChanges(changeSet("FOO", v, 1));
+        // the written change sets have been read back
+        assertEquals(backendReads, 3);
+        assertTrue(cache.existsStream("TEST", "FOO"));
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3));
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 3, Long.MAX_VALUE)), list());
+        assertEquals(cache.getLatest("TEST", "FOO", 1).next().checkpoint(), 3);
+        assertEquals(cache.hitCount(), 3);
+        assertEquals(backendReads, 3);
+    }
+
+    @Test
+    public void test_write_during_read_is_not_lost() throws Exception {
+        for (long v = 1; v <= 3; v++)
+            persistChanges(changeSet("FOO", v, 1));
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 100);
+
+        Iterator<ChangeSet> reading = cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE);
+        reading.next();
+        // committed while the read is in progress, which does not see it
+        cache.persistChanges(changeSet("FOO", 4, 1));
+        assertEquals(versions(reading), list(2, 3));
+        assertEquals(cache.size(), 0);
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3, 4));
+        assertEquals(cache.size(), 1);
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3, 4));
+        assertEquals(cache.hitCount(), 1);
+    }
+
+    @Test
+    public void test_conflict_evicts_stream() throws Exception {
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 100);
+        cache.persistChanges(changeSet("FOO", 1, 1));
+        // written by someone else
+        persistChanges(changeSet("FOO", 2, 1));
+        try {
+            cache.persistChanges(changeSet("FOO", 2, 1));
+            fail("Should have failed by now");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        assertEquals(cache.size(), 0);
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2));
+    }
+
+    @Test
+    public void test_batch_keeps_cache_up_to_date() throws Exception {
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 100);
+        cache.persistChanges(changeSet("FOO", 1, 1));
+        cache.persistChanges(changeSet("BAR", 1, 1));
+        // written by someone else
+        persistChanges(changeSet("BAR", 2, 1));
+        List<Exception> failures = cache.persistBatch(Arrays.asList(
+                changeSet("FOO", 2, 1), changeSet("BAR", 2, 1), changeSet("FOO", 3, 1)));
+        assertNull(failures.get(0));
+        assertTrue(failures.get(1) instanceof ConcurrencyException);
+        assertNull(failures.get(2));
+        assertEquals(cache.size(), 1);
+        assertEquals(versions(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3));
+        assertEquals(checkpoints(cache.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 4, 5));
+        // one read back per written stream
+        assertEquals(backendReads, 3);
+    }
+
+    @Test
+    public void test_weight_is_bounded() throws Exception {
+        for (int s = 0; s < 5; s++)
+            for (long v = 1; v <= 4; v++)
+                persistChanges(changeSet("S" + s, v, 1));
+        persistChanges(changeSet("HEAVY", 1, 11));
+        CachingPersistenceDecorator cache = new CachingPersistenceDecorator(this, 10);
+
+        for (int s = 0; s < 5; s++)
+            versions(cache.getFrom("TEST", "S" + s, 0, Long.MAX_VALUE));
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.weight(), 8);
+        assertEquals(cache.evictionCount(), 3);
+        versions(cache.getFrom("TEST", "S3", 0, Long.MAX_VALUE));
+        assertEquals(cache.hitCount(), 1);
+
+        versions(cache.getFrom("TEST", "HEAVY", 0, Long.MAX_VALUE));
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.weight(), 8);
+    }
+
+    private ChangeSet changeSet(String streamId, long version, int events) {
+        List<Serializable> list = new ArrayList<>();
+        for (int i = 0; i < events; i++)
+            list.add("event " + i);
+        return new DefaultChangeSet("TEST", streamId, version, UUID.randomUUID().toString(), list);
+    }
+
+    private List<Long> versions(Iterator<ChangeSet> it) {
+        List<Long> versions = new ArrayList<>();
+        while (it.hasNext())
+            versions.add(it.next().streamVersion());
+        return versions;
+    }
+
+    private List<Long> checkpoints(Iterator<ChangeSet> it) {
+        List<Long> checkpoints = new ArrayList<>();
+        while (it.hasNext())
+            checkpoints.add(it.next().checkpoint());
+        return checkpoints;
+    }
+
+    private List<Long> list(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long v : values)
+            list.add(v);
+        return list;
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId))
+                return true;
+        return false;
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        long version = 0;
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId))
+                version = Math.max(version, cs.streamVersion());
+        return version;
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        return stored.iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion) {
+        backendReads++;
+        List<ChangeSet> result = new ArrayList<>();
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId)
+                    && cs.streamVersion() > minVersion && cs.streamVersion() <= maxVersion)
+                result.add(cs);
+        return result.iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        backendReads++;
+        List<ChangeSet> result = new ArrayList<>();
+        for (int i = stored.size() - 1; i >= 0 && result.size() < count; i--)
+            if (stored.get(i).bucketId().equals(bucketId) && stored.get(i).streamId().equals(streamId))
+                result.add(stored.get(i));
+        return result.iterator();
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(changeSet.bucketId()) && cs.streamId().equals(changeSet.streamId())
+                    && cs.streamVersion() >= changeSet.streamVersion())
+                throw new ConcurrencyException();
+        // like a real persistence, store a copy with the assigned checkpoint
+        List<Serializable> events = new ArrayList<>();
+        for (Iterator<Serializable> it = changeSet.events(); it.hasNext(); )
+            events.add(it.next());
+        stored.add(new DefaultChangeSet(changeSet.bucketId(), changeSet.streamId(),
+                changeSet.streamVersion(), changeSet.changeSetId(), events, stored.size() + 1));
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        return PersistenceUtils.persistEach(this, changeSets);
+    }
+
+}
@@ -54,6 +54,13 @@ public class DefaultChangeSetTest {
         assertEquals(cs.changeSetId(), CHANGE_SET_ID);
         assertEquals(IteratorUtils.toList(cs.events()), IteratorUtils.toList(EVENTS.iterator()));
         assertTrue(cs.events().hasNext());
+        assertEquals(cs.checkpoint(), 0);
+    }
+
+    @Test
+    public void test_checkpoint() {
+        ChangeSet cs = new DefaultChangeSet(BUCKET_ID, STREAM_ID, STREAM_VERSION, CHANGE_SET_ID, EVENTS, 42);
+        assertEquals(cs.checkpoint(), 42);
     }
 
     @Test
@@ -106,6 +113,12 @@ public class DefaultChangeSetTest {
         } catch (NullPointerException e) {
             // expected
         }
+        try {
+            new DefaultChangeSet(BUCKET_ID, STREAM_ID, STREAM_VERSION, CHANGE_SET_ID, EVENTS, -1);
+            fail("Should have failed by now");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
 
     }
 
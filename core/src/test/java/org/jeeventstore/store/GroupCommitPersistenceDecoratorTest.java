@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.util.PersistenceUtils;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class GroupCommitPersistenceDecoratorTest implements EventStorePersistence {
+
+    private static final String BROKEN = "BROKEN";
+
+    private final List<ChangeSet> stored = Collections.synchronizedList(new ArrayList<ChangeSet>());
+    private final List<Integer> groupSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    private ExecutorService executor;
+
+    @BeforeMethod(alwaysRun = true)
+    public void init() {
+        stored.clear();
+        groupSizes.clear();
+        executor = Executors.newFixedThreadPool(20);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void test_concurrent_changes_are_grouped() throws Exception {
+        GroupCommitPersistenceDecorator decorator = new TestDecorator(5, 50);
+        List<Future<Exception>> results = persistConcurrently(decorator, 20, null);
+        for (Future<Exception> f : results)
+            assertNull(f.get());
+        assertEquals(stored.size(), 20);
+        int total = 0;
+        for (int size : groupSizes) {
+            assertTrue(size <= 5);
+            total += size;
+        }
+        assertEquals(total, 20);
+        assertTrue(groupSizes.size() < 20);
+    }
+
+    @Test
+    public void test_conflicts_are_reported_individually() throws Exception {
+        GroupCommitPersistenceDecorator decorator = new TestDecorator(10, 50);
+        decorator.persistChanges(changeSet("S3", 1, UUID.randomUUID().toString()));
+        List<Future<Exception>> results = persistConcurrently(decorator, 10, null);
+        for (int i = 0; i < 10; i++) {
+            if (i == 3)
+                assertTrue(results.get(i).get() instanceof ConcurrencyException);
+            else
+                assertNull(results.get(i).get());
+        }
+        assertEquals(stored.size(), 10);
+    }
+
+    @Test
+    public void test_failed_group_is_retried_one_by_one() throws Exception {
+        GroupCommitPersistenceDecorator decorator = new TestDecorator(10, 50);
+        List<Future<Exception>> results = persistConcurrently(decorator, 10, 7);
+        for (int i = 0; i < 10; i++) {
+            if (i == 7)
+                assertTrue(results.get(i).get() instanceof IllegalStateException);
+            else
+                assertNull(results.get(i).get());
+        }
+        assertEquals(stored.size(), 9);
+    }
+
+    @Test
+    public void test_single_writer_is_not_delayed() throws Exception {
+        GroupCommitPersistenceDecorator decorator = new GroupCommitPersistenceDecorator(this, 100, 0);
+        long start = System.nanoTime();
+        for (int i = 1; i <= 100; i++)
+            decorator.persistChanges(changeSet("FOO", i, UUID.randomUUID().toString()));
+        assertTrue(System.nanoTime() - start < 5000l * 1000 * 1000);
+        assertEquals(stored.size(), 100);
+    }
+
+    @Test
+    public void test_batch_is_written_as_one_group() throws Exception {
+        GroupCommitPersistenceDecorator decorator = new TestDecorator(5, 50);
+        decorator.persistChanges(changeSet("S3", 1, UUID.randomUUID().toString()));
+        List<ChangeSet> batch = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            batch.add(changeSet("S" + i, 1, UUID.randomUUID().toString()));
+        List<Exception> failures = decorator.persistBatch(batch);
+        for (int i = 0; i < 8; i++) {
+            if (i == 3)
+                assertTrue(failures.get(i) instanceof ConcurrencyException);
+            else
+                assertNull(failures.get(i));
+        }
+        assertEquals(stored.size(), 8);
+        assertEquals(groupSizes, Arrays.asList(1, 8));
+    }
+
+    private List<Future<Exception>> persistConcurrently(final EventStorePersistence decorator,
+            int count, Integer broken) {
+
+        List<Future<Exception>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final ChangeSet cs = changeSet("S" + i, 1,
+                    broken != null && broken == i ? BROKEN : UUID.randomUUID().toString());
+            results.add(executor.submit(new Callable<Exception>() {
+                @Override
+                public Exception call() {
+                    try {
+                        decorator.persistChanges(cs);
+                        return null;
+                    } catch (Exception e) {
+                        return e;
+                    }
+                }
+            }));
+        }
+        return results;
+    }
+
+    private ChangeSet changeSet(String streamId, long version, String id) {
+        return new DefaultChangeSet("TEST", streamId, version, id, new ArrayList<Serializable>());
+    }
+
+    /**
+     * Simulates a transaction around each group, which is rolled back
+     * as a whole on runtime exceptions.
+     */
+    private class TestDecorator extends GroupCommitPersistenceDecorator {
+
+        TestDecorator(int maxGroupSize, int maxWaitMillis) {
+            super(GroupCommitPersistenceDecoratorTest.this, maxGroupSize, maxWaitMillis);
+        }
+
+        @Override
+        public List<Exception> persistGroup(List<ChangeSet> changeSets) {
+            synchronized (stored) {
+                int before = stored.size();
+                try {
+                    List<Exception> result = super.persistGroup(changeSets);
+                    groupSizes.add(changeSets.size());
+                    return result;
+                } catch (RuntimeException e) {
+                    stored.subList(before, stored.size()).clear();
+                    throw e;
+                }
+            }
+        }
+
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        return false;
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        return 0;
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        return stored.iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion) {
+        return stored.iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (BROKEN.equals(changeSet.changeSetId()))
+            throw new IllegalStateException("Cannot write " + changeSet.changeSetId());
+        synchronized (stored) {
+            for (ChangeSet cs : stored)
+                if (cs.streamId().equals(changeSet.streamId()) && cs.streamVersion() >= changeSet.streamVersion())
+                    throw new ConcurrencyException();
+            stored.add(changeSet);
+        }
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        return PersistenceUtils.persistEach(this, changeSets);
+    }
+
+}
@@ -24,6 +24,7 @@ package org.jeeventstore.store;
 import org.jeeventstore.ConcurrencyException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
@@ -39,10 +40,13 @@ import org.testng.annotations.Test;
 
 public class NotifyingPersistenceDecoratorTest implements EventStorePersistence {
 
+    private static final String CONFLICT = "CONFLICT";
+
     private boolean received;
     private boolean existsStreamCalled;
     private Iterator<ChangeSet> changeSetIterator;
     private ChangeSet persistedChangeset;
+    private List<List<ChangeSet>> notifiedBatches;
     
     @BeforeMethod(alwaysRun = true)
     public void clear() {
@@ -50,6 +54,7 @@ public class NotifyingPersistenceDecoratorTest implements EventStorePersistence
         existsStreamCalled = false;
         changeSetIterator = null;
         persistedChangeset = null;
+        notifiedBatches = new ArrayList<>();
     }
 
     @Test
@@ -62,6 +67,18 @@ public class NotifyingPersistenceDecoratorTest implements EventStorePersistence
         assertEquals(existsStreamCalled, false);
     }
 
+    @Test
+    public void test_streamVersion() {
+        NotifyingPersistenceDecorator decorator = new NotifyingPersistenceDecorator(this, null);
+        assertEquals(decorator.streamVersion("FOO", "BAR"), 42);
+    }
+
+    @Test
+    public void test_streamVersionAt() {
+        NotifyingPersistenceDecorator decorator = new NotifyingPersistenceDecorator(this, null);
+        assertEquals(decorator.streamVersionAt("FOO", "BAR", 17000), 17);
+    }
+
     @Test
     public void test_allChanges() {
         NotifyingPersistenceDecorator decorator = new NotifyingPersistenceDecorator(this, null);
@@ -69,6 +86,20 @@ public class NotifyingPersistenceDecoratorTest implements EventStorePersistence
         assertEquals(decorator.allChanges("DUMMY"), this.changeSetIterator);
     }
 
+    @Test
+    public void test_allChangesSince() {
+        NotifyingPersistenceDecorator decorator = new NotifyingPersistenceDecorator(this, null);
+        assertNull(this.changeSetIterator);
+        assertEquals(decorator.allChangesSince("DUMMY", 17), this.changeSetIterator);
+    }
+
+    @Test
+    public void test_changesBetween() {
+        NotifyingPersistenceDecorator decorator = new NotifyingPersistenceDecorator(this, null);
+        assertNull(this.changeSetIterator);
+        assertEquals(decorator.changesBetween("DUMMY", 17, 42), this.changeSetIterator);
+    }
+
     @Test
     public void test_getFrom() throws StreamNotFoundException {
         NotifyingPersistenceDecorator decorator = new NotifyingPersistenceDecorator(this, null);
@@ -105,12 +136,35 @@ public class NotifyingPersistenceDecoratorTest implements EventStorePersistence
         assertTrue(!this.received);
     }
     
+    @Test
+    public void test_persistBatch() {
+        NotifyingPersistenceDecorator decorator = new NotifyingPersistenceDecorator(
+                this, new TestNotifier());
+        ChangeSet first = new TestChangeSet("TEST_BUCKET", "first");
+        ChangeSet conflict = new TestChangeSet("TEST_BUCKET", CONFLICT);
+        ChangeSet last = new TestChangeSet("TEST_BUCKET", "last");
+        List<Exception> failures = decorator.persistBatch(Arrays.asList(first, conflict, last));
+        assertNull(failures.get(0));
+        assertTrue(failures.get(1) instanceof ConcurrencyException);
+        assertNull(failures.get(2));
+        // only the persisted change sets, in a single notification
+        assertEquals(this.notifiedBatches, Arrays.asList(Arrays.asList(first, last)));
+        assertTrue(!this.received);
+
+        decorator.persistBatch(Arrays.asList(conflict));
+        assertEquals(this.notifiedBatches.size(), 1);
+    }
+    
     private class TestNotifier implements EventStoreCommitNotifier {
         @Override
         public void notifyListeners(ChangeSet changeSet) {
             received = true;
         }
         @Override
+        public void notifyBatch(List<ChangeSet> changeSets) {
+            notifiedBatches.add(changeSets);
+        }
+        @Override
         public void addListener(String bucketId, EventStoreCommitListener listener) { }
         @Override
         public void removeListener(String bucketId, EventStoreCommitListener listener) { }
@@ -121,6 +175,16 @@ public class NotifyingPersistenceDecoratorTest implements EventStorePersistence
         return this.existsStreamCalled = !this.existsStreamCalled;
     }
 
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        return 42;
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        return timestamp / 1000;
+    }
+
     @Override
     public Iterator<ChangeSet> allChanges(String bucketId) {
         List<ChangeSet> list = new ArrayList<>();
@@ -129,11 +193,26 @@ public class NotifyingPersistenceDecoratorTest implements EventStorePersistence
         return this.changeSetIterator;
     }
 
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        return this.allChanges(bucketId);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        return this.allChanges(bucketId);
+    }
+
     @Override
     public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion) {
         return this.allChanges(bucketId);
     }
 
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        return this.allChanges(bucketId);
+    }
+
     @Override
     public void persistChanges(ChangeSet changeSet) throws ConcurrencyException {
         if (changeSet == null)
@@ -141,4 +220,12 @@ public class NotifyingPersistenceDecoratorTest implements EventStorePersistence
         this.persistedChangeset = changeSet;
     }
 
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        List<Exception> failures = new ArrayList<>();
+        for (ChangeSet cs : changeSets)
+            failures.add(CONFLICT.equals(cs.streamId()) ? new ConcurrencyException() : null);
+        return failures;
+    }
+
 }
\ No newline at end of file
@@ -153,6 +153,14 @@ public class OptimisticEventStoreServiceTest extends Arquillian
         assertEquals(eventStore.existsStream("FOO", "BAR"), true);
     }
 
+    @Test
+    public void testStreamVersion() throws Exception {
+        cleanup();
+        assertEquals(eventStore.streamVersion("FOO", "BAR"), 0);
+        fill("FOO", "BAR", 3);
+        assertEquals(eventStore.streamVersion("FOO", "BAR"), 3);
+    }
+
     @Test
     public void testCreateStream() throws Exception {
         cleanup();
@@ -107,6 +107,22 @@ public class OptimisticEventStreamTest {
         compareData(new EventsIterator(data.subList(0, 56).iterator()), oes.events());
     }
 
+    @Test
+    public void test_read_tail() throws StreamNotFoundException {
+        ReadableEventStream oes = OptimisticEventStream.createTail(BUCKET_ID, STREAM_ID, 10, persistence);
+        assertEquals(oes.version(), NUM_CHANGESETS);
+        compareData(new EventsIterator(data.subList(NUM_CHANGESETS - 10, NUM_CHANGESETS).iterator()),
+                oes.events());
+        oes = OptimisticEventStream.createTail(BUCKET_ID, STREAM_ID, 2 * NUM_CHANGESETS, persistence);
+        compareData(new EventsIterator(data.iterator()), oes.events());
+    }
+
+    @Test(expectedExceptions = StreamNotFoundException.class)
+    public void test_tail_nonexistent() throws ConcurrencyException, DuplicateCommitException, StreamNotFoundException {
+        persistence.persistChanges(MockPersistence.resetCommand());
+        OptimisticEventStream.createTail("wrong", "stream", 10, persistence);
+    }
+
     @Test
     public void test_invalid_persistence_getFrom() throws StreamNotFoundException {
         // create an invalid persistence
@@ -58,6 +58,11 @@ public class TestChangeSet implements ChangeSet {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public long checkpoint() {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public Iterator<Serializable> events() {
         throw new UnsupportedOperationException("Not supported yet.");
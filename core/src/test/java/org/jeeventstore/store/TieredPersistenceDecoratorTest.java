@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.util.PersistenceUtils;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TieredPersistenceDecoratorTest implements EventStorePersistence {
+
+    private List<ChangeSet> stored;
+    private int backendReads;
+    private long backendMaxVersion;
+
+    @BeforeMethod(alwaysRun = true)
+    public void clear() {
+        stored = new ArrayList<>();
+        backendReads = 0;
+        backendMaxVersion = 0;
+    }
+
+    @Test
+    public void test_recent_changes_are_served_from_memory() throws Exception {
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 3, 10);
+        for (long v = 1; v <= 5; v++)
+            decorator.persistChanges(changeSet("FOO", v));
+        // the written change sets have been read back
+        assertEquals(backendReads, 5);
+        backendReads = 0;
+
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 2, Long.MAX_VALUE)), list(3, 4, 5));
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 3, 4)), list(4));
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 5, Long.MAX_VALUE)), list());
+        assertEquals(backendReads, 0);
+        assertTrue(decorator.existsStream("TEST", "FOO"));
+    }
+
+    @Test
+    public void test_latest_changes_are_served_from_memory() throws Exception {
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 3, 10);
+        for (long v = 1; v <= 5; v++)
+            decorator.persistChanges(changeSet("FOO", v));
+        // the written change sets have been read back
+        assertEquals(backendReads, 5);
+        backendReads = 0;
+
+        assertEquals(versions(decorator.getLatest("TEST", "FOO", 2)), list(5, 4));
+        assertEquals(versions(decorator.getLatest("TEST", "FOO", 3)), list(5, 4, 3));
+        assertEquals(backendReads, 0);
+        assertEquals(versions(decorator.getLatest("TEST", "FOO", 4)), list(5, 4, 3, 2));
+        assertEquals(backendReads, 1);
+
+        decorator.persistChanges(changeSet("BAR", 1));
+        assertEquals(versions(decorator.getLatest("TEST", "BAR", 10)), list(1));
+        assertEquals(backendReads, 2);
+    }
+
+    @Test
+    public void test_older_changes_are_read_from_the_backend() throws Exception {
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 3, 10);
+        for (long v = 1; v <= 5; v++)
+            decorator.persistChanges(changeSet("FOO", v));
+        // the written change sets have been read back
+        assertEquals(backendReads, 5);
+        backendReads = 0;
+
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3, 4, 5));
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 1, 3)), list(2, 3));
+        assertEquals(backendReads, 2);
+    }
+
+    @Test
+    public void test_only_changes_before_the_tail_are_read_from_the_backend() throws Exception {
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 3, 10);
+        for (long v = 1; v <= 5; v++)
+            decorator.persistChanges(changeSet("FOO", v));
+        backendReads = 0;
+
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3, 4, 5));
+        assertEquals(backendReads, 1);
+        assertEquals(backendMaxVersion, 2);
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 1, 4)), list(2, 3, 4));
+        assertEquals(backendReads, 2);
+        assertEquals(backendMaxVersion, 2);
+    }
+
+    @Test
+    public void test_full_read_fills_the_tail() throws Exception {
+        for (long v = 1; v <= 5; v++)
+            persistChanges(changeSet("FOO", v));
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 2, 10);
+
+        assertFalse(decorator.existsStream("TEST", "BAR"));
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1, 2, 3, 4, 5));
+        assertEquals(backendReads, 1);
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 3, Long.MAX_VALUE)), list(4, 5));
+        assertEquals(backendReads, 1);
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 2, Long.MAX_VALUE)), list(3, 4, 5));
+        assertEquals(backendReads, 2);
+
+        decorator.persistChanges(changeSet("FOO", 6));
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 4, Long.MAX_VALUE)), list(5, 6));
+        assertEquals(backendReads, 3);
+    }
+
+    @Test
+    public void test_least_recently_used_stream_is_evicted() throws Exception {
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 3, 2);
+        decorator.persistChanges(changeSet("A", 1));
+        decorator.persistChanges(changeSet("B", 1));
+        decorator.getFrom("TEST", "A", 0, Long.MAX_VALUE);
+        decorator.persistChanges(changeSet("C", 1));
+        backendReads = 0;
+
+        decorator.getFrom("TEST", "A", 0, Long.MAX_VALUE);
+        decorator.getFrom("TEST", "C", 0, Long.MAX_VALUE);
+        assertEquals(backendReads, 0);
+        decorator.getFrom("TEST", "B", 0, Long.MAX_VALUE);
+        assertEquals(backendReads, 1);
+    }
+
+    @Test
+    public void test_failed_write_does_not_change_the_tail() throws Exception {
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 3, 10);
+        decorator.persistChanges(changeSet("FOO", 1));
+        backendReads = 0;
+        try {
+            decorator.persistChanges(changeSet("FOO", 1));
+            fail("Should have failed by now");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        assertEquals(versions(decorator.getFrom("TEST", "FOO", 0, Long.MAX_VALUE)), list(1));
+        assertEquals(backendReads, 0);
+    }
+
+    @Test
+    public void test_tails_carry_the_stored_checkpoints() throws Exception {
+        TieredPersistenceDecorator decorator = new TieredPersistenceDecorator(this, 3, 10);
+        persistChanges(changeSet("BAR", 1));
+        for (long v = 1; v <= 3; v++)
+            decorator.persistChanges(changeSet("FOO", v));
+        decorator.persistBatch(Arrays.asList(changeSet("FOO", 4), changeSet("FOO", 5)));
+        backendReads = 0;
+
+        Iterator<ChangeSet> it = decorator.getFrom("TEST", "FOO", 2, Long.MAX_VALUE);
+        for (long checkpoint = 4; checkpoint <= 6; checkpoint++)
+            assertEquals(it.next().checkpoint(), checkpoint);
+        assertEquals(decorator.getLatest("TEST", "FOO", 1).next().checkpoint(), 6);
+        assertEquals(backendReads, 0);
+    }
+
+    private ChangeSet changeSet(String streamId, long version) {
+        return new DefaultChangeSet("TEST", streamId, version, UUID.randomUUID().toString(),
+                new ArrayList<Serializable>());
+    }
+
+    private List<Long> versions(Iterator<ChangeSet> it) {
+        List<Long> versions = new ArrayList<>();
+        while (it.hasNext())
+            versions.add(it.next().streamVersion());
+        return versions;
+    }
+
+    private List<Long> list(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long v : values)
+            list.add(v);
+        return list;
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId))
+                return true;
+        return false;
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        long version = 0;
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId))
+                version = Math.max(version, cs.streamVersion());
+        return version;
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        return stored.iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(String bucketId, String streamId, long minVersion, long maxVersion) {
+        backendReads++;
+        backendMaxVersion = maxVersion;
+        List<ChangeSet> result = new ArrayList<>();
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(bucketId) && cs.streamId().equals(streamId)
+                    && cs.streamVersion() > minVersion && cs.streamVersion() <= maxVersion)
+                result.add(cs);
+        return result.iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        backendReads++;
+        List<ChangeSet> result = new ArrayList<>();
+        for (int i = stored.size() - 1; i >= 0 && result.size() < count; i--)
+            if (stored.get(i).bucketId().equals(bucketId) && stored.get(i).streamId().equals(streamId))
+                result.add(stored.get(i));
+        return result.iterator();
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        for (ChangeSet cs : stored)
+            if (cs.bucketId().equals(changeSet.bucketId()) && cs.streamId().equals(changeSet.streamId())
+                    && cs.streamVersion() >= changeSet.streamVersion())
+                throw new ConcurrencyException();
+        // like a real persistence, store a copy with the assigned checkpoint
+        List<Serializable> events = new ArrayList<>();
+        for (Iterator<Serializable> it = changeSet.events(); it.hasNext(); )
+            events.add(it.next());
+        stored.add(new DefaultChangeSet(changeSet.bucketId(), changeSet.streamId(),
+                changeSet.streamVersion(), changeSet.changeSetId(), events, stored.size() + 1));
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        return PersistenceUtils.persistEach(this, changeSets);
+    }
+
+}
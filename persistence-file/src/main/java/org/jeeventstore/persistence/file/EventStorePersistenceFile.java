@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventSerializer;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StorageException;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.PersistenceUtils;
+
+/**
+ * EventStorePersistence that appends all change sets to a log of segment
+ * files on the local disk.
+ * To be configured as a singleton EJB.
+ * <p>
+ * Change sets are written sequentially to the active segment, a new segment
+ * is started when the active one is full.  Segments are mapped into memory,
+ * so {@link #getFrom} and {@link #allChanges} read the records straight from
+ * the page cache without copying them onto the heap first.
+ * {@link #allChanges} is a sequential scan of the log.
+ * <p>
+ * The time a change set is persisted is taken when it is appended and never
+ * decreases in log order while the persistence is running.  So
+ * {@link #changesBetween} finds the segment to start scanning at by a binary
+ * search over the first records of the segments, and stops at the first
+ * record persisted after the requested range.  {@link #streamVersionAt}
+ * searches the records of the stream likewise.
+ * <p>
+ * The streams are indexed in memory-mapped files next to the log, see
+ * {@link LogIndex}, so neither the log nor the index need to fit onto the heap.
+ * <p>
+ * Similar to the JPA persistence, {@link #persistChanges} fails with a
+ * {@link ConcurrencyException} if the stream already contains a change set
+ * with the same or a higher version, and with a {@link DuplicateCommitException}
+ * if the bucket already contains a change set with the same id.
+ * Changes do not take part in transactions and are not rolled back.
+ * <p>
+ * The following EJBs and services are expected to be injected:
+ * <p>
+ * {@code serializer} of type {@link EventSerializer} denotes the serialization
+ *    strategy used to serialize objects before writing them to the log
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code directory} (required): The directory that holds the log segments.
+ * <p>
+ * Env-entry {@code segmentSize} (optional, default: 67108864): The size of
+ *   a single segment file in bytes.
+ * <p>
+ * Env-entry {@code syncOnCommit} (optional, default: true): Whether every
+ *   change set is forced to the storage device before {@link #persistChanges}
+ *   returns.  Without it, a crash of the operating system may lose the most
+ *   recent change sets.
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class EventStorePersistenceFile implements EventStorePersistence {
+
+    private static final Logger log = Logger.getLogger(EventStorePersistenceFile.class.getName());
+
+    @EJB(name="serializer")
+    private EventSerializer serializer;
+
+    @Resource(name="directory")
+    private String directory;
+
+    @Resource(name="segmentSize")
+    private Integer segmentSize = 64 * 1024 * 1024;
+
+    @Resource(name="syncOnCommit")
+    private Boolean syncOnCommit = true;
+
+    private final Object writeLock = new Object();
+    private SegmentedLog segments;
+    private LogIndex index;
+    private long lastPersistedAt = Long.MIN_VALUE;
+
+    /**
+     * Required for EJB, do not use.
+     */
+    public EventStorePersistenceFile() { }
+
+    /**
+     * Creates a persistence outside of an EJB container.
+     * {@link #init()} must be called before use.
+     */
+    public EventStorePersistenceFile(EventSerializer serializer, String directory,
+            int segmentSize, boolean syncOnCommit) {
+        this.serializer = serializer;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (serializer == null)
+            throw new IllegalStateException("No serializer has been injected");
+        if (directory == null || directory.isEmpty())
+            throw new IllegalStateException("No directory has been configured");
+
+        File dir = new File(directory);
+        SegmentedLog sl = new SegmentedLog(dir, segmentSize);
+        final LogIndex idx = new LogIndex(dir, sl);
+        try {
+            sl.open();
+            long from = idx.open();
+            if (from < sl.end())
+                log.log(Level.INFO, "Indexing event log in {0} from position {1}",
+                        new Object[]{directory, Long.toString(from)});
+            sl.scan(from, new RecordVisitor() {
+                @Override
+                public void visit(long position, ByteBuffer payload) {
+                    LogRecord record = LogRecord.decode(position, payload);
+                    try {
+                        idx.add(record.bucketId(), record.streamId(), record.streamVersion(),
+                                record.changeSetId(), position);
+                    } catch (IOException e) {
+                        throw new StorageException("Cannot update index in " + directory, e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new StorageException("Cannot open log in " + directory, e);
+        }
+        // times must not go backwards in the log, even if the clock does
+        long last = sl.last();
+        if (last >= 0)
+            lastPersistedAt = LogRecord.persistedAt(sl.payload(last));
+        this.index = idx;
+        this.segments = sl;
+        log.log(Level.INFO, "Opened event log in {0}, {1} bytes",
+                new Object[]{directory, Long.toString(sl.end())});
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (writeLock) {
+            try {
+                index.close();
+                segments.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error closing event log", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return index.existsStream(bucketId, streamId);
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        long version = index.headVersion(bucketId, streamId);
+        return version == Long.MIN_VALUE ? 0 : version;
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        // ordered by version and hence by time, find the last one persisted at or before timestamp
+        long[] positions = index.positions(bucketId, streamId, Long.MIN_VALUE, Long.MAX_VALUE);
+        int lo = 0;
+        int hi = positions.length - 1;
+        long version = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            ByteBuffer payload = segments.payload(positions[mid]);
+            if (LogRecord.persistedAt(payload) <= timestamp) {
+                version = LogRecord.decode(positions[mid], payload).streamVersion();
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return version;
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        return new ScanIterator(bucketId.getBytes(StandardCharsets.UTF_8), 0, segments.end(),
+                Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The checkpoint of a change set is the log position right after its
+     * record, so this scans the log from the given checkpoint on.  Records
+     * are appended by a single writer, which makes them visible in log order.
+     *
+     * @throws IllegalArgumentException  if the checkpoint is not the start
+     *      of the log or the end of one of its records, e.g., as it has been
+     *      taken from another store
+     */
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (checkpoint < 0)
+            throw new IllegalArgumentException("checkpoint must not be negative");
+        if (!segments.isBoundary(checkpoint))
+            throw new IllegalArgumentException("Not a checkpoint of this log: " + checkpoint);
+
+        return new ScanIterator(bucketId.getBytes(StandardCharsets.UTF_8), checkpoint, segments.end(),
+                Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        long end = segments.end();
+        return new ScanIterator(bucketId.getBytes(StandardCharsets.UTF_8), startOf(from, end), end, from, to);
+    }
+
+    /**
+     * Gets the start of the last segment whose first record was persisted
+     * before the given time, no record persisted at or after that time is
+     * found before it.
+     */
+    private long startOf(long timestamp, long end) {
+        List<Long> starts = segments.segmentStarts();
+        int lo = 0;
+        int hi = starts.size() - 1;
+        long start = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long position = starts.get(mid);
+            if (position < end && LogRecord.persistedAt(segments.payload(position)) < timestamp) {
+                start = position;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return start;
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(
+            String bucketId, String streamId,
+            long minVersion, long maxVersion) throws StreamNotFoundException {
+
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return new PositionIterator(index.positions(bucketId, streamId, minVersion, maxVersion));
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+
+        return new PositionIterator(index.latestPositions(bucketId, streamId, count));
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (changeSet == null)
+            throw new IllegalArgumentException("changeSet must not be null");
+
+        String body = createSerializedBody(changeSet);
+
+        synchronized (writeLock) {
+            checkConflicts(changeSet);
+            lastPersistedAt = Math.max(System.currentTimeMillis(), lastPersistedAt);
+            ByteBuffer record = LogRecord.encode(
+                    changeSet.bucketId(),
+                    changeSet.streamId(),
+                    changeSet.streamVersion(),
+                    changeSet.changeSetId(),
+                    lastPersistedAt,
+                    body);
+            try {
+                long position = segments.append(record);
+                if (syncOnCommit)
+                    segments.sync();
+                index.add(changeSet.bucketId(), changeSet.streamId(), changeSet.streamVersion(),
+                        changeSet.changeSetId(), position);
+                log.log(Level.FINE, "wrote ChangeSet {0} to event log, position #{1}",
+                        new Object[]{changeSet.changeSetId(), Long.toString(position)});
+            } catch (IOException e) {
+                throw new StorageException("Cannot write to event log", e);
+            }
+        }
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        return PersistenceUtils.persistEach(this, changeSets);
+    }
+
+    private void checkConflicts(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (index.containsChangeSet(changeSet.bucketId(), changeSet.changeSetId()))
+            throw new DuplicateCommitException(String.format(
+                    "Duplicate change set %s in bucket %s",
+                    changeSet.changeSetId(), changeSet.bucketId()));
+        // the index requires increasing versions, a writer that is behind the
+        // head of the stream has missed the latest changes anyway
+        if (changeSet.streamVersion() <= index.headVersion(changeSet.bucketId(), changeSet.streamId()))
+            throw new ConcurrencyException(String.format(
+                    "Stream %s/%s already contains version %d or later",
+                    changeSet.bucketId(), changeSet.streamId(), changeSet.streamVersion()));
+    }
+
+    protected String createSerializedBody(ChangeSet changeSet) {
+        List<Serializable> list = new ArrayList<>();
+        Iterator<Serializable> it = changeSet.events();
+        while (it.hasNext())
+            list.add(it.next());
+        return serializer.serialize(list);
+    }
+
+    private ChangeSet toChangeSet(LogRecord record, long checkpoint) {
+        List<? extends Serializable> events = serializer.deserialize(record.body());
+        return new DefaultChangeSet(
+                record.bucketId(),
+                record.streamId(),
+                record.streamVersion(),
+                record.changeSetId(),
+                events,
+                checkpoint);
+    }
+
+    /**
+     * Iterates over the records at a fixed set of positions.
+     */
+    private class PositionIterator implements Iterator<ChangeSet> {
+
+        private final long[] positions;
+        private int current = 0;
+
+        PositionIterator(long[] positions) {
+            this.positions = positions;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return current < positions.length;
+        }
+
+        @Override
+        public ChangeSet next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No next ChangeSet");
+            long position = positions[current++];
+            ByteBuffer payload = segments.payload(position);
+            return toChangeSet(LogRecord.decode(position, payload), segments.next(position, payload));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+    /**
+     * Scans the log sequentially for the records of a single bucket that
+     * were persisted at or after {@code from} and before {@code to},
+     * starting at the given log position.
+     * Records appended after the iterator was created are not visited.
+     */
+    private class ScanIterator implements Iterator<ChangeSet> {
+
+        private final byte[] bucketId;
+        private final long end;
+        private final long from;
+        private final long to;
+        private long position;
+        private ByteBuffer payload = null;
+
+        ScanIterator(byte[] bucketId, long start, long end, long from, long to) {
+            this.bucketId = bucketId;
+            this.position = start;
+            this.end = end;
+            this.from = from;
+            this.to = to;
+            advance();
+        }
+
+        private void advance() {
+            while (position < end) {
+                ByteBuffer candidate = segments.payload(position);
+                long persistedAt = LogRecord.persistedAt(candidate);
+                if (persistedAt >= to)
+                    break; // all following records are persisted later
+                if (persistedAt >= from && LogRecord.belongsTo(candidate, bucketId)) {
+                    payload = candidate;
+                    return;
+                }
+                position = segments.next(position, candidate);
+            }
+            payload = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return payload != null;
+        }
+
+        @Override
+        public ChangeSet next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No next ChangeSet");
+            LogRecord record = LogRecord.decode(position, payload);
+            long checkpoint = segments.next(position, payload);
+            position = checkpoint;
+            advance();
+            return toChangeSet(record, checkpoint);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+}
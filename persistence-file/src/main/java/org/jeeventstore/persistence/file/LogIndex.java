@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maps streams to the log positions of their change sets and keeps track
+ * of the change set ids in use.
+ * <p>
+ * The index is stored off-heap in memory-mapped files next to the log:
+ * <ul>
+ * <li>{@code index.entries} holds one fixed-size entry per change set,
+ *     in the order they were added.  The entries of a stream form a chain
+ *     from the most recent version backwards, with an additional skip
+ *     pointer per entry such that any version can be found in a logarithmic
+ *     number of steps.</li>
+ * <li>{@code index.streams} maps the hash of (bucket, stream) to the most
+ *     recent entry of the stream.</li>
+ * <li>{@code index.changesets} maps the hash of (bucket, change set id) to
+ *     the log position of the change set.</li>
+ * </ul>
+ * Hash collisions are resolved by comparing the ids stored in the log.
+ * Versions must be added in strictly increasing order per stream.
+ * <p>
+ * The index is not forced to the storage device on every change, instead it
+ * is flagged as dirty while it is open.  If it was not closed properly, it is
+ * rebuilt from the log.  Otherwise only the records appended to the log after
+ * the index was last updated need to be added.
+ * <p>
+ * Modifications must be synchronized by the caller.  Lookups are
+ * thread-safe: the mapped files are plain memory without happens-before
+ * edges of their own, so lookups hold a read lock that modifications
+ * exclude.
+ */
+final class LogIndex implements Closeable {
+
+    static final long NONE = -1;
+
+    private static final long MAGIC = 0x4a45455349445831l; // "JEESIDX1"
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_CLEAN = 8;
+    private static final int OFFSET_INDEXED_UP_TO = 16;
+    private static final int OFFSET_ENTRIES_END = 24;
+
+    private static final int ENTRY_SIZE = 40;
+    private static final int ENTRY_VERSION = 0;
+    private static final int ENTRY_POSITION = 8;
+    private static final int ENTRY_PREVIOUS = 16;
+    private static final int ENTRY_SKIP = 24;
+    private static final int ENTRY_ORDINAL = 32;
+
+    private static final int CHUNK_SHIFT = 26;
+    private static final long INITIAL_TABLE_CAPACITY = 1 << 12;
+
+    private final File directory;
+    private final SegmentedLog log;
+    private MappedFile entries;
+    private MappedHashTable streams;
+    private MappedHashTable changeSets;
+    private long entriesEnd;
+    private volatile long indexedUpTo;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock readLock = lock.readLock();
+    private final Lock writeLock = lock.writeLock();
+
+    LogIndex(File directory, SegmentedLog log) {
+        this.directory = directory;
+        this.log = log;
+    }
+
+    /**
+     * Opens the index files.  Files that were not closed properly or that
+     * cover more than the log are discarded.
+     *
+     * @return  the log position from which on records must be added to the index
+     */
+    long open() throws IOException {
+        File entriesFile = new File(directory, "index.entries");
+        File streamsFile = new File(directory, "index.streams");
+        File changeSetsFile = new File(directory, "index.changesets");
+
+        if (!reusable(entriesFile, streamsFile, changeSetsFile)) {
+            delete(entriesFile);
+            delete(streamsFile);
+            delete(changeSetsFile);
+        }
+        entries = new MappedFile(entriesFile, CHUNK_SHIFT, HEADER_SIZE);
+        if (entries.getLong(0) != MAGIC) {
+            entries.putLong(OFFSET_INDEXED_UP_TO, 0);
+            entries.putLong(OFFSET_ENTRIES_END, HEADER_SIZE);
+            entries.putLong(0, MAGIC);
+        }
+        streams = MappedHashTable.open(streamsFile, INITIAL_TABLE_CAPACITY);
+        changeSets = MappedHashTable.open(changeSetsFile, INITIAL_TABLE_CAPACITY);
+        entriesEnd = entries.getLong(OFFSET_ENTRIES_END);
+        entries.ensureCapacity(entriesEnd);
+        indexedUpTo = entries.getLong(OFFSET_INDEXED_UP_TO);
+        entries.putLong(OFFSET_CLEAN, 0);
+        entries.force();
+        return indexedUpTo;
+    }
+
+    private boolean reusable(File entriesFile, File streamsFile, File changeSetsFile) throws IOException {
+        if (!entriesFile.isFile() || !streamsFile.isFile() || !changeSetsFile.isFile())
+            return false;
+        try (RandomAccessFile header = new RandomAccessFile(entriesFile, "r")) {
+            if (header.length() < HEADER_SIZE)
+                return false;
+            long magic = header.readLong();
+            long clean = header.readLong();
+            long upTo = header.readLong();
+            return magic == MAGIC && clean == 1 && upTo <= log.end();
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete())
+            throw new IOException("Cannot delete " + file);
+    }
+
+    /**
+     * Gets the log position right after the last record added to the index.
+     */
+    long indexedUpTo() {
+        return indexedUpTo;
+    }
+
+    boolean containsChangeSet(String bucketId, String changeSetId) {
+        readLock.lock();
+        try {
+            return indexedUpTo > 0
+                    && changeSets.get(hash(bucketId, changeSetId), new ChangeSetMatcher(bucketId, changeSetId))
+                        != MappedHashTable.NOT_FOUND;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    boolean existsStream(String bucketId, String streamId) {
+        readLock.lock();
+        try {
+            return head(bucketId, streamId) != NONE;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the most recent version of a stream.
+     *
+     * @return  the version, or {@link Long#MIN_VALUE} if the stream does not exist
+     */
+    long headVersion(String bucketId, String streamId) {
+        readLock.lock();
+        try {
+            long head = head(bucketId, streamId);
+            return head == NONE ? Long.MIN_VALUE : entries.getLong(head + ENTRY_VERSION);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the log positions of the change sets between version
+     * {@code minVersion} (exclusive) and {@code maxVersion} (inclusive).
+     *
+     * @return  the positions, ordered by stream version
+     */
+    long[] positions(String bucketId, String streamId, long minVersion, long maxVersion) {
+        if (minVersion >= maxVersion)
+            return new long[0];
+        readLock.lock();
+        try {
+            long head = head(bucketId, streamId);
+            if (head == NONE)
+                return new long[0];
+            long last = seek(head, maxVersion);
+            int count = 0;
+            for (long e = last; e != NONE && version(e) > minVersion; e = previous(e))
+                count++;
+            long[] positions = new long[count];
+            long e = last;
+            for (int i = count - 1; i >= 0; i--) {
+                positions[i] = entries.getLong(e + ENTRY_POSITION);
+                e = previous(e);
+            }
+            return positions;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the log positions of the last {@code count} change sets of a
+     * stream, following the chain back from the most recent version.
+     *
+     * @return  the positions, ordered by decreasing stream version
+     */
+    long[] latestPositions(String bucketId, String streamId, int count) {
+        readLock.lock();
+        try {
+            long head = head(bucketId, streamId);
+            int found = 0;
+            for (long e = head; e != NONE && found < count; e = previous(e))
+                found++;
+            long[] positions = new long[found];
+            long e = head;
+            for (int i = 0; i < found; i++) {
+                positions[i] = entries.getLong(e + ENTRY_POSITION);
+                e = previous(e);
+            }
+            return positions;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a change set that has been appended to the log.
+     * The version must be greater than the {@link #headVersion} of the stream.
+     */
+    void add(String bucketId, String streamId, long version, String changeSetId, long position)
+            throws IOException {
+
+        writeLock.lock();
+        try {
+            StreamMatcher streamMatcher = new StreamMatcher(bucketId, streamId);
+            long streamHash = hash(bucketId, streamId);
+            long head = streams.get(streamHash, streamMatcher);
+            long ordinal = head == NONE ? 1 : entries.getLong(head + ENTRY_ORDINAL) + 1;
+            // the skip pointer of entry n points to entry n - lowestOneBit(n),
+            // which is reached from entry n - 1 by following its skip pointers
+            long skip = head;
+            for (int i = Long.numberOfTrailingZeros(ordinal); i > 0; i--)
+                skip = entries.getLong(skip + ENTRY_SKIP);
+
+            long entry = entriesEnd;
+            entries.ensureCapacity(entry + ENTRY_SIZE);
+            entries.putLong(entry + ENTRY_VERSION, version);
+            entries.putLong(entry + ENTRY_POSITION, position);
+            entries.putLong(entry + ENTRY_PREVIOUS, head);
+            entries.putLong(entry + ENTRY_SKIP, skip);
+            entries.putLong(entry + ENTRY_ORDINAL, ordinal);
+            entriesEnd = entry + ENTRY_SIZE;
+            entries.putLong(OFFSET_ENTRIES_END, entriesEnd);
+
+            streams.put(streamHash, entry, streamMatcher);
+            changeSets.put(hash(bucketId, changeSetId), position, new ChangeSetMatcher(bucketId, changeSetId));
+
+            long next = log.next(position, log.payload(position));
+            entries.putLong(OFFSET_INDEXED_UP_TO, next);
+            indexedUpTo = next;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the index to the storage device and flags it as clean.
+     */
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if (entries == null)
+                return;
+            streams.close();
+            changeSets.close();
+            entries.force();
+            entries.putLong(OFFSET_CLEAN, 1);
+            entries.force();
+            entries.close();
+            entries = null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private long head(String bucketId, String streamId) {
+        if (indexedUpTo == 0)
+            return NONE;
+        long head = streams.get(hash(bucketId, streamId), new StreamMatcher(bucketId, streamId));
+        return head == MappedHashTable.NOT_FOUND ? NONE : head;
+    }
+
+    /**
+     * Finds the most recent entry with a version of at most {@code version}.
+     */
+    private long seek(long entry, long version) {
+        long e = entry;
+        while (e != NONE && version(e) > version) {
+            long skip = entries.getLong(e + ENTRY_SKIP);
+            e = skip != NONE && version(skip) > version ? skip : previous(e);
+        }
+        return e;
+    }
+
+    private long version(long entry) {
+        return entries.getLong(entry + ENTRY_VERSION);
+    }
+
+    private long previous(long entry) {
+        return entries.getLong(entry + ENTRY_PREVIOUS);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of two identifiers.
+     */
+    static long hash(String first, String second) {
+        long h = 0xcbf29ce484222325l;
+        for (int i = 0; i < first.length(); i++)
+            h = (h ^ first.charAt(i)) * 0x100000001b3l;
+        h = (h ^ 0xffff) * 0x100000001b3l;
+        for (int i = 0; i < second.length(); i++)
+            h = (h ^ second.charAt(i)) * 0x100000001b3l;
+        return h;
+    }
+
+    private class StreamMatcher implements MappedHashTable.Matcher {
+
+        private final String bucketId;
+        private final String streamId;
+
+        StreamMatcher(String bucketId, String streamId) {
+            this.bucketId = bucketId;
+            this.streamId = streamId;
+        }
+
+        @Override
+        public boolean matches(long entry) {
+            long position = entries.getLong(entry + ENTRY_POSITION);
+            LogRecord record = LogRecord.decode(position, log.payload(position));
+            return record.streamId().equals(streamId) && record.bucketId().equals(bucketId);
+        }
+
+    }
+
+    private class ChangeSetMatcher implements MappedHashTable.Matcher {
+
+        private final String bucketId;
+        private final String changeSetId;
+
+        ChangeSetMatcher(String bucketId, String changeSetId) {
+            this.bucketId = bucketId;
+            this.changeSetId = changeSetId;
+        }
+
+        @Override
+        public boolean matches(long position) {
+            LogRecord record = LogRecord.decode(position, log.payload(position));
+            return record.changeSetId().equals(changeSetId) && record.bucketId().equals(bucketId);
+        }
+
+    }
+
+}
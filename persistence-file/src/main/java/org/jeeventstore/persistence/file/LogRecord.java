@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * A single change set as it is stored in the log.
+ * <p>
+ * Layout of a record, all numbers big-endian:
+ * <pre>
+ * int    payload length (excluding this header)
+ * int    CRC32 of the payload
+ * long   persistedAt
+ * long   streamVersion
+ * short  length of bucketId,    UTF-8 bytes
+ * short  length of streamId,    UTF-8 bytes
+ * short  length of changeSetId, UTF-8 bytes
+ * int    length of body,        UTF-8 bytes
+ * </pre>
+ * The bucket id comes first so that scans can skip foreign records by
+ * comparing raw bytes, without decoding anything.
+ */
+final class LogRecord {
+
+    /** Size of the length and checksum fields preceding the payload. */
+    static final int HEADER_SIZE = 8;
+
+    private static final int MAX_ID_LENGTH = 0xFFFF;
+
+    private final long position;
+    private final long persistedAt;
+    private final long streamVersion;
+    private final String bucketId;
+    private final String streamId;
+    private final String changeSetId;
+    private final ByteBuffer body;
+
+    private LogRecord(long position, long persistedAt, long streamVersion,
+            String bucketId, String streamId, String changeSetId, ByteBuffer body) {
+
+        this.position = position;
+        this.persistedAt = persistedAt;
+        this.streamVersion = streamVersion;
+        this.bucketId = bucketId;
+        this.streamId = streamId;
+        this.changeSetId = changeSetId;
+        this.body = body;
+    }
+
+    /**
+     * Encodes a change set into a record, including header and checksum.
+     *
+     * @return  the record, ready to be written
+     */
+    static ByteBuffer encode(String bucketId, String streamId, long streamVersion,
+            String changeSetId, long persistedAt, String body) {
+
+        byte[] bucket = idBytes(bucketId, "bucketId");
+        byte[] stream = idBytes(streamId, "streamId");
+        byte[] changeSet = idBytes(changeSetId, "changeSetId");
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+
+        int payload = 8 + 8 + 2 + bucket.length + 2 + stream.length
+                + 2 + changeSet.length + 4 + bodyBytes.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload);
+        buf.putInt(payload);
+        buf.putInt(0); // checksum, filled in below
+        buf.putLong(persistedAt);
+        buf.putLong(streamVersion);
+        buf.putShort((short) bucket.length).put(bucket);
+        buf.putShort((short) stream.length).put(stream);
+        buf.putShort((short) changeSet.length).put(changeSet);
+        buf.putInt(bodyBytes.length).put(bodyBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_SIZE, payload);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes the record whose payload is found at the current position of
+     * the given buffer.  The body is not decoded, it remains a view on the
+     * buffer until {@link #body()} is called.
+     *
+     * @param position  the log position of the record
+     * @param payload  the payload of the record, positioned after the header
+     * @return  the record
+     */
+    static LogRecord decode(long position, ByteBuffer payload) {
+        ByteBuffer buf = payload.duplicate();
+        long persistedAt = buf.getLong();
+        long streamVersion = buf.getLong();
+        String bucketId = readId(buf);
+        String streamId = readId(buf);
+        String changeSetId = readId(buf);
+        int bodyLength = buf.getInt();
+        buf.limit(buf.position() + bodyLength);
+        return new LogRecord(position, persistedAt, streamVersion,
+                bucketId, streamId, changeSetId, buf.slice());
+    }
+
+    /**
+     * Tests whether the record whose payload is found at the current position
+     * of the given buffer belongs to the given bucket.
+     *
+     * @param payload  the payload of the record, positioned after the header
+     * @param bucketId  the UTF-8 encoded bucket identifier
+     * @return  whether the record belongs to the bucket
+     */
+    static boolean belongsTo(ByteBuffer payload, byte[] bucketId) {
+        int offset = payload.position() + 16;
+        int length = payload.getShort(offset) & MAX_ID_LENGTH;
+        if (length != bucketId.length)
+            return false;
+        offset += 2;
+        for (int i = 0; i < length; i++)
+            if (payload.get(offset + i) != bucketId[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Gets the time the record whose payload is found at the current
+     * position of the given buffer was persisted, without decoding anything else.
+     *
+     * @param payload  the payload of the record, positioned after the header
+     * @return  the time in milliseconds since the epoch
+     */
+    static long persistedAt(ByteBuffer payload) {
+        return payload.getLong(payload.position());
+    }
+
+    /**
+     * Verifies the checksum of a record payload.
+     *
+     * @param payload  the payload, positioned after the header
+     * @param length  the length of the payload
+     * @param checksum  the checksum stored in the header
+     * @return  whether the checksum matches
+     */
+    static boolean verify(ByteBuffer payload, int length, int checksum) {
+        byte[] bytes = new byte[length];
+        payload.duplicate().get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue() == checksum;
+    }
+
+    long position() {
+        return position;
+    }
+
+    long persistedAt() {
+        return persistedAt;
+    }
+
+    long streamVersion() {
+        return streamVersion;
+    }
+
+    String bucketId() {
+        return bucketId;
+    }
+
+    String streamId() {
+        return streamId;
+    }
+
+    String changeSetId() {
+        return changeSetId;
+    }
+
+    /**
+     * Decodes the body directly from the underlying (mapped) buffer.
+     *
+     * @return  the serialized events
+     */
+    String body() {
+        return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+    }
+
+    private static byte[] idBytes(String id, String name) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_ID_LENGTH)
+            throw new IllegalArgumentException(name + " is too long");
+        return bytes;
+    }
+
+    private static String readId(ByteBuffer buf) {
+        int length = buf.getShort() & MAX_ID_LENGTH;
+        ByteBuffer id = buf.slice();
+        id.limit(length);
+        buf.position(buf.position() + length);
+        return StandardCharsets.UTF_8.decode(id).toString();
+    }
+
+}
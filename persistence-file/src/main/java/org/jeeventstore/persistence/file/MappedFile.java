@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A file that is mapped into memory in chunks of a fixed size and addressed
+ * by {@code long} offsets, so it is not limited to the 2 GB of a single
+ * {@link MappedByteBuffer}.  The data lives in the page cache, not on the heap.
+ * <p>
+ * Values must be aligned to their size, such that they never span two chunks.
+ * Growing the file is not thread-safe and must be synchronized by the caller,
+ * reading and writing within the current capacity is not synchronized at all.
+ */
+final class MappedFile implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int chunkShift;
+    private final long chunkMask;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    /**
+     * Opens the file, creating it if required.
+     *
+     * @param file  the file
+     * @param chunkShift  log2 of the chunk size
+     * @param minCapacity  the minimum capacity in bytes to map
+     */
+    MappedFile(File file, int chunkShift, long minCapacity) throws IOException {
+        if (chunkShift < 12 || chunkShift > 30)
+            throw new IllegalArgumentException("chunkShift must be between 12 and 30");
+        this.file = file;
+        this.chunkShift = chunkShift;
+        this.chunkMask = (1l << chunkShift) - 1;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        ensureCapacity(Math.max(minCapacity, raf.length()));
+    }
+
+    File file() {
+        return file;
+    }
+
+    long capacity() {
+        return (long) chunks.length << chunkShift;
+    }
+
+    /**
+     * Maps more chunks until the file can hold at least the given number of bytes.
+     * New space is zero-filled.
+     */
+    void ensureCapacity(long capacity) throws IOException {
+        MappedByteBuffer[] current = chunks;
+        int required = (int) ((capacity + chunkMask) >>> chunkShift);
+        if (required <= current.length)
+            return;
+        MappedByteBuffer[] grown = Arrays.copyOf(current, required);
+        for (int i = current.length; i < required; i++)
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i << chunkShift, chunkMask + 1);
+        chunks = grown;
+    }
+
+    long getLong(long offset) {
+        return chunks[(int) (offset >>> chunkShift)].getLong((int) (offset & chunkMask));
+    }
+
+    void putLong(long offset, long value) {
+        chunks[(int) (offset >>> chunkShift)].putLong((int) (offset & chunkMask), value);
+    }
+
+    /**
+     * Writes all modified pages to the storage device.
+     */
+    void force() {
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    /**
+     * Closes the file.  The mapped memory is released once it is no longer
+     * referenced, Java offers no way to unmap it explicitly.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+}
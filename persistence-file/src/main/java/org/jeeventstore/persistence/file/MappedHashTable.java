@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An open-addressing hash table of {@code long} keys and values that is
+ * stored in a {@link MappedFile}.  It is meant to hold hundreds of millions
+ * of entries without creating a single object on the heap per entry.
+ * <p>
+ * Keys are 64-bit hashes of the real keys, so different keys may collide.
+ * The table therefore keeps every key/value pair it is given and lets a
+ * {@link Matcher} decide which of the values with an equal hash belongs to
+ * the real key.
+ * <p>
+ * The table doubles its capacity once it is three quarters full.
+ * The table is not thread-safe.  Its slots are plain mapped memory, so
+ * lookups must be synchronized with modifications by the caller.
+ */
+final class MappedHashTable implements Closeable {
+
+    /**
+     * Decides whether a value stored under a matching hash belongs to the
+     * key that is looked up.
+     */
+    interface Matcher {
+        boolean matches(long value);
+    }
+
+    static final long NOT_FOUND = -1;
+
+    private static final long MAGIC = 0x4a4545534854424cl; // "JEESHTBL"
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final int CHUNK_SHIFT = 26;
+
+    private final File file;
+    private Table table;
+
+    private MappedHashTable(File file, Table table) {
+        this.file = file;
+        this.table = table;
+    }
+
+    /**
+     * Opens the table stored in the given file, or creates an empty one.
+     *
+     * @param file  the file
+     * @param initialCapacity  the number of slots of a new table, a power of two
+     */
+    static MappedHashTable open(File file, long initialCapacity) throws IOException {
+        if (Long.bitCount(initialCapacity) != 1)
+            throw new IllegalArgumentException("initialCapacity must be a power of two");
+        boolean exists = file.length() > 0;
+        MappedFile store = new MappedFile(file, chunkShift(initialCapacity), HEADER_SIZE);
+        if (!exists) {
+            store.ensureCapacity(HEADER_SIZE + initialCapacity * SLOT_SIZE);
+            store.putLong(8, initialCapacity);
+            store.putLong(16, 0);
+            store.putLong(0, MAGIC);
+        } else if (store.getLong(0) != MAGIC) {
+            store.close();
+            throw new IOException("Not a hash table: " + file);
+        }
+        Table table = new Table(store);
+        store.ensureCapacity(HEADER_SIZE + table.capacity * SLOT_SIZE);
+        return new MappedHashTable(file, table);
+    }
+
+    /**
+     * Gets the value stored for a key.
+     *
+     * @param hash  the hash of the key
+     * @param matcher  identifies the value of the key among values with the same hash
+     * @return  the value, or {@link #NOT_FOUND}
+     */
+    long get(long hash, Matcher matcher) {
+        Table t = table;
+        long key = normalize(hash);
+        for (long slot = t.first(key); ; slot = t.next(slot)) {
+            long k = t.key(slot);
+            if (k == 0)
+                return NOT_FOUND;
+            if (k == key) {
+                long value = t.value(slot);
+                if (matcher.matches(value))
+                    return value;
+            }
+        }
+    }
+
+    /**
+     * Stores the value for a key, replacing the value that was stored before.
+     *
+     * @param hash  the hash of the key
+     * @param value  the value, must not be negative
+     * @param matcher  identifies the previous value of the key among values with the same hash
+     */
+    void put(long hash, long value, Matcher matcher) throws IOException {
+        if (value < 0)
+            throw new IllegalArgumentException("value must not be negative");
+        Table t = table;
+        long key = normalize(hash);
+        long slot = t.first(key);
+        for (long k = t.key(slot); k != 0; k = t.key(slot)) {
+            if (k == key && matcher.matches(t.value(slot))) {
+                t.setValue(slot, value);
+                return;
+            }
+            slot = t.next(slot);
+        }
+        if ((t.size() + 1) * 4 > t.capacity * 3) {
+            t = grow(t);
+            slot = t.free(key);
+        }
+        t.insert(slot, key, value);
+    }
+
+    long size() {
+        return table.size();
+    }
+
+    void force() {
+        table.store.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Table t = table;
+        t.store.force();
+        t.store.close();
+    }
+
+    /**
+     * Rehashes all entries into a new file of twice the capacity, which then
+     * replaces the current file.
+     */
+    private Table grow(Table old) throws IOException {
+        long capacity = old.capacity * 2;
+        File tmp = new File(file.getPath() + ".tmp");
+        if (tmp.exists() && !tmp.delete())
+            throw new IOException("Cannot delete " + tmp);
+        MappedFile store = new MappedFile(tmp, chunkShift(capacity), HEADER_SIZE + capacity * SLOT_SIZE);
+        store.putLong(8, capacity);
+        Table grown = new Table(store);
+        for (long slot = 0; slot < old.capacity; slot++) {
+            long key = old.key(slot);
+            if (key != 0)
+                grown.insert(grown.free(key), key, old.value(slot));
+        }
+        store.putLong(0, MAGIC);
+        store.force();
+        old.store.close();
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        table = grown;
+        return grown;
+    }
+
+    private static long normalize(long hash) {
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int chunkShift(long capacity) {
+        long bytes = HEADER_SIZE + capacity * SLOT_SIZE;
+        int shift = 64 - Long.numberOfLeadingZeros(bytes - 1);
+        return Math.max(12, Math.min(CHUNK_SHIFT, shift));
+    }
+
+    /**
+     * The slots of a table with a fixed capacity.
+     */
+    private static final class Table {
+
+        private final MappedFile store;
+        private final long capacity;
+        private final long mask;
+
+        Table(MappedFile store) {
+            this.store = store;
+            this.capacity = store.getLong(8);
+            this.mask = capacity - 1;
+        }
+
+        long size() {
+            return store.getLong(16);
+        }
+
+        long first(long key) {
+            // spread the bits, the low bits of the hashes may be weak
+            long h = key * 0x9E3779B97F4A7C15l;
+            return (h ^ (h >>> 32)) & mask;
+        }
+
+        long next(long slot) {
+            return (slot + 1) & mask;
+        }
+
+        long free(long key) {
+            long slot = first(key);
+            while (key(slot) != 0)
+                slot = next(slot);
+            return slot;
+        }
+
+        long key(long slot) {
+            return store.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+        }
+
+        long value(long slot) {
+            return store.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+        }
+
+        void setValue(long slot, long value) {
+            store.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, value);
+        }
+
+        void insert(long slot, long key, long value) {
+            setValue(slot, value);
+            store.putLong(HEADER_SIZE + slot * SLOT_SIZE, key);
+            store.putLong(16, size() + 1);
+        }
+
+    }
+
+}
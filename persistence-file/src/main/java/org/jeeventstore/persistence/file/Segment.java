@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single file of the log.
+ * The file is preallocated to its full capacity and mapped into memory once,
+ * so reads never need a system call.  Unused space at the end of a segment
+ * is zero-filled, which marks the end of the written records.
+ */
+final class Segment implements Closeable {
+
+    private final long base;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int capacity;
+    private MappedByteBuffer mapped;
+    private int size = 0;
+
+    /**
+     * Opens the segment file, creating and preallocating it if required.
+     *
+     * @param file  the segment file
+     * @param base  the log position of the first byte in the segment
+     * @param capacity  the size to preallocate for new files
+     */
+    Segment(File file, long base, int capacity) throws IOException {
+        this.base = base;
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        if (raf.length() < capacity)
+            raf.setLength(capacity);
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, raf.length());
+        this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.capacity);
+    }
+
+    static String fileName(long base) {
+        return String.format("%020d.log", base);
+    }
+
+    long base() {
+        return base;
+    }
+
+    /**
+     * Gets the log position right after the last record of this segment.
+     */
+    long end() {
+        return base + size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int remaining() {
+        return capacity - size;
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * Sets the size of a segment that is known to be complete, without
+     * scanning it.
+     *
+     * @param size  the number of bytes occupied by records
+     */
+    void restore(int size) throws IOException {
+        if (size < 0 || size > capacity)
+            throw new IOException(String.format(
+                    "Log segment %s cannot hold %d bytes", file, size));
+        this.size = size;
+    }
+
+    /**
+     * Scans the segment for complete records and sets the size of the segment
+     * to the end of the last valid record.  A partially written record at the
+     * end, e.g., after a crash, is wiped.
+     *
+     * @return  whether the segment ended cleanly (no partial record was found)
+     */
+    boolean recover() throws IOException {
+        int offset = 0;
+        boolean clean = true;
+        while (offset + LogRecord.HEADER_SIZE <= capacity) {
+            int length = mapped.getInt(offset);
+            if (length == 0)
+                break;
+            if (length < 0 || offset + LogRecord.HEADER_SIZE + (long) length > capacity) {
+                clean = false;
+                break;
+            }
+            ByteBuffer payload = view(offset + LogRecord.HEADER_SIZE, length);
+            if (!LogRecord.verify(payload, length, mapped.getInt(offset + 4))) {
+                clean = false;
+                break;
+            }
+            offset += LogRecord.HEADER_SIZE + length;
+        }
+        size = offset;
+        if (!clean) {
+            // zero the damaged tail, such that it cannot be mistaken for data later
+            channel.truncate(size);
+            raf.setLength(capacity);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+        }
+        return clean;
+    }
+
+    /**
+     * Appends an encoded record.  The caller must make sure that there is
+     * enough capacity left.
+     *
+     * @param record  the record, including header
+     * @return  the log position of the record
+     */
+    long append(ByteBuffer record) throws IOException {
+        long position = base + size;
+        int offset = size;
+        while (record.hasRemaining())
+            offset += channel.write(record, offset);
+        size = offset;
+        return position;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Gets the payload of the record at the given log position.
+     *
+     * @param position  the log position of the record
+     * @return  a read-only view on the payload in mapped memory
+     */
+    ByteBuffer payload(long position) {
+        int offset = (int) (position - base);
+        int length = mapped.getInt(offset);
+        return view(offset + LogRecord.HEADER_SIZE, length);
+    }
+
+    /**
+     * Whether a record with an intact header and checksum starts at the
+     * given log position, within the first {@code limit} bytes of the
+     * segment.
+     *
+     * @param position  the log position
+     * @param limit  the number of bytes of the segment known to hold records
+     */
+    boolean isRecord(long position, long limit) {
+        long offset = position - base;
+        if (offset < 0 || offset + LogRecord.HEADER_SIZE > Math.min(limit, capacity))
+            return false;
+        int length = mapped.getInt((int) offset);
+        if (length <= 0 || offset + LogRecord.HEADER_SIZE + (long) length > Math.min(limit, capacity))
+            return false;
+        ByteBuffer payload = view((int) offset + LogRecord.HEADER_SIZE, length);
+        return LogRecord.verify(payload, length, mapped.getInt((int) offset + 4));
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer buf = mapped.duplicate();
+        buf.position(offset);
+        buf.limit(offset + length);
+        return buf.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+}
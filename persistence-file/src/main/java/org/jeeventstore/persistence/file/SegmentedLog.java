@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jeeventstore.StorageException;
+
+/**
+ * An append-only log that is split into segment files of a fixed size.
+ * <p>
+ * Every record is addressed by its log position.  Positions are contiguous
+ * across segments: a segment is named after the position of its first byte,
+ * which is the end position of the previous segment.
+ * <p>
+ * Appending is not thread-safe and must be synchronized by the caller.
+ * Reading is thread-safe for all positions below {@link #end()}.
+ */
+final class SegmentedLog implements Closeable {
+
+    private static final Logger log = Logger.getLogger(SegmentedLog.class.getName());
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private volatile long end = 0;
+
+    SegmentedLog(File directory, int segmentSize) {
+        if (segmentSize < 1024)
+            throw new IllegalArgumentException("segmentSize must be at least 1024 bytes");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens all existing segments and recovers the end of the log.
+     * Only the last segment can contain a partially written record, as
+     * segments are forced to the storage device before the next one is
+     * started, so only the last segment is scanned.
+     */
+    void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches("\\d{20}\\.log");
+            }
+        });
+        Arrays.sort(files);
+        if (files.length > 0 && base(files[0]) != 0)
+            throw new StorageException("Log does not start at position 0: " + files[0]);
+        for (int i = 0; i < files.length; i++) {
+            long base = base(files[i]);
+            Segment segment = new Segment(files[i], base, segmentSize);
+            segments.put(base, segment);
+            if (i < files.length - 1) {
+                segment.restore((int) Math.min(Integer.MAX_VALUE, base(files[i + 1]) - base));
+            } else if (!segment.recover()) {
+                log.log(Level.WARNING, "Discarded incomplete record at the end of {0}", files[i]);
+            }
+        }
+        if (segments.isEmpty())
+            segments.put(0l, new Segment(new File(directory, Segment.fileName(0)), 0, segmentSize));
+        active = segments.lastEntry().getValue();
+        end = active.end();
+    }
+
+    /**
+     * Visits all records from the given position up to the current end of the log.
+     *
+     * @param from  the position of the first record to visit
+     * @param visitor  receives the records, in log order
+     */
+    void scan(long from, RecordVisitor visitor) {
+        long position = from;
+        long until = end;
+        while (position < until) {
+            ByteBuffer payload = payload(position);
+            visitor.visit(position, payload);
+            position = next(position, payload);
+        }
+    }
+
+    /**
+     * Appends an encoded record, rolling over to a new segment if the
+     * active segment is full.
+     *
+     * @param record  the record, including header
+     * @return  the log position of the record
+     */
+    long append(ByteBuffer record) throws IOException {
+        if (active.remaining() < record.remaining())
+            roll(record.remaining());
+        long position = active.append(record);
+        end = active.end();
+        return position;
+    }
+
+    /**
+     * Forces all appended records to the storage device.
+     */
+    void sync() throws IOException {
+        active.force();
+    }
+
+    /**
+     * Gets the positions at which the segments start, in log order.
+     * The last segment may not contain a record yet.
+     */
+    List<Long> segmentStarts() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    /**
+     * Gets the position right after the last record in the log.
+     */
+    long end() {
+        return end;
+    }
+
+    /**
+     * Gets the position of the last record in the log, by walking the
+     * records of the last segment that contains one.
+     *
+     * @return  the position, or -1 if the log is empty
+     */
+    long last() {
+        if (end == 0)
+            return -1;
+        long position = segments.floorKey(end - 1);
+        long last = position;
+        while (position < end) {
+            last = position;
+            position = next(position, payload(position));
+        }
+        return last;
+    }
+
+    /**
+     * Whether the given position lies between two records: the start or
+     * the end of the log, or the position of a record whose header and
+     * checksum are intact.
+     */
+    boolean isBoundary(long position) {
+        long until = end;
+        if (position == 0 || position == until)
+            return true;
+        if (position < 0 || position > until)
+            return false;
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        return entry.getValue().isRecord(position, until - entry.getKey());
+    }
+
+    /**
+     * Gets the payload of the record at the given position.
+     *
+     * @param position  the log position of the record, must be below {@link #end()}
+     * @return  a read-only view on the payload in mapped memory
+     */
+    ByteBuffer payload(long position) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        if (entry == null || position >= end)
+            throw new IllegalArgumentException("No record at position " + position);
+        return entry.getValue().payload(position);
+    }
+
+    /**
+     * Gets the position of the record following the given one.
+     *
+     * @param position  the position of a record
+     * @param payload  the payload of that record
+     * @return  the position of the next record, or {@link #end()}
+     */
+    long next(long position, ByteBuffer payload) {
+        return position + LogRecord.HEADER_SIZE + payload.limit();
+    }
+
+    private static long base(File file) {
+        return Long.parseLong(file.getName().substring(0, 20));
+    }
+
+    private void roll(int required) throws IOException {
+        active.force();
+        long base = active.end();
+        Segment segment = new Segment(
+                new File(directory, Segment.fileName(base)),
+                base,
+                Math.max(segmentSize, required));
+        segments.put(base, segment);
+        active = segment;
+        log.log(Level.FINE, "Rolled over to log segment {0}", segment.file());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (active != null)
+            active.force();
+        for (Segment segment : segments.values())
+            segment.close();
+        segments.clear();
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.serialization.XMLSerializer;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.IteratorUtils;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class EventStorePersistenceFileReopenTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File directory;
+    private EventStorePersistenceFile persistence;
+
+    @BeforeMethod(alwaysRun = true)
+    public void init() {
+        directory = new File("target/eventlog-" + UUID.randomUUID().toString());
+        persistence = open();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void cleanup() {
+        persistence.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void test_rolls_segments_and_reopens() throws Exception {
+        for (int i = 1; i <= 100; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        assertTrue(directory.listFiles().length > 1);
+
+        persistence.close();
+        persistence = open();
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 10, 20));
+        assertEquals(changes.size(), 10);
+        assertEquals(changes.get(0).streamVersion(), 11);
+        assertEquals(IteratorUtils.toList(changes.get(0).events()), events(11));
+        assertEquals(IteratorUtils.toList(persistence.allChanges("DEFAULT")).size(), 100);
+
+        try {
+            persistence.persistChanges(changeSet("FOO", 100));
+            fail("Should have failed by now");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        persistence.persistChanges(changeSet("FOO", 101));
+    }
+
+    @Test
+    public void test_duplicate_detected_after_reopen() throws Exception {
+        ChangeSet cs = changeSet("FOO", 1);
+        persistence.persistChanges(cs);
+        persistence.close();
+        persistence = open();
+        try {
+            persistence.persistChanges(new DefaultChangeSet("DEFAULT", "FOO", 2, cs.changeSetId(), events(2)));
+            fail("Should have failed by now");
+        } catch (DuplicateCommitException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_allChanges_filters_buckets() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            persistence.persistChanges(changeSet("FOO", i));
+            persistence.persistChanges(new DefaultChangeSet("OTHER", "FOO", i,
+                    UUID.randomUUID().toString(), events(i)));
+        }
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.allChanges("OTHER"));
+        assertEquals(changes.size(), 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(changes.get(i).bucketId(), "OTHER");
+            assertEquals(changes.get(i).streamVersion(), i + 1);
+        }
+        assertFalse(persistence.allChanges("NONE").hasNext());
+    }
+
+    @Test
+    public void test_recovers_from_torn_write() throws Exception {
+        for (int i = 1; i <= 3; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        persistence.close();
+
+        // simulate a crash in the middle of writing the fourth record
+        File segment = new File(directory, Segment.fileName(0));
+        long end = endOfRecords(segment);
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(end);
+            raf.writeInt(500);
+            raf.writeInt(12345);
+            raf.writeLong(System.currentTimeMillis());
+        }
+
+        persistence = open();
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 0, Long.MAX_VALUE)).size(), 3);
+        persistence.persistChanges(changeSet("FOO", 4));
+        persistence.close();
+        persistence = open();
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 0, Long.MAX_VALUE)).size(), 4);
+    }
+
+    @Test
+    public void test_persisted_at_does_not_go_backwards_after_reopen() throws Exception {
+        persistence.persistChanges(changeSet("FOO", 1));
+        persistence.close();
+
+        // a record written while the clock was ahead
+        long ahead = System.currentTimeMillis() + 3600000;
+        SegmentedLog log = new SegmentedLog(directory, SEGMENT_SIZE);
+        log.open();
+        log.append(LogRecord.encode("DEFAULT", "FOO", 2, UUID.randomUUID().toString(), ahead,
+                new XMLSerializer().serialize(events(2))));
+        log.close();
+
+        persistence = open();
+        persistence.persistChanges(changeSet("FOO", 3));
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.changesBetween("DEFAULT", ahead, Long.MAX_VALUE));
+        assertEquals(changes.size(), 2);
+        assertEquals(changes.get(1).streamVersion(), 3);
+        assertEquals(persistence.streamVersionAt("DEFAULT", "FOO", ahead - 1), 1);
+    }
+
+    @Test
+    public void test_allChangesSince_rejects_positions_within_records() throws Exception {
+        for (int i = 1; i <= 100; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.allChanges("DEFAULT"));
+        long checkpoint = changes.get(49).checkpoint();
+        long end = changes.get(99).checkpoint();
+
+        assertEquals(IteratorUtils.toList(persistence.allChangesSince("DEFAULT", 0)).size(), 100);
+        assertEquals(IteratorUtils.toList(persistence.allChangesSince("DEFAULT", checkpoint)).size(), 50);
+        assertFalse(persistence.allChangesSince("DEFAULT", end).hasNext());
+        for (long position : new long[]{1, checkpoint - 1, checkpoint + 1, checkpoint + 8, end + 1, end + 100000}) {
+            try {
+                persistence.allChangesSince("DEFAULT", position);
+                fail("Should have failed by now: " + position);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void test_seeks_version_ranges() throws Exception {
+        for (int i = 1; i <= 300; i++) {
+            persistence.persistChanges(changeSet("FOO", 2 * i));
+            persistence.persistChanges(changeSet("BAR", i));
+        }
+        long[][] ranges = {{0, 600}, {0, 1}, {0, 2}, {17, 18}, {17, 19}, {100, 257}, {598, 1000}, {600, 700}};
+        for (long[] range : ranges) {
+            List<ChangeSet> changes = IteratorUtils.toList(
+                    persistence.getFrom("DEFAULT", "FOO", range[0], range[1]));
+            long expected = range[0] + 1 + (range[0] + 1) % 2;
+            for (ChangeSet cs : changes) {
+                assertEquals(cs.streamVersion(), expected);
+                expected += 2;
+            }
+            assertTrue(expected > Math.min(range[1], 600));
+        }
+    }
+
+    @Test
+    public void test_changesBetween_spans_segments() throws Exception {
+        for (int i = 1; i <= 60; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        Thread.sleep(10);
+        long middle = System.currentTimeMillis();
+        Thread.sleep(10);
+        for (int i = 61; i <= 100; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        assertTrue(directory.listFiles().length > 4);
+
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.changesBetween("DEFAULT", middle, Long.MAX_VALUE));
+        assertEquals(changes.size(), 40);
+        assertEquals(changes.get(0).streamVersion(), 61);
+        assertEquals(IteratorUtils.toList(persistence.changesBetween("DEFAULT", 0, middle)).size(), 60);
+        assertEquals(persistence.streamVersionAt("DEFAULT", "FOO", middle), 60);
+    }
+
+    @Test
+    public void test_many_streams() throws Exception {
+        // enough to grow the hash tables a couple of times
+        for (int i = 0; i < 20000; i++)
+            persistence.persistChanges(changeSet("S" + i, 1));
+        persistence.close();
+        persistence = open();
+        for (int i = 0; i < 20000; i += 997)
+            assertTrue(persistence.existsStream("DEFAULT", "S" + i));
+        assertFalse(persistence.existsStream("DEFAULT", "S20000"));
+        persistence.persistChanges(changeSet("S42", 2));
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "S42", 0, 2)).size(), 2);
+    }
+
+    @Test
+    public void test_rejects_versions_behind_head() throws Exception {
+        persistence.persistChanges(changeSet("FOO", 5));
+        try {
+            persistence.persistChanges(changeSet("FOO", 3));
+            fail("Should have failed by now");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        persistence.persistChanges(changeSet("FOO", 7));
+    }
+
+    @Test
+    public void test_rebuilds_index_after_crash() throws Exception {
+        for (int i = 1; i <= 50; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        // do not close, the index remains flagged as dirty
+        EventStorePersistenceFile crashed = persistence;
+        persistence = open();
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 0, Long.MAX_VALUE)).size(), 50);
+        assertTrue(persistence.existsStream("DEFAULT", "FOO"));
+        assertFalse(persistence.existsStream("DEFAULT", "BAR"));
+        crashed.close();
+    }
+
+    private long endOfRecords(File segment) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+            long offset = 0;
+            while (true) {
+                raf.seek(offset);
+                int length = raf.readInt();
+                if (length == 0)
+                    return offset;
+                offset += LogRecord.HEADER_SIZE + length;
+            }
+        }
+    }
+
+    private EventStorePersistenceFile open() {
+        EventStorePersistenceFile p = new EventStorePersistenceFile(
+                new XMLSerializer(), directory.getPath(), SEGMENT_SIZE, false);
+        p.init();
+        return p;
+    }
+
+    private static List<Serializable> events(long version) {
+        List<Serializable> events = new ArrayList<>();
+        events.add("event " + version);
+        return events;
+    }
+
+    private static ChangeSet changeSet(String streamId, long version) {
+        return new DefaultChangeSet("DEFAULT", streamId, version, UUID.randomUUID().toString(), events(version));
+    }
+
+}
@@ -0,0 +1,976 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.sql.DataSource;
+import javax.transaction.TransactionSynchronizationRegistry;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventSerializer;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StorageException;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.persistence.jpa.BodyCodec;
+import org.jeeventstore.persistence.jpa.CommitClock;
+import org.jeeventstore.persistence.jpa.EventStoreChunk;
+import org.jeeventstore.persistence.jpa.EventStoreEntry;
+import org.jeeventstore.persistence.jpa.SettlementGuard;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.PersistenceUtils;
+
+/**
+ * EventStorePersistence utilizing plain JDBC, without the overhead of
+ * entity management.
+ * To be configured as a stateless EJB.
+ * <p>
+ * Reads and writes the tables of the JPA persistence, see
+ * {@link EventStoreEntry}, {@link EventStoreChunk} and {@code StreamHead},
+ * such that the two persistences can share a store.  See
+ * {@code src/main/sql/*.sql} for suitable table definitions.  Bodies are
+ * written to the text column {@code body}, or in chunks if longer than
+ * 32,672 characters.  Bodies the JPA persistence wrote to the binary column
+ * {@code body_data} are read as well.
+ * <p>
+ * Results are fetched page by page with forward-only, read-only statements.
+ * Each page continues after the key of the last row of the previous page
+ * (the commit position and id for {@link #allChanges}, the stream version
+ * for {@link #getFrom} and {@link #getLatest}),
+ * so no connection is held open between two calls to the iterator and no
+ * additional count query is needed.  {@link #getLatest} scans the unique
+ * index on {@code (bucket_id, stream_id, stream_version)} backwards and
+ * limits the rows fetched to the number of change sets requested.
+ * <p>
+ * As in the JPA persistence, every change set is given a commit position
+ * by the {@link CommitClock} of the configured node, which orders
+ * {@link #allChanges} and serves as {@link ChangeSet#checkpoint}.  The
+ * head of every written stream in {@code stream_head} is locked while the
+ * change sets are written, keeps the positions of the stream increasing,
+ * and serves {@link #existsStream} and {@link #streamVersion}.  As
+ * transactions may commit in a different order than their positions were
+ * issued, {@link #allChangesSince} can hold back change sets whose
+ * position is less than {@code settleMillis} in the past, in which case
+ * transactions that write for too long are rolled back by a
+ * {@link SettlementGuard}.
+ * <p>
+ * {@link #changesBetween} pages by {@code persisted_at} and id, which
+ * requires an index on {@code (bucket_id, persisted_at, id)}.  The times are
+ * taken from the clocks of the application servers, so if these are skewed,
+ * change sets of a stream written by different servers within the skew may
+ * be returned out of version order.
+ * <p>
+ * {@link #persistChanges} and {@link #persistBatch} look up the stored
+ * change sets the new ones conflict with before writing, with a single
+ * query per bucket, and {@link #persistBatch} inserts the remaining change
+ * sets through a single statement batch.  A conflict with a transaction
+ * that has not committed yet is only detected by the unique constraints of
+ * the tables.  Some databases (e.g., PostgreSQL) reject all further
+ * statements in a transaction after such a violation, so it fails the
+ * whole batch with a {@link StorageException}, as in the JPA persistence.
+ * <p>
+ * The following EJBs and services are expected to be injected:
+ * <p>
+ * {@code serializer} of type {@link EventSerializer} denotes the serialization
+ *    strategy used to serialize objects before persisting them into the database
+ * <p>
+ * {@code dataSource} of type {@link DataSource} (via resource-ref): the database
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code node} (optional, default: 0): The number of this server,
+ *   between 0 and 255, as for the JPA persistence.  Every server writing to
+ *   the same tables, and every deployment of either persistence on a
+ *   server, has to be given a number of its own.
+ * <p>
+ * Env-entry {@code fetchBatchSize} (optional, default: 500): The batch size for database fetches (number
+ *   of rows to be retrieved in a single call).
+ * <p>
+ * Env-entry {@code tableName} (optional, default: event_store): The name of the table.
+ * <p>
+ * Env-entry {@code chunkTableName} (optional, default: event_store_chunk):
+ *   The name of the table of the chunks.
+ * <p>
+ * Env-entry {@code headTableName} (optional, default: stream_head): The
+ *   name of the table of the stream heads.
+ * <p>
+ * Env-entry {@code idExpression} (optional, default: none): An SQL expression
+ *   that generates the id of a new row, e.g., {@code nextval('event_store_id_seq')}.
+ *   Without it, the id column is left to its default value or auto increment.
+ *   Where the JPA persistence writes to the same tables, the ids have to be
+ *   drawn from its sequence, whose values are never part of the blocks of
+ *   ids the JPA persistence allocates.
+ * <p>
+ * Env-entry {@code settleMillis} (optional, default: 0): The time in
+ *   milliseconds after which a change set is assumed to be committed, see
+ *   the same env-entry of the JPA persistence.
+ */
+public class EventStorePersistenceJDBC implements EventStorePersistence {
+
+    private static final Logger log = Logger.getLogger(EventStorePersistenceJDBC.class.getName());
+
+    private static final String COLUMNS = "id, bucket_id, stream_id, stream_version, change_set_id,"
+            + " persisted_at, commit_position, body, body_data, chunk_count";
+
+    @Resource(name="dataSource")
+    private DataSource dataSource;
+
+    @EJB(name="serializer")
+    private EventSerializer serializer;
+
+    @Resource
+    private TransactionSynchronizationRegistry transactionRegistry;
+
+    @Resource(name="node")
+    private Integer node = 0;
+
+    @Resource(name="fetchBatchSize")
+    private Integer fetchBatchSize = 500;
+
+    @Resource(name="tableName")
+    private String tableName = "event_store";
+
+    @Resource(name="chunkTableName")
+    private String chunkTableName = "event_store_chunk";
+
+    @Resource(name="headTableName")
+    private String headTableName = "stream_head";
+
+    @Resource(name="idExpression")
+    private String idExpression = "";
+
+    @Resource(name="settleMillis")
+    private Long settleMillis = 0l;
+
+    private CommitClock commitClock;
+    private SettlementGuard settlementGuard;
+
+    private String insertSql;
+    private String insertChunkSql;
+    private String entryIdSql;
+    private String chunksSql;
+    private String lockHeadSql;
+    private String insertHeadSql;
+    private String updateHeadSql;
+    private String headVersionSql;
+    private String existsChangeSetSql;
+    private String allChangesSql;
+    private String changesSinceSql;
+    private String changesBetweenSql;
+    private String streamVersionAtSql;
+    private String getFromSql;
+    private String getLatestSql;
+
+    @PostConstruct
+    public void init() {
+        if (dataSource == null)
+            throw new IllegalStateException("No DataSource has been injected");
+        if (serializer == null)
+            throw new IllegalStateException("No serializer has been injected");
+        if (node < 0 || node >= CommitClock.NODES)
+            throw new IllegalStateException("node must be between 0 and "
+                    + (CommitClock.NODES - 1) + ": " + node);
+        if (fetchBatchSize < 1)
+            throw new IllegalStateException("fetchBatchSize must be positive");
+        if (settleMillis < 0)
+            throw new IllegalStateException("settleMillis must not be negative");
+        commitClock = CommitClock.forNode(node);
+        settlementGuard = new SettlementGuard(transactionRegistry, settleMillis);
+
+        boolean explicitId = idExpression != null && !idExpression.trim().isEmpty();
+        insertSql = "INSERT INTO " + tableName + " ("
+                + (explicitId ? "id, " : "")
+                + "bucket_id, stream_id, stream_version, persisted_at, commit_position, change_set_id,"
+                + " body, chunk_count) VALUES ("
+                + (explicitId ? idExpression + ", " : "")
+                + "?, ?, ?, ?, ?, ?, ?, ?)";
+        insertChunkSql = "INSERT INTO " + chunkTableName
+                + " (entry_id, chunk_index, data) VALUES (?, ?, ?)";
+        entryIdSql = "SELECT id FROM " + tableName
+                + " WHERE bucket_id = ? AND change_set_id = ?";
+        chunksSql = "SELECT data FROM " + chunkTableName
+                + " WHERE entry_id = ? AND chunk_index >= ? ORDER BY chunk_index";
+        lockHeadSql = "SELECT stream_version, change_set_count, commit_position FROM " + headTableName
+                + " WHERE bucket_id = ? AND stream_id = ? FOR UPDATE";
+        insertHeadSql = "INSERT INTO " + headTableName
+                + " (bucket_id, stream_id, stream_version, change_set_count, persisted_at, commit_position)"
+                + " VALUES (?, ?, ?, ?, ?, ?)";
+        updateHeadSql = "UPDATE " + headTableName
+                + " SET stream_version = ?, change_set_count = ?, persisted_at = ?, commit_position = ?"
+                + " WHERE bucket_id = ? AND stream_id = ?";
+        // a single seek on the primary key of the head
+        headVersionSql = "SELECT stream_version FROM " + headTableName
+                + " WHERE bucket_id = ? AND stream_id = ?";
+        existsChangeSetSql = "SELECT stream_version FROM " + tableName
+                + " WHERE bucket_id = ? AND change_set_id = ?";
+        allChangesSql = "SELECT " + COLUMNS + " FROM " + tableName
+                + " WHERE bucket_id = ? AND commit_position >= ?"
+                + " AND (commit_position > ? OR (commit_position = ? AND id > ?))"
+                + " ORDER BY commit_position, id";
+        changesSinceSql = "SELECT " + COLUMNS + " FROM " + tableName
+                + " WHERE bucket_id = ? AND commit_position > ? AND commit_position < ?"
+                + " AND commit_position >= ?"
+                + " AND (commit_position > ? OR (commit_position = ? AND id > ?))"
+                + " ORDER BY commit_position, id";
+        changesBetweenSql = "SELECT " + COLUMNS + " FROM " + tableName
+                + " WHERE bucket_id = ? AND persisted_at < ?"
+                + " AND (persisted_at > ? OR (persisted_at = ? AND id > ?))"
+                + " ORDER BY persisted_at, id";
+        streamVersionAtSql = "SELECT MAX(stream_version) FROM " + tableName
+                + " WHERE bucket_id = ? AND stream_id = ? AND persisted_at <= ?";
+        getFromSql = "SELECT " + COLUMNS + " FROM " + tableName
+                + " WHERE bucket_id = ? AND stream_id = ? AND stream_version > ? AND stream_version <= ?"
+                + " ORDER BY stream_version";
+        getLatestSql = "SELECT " + COLUMNS + " FROM " + tableName
+                + " WHERE bucket_id = ? AND stream_id = ? AND stream_version < ?"
+                + " ORDER BY stream_version DESC";
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public boolean existsStream(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return exists(headVersionSql, bucketId, streamId);
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public long streamVersion(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return queryVersion(headVersionSql, bucketId, streamId);
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return queryVersion(streamVersionAtSql, bucketId, streamId, timestamp);
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> allChanges(final String bucketId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        return new PagedIterator() {
+            @Override
+            protected List<Row> fetch(Row last) {
+                long position = last == null ? Long.MIN_VALUE : last.commitPosition;
+                long id = last == null ? Long.MIN_VALUE : last.id;
+                return query(allChangesSql, bucketId, position, position, position, id);
+            }
+        };
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> allChangesSince(final String bucketId, final long checkpoint) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        final long settled = CommitClock.positionAt(System.currentTimeMillis() - settleMillis);
+        return new PagedIterator() {
+            @Override
+            protected List<Row> fetch(Row last) {
+                long position = last == null ? Long.MIN_VALUE : last.commitPosition;
+                long id = last == null ? Long.MIN_VALUE : last.id;
+                return query(changesSinceSql, bucketId, checkpoint, settled, position, position, position, id);
+            }
+        };
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> changesBetween(final String bucketId, final long from, final long to) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        return new PagedIterator() {
+            @Override
+            protected List<Row> fetch(Row last) {
+                if (last == null)
+                    return query(changesBetweenSql, bucketId, to, from, from, Long.MIN_VALUE);
+                return query(changesBetweenSql, bucketId, to, last.persistedAt, last.persistedAt, last.id);
+            }
+        };
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> getFrom(
+            final String bucketId, final String streamId,
+            final long minVersion, final long maxVersion) throws StreamNotFoundException {
+
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return new PagedIterator() {
+            @Override
+            protected List<Row> fetch(Row last) {
+                long min = last == null ? minVersion : last.streamVersion;
+                return query(getFromSql, bucketId, streamId, min, maxVersion);
+            }
+        };
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> getLatest(final String bucketId, final String streamId, final int count) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+
+        return new PagedIterator() {
+            private int fetched = 0;
+            @Override
+            protected List<Row> fetch(Row last) {
+                if (fetched == count)
+                    return Collections.emptyList();
+                long before = last == null ? Long.MAX_VALUE : last.streamVersion;
+                List<Row> rows = queryAtMost(Math.min(fetchBatchSize, count - fetched),
+                        getLatestSql, bucketId, streamId, before);
+                fetched += rows.size();
+                return rows;
+            }
+        };
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (changeSet == null)
+            throw new IllegalArgumentException("changeSet must not be null");
+
+        List<ChangeSet> changeSets = Collections.singletonList(changeSet);
+        Exception failure;
+        try (Connection con = dataSource.getConnection()) {
+            failure = write(con, changeSets).get(0);
+        } catch (SQLException e) {
+            if (isConstraintViolation(e))
+                throwConflict(changeSet, e);
+            throw new StorageException("Cannot persist change set " + changeSet.changeSetId(), e);
+        }
+        if (failure instanceof DuplicateCommitException)
+            throw (DuplicateCommitException) failure;
+        if (failure != null)
+            throw (ConcurrencyException) failure;
+        log.log(Level.FINE, "wrote ChangeSet {0} to event store", changeSet.changeSetId());
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        PersistenceUtils.checkBatch(changeSets);
+        if (changeSets.isEmpty())
+            return new ArrayList<>();
+
+        List<Exception> failures;
+        try (Connection con = dataSource.getConnection()) {
+            failures = write(con, changeSets);
+        } catch (SQLException e) {
+            // a conflict with a concurrent transaction, or a failure of the database
+            throw new StorageException("Cannot persist batch of change sets", e);
+        }
+        log.log(Level.FINE, "wrote batch of {0} ChangeSets to event store", changeSets.size());
+        return failures;
+    }
+
+    /**
+     * Writes the change sets that do not conflict with stored change sets,
+     * or with earlier change sets of the list.  The heads of the written
+     * streams are locked first, such that concurrent writers of a stream
+     * queue up behind this transaction before the conflicts are looked up.
+     *
+     * @return  for each change set, the exception reporting its conflict,
+     *          or {@code null} if it has been written
+     */
+    private List<Exception> write(Connection con, List<ChangeSet> changeSets) throws SQLException {
+        Map<List<String>, Head> heads = new LinkedHashMap<>();
+        for (ChangeSet cs : changeSets) {
+            List<String> key = Arrays.asList(cs.bucketId(), cs.streamId());
+            if (!heads.containsKey(key))
+                heads.put(key, lockHead(con, cs.bucketId(), cs.streamId()));
+        }
+        List<Exception> failures = findConflicts(con, changeSets);
+
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < changeSets.size(); i++) {
+            if (failures.get(i) != null)
+                continue;
+            ChangeSet cs = changeSets.get(i);
+            settlementGuard.watch();
+            Entry entry = new Entry(cs, System.currentTimeMillis(),
+                    commitClock.next(), createSerializedBody(cs));
+            List<String> key = Arrays.asList(cs.bucketId(), cs.streamId());
+            Head head = heads.get(key);
+            if (head == null) {
+                head = new Head(entry.changeSet.streamVersion(), 0, entry.persistedAt, entry.commitPosition);
+                heads.put(key, head);
+            } else if (cs.streamVersion() > head.streamVersion && entry.commitPosition <= head.commitPosition)
+                // the stream was last written by a node whose clock is ahead
+                entry.commitPosition = commitClock.nextAfter(head.commitPosition);
+            // otherwise a version at or below the head, which fills a gap
+            head.add(cs.streamVersion(), entry.persistedAt, entry.commitPosition);
+            entries.add(entry);
+        }
+        if (entries.isEmpty())
+            return failures;
+
+        insertEntries(con, entries);
+        insertChunks(con, entries);
+        writeHeads(con, heads);
+        return failures;
+    }
+
+    /**
+     * Reads the head of a stream and locks it until the transaction ends.
+     *
+     * @return the head, or null if the stream has not been written yet
+     */
+    private Head lockHead(Connection con, String bucketId, String streamId) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement(lockHeadSql)) {
+            stmt.setString(1, bucketId);
+            stmt.setString(2, streamId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next())
+                    return null;
+                Head head = new Head(rs.getLong(1), rs.getLong(2), 0, rs.getLong(3));
+                head.stored = true;
+                return head;
+            }
+        }
+    }
+
+    /**
+     * Finds the change sets that conflict with stored change sets, or with
+     * earlier change sets of the list, with a single query per bucket.
+     */
+    private List<Exception> findConflicts(Connection con, List<ChangeSet> changeSets) throws SQLException {
+        Map<String, List<ChangeSet>> buckets = new LinkedHashMap<>();
+        for (ChangeSet cs : changeSets) {
+            List<ChangeSet> list = buckets.get(cs.bucketId());
+            if (list == null) {
+                list = new ArrayList<>();
+                buckets.put(cs.bucketId(), list);
+            }
+            list.add(cs);
+        }
+        Set<String> changeSetIds = new HashSet<>();
+        Set<List<Object>> versions = new HashSet<>();
+        for (Map.Entry<String, List<ChangeSet>> bucket : buckets.entrySet())
+            readStored(con, bucket.getKey(), bucket.getValue(), changeSetIds, versions);
+
+        List<Exception> failures = new ArrayList<>(changeSets.size());
+        for (ChangeSet cs : changeSets) {
+            if (!changeSetIds.add(cs.bucketId() + "/" + cs.changeSetId()))
+                failures.add(new DuplicateCommitException(String.format(
+                        "Duplicate change set %s in bucket %s",
+                        cs.changeSetId(), cs.bucketId())));
+            else if (!versions.add(Arrays.<Object>asList(cs.bucketId(), cs.streamId(), cs.streamVersion())))
+                failures.add(new ConcurrencyException(String.format(
+                        "Version %d already exists in stream %s/%s",
+                        cs.streamVersion(), cs.bucketId(), cs.streamId())));
+            else
+                failures.add(null);
+        }
+        return failures;
+    }
+
+    /**
+     * Adds the stored change set ids and stream versions of the bucket
+     * that the given change sets may conflict with to the given sets.
+     */
+    private void readStored(Connection con, String bucketId, List<ChangeSet> changeSets,
+            Set<String> changeSetIds, Set<List<Object>> versions) throws SQLException {
+
+        Set<String> ids = new HashSet<>();
+        Set<String> streamIds = new HashSet<>();
+        Set<Long> streamVersions = new HashSet<>();
+        for (ChangeSet cs : changeSets) {
+            ids.add(cs.changeSetId());
+            streamIds.add(cs.streamId());
+            streamVersions.add(cs.streamVersion());
+        }
+        String sql = "SELECT stream_id, stream_version, change_set_id FROM " + tableName
+                + " WHERE bucket_id = ? AND (change_set_id IN (" + placeholders(ids.size()) + ")"
+                + " OR (stream_id IN (" + placeholders(streamIds.size()) + ")"
+                + " AND stream_version IN (" + placeholders(streamVersions.size()) + ")))";
+        try (PreparedStatement stmt = con.prepareStatement(sql)) {
+            int param = 1;
+            stmt.setString(param++, bucketId);
+            for (String id : ids)
+                stmt.setString(param++, id);
+            for (String streamId : streamIds)
+                stmt.setString(param++, streamId);
+            for (Long version : streamVersions)
+                stmt.setLong(param++, version);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    versions.add(Arrays.<Object>asList(bucketId, rs.getString(1), rs.getLong(2)));
+                    changeSetIds.add(bucketId + "/" + rs.getString(3));
+                }
+            }
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder("?");
+        for (int i = 1; i < count; i++)
+            sb.append(", ?");
+        return sb.toString();
+    }
+
+    /**
+     * Inserts the entries through a single statement batch.
+     */
+    private void insertEntries(Connection con, List<Entry> entries) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement(insertSql)) {
+            for (Entry entry : entries) {
+                ChangeSet cs = entry.changeSet;
+                stmt.setString(1, cs.bucketId());
+                stmt.setString(2, cs.streamId());
+                stmt.setLong(3, cs.streamVersion());
+                stmt.setLong(4, entry.persistedAt);
+                stmt.setLong(5, entry.commitPosition);
+                stmt.setString(6, cs.changeSetId());
+                stmt.setString(7, entry.body);
+                stmt.setInt(8, entry.overflow == null ? 0 : EventStoreChunk.chunkCount(entry.overflow.length));
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Inserts the chunks of the entries whose bodies are too long to be
+     * stored inline, once the entries have been assigned their ids.
+     */
+    private void insertChunks(Connection con, List<Entry> entries) throws SQLException {
+        try (PreparedStatement ids = con.prepareStatement(entryIdSql);
+                PreparedStatement stmt = con.prepareStatement(insertChunkSql)) {
+            boolean pending = false;
+            for (Entry entry : entries) {
+                if (entry.overflow == null)
+                    continue;
+                ids.setString(1, entry.changeSet.bucketId());
+                ids.setString(2, entry.changeSet.changeSetId());
+                long id;
+                try (ResultSet rs = ids.executeQuery()) {
+                    if (!rs.next())
+                        throw new StorageException("Cannot find entry of change set "
+                                + entry.changeSet.changeSetId());
+                    id = rs.getLong(1);
+                }
+                for (EventStoreChunk chunk : EventStoreChunk.split(id, entry.overflow)) {
+                    stmt.setLong(1, chunk.entryId());
+                    stmt.setInt(2, chunk.chunkIndex());
+                    stmt.setBytes(3, chunk.data());
+                    stmt.addBatch();
+                    pending = true;
+                }
+            }
+            if (pending)
+                stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Writes the heads of the written streams, a concurrent writer creating
+     * the same head fails on the primary key, just as on the entries.
+     */
+    private void writeHeads(Connection con, Map<List<String>, Head> heads) throws SQLException {
+        try (PreparedStatement insert = con.prepareStatement(insertHeadSql);
+                PreparedStatement update = con.prepareStatement(updateHeadSql)) {
+            boolean inserts = false;
+            boolean updates = false;
+            for (Map.Entry<List<String>, Head> e : heads.entrySet()) {
+                Head head = e.getValue();
+                if (head == null || !head.changed)
+                    continue;
+                if (head.stored) {
+                    update.setLong(1, head.streamVersion);
+                    update.setLong(2, head.changeSetCount);
+                    update.setLong(3, head.persistedAt);
+                    update.setLong(4, head.commitPosition);
+                    update.setString(5, e.getKey().get(0));
+                    update.setString(6, e.getKey().get(1));
+                    update.addBatch();
+                    updates = true;
+                } else {
+                    insert.setString(1, e.getKey().get(0));
+                    insert.setString(2, e.getKey().get(1));
+                    insert.setLong(3, head.streamVersion);
+                    insert.setLong(4, head.changeSetCount);
+                    insert.setLong(5, head.persistedAt);
+                    insert.setLong(6, head.commitPosition);
+                    insert.addBatch();
+                    inserts = true;
+                }
+            }
+            if (inserts)
+                insert.executeBatch();
+            if (updates)
+                update.executeBatch();
+        }
+    }
+
+    protected String createSerializedBody(ChangeSet changeSet) {
+        List<Serializable> list = new ArrayList<>();
+        Iterator<Serializable> it = changeSet.events();
+        while (it.hasNext())
+            list.add(it.next());
+        return serializer.serialize(list);
+    }
+
+    private static boolean isConstraintViolation(SQLException e) {
+        // SQLState class 23: integrity constraint violation
+        for (SQLException ex = e; ex != null; ex = ex.getNextException())
+            if (ex.getSQLState() != null && ex.getSQLState().startsWith("23"))
+                return true;
+        return false;
+    }
+
+    /**
+     * Tells the two unique constraints apart.  Some databases (e.g., PostgreSQL)
+     * reject all further statements in a transaction after a violation, in this
+     * case the conflict is reported as a {@link ConcurrencyException}.
+     */
+    private void throwConflict(ChangeSet changeSet, SQLException cause)
+            throws ConcurrencyException, DuplicateCommitException {
+
+        Exception conflict = conflict(changeSet, cause);
+        if (conflict instanceof DuplicateCommitException)
+            throw (DuplicateCommitException) conflict;
+        throw (ConcurrencyException) conflict;
+    }
+
+    /**
+     * Creates the exception for a change set rejected by one of the unique
+     * constraints, see {@link #throwConflict}.
+     */
+    private Exception conflict(ChangeSet changeSet, SQLException cause) {
+        boolean duplicate = false;
+        try {
+            duplicate = exists(existsChangeSetSql, changeSet.bucketId(), changeSet.changeSetId());
+        } catch (StorageException e) {
+            log.log(Level.FINE, "Cannot look up change set after constraint violation", e);
+        }
+        if (duplicate)
+            return new DuplicateCommitException(String.format(
+                    "Duplicate change set %s in bucket %s",
+                    changeSet.changeSetId(), changeSet.bucketId()), cause);
+        return new ConcurrencyException(String.format(
+                "Cannot persist version %d of stream %s/%s",
+                changeSet.streamVersion(), changeSet.bucketId(), changeSet.streamId()), cause);
+    }
+
+    private boolean exists(String sql, String first, String second) {
+        try (Connection con = dataSource.getConnection();
+                PreparedStatement stmt = con.prepareStatement(sql)) {
+            stmt.setMaxRows(1);
+            stmt.setString(1, first);
+            stmt.setString(2, second);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Cannot query event store", e);
+        }
+    }
+
+    private long queryVersion(String sql, Object... params) {
+        try (Connection con = dataSource.getConnection();
+                PreparedStatement stmt = con.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++)
+                stmt.setObject(i + 1, params[i]);
+            try (ResultSet rs = stmt.executeQuery()) {
+                // MAX() over no rows yields NULL, which getLong() maps to 0
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Cannot query event store", e);
+        }
+    }
+
+    private List<Row> query(String sql, Object... params) {
+        return queryAtMost(fetchBatchSize, sql, params);
+    }
+
+    private List<Row> queryAtMost(int maxRows, String sql, Object... params) {
+        try (Connection con = dataSource.getConnection();
+                PreparedStatement stmt = con.prepareStatement(sql,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setMaxRows(maxRows);
+            stmt.setFetchSize(maxRows);
+            for (int i = 0; i < params.length; i++)
+                stmt.setObject(i + 1, params[i]);
+            List<Row> rows = new ArrayList<>(maxRows);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next())
+                    rows.add(new Row(
+                            rs.getLong(1),
+                            rs.getString(2),
+                            rs.getString(3),
+                            rs.getLong(4),
+                            rs.getString(5),
+                            rs.getLong(6),
+                            rs.getLong(7),
+                            rs.getString(8),
+                            rs.getBytes(9),
+                            rs.getInt(10)));
+            }
+            // the chunks are read once the page is complete, a few at a time
+            for (Row row : rows)
+                if (row.chunkCount > 0)
+                    row.bodyData = readChunks(con, row.id, row.chunkCount);
+            return rows;
+        } catch (SQLException e) {
+            throw new StorageException("Cannot query event store", e);
+        }
+    }
+
+    /**
+     * Reads the chunks of an entry and joins them to the encoded body,
+     * fetching {@link EventStoreChunk#CHUNKS_PER_FETCH} chunks at a time.
+     */
+    private byte[] readChunks(Connection con, long entryId, int chunkCount) throws SQLException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunkCount * EventStoreChunk.CHUNK_LENGTH);
+        int read = 0;
+        try (PreparedStatement stmt = con.prepareStatement(chunksSql,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            while (read < chunkCount) {
+                int limit = Math.min(EventStoreChunk.CHUNKS_PER_FETCH, chunkCount - read);
+                stmt.setMaxRows(limit);
+                stmt.setFetchSize(limit);
+                stmt.setLong(1, entryId);
+                stmt.setInt(2, read);
+                int fetched = 0;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        byte[] data = rs.getBytes(1);
+                        out.write(data, 0, data.length);
+                        fetched++;
+                    }
+                }
+                if (fetched == 0)
+                    break;
+                read += fetched;
+            }
+        }
+        if (read != chunkCount)
+            throw new StorageException("Corrupt body of entry #" + entryId
+                    + ", expected " + chunkCount + " chunks, found " + read);
+        return out.toByteArray();
+    }
+
+    /**
+     * A change set to be written, with the position and body it is written with.
+     */
+    private static final class Entry {
+
+        private final ChangeSet changeSet;
+        private final long persistedAt;
+        private long commitPosition;
+        private final String body;
+        private final byte[] overflow;
+
+        Entry(ChangeSet changeSet, long persistedAt, long commitPosition, String body) {
+            this.changeSet = changeSet;
+            this.persistedAt = persistedAt;
+            this.commitPosition = commitPosition;
+            // stored inline if possible, as the JPA persistence does without binaryBody
+            if (body.length() <= EventStoreEntry.INLINE_LENGTH) {
+                this.body = body;
+                this.overflow = null;
+            } else {
+                this.body = null;
+                this.overflow = BodyCodec.NONE.encode(body);
+            }
+        }
+
+    }
+
+    /**
+     * The head of a stream, as read from or to be written to the head table.
+     */
+    private static final class Head {
+
+        private long streamVersion;
+        private long changeSetCount;
+        private long persistedAt;
+        private long commitPosition;
+        private boolean stored = false;
+        private boolean changed = false;
+
+        Head(long streamVersion, long changeSetCount, long persistedAt, long commitPosition) {
+            this.streamVersion = streamVersion;
+            this.changeSetCount = changeSetCount;
+            this.persistedAt = persistedAt;
+            this.commitPosition = commitPosition;
+        }
+
+        /**
+         * Records a written change set, as {@code StreamHead.add} of the JPA persistence.
+         */
+        void add(long streamVersion, long persistedAt, long commitPosition) {
+            this.streamVersion = Math.max(this.streamVersion, streamVersion);
+            this.changeSetCount++;
+            this.persistedAt = persistedAt;
+            this.commitPosition = Math.max(this.commitPosition, commitPosition);
+            this.changed = true;
+        }
+
+    }
+
+    private static final class Row {
+
+        private final long id;
+        private final String bucketId;
+        private final String streamId;
+        private final long streamVersion;
+        private final String changeSetId;
+        private final long persistedAt;
+        private final long commitPosition;
+        private final String body;
+        private byte[] bodyData;
+        private final int chunkCount;
+
+        Row(long id, String bucketId, String streamId, long streamVersion,
+                String changeSetId, long persistedAt, long commitPosition,
+                String body, byte[] bodyData, int chunkCount) {
+            this.id = id;
+            this.bucketId = bucketId;
+            this.streamId = streamId;
+            this.streamVersion = streamVersion;
+            this.changeSetId = changeSetId;
+            this.persistedAt = persistedAt;
+            this.commitPosition = commitPosition;
+            this.body = body;
+            this.bodyData = bodyData;
+            this.chunkCount = chunkCount;
+        }
+
+        /**
+         * Gets the serialized body, decoded from the binary body column or
+         * the chunks if the entry has been stored there.
+         */
+        String body() {
+            return bodyData != null ? BodyCodec.decode(bodyData) : body;
+        }
+
+    }
+
+    /**
+     * Fetches the results page by page.  A page that is not full is the last one.
+     */
+    private abstract class PagedIterator implements Iterator<ChangeSet> {
+
+        private List<Row> page = new ArrayList<>();
+        private int current = 0;
+        private Row last = null;
+        private boolean lastPage = false;
+
+        /**
+         * Fetches the next page.
+         *
+         * @param last  the last row of the previous page, null for the first page
+         */
+        protected abstract List<Row> fetch(Row last);
+
+        @Override
+        public boolean hasNext() {
+            if (current < page.size())
+                return true;
+            if (lastPage)
+                return false;
+            page = fetch(last);
+            current = 0;
+            lastPage = page.size() < fetchBatchSize;
+            if (!page.isEmpty())
+                last = page.get(page.size() - 1);
+            return !page.isEmpty();
+        }
+
+        @Override
+        public ChangeSet next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No next ChangeSet");
+            Row row = page.get(current);
+            page.set(current++, null); // allow gc of the body
+            List<? extends Serializable> events = serializer.deserialize(row.body());
+            return new DefaultChangeSet(
+                    row.bucketId,
+                    row.streamId,
+                    row.streamVersion,
+                    row.changeSetId,
+                    events,
+                    row.commitPosition);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+}
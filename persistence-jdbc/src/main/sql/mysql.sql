@@ -0,0 +1,37 @@
+-- The tables of the JPA persistence, which both persistences can share, see
+-- persistence-jpa/src/main/sql/mysql.sql for migrations and partitions.
+CREATE TABLE `event_store` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `bucket_id` varchar(255) DEFAULT NULL,
+  `stream_id` varchar(255) DEFAULT NULL,
+  `stream_version` bigint(20) DEFAULT NULL,
+  `change_set_id` varchar(255) DEFAULT NULL,
+  `persisted_at` bigint(20) DEFAULT NULL,
+  `commit_position` bigint(20) NOT NULL,
+  `body` longtext,
+  `body_data` longblob,
+  `chunk_count` int(11) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `UNQ_event_store_optimistic_lock` (`bucket_id`,`stream_id`,`stream_version`),
+  UNIQUE KEY `UNQ_event_store_change_set` (`bucket_id`,`change_set_id`),
+  KEY `IDX_event_store_bucket_id` (`bucket_id`,`commit_position`,`id`),
+  KEY `IDX_event_store_persisted_at` (`bucket_id`,`persisted_at`,`id`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8;
+
+-- bodies longer than 32672 characters or bytes, see EventStoreChunk
+CREATE TABLE `event_store_chunk` (
+  `entry_id` bigint(20) NOT NULL,
+  `chunk_index` int(11) NOT NULL,
+  `data` blob NOT NULL,
+  PRIMARY KEY (`entry_id`,`chunk_index`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8;
+
+CREATE TABLE `stream_head` (
+  `bucket_id` varchar(255) NOT NULL,
+  `stream_id` varchar(255) NOT NULL,
+  `stream_version` bigint(20) NOT NULL,
+  `change_set_count` bigint(20) NOT NULL,
+  `persisted_at` bigint(20) NOT NULL,
+  `commit_position` bigint(20) NOT NULL,
+  PRIMARY KEY (`bucket_id`,`stream_id`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8;
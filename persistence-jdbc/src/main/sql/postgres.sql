@@ -0,0 +1,66 @@
+
+-- The tables of the JPA persistence, which both persistences can share, see
+-- persistence-jpa/src/main/sql/postgres.sql for migrations and partitions.
+-- ids are allocated in blocks of 50, see allocationSize of EventStoreEntry.id
+CREATE SEQUENCE event_store_id_seq
+  INCREMENT 50
+  MINVALUE 1
+  MAXVALUE 9223372036854775807
+  START 1
+  CACHE 1;
+
+-- The default serves the JDBC persistence, a single nextval is never part of
+-- the blocks the JPA persistence allocates.
+CREATE TABLE event_store (
+  id bigint NOT NULL DEFAULT nextval('event_store_id_seq'),
+  bucket_id character varying(255),
+  stream_id character varying(255),
+  stream_version bigint,
+  change_set_id character varying(255),
+  persisted_at bigint,
+  commit_position bigint NOT NULL,
+  body text,
+  body_data bytea,
+  chunk_count integer NOT NULL DEFAULT 0,
+  CONSTRAINT event_store_pkey PRIMARY KEY (id),
+  CONSTRAINT unq_event_store_optimistic_lock UNIQUE (bucket_id, stream_id, stream_version),
+  CONSTRAINT unq_event_store_change_set UNIQUE (bucket_id, change_set_id)
+)
+WITH (
+  OIDS=FALSE
+);
+
+CREATE INDEX idx_bucket_id ON event_store(bucket_id, commit_position, id);
+CREATE INDEX idx_stream_id ON event_store(stream_id);
+CREATE INDEX idx_stream_version ON event_store(stream_version);
+CREATE INDEX idx_persisted_at ON event_store(bucket_id, persisted_at, id);
+
+-- bodies longer than 32672 characters or bytes, see EventStoreChunk
+CREATE TABLE event_store_chunk (
+  entry_id bigint NOT NULL,
+  chunk_index integer NOT NULL,
+  data bytea NOT NULL,
+  CONSTRAINT event_store_chunk_pkey PRIMARY KEY (entry_id, chunk_index)
+)
+WITH (
+  OIDS=FALSE
+);
+
+CREATE TABLE stream_head (
+  bucket_id character varying(255) NOT NULL,
+  stream_id character varying(255) NOT NULL,
+  stream_version bigint NOT NULL,
+  change_set_count bigint NOT NULL,
+  persisted_at bigint NOT NULL,
+  commit_position bigint NOT NULL,
+  CONSTRAINT stream_head_pkey PRIMARY KEY (bucket_id, stream_id)
+)
+WITH (
+  OIDS=FALSE
+);
+
+-- Set the owner to the correct user
+-- ALTER TABLE event_store_id_seq OWNER TO someusername;
+-- ALTER TABLE event_store OWNER TO someusername;
+-- ALTER TABLE stream_head OWNER TO someusername;
+-- ALTER TABLE event_store_chunk OWNER TO someusername;
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+
+/**
+ * (Re-)creates the tables of the JPA persistence in the test database
+ * before any test data is loaded, see {@code src/main/sql/*.sql}.
+ */
+public class TestSchema {
+
+    @Resource(name="dataSource")
+    private DataSource dataSource;
+
+    @PostConstruct
+    public void init() {
+        try (Connection con = dataSource.getConnection();
+                Statement stmt = con.createStatement()) {
+            String product = con.getMetaData().getDatabaseProductName();
+            String id = "BIGINT NOT NULL GENERATED BY DEFAULT AS IDENTITY";
+            String text = "VARCHAR(32672)";
+            String binary = "VARCHAR(32672) FOR BIT DATA";
+            String options = "";
+            if (product.startsWith("PostgreSQL")) {
+                id = "BIGSERIAL";
+                text = "TEXT";
+                binary = "BYTEA";
+            } else if (product.startsWith("MySQL")) {
+                id = "BIGINT NOT NULL AUTO_INCREMENT";
+                text = "LONGTEXT";
+                binary = "LONGBLOB";
+                options = " ENGINE=InnoDB DEFAULT CHARSET=utf8";
+            }
+            boolean derby = product.startsWith("Apache Derby");
+            for (String table : new String[]{"event_store_chunk", "stream_head", "event_store"})
+                drop(stmt, table, derby);
+            stmt.executeUpdate("CREATE TABLE event_store ("
+                    + "id " + id + ", "
+                    + "bucket_id VARCHAR(255) NOT NULL, "
+                    + "stream_id VARCHAR(255) NOT NULL, "
+                    + "stream_version BIGINT NOT NULL, "
+                    + "change_set_id VARCHAR(255) NOT NULL, "
+                    + "persisted_at BIGINT NOT NULL, "
+                    + "commit_position BIGINT NOT NULL, "
+                    + "body " + text + ", "
+                    + "body_data " + binary + ", "
+                    + "chunk_count INTEGER DEFAULT 0 NOT NULL, "
+                    + "PRIMARY KEY (id), "
+                    + "UNIQUE (bucket_id, stream_id, stream_version), "
+                    + "UNIQUE (bucket_id, change_set_id))" + options);
+            stmt.executeUpdate("CREATE INDEX idx_event_store_bucket_id"
+                    + " ON event_store(bucket_id, commit_position, id)");
+            stmt.executeUpdate("CREATE INDEX idx_event_store_persisted_at"
+                    + " ON event_store(bucket_id, persisted_at, id)");
+            stmt.executeUpdate("CREATE TABLE event_store_chunk ("
+                    + "entry_id BIGINT NOT NULL, "
+                    + "chunk_index INTEGER NOT NULL, "
+                    + "data " + binary + " NOT NULL, "
+                    + "PRIMARY KEY (entry_id, chunk_index))" + options);
+            stmt.executeUpdate("CREATE TABLE stream_head ("
+                    + "bucket_id VARCHAR(255) NOT NULL, "
+                    + "stream_id VARCHAR(255) NOT NULL, "
+                    + "stream_version BIGINT NOT NULL, "
+                    + "change_set_count BIGINT NOT NULL, "
+                    + "persisted_at BIGINT NOT NULL, "
+                    + "commit_position BIGINT NOT NULL, "
+                    + "PRIMARY KEY (bucket_id, stream_id))" + options);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot create test schema", e);
+        }
+    }
+
+    private void drop(Statement stmt, String table, boolean derby) throws SQLException {
+        if (!derby) {
+            // a failed statement would abort the transaction on PostgreSQL
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+            return;
+        }
+        try {
+            stmt.executeUpdate("DROP TABLE " + table);
+        } catch (SQLException e) {
+            // does not exist yet
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.jeeventstore.StorageException;
+
+/**
+ * The compression applied to the serialized body of a change set before it
+ * is written to the binary body column of an {@link EventStoreEntry}.
+ * <p>
+ * An encoded body starts with the id of the codec, so every change set
+ * can be decoded on its own, no matter which codec was configured when it
+ * was written.  Compressed bodies continue with the length of the
+ * uncompressed body as a four-byte integer, uncompressed bodies directly
+ * with the UTF-8 encoded body.  If compression does not make a body any
+ * smaller, it is stored uncompressed.
+ */
+public enum BodyCodec {
+
+    /**
+     * Stores the UTF-8 encoded body as it is.
+     */
+    NONE(0) {
+        @Override
+        byte[] compress(byte[] raw) {
+            return raw;
+        }
+        @Override
+        byte[] decompress(byte[] data, int offset, int length, int rawLength) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+    },
+
+    /**
+     * Compresses the body with {@link Deflater}, which gives the best ratio.
+     */
+    DEFLATE(1) {
+        @Override
+        byte[] compress(byte[] raw) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished())
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+        @Override
+        byte[] decompress(byte[] data, int offset, int length, int rawLength) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, offset, length);
+                byte[] raw = new byte[rawLength];
+                int count = 0;
+                while (count < rawLength && !inflater.finished()) {
+                    int n = inflater.inflate(raw, count, rawLength - count);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    count += n;
+                }
+                if (count != rawLength)
+                    throw new StorageException("Corrupt deflated body, expected "
+                            + rawLength + " bytes, got " + count);
+                return raw;
+            } catch (DataFormatException e) {
+                throw new StorageException("Corrupt deflated body", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    },
+
+    /**
+     * Compresses the body in the LZ4 block format, see {@link LZ4Block},
+     * which is several times faster than {@link #DEFLATE} at a lower ratio.
+     */
+    LZ4(2) {
+        @Override
+        byte[] compress(byte[] raw) {
+            return LZ4Block.compress(raw);
+        }
+        @Override
+        byte[] decompress(byte[] data, int offset, int length, int rawLength) {
+            return LZ4Block.decompress(data, offset, length, rawLength);
+        }
+    };
+
+    private static final int LENGTH_SIZE = 4;
+
+    private final byte id;
+
+    private BodyCodec(int id) {
+        this.id = (byte) id;
+    }
+
+    /**
+     * Encodes a serialized body with this codec, or without compression if
+     * that is shorter.
+     *
+     * @param body  the serialized body, not null
+     * @return  the encoded body
+     */
+    public byte[] encode(String body) {
+        byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+        if (this != NONE) {
+            byte[] compressed = compress(raw);
+            if (compressed.length + LENGTH_SIZE < raw.length)
+                return ByteBuffer.allocate(1 + LENGTH_SIZE + compressed.length)
+                        .put(id)
+                        .putInt(raw.length)
+                        .put(compressed)
+                        .array();
+        }
+        return ByteBuffer.allocate(1 + raw.length).put(NONE.id).put(raw).array();
+    }
+
+    /**
+     * Decodes a body encoded by any of the codecs.
+     *
+     * @param data  the encoded body, not null
+     * @return  the serialized body
+     * @throws StorageException  if the body is corrupt
+     */
+    public static String decode(byte[] data) {
+        if (data.length == 0)
+            throw new StorageException("Corrupt body, codec is missing");
+        BodyCodec codec = forId(data[0]);
+        if (codec == NONE)
+            return new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+        int offset = 1 + LENGTH_SIZE;
+        int rawLength = data.length < offset ? -1 : ByteBuffer.wrap(data, 1, LENGTH_SIZE).getInt();
+        if (rawLength < 0)
+            throw new StorageException("Corrupt body, length is missing");
+        byte[] raw = codec.decompress(data, offset, data.length - offset, rawLength);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    private static BodyCodec forId(byte id) {
+        for (BodyCodec codec : values())
+            if (codec.id == id)
+                return codec;
+        throw new StorageException("Corrupt body, unknown codec " + id);
+    }
+
+    abstract byte[] compress(byte[] raw);
+
+    abstract byte[] decompress(byte[] data, int offset, int length, int rawLength);
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.EventSerializer;
+import org.jeeventstore.StorageException;
+import org.jeeventstore.store.DefaultChangeSet;
+
+/**
+ * A batch of deserialized change sets, as fetched by a {@link LazyLoadIterator}.
+ * Besides the change sets, a batch carries the last entry it was read from,
+ * which is the key for fetching the next batch, and whether there are more
+ * results.
+ * <p>
+ * Public only because it is returned by
+ * {@link EventStorePersistenceJPA#fetchBatch}, not meant to be used otherwise.
+ */
+public final class ChangeSetBatch {
+
+    private final List<ChangeSet> changeSets;
+    private final EventStoreEntry last;
+    private final boolean moreResults;
+
+    ChangeSetBatch(List<ChangeSet> changeSets, EventStoreEntry last, boolean moreResults) {
+        this.changeSets = Collections.unmodifiableList(changeSets);
+        this.last = last;
+        this.moreResults = moreResults;
+    }
+
+    /**
+     * Fetches the batch following the given entry and deserializes its change sets.
+     * Bodies stored in chunks are read before the entries are handed to the decoder.
+     *
+     * @param entityManager  the {@link EntityManager} the query was created in
+     * @param query  the keyset query, see {@link QueryUtils#buildKeysetQuery}
+     * @param key  the key the query pages by
+     * @param last  the last entry of the previous batch, or {@code null} for the first batch
+     * @param size  the maximum number of change sets in the batch
+     * @param decoder  turns the entries into change sets
+     * @return  the batch, empty if there are no further results
+     */
+    static ChangeSetBatch fetch(
+            EntityManager entityManager,
+            TypedQuery<EventStoreEntry> query,
+            PageKey key,
+            EventStoreEntry last,
+            int size,
+            Decoder decoder) {
+
+        // fetch one more row than needed to find out whether there are more
+        query.setMaxResults(size + 1);
+        key.bind(query, last);
+        // the entries are unmanaged copies, see EventStoreEntry.SELECT
+        List<EventStoreEntry> list = query.getResultList();
+
+        List<EventStoreEntry> entries = list.size() > size ? list.subList(0, size) : list;
+        if (!entries.isEmpty())
+            last = entries.get(entries.size() - 1);
+        for (EventStoreEntry entry : entries)
+            entry.readChunks(entityManager);
+        return new ChangeSetBatch(decoder.decode(entries), last, list.size() > size);
+    }
+
+    /**
+     * Deserializes the bodies of the given entries one after the other.
+     *
+     * @param entries  the entries to deserialize
+     * @param serializer  the serializer the bodies were written with
+     * @return  the change sets, in the order of the entries
+     */
+    static List<ChangeSet> decode(List<EventStoreEntry> entries, EventSerializer serializer) {
+        List<ChangeSet> changeSets = new ArrayList<>(entries.size());
+        for (EventStoreEntry entry : entries) {
+            List<? extends Serializable> events = serializer.deserialize(entry.body());
+            changeSets.add(new DefaultChangeSet(
+                    entry.bucketId(),
+                    entry.streamId(),
+                    entry.streamVersion(),
+                    entry.changeSetId(),
+                    events,
+                    entry.commitPosition()));
+        }
+        return changeSets;
+    }
+
+    /**
+     * Waits for a batch, or part of it, computed in the background.
+     * Runtime exceptions of the computation are rethrown as they are.
+     */
+    static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while waiting for change sets", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new StorageException("Cannot read change sets: " + e.getCause(), e.getCause());
+        }
+    }
+
+    List<ChangeSet> changeSets() {
+        return changeSets;
+    }
+
+    EventStoreEntry last() {
+        return last;
+    }
+
+    boolean moreResults() {
+        return moreResults;
+    }
+
+    /**
+     * Turns the entries of a batch into change sets.
+     */
+    interface Decoder {
+
+        /**
+         * @param entries  the entries, not managed by any persistence context
+         * @return  the change sets, in the order of the entries
+         */
+        List<ChangeSet> decode(List<EventStoreEntry> entries);
+
+    }
+
+}
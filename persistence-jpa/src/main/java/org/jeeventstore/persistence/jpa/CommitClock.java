@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Issues the commit positions that order the change sets of a bucket,
+ * independent of how their database ids are allocated.
+ * <p>
+ * Positions are derived from the wall clock, in ticks of a thousandth of a
+ * millisecond, but never move backwards: if the clock does not advance
+ * between two calls, or is set back, the next tick is used.
+ * Positions issued by one clock are thus strictly increasing.
+ * <p>
+ * Every tick is split into {@link #NODES} positions, and each clock only
+ * issues the positions of its own node number, which has to be unique among
+ * the servers writing to the same tables.  This way clocks on different
+ * nodes never issue the same position, even if they issue it within the
+ * same tick.  All callers of a node share its clock, see {@link #forNode}.
+ * <p>
+ * Positions issued by the clocks of different nodes only differ by about
+ * the skew between their wall clocks.  Where a stream must be ordered
+ * across nodes, {@link #nextAfter} issues a position beyond the last
+ * position of the stream, and moves the clock forward to it.
+ */
+public final class CommitClock {
+
+    public static final long TICKS_PER_MILLISECOND = 1000;
+    public static final int NODES = 256;
+
+    private static final AtomicReferenceArray<CommitClock> clocks = new AtomicReferenceArray<>(NODES);
+
+    private final int node;
+    private final AtomicLong lastTick = new AtomicLong();
+
+    CommitClock(int node) {
+        if (node < 0 || node >= NODES)
+            throw new IllegalArgumentException("node must be between 0 and " + (NODES - 1));
+        this.node = node;
+    }
+
+    /**
+     * Gets the clock of the given node, shared by all callers within this
+     * class loader, such that two clocks never issue the positions of the
+     * same node.
+     */
+    public static CommitClock forNode(int node) {
+        if (node < 0 || node >= NODES)
+            throw new IllegalArgumentException("node must be between 0 and " + (NODES - 1));
+        if (clocks.get(node) == null)
+            clocks.compareAndSet(node, null, new CommitClock(node));
+        return clocks.get(node);
+    }
+
+    /**
+     * Gets the lowest position any clock issues at the given wall clock time.
+     */
+    public static long positionAt(long millis) {
+        return millis * TICKS_PER_MILLISECOND * NODES;
+    }
+
+    /**
+     * Issues the next commit position.
+     */
+    public long next() {
+        return nextAfter(Long.MIN_VALUE);
+    }
+
+    /**
+     * Issues the next commit position that is greater than {@code position}.
+     */
+    public long nextAfter(long position) {
+        long now = System.currentTimeMillis() * TICKS_PER_MILLISECOND;
+        // the tick of the given position, rounded towards negative infinity
+        long after = position >= 0 ? position / NODES : (position + 1) / NODES - 1;
+        while (true) {
+            long previous = lastTick.get();
+            long tick = Math.max(now, Math.max(previous, after) + 1);
+            if (lastTick.compareAndSet(previous, tick))
+                return tick * NODES + node;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+/**
+ * A named query of {@link EventStoreEntry}s together with its parameters,
+ * apart from those bound by the {@link PageKey} it pages by.
+ * Can be created in any {@link EntityManager}, such that batches of the
+ * same query may be fetched in different transactions.
+ */
+public final class EntryQuery {
+
+    private final String name;
+    private final PageKey key;
+    private final Map<String, Object> parameters = new LinkedHashMap<>();
+
+    /**
+     * @param name  the name of the query, see {@link EventStoreEntry}
+     * @param key  the key the query pages by
+     */
+    EntryQuery(String name, PageKey key) {
+        this.name = name;
+        this.key = key;
+    }
+
+    EntryQuery with(String parameter, Object value) {
+        parameters.put(parameter, value);
+        return this;
+    }
+
+    PageKey key() {
+        return key;
+    }
+
+    /**
+     * Creates the query in the given {@link EntityManager}.
+     *
+     * @return  the query, the {@link PageKey} must be bound before
+     *      retrieving results
+     */
+    TypedQuery<EventStoreEntry> create(EntityManager entityManager) {
+        TypedQuery<EventStoreEntry> query = entityManager.createNamedQuery(name, EventStoreEntry.class);
+        for (Map.Entry<String, Object> parameter : parameters.entrySet())
+            query.setParameter(parameter.getKey(), parameter.getValue());
+        return query;
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.QueryHint;
+import javax.persistence.Table;
+import org.jeeventstore.StorageException;
+
+/**
+ * JPA entry holding a part of an encoded body that is too long for the
+ * body columns of its {@link EventStoreEntry}.
+ * <p>
+ * The chunks of an entry are numbered from 0 and are written in the same
+ * transaction as the entry.  They are read one page after the other when
+ * the entry is read, such that a single result set never holds more than
+ * a few chunks.
+ */
+@Entity
+@Table(name = "event_store_chunk")
+@IdClass(EventStoreChunk.Key.class)
+@NamedQueries({
+    @NamedQuery(name = EventStoreChunk.CHUNKS, hints = {
+        @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+        @QueryHint(name = "eclipselink.read-only", value = "true")
+    }, query =
+        "SELECT c.data FROM EventStoreChunk c"
+        + " WHERE c.entryId = :entryId AND c.chunkIndex >= :firstIndex"
+        + " ORDER BY c.chunkIndex")
+})
+public class EventStoreChunk implements Serializable {
+
+    /**
+     * Selects the data of the chunks of entry {@code entryId}, starting
+     * with chunk {@code firstIndex}, ordered by index.
+     */
+    public static final String CHUNKS = "EventStoreChunk.chunks";
+
+    /**
+     * The maximum length of a chunk, which is the length of the binary
+     * body column of {@link EventStoreEntry}.
+     */
+    public static final int CHUNK_LENGTH = 32672;
+
+    /**
+     * The number of chunks read in a single query.
+     */
+    public static final int CHUNKS_PER_FETCH = 8;
+
+    @Id
+    @Column(name = "entry_id")
+    private long entryId;
+
+    @Id
+    @Column(name = "chunk_index")
+    private int chunkIndex;
+
+    /*
+     * The length is fixed for Apache Derby, see EventStoreEntry.body.
+     */
+    @Column(name = "data", length = CHUNK_LENGTH)
+    private byte[] data;
+
+    public EventStoreChunk(long entryId, int chunkIndex, byte[] data) {
+        if (data == null || data.length == 0)
+            throw new IllegalArgumentException("data must not be empty");
+        if (data.length > CHUNK_LENGTH)
+            throw new IllegalArgumentException("data must not be longer than " + CHUNK_LENGTH);
+        this.entryId = entryId;
+        this.chunkIndex = chunkIndex;
+        this.data = data;
+    }
+
+    public long entryId() {
+        return entryId;
+    }
+
+    public int chunkIndex() {
+        return chunkIndex;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * Gets the number of chunks needed to store data of the given length.
+     */
+    public static int chunkCount(int length) {
+        return (length + CHUNK_LENGTH - 1) / CHUNK_LENGTH;
+    }
+
+    /**
+     * Splits an encoded body into chunks of the given entry.
+     *
+     * @param entryId  the id of the entry the body belongs to
+     * @param data  the encoded body, not empty
+     * @return  the chunks, ordered by index
+     */
+    public static List<EventStoreChunk> split(long entryId, byte[] data) {
+        List<EventStoreChunk> chunks = new ArrayList<>(chunkCount(data.length));
+        for (int offset = 0; offset < data.length; offset += CHUNK_LENGTH)
+            chunks.add(new EventStoreChunk(entryId, chunks.size(), Arrays.copyOfRange(
+                    data, offset, Math.min(data.length, offset + CHUNK_LENGTH))));
+        return chunks;
+    }
+
+    /**
+     * Reads the chunks of an entry and joins them to the encoded body,
+     * fetching {@link #CHUNKS_PER_FETCH} chunks at a time.
+     *
+     * @param entityManager  the {@link EntityManager} to read the chunks from
+     * @param entryId  the id of the entry
+     * @param chunkCount  the number of chunks the entry was written with
+     * @return  the encoded body
+     * @throws StorageException  if chunks are missing
+     */
+    static byte[] read(EntityManager entityManager, long entryId, int chunkCount) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunkCount * CHUNK_LENGTH);
+        int read = 0;
+        while (read < chunkCount) {
+            List<byte[]> page = entityManager.createNamedQuery(CHUNKS, byte[].class)
+                    .setParameter("entryId", entryId)
+                    .setParameter("firstIndex", read)
+                    .setMaxResults(Math.min(CHUNKS_PER_FETCH, chunkCount - read))
+                    .getResultList();
+            if (page.isEmpty())
+                break;
+            for (byte[] data : page)
+                out.write(data, 0, data.length);
+            read += page.size();
+        }
+        if (read != chunkCount)
+            throw new StorageException("Corrupt body of entry #" + entryId
+                    + ", expected " + chunkCount + " chunks, found " + read);
+        return out.toByteArray();
+    }
+
+    /**
+     * Required for JPA, do not use.
+     * @deprecated 
+     */
+    @Deprecated
+    protected EventStoreChunk() { }
+
+    /**
+     * Primary key of an {@link EventStoreChunk}.
+     */
+    public static class Key implements Serializable {
+
+        private long entryId;
+        private int chunkIndex;
+
+        public Key(long entryId, int chunkIndex) {
+            this.entryId = entryId;
+            this.chunkIndex = chunkIndex;
+        }
+
+        /**
+         * Required for JPA, do not use.
+         * @deprecated 
+         */
+        @Deprecated
+        public Key() { }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return entryId == other.entryId && chunkIndex == other.chunkIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (entryId ^ (entryId >>> 32)) + chunkIndex;
+        }
+
+    }
+
+}
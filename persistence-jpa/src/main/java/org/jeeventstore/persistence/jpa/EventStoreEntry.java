@@ -22,12 +22,18 @@
 package org.jeeventstore.persistence.jpa;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
 import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityManager;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.QueryHint;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
@@ -35,6 +41,21 @@ import javax.validation.constraints.NotNull;
 
 /**
  * JPA EventStore entry.
+ * <p>
+ * The entries are read by named queries, which the persistence provider
+ * parses and translates once instead of on every call.  The queries page
+ * by keyset and expect the parameters bound by the respective {@link PageKey}.
+ * The leading keyset column is also bounded by a plain range predicate,
+ * which is redundant to the disjunction but lets databases seek the index
+ * instead of scanning the bucket.
+ * They select the columns into new, unmanaged entries (see {@link #SELECT}),
+ * such that the persistence context neither tracks nor caches the entries
+ * read, and the entries need not be detached.
+ * <p>
+ * Bodies up to {@link #INLINE_LENGTH} are stored inline, in the text or the
+ * binary body column.  Longer bodies are encoded and split into
+ * {@link EventStoreChunk}s, which are written along with the entry (see
+ * {@link #chunks}) and read back by {@link #readChunks}.
  */
 @Cacheable
 @Entity
@@ -42,12 +63,139 @@ import javax.validation.constraints.NotNull;
     @UniqueConstraint(columnNames = {"bucket_id", "stream_id", "stream_version"}),
     @UniqueConstraint(columnNames = {"bucket_id", "change_set_id"})
 })
+@NamedQueries({
+    @NamedQuery(name = EventStoreEntry.ALL_CHANGES, hints = {
+        @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+        @QueryHint(name = "eclipselink.read-only", value = "true")
+    }, query =
+        EventStoreEntry.SELECT + " FROM EventStoreEntry e"
+        + " WHERE e.bucketId = :bucketId"
+        + " AND e.commitPosition >= :lastPosition"
+        + " AND (e.commitPosition > :lastPosition"
+        + " OR (e.commitPosition = :lastPosition AND e.id > :lastId))"
+        + " ORDER BY e.commitPosition, e.id"),
+    @NamedQuery(name = EventStoreEntry.CHANGES_SINCE, hints = {
+        @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+        @QueryHint(name = "eclipselink.read-only", value = "true")
+    }, query =
+        EventStoreEntry.SELECT + " FROM EventStoreEntry e"
+        + " WHERE e.bucketId = :bucketId"
+        + " AND e.commitPosition > :checkpoint AND e.commitPosition < :settled"
+        + " AND e.commitPosition >= :lastPosition"
+        + " AND (e.commitPosition > :lastPosition"
+        + " OR (e.commitPosition = :lastPosition AND e.id > :lastId))"
+        + " ORDER BY e.commitPosition, e.id"),
+    @NamedQuery(name = EventStoreEntry.STREAM, hints = {
+        @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+        @QueryHint(name = "eclipselink.read-only", value = "true")
+    }, query =
+        EventStoreEntry.SELECT + " FROM EventStoreEntry e"
+        + " WHERE e.bucketId = :bucketId AND e.streamId = :streamId"
+        + " AND e.streamVersion > :minVersion AND e.streamVersion <= :maxVersion"
+        + " AND e.streamVersion > :lastVersion"
+        + " ORDER BY e.streamVersion"),
+    @NamedQuery(name = EventStoreEntry.STREAM_LATEST, hints = {
+        @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+        @QueryHint(name = "eclipselink.read-only", value = "true")
+    }, query =
+        EventStoreEntry.SELECT + " FROM EventStoreEntry e"
+        + " WHERE e.bucketId = :bucketId AND e.streamId = :streamId"
+        + " AND e.streamVersion < :lastVersion"
+        + " ORDER BY e.streamVersion DESC"),
+    @NamedQuery(name = EventStoreEntry.CHANGES_BETWEEN, hints = {
+        @QueryHint(name = "org.hibernate.readOnly", value = "true"),
+        @QueryHint(name = "eclipselink.read-only", value = "true")
+    }, query =
+        EventStoreEntry.SELECT + " FROM EventStoreEntry e"
+        + " WHERE e.bucketId = :bucketId"
+        + " AND e.persistedAt >= :from AND e.persistedAt < :to"
+        + " AND e.persistedAt >= :lastPersistedAt"
+        + " AND (e.persistedAt > :lastPersistedAt"
+        + " OR (e.persistedAt = :lastPersistedAt AND e.id > :lastId))"
+        + " ORDER BY e.persistedAt, e.id"),
+    @NamedQuery(name = EventStoreEntry.VERSION_AT, query =
+        "SELECT MAX(e.streamVersion) FROM EventStoreEntry e"
+        + " WHERE e.bucketId = :bucketId AND e.streamId = :streamId"
+        + " AND e.persistedAt <= :timestamp"),
+    @NamedQuery(name = EventStoreEntry.CONFLICTS, query =
+        "SELECT e.streamId, e.streamVersion, e.changeSetId FROM EventStoreEntry e"
+        + " WHERE e.bucketId = :bucketId"
+        + " AND (e.changeSetId IN :changeSetIds"
+        + " OR (e.streamId IN :streamIds AND e.streamVersion IN :streamVersions))")
+})
 public class EventStoreEntry implements Serializable {
 
     /**
-     * Internal database ID of the entry.  Can be used to enumerate all events.
+     * The select clause of the read queries, a constructor expression
+     * creating unmanaged copies of the entries.
+     */
+    static final String SELECT =
+        "SELECT NEW org.jeeventstore.persistence.jpa.EventStoreEntry("
+        + "e.id, e.bucketId, e.streamId, e.streamVersion, e.persistedAt,"
+        + " e.commitPosition, e.changeSetId, e.body, e.bodyData, e.chunkCount)";
+
+    /**
+     * The maximum length of a body stored inline, in characters for the text
+     * column and in bytes for the binary column.
      */
-    @SequenceGenerator(name="event_store_id_seq", sequenceName="event_store_id_seq", allocationSize=1)
+    public static final int INLINE_LENGTH = 32672;
+
+    /**
+     * Selects the entries of bucket {@code bucketId}, ordered by commit
+     * position.  Pages by {@link PageKey#COMMIT_POSITION}.
+     */
+    public static final String ALL_CHANGES = "EventStoreEntry.allChanges";
+
+    /**
+     * Selects the entries of bucket {@code bucketId} with a commit position
+     * after {@code checkpoint} and before {@code settled}, ordered by commit
+     * position.  Pages by {@link PageKey#COMMIT_POSITION}.
+     */
+    public static final String CHANGES_SINCE = "EventStoreEntry.changesSince";
+
+    /**
+     * Selects the entries of stream {@code streamId} in bucket {@code bucketId}
+     * after version {@code minVersion} up to version {@code maxVersion},
+     * ordered by version.  Pages by {@link PageKey#STREAM_VERSION}.
+     */
+    public static final String STREAM = "EventStoreEntry.stream";
+
+    /**
+     * Selects the entries of stream {@code streamId} in bucket {@code bucketId},
+     * ordered by descending version, which the database serves by scanning
+     * the unique index of the stream backwards.
+     * Pages by {@link PageKey#STREAM_VERSION_DESCENDING}.
+     */
+    public static final String STREAM_LATEST = "EventStoreEntry.streamLatest";
+
+    /**
+     * Selects the entries of bucket {@code bucketId} persisted at or after
+     * {@code from} and before {@code to}, ordered by the time persisted.
+     * Pages by {@link PageKey#PERSISTED_AT}.
+     */
+    public static final String CHANGES_BETWEEN = "EventStoreEntry.changesBetween";
+
+    /**
+     * Selects the highest version of stream {@code streamId} in bucket
+     * {@code bucketId} persisted at or before {@code timestamp}, or null.
+     */
+    public static final String VERSION_AT = "EventStoreEntry.versionAt";
+
+    /**
+     * Selects stream id, version and change set id of the entries of bucket
+     * {@code bucketId} that have one of the given {@code changeSetIds}, or
+     * one of the given {@code streamIds} and {@code streamVersions}.
+     * Used to find the conflicts of a batch before writing it, the caller
+     * picks the exact combinations of stream id and version.
+     */
+    public static final String CONFLICTS = "EventStoreEntry.conflicts";
+
+    /**
+     * Internal database ID of the entry.
+     * Ids are allocated in blocks, so they do not reflect the order in which
+     * entries are persisted, see {@link #commitPosition} instead.
+     */
+    @SequenceGenerator(name="event_store_id_seq", sequenceName="event_store_id_seq", allocationSize=50)
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator="event_store_id_seq")
     @Column(name = "id", updatable = false)
     @Id
@@ -71,6 +219,14 @@ public class EventStoreEntry implements Serializable {
     @NotNull
     private String changeSetId;
 
+    /**
+     * Position of the entry in the order in which the entries of a bucket
+     * were persisted.  Strictly increasing within a stream, ties between
+     * streams are broken by {@link #id}.  Can be used to enumerate all events.
+     */
+    @Column(name = "commit_position")
+    private long commitPosition;
+
     /*
      * We cannot use @Lob, because it will cause Hibernate to map the field
      * in ascii-only mode when used with PostreSQL, which leads to broken
@@ -87,13 +243,44 @@ public class EventStoreEntry implements Serializable {
     @Column(name = "body", length = 32672)
     private String body;
 
+    /**
+     * The body encoded by a {@link BodyCodec}, used instead of {@link #body}
+     * if not null.  The length is fixed for Apache Derby for the same
+     * reasons as above, it applies to the compressed body.
+     */
+    @Column(name = "body_data", length = 32672)
+    private byte[] bodyData;
+
+    /**
+     * The number of {@link EventStoreChunk}s holding the encoded body,
+     * {@code 0} if the body is stored inline.
+     */
+    @Column(name = "chunk_count")
+    private int chunkCount;
+
+    /**
+     * The encoded body stored in chunks, set when the entry is created or
+     * its chunks have been read.
+     */
+    private transient byte[] overflow;
+
+    /**
+     * Creates an entry.
+     *
+     * @param codec  the codec used to store the body in the binary body
+     *      column, or {@code null} to store it in the text column.
+     *      Bodies too long for either column are stored in chunks, encoded
+     *      by the codec, or uncompressed if {@code null}.
+     */
     public EventStoreEntry(
             String bucketId,
             String streamId,
             long streamVersion,
             long persistedAt,
+            long commitPosition,
             String changeSetId,
-            String body) {
+            String body,
+            BodyCodec codec) {
 
         if (bucketId == null || bucketId.isEmpty())
             throw new IllegalArgumentException("bucketId must not be empty");
@@ -108,8 +295,47 @@ public class EventStoreEntry implements Serializable {
         this.streamId = streamId;
         this.streamVersion = streamVersion;
         this.persistedAt = persistedAt;
+        this.commitPosition = commitPosition;
+        this.changeSetId = changeSetId;
+        if (codec == null && body.length() <= INLINE_LENGTH) {
+            this.body = body;
+            return;
+        }
+        byte[] data = (codec == null ? BodyCodec.NONE : codec).encode(body);
+        if (codec != null && data.length <= INLINE_LENGTH) {
+            this.bodyData = data;
+            return;
+        }
+        this.overflow = data;
+        this.chunkCount = EventStoreChunk.chunkCount(data.length);
+    }
+
+    /**
+     * Creates a copy of a stored entry, as selected by the read queries.
+     * The copy is not managed by any persistence context.
+     */
+    public EventStoreEntry(
+            Long id,
+            String bucketId,
+            String streamId,
+            long streamVersion,
+            long persistedAt,
+            long commitPosition,
+            String changeSetId,
+            String body,
+            byte[] bodyData,
+            int chunkCount) {
+
+        this.id = id;
+        this.bucketId = bucketId;
+        this.streamId = streamId;
+        this.streamVersion = streamVersion;
+        this.persistedAt = persistedAt;
+        this.commitPosition = commitPosition;
         this.changeSetId = changeSetId;
         this.body = body;
+        this.bodyData = bodyData;
+        this.chunkCount = chunkCount;
     }
 
     public Long id() {
@@ -132,12 +358,70 @@ public class EventStoreEntry implements Serializable {
         return persistedAt;
     }
 
+    public long commitPosition() {
+        return commitPosition;
+    }
+
+    /**
+     * Moves the entry to a later commit position, before it is written.
+     */
+    void moveTo(long commitPosition) {
+        this.commitPosition = commitPosition;
+    }
+
     public String changeSetId() {
         return changeSetId;
     }
 
+    /**
+     * Gets the number of chunks the body is stored in, {@code 0} if it is
+     * stored inline.
+     */
+    public int chunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Creates the chunks of an entry whose body is too long to be stored
+     * inline.  The entry must have been assigned its id, i.e., it must
+     * have been persisted.
+     *
+     * @return  the chunks to persist along with the entry, empty if the
+     *      body is stored inline
+     */
+    List<EventStoreChunk> chunks() {
+        if (overflow == null)
+            return Collections.emptyList();
+        if (id == null)
+            throw new IllegalStateException("Entry has not been persisted yet");
+        return EventStoreChunk.split(id, overflow);
+    }
+
+    /**
+     * Reads the chunks of a stored entry, if its body is stored in chunks
+     * and they have not been read yet.  Must be called before
+     * {@link #body}, in the transaction that read the entry.
+     *
+     * @param entityManager  the {@link EntityManager} the entry was read from
+     */
+    void readChunks(EntityManager entityManager) {
+        if (chunkCount > 0 && overflow == null)
+            overflow = EventStoreChunk.read(entityManager, id, chunkCount);
+    }
+
+    /**
+     * Gets the serialized body, decoded from the binary body column or the
+     * chunks if the entry has been stored there.
+     *
+     * @throws IllegalStateException  if the body is stored in chunks which
+     *      have not been read yet, see {@link #readChunks}
+     */
     public String body() {
-        return body;
+        if (overflow != null)
+            return BodyCodec.decode(overflow);
+        if (chunkCount > 0)
+            throw new IllegalStateException("Chunks of entry #" + id + " have not been read");
+        return bodyData != null ? BodyCodec.decode(bodyData) : body;
     }
 
     /**
@@ -36,7 +36,10 @@ public class EventStoreEntry_ {
     public static volatile SingularAttribute<EventStoreEntry, String> streamId;
     public static volatile SingularAttribute<EventStoreEntry, Long> streamVersion;
     public static volatile SingularAttribute<EventStoreEntry, Long> persistedAt;
+    public static volatile SingularAttribute<EventStoreEntry, Long> commitPosition;
     public static volatile SingularAttribute<EventStoreEntry, String> changeSetId;
     public static volatile SingularAttribute<EventStoreEntry, String> body;
+    public static volatile SingularAttribute<EventStoreEntry, byte[]> bodyData;
+    public static volatile SingularAttribute<EventStoreEntry, Integer> chunkCount;
 
 }
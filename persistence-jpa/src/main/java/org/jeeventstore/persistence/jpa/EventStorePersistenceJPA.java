@@ -23,31 +23,65 @@ package org.jeeventstore.persistence.jpa;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
 import javax.ejb.EJB;
+import javax.ejb.SessionContext;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Predicate;
-import javax.persistence.criteria.Root;
+import javax.persistence.LockModeType;
+import javax.transaction.TransactionSynchronizationRegistry;
 import org.jeeventstore.ChangeSet;
 import org.jeeventstore.ConcurrencyException;
 import org.jeeventstore.DuplicateCommitException;
 import org.jeeventstore.EventStorePersistence;
 import org.jeeventstore.EventSerializer;
 import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.util.PersistenceUtils;
 
 /**
  * EventStorePersistence utilizing JPA.  
  * To be configured as a stateless EJB.
  * <p>
- * See {@code src/main/sql/*.sql} for suitable table definitions.
+ * See {@code src/main/sql/*.sql} for suitable table definitions, and
+ * {@code src/main/sql/bucket-orm.xml} for the mapping of a bucket stored in
+ * tables of its own.
+ * <p>
+ * Besides the change sets, the latest version of every stream is kept in
+ * a {@link StreamHead}, which is updated in the same transaction as
+ * {@link #persistChanges}.  {@link #existsStream} and {@link #streamVersion}
+ * are served from it by primary key.
+ * <p>
+ * Entries get their ids from a pooled sequence, and are written when the
+ * transaction commits, so persisting a change set usually takes a single
+ * round trip to the database.  As pooled ids do not reflect the order in
+ * which entries are persisted, {@link #allChanges} is ordered by a separate
+ * commit position issued by a {@link CommitClock}, which is kept increasing
+ * within every stream through its {@link StreamHead}.
+ * <p>
+ * The commit position also serves as {@link ChangeSet#checkpoint}.  As
+ * transactions may commit in a different order than their positions were
+ * issued, {@link #allChangesSince} can hold back change sets whose
+ * position is less than {@code settleMillis} in the past.  Transactions
+ * that write for too long are then rolled back by a
+ * {@link SettlementGuard}, failing the call that commits them, as their
+ * change sets would become visible behind checkpoints that readers may
+ * already have passed.
  * <p>
  * The following EJBs and services are expected to be injected:
  * <p>
@@ -56,8 +90,81 @@ import org.jeeventstore.StreamNotFoundException;
  * <p>
  * This EJB accepts the following configuration parameters:
  * <p>
+ * Env-entry {@code node} (optional, default: 0): The number of this server,
+ *   between 0 and 255.  A single server with a single deployment of this
+ *   bean may keep the default, otherwise every server writing to the same
+ *   tables, and every deployment of this bean on a server, has to be given
+ *   a number of its own.  The commit positions issued by different nodes
+ *   never collide, whereas two nodes with the same number may issue the
+ *   same position, and {@link #allChangesSince} would skip one of the
+ *   change sets.
+ * <p>
  * Env-entry {@code fetchBatchSize} (optional, default: 500): The batch size for database fetches (number
  *   of rows to be retrieved in a single call).
+ * <p>
+ * Bodies longer than 32,672 characters, or bytes once encoded, are split
+ * into {@link EventStoreChunk}s in the table {@code event_store_chunk},
+ * so that the body columns can stay narrow.  The chunks are read back with
+ * their entry, a few at a time, before the batch is deserialized.
+ * <p>
+ * Env-entry {@code binaryBody} (optional, default: false): Whether the bodies
+ *   of new change sets are written to the binary column {@code body_data},
+ *   compressed as set by {@code compression}, instead of the text column
+ *   {@code body}.  Change sets are read from either column, so this can be
+ *   switched on for an existing store once the column has been added.
+ * <p>
+ * Env-entry {@code compression} (optional, default: DEFLATE): The
+ *   {@link BodyCodec} applied to binary bodies, one of {@code NONE},
+ *   {@code DEFLATE} or {@code LZ4}.
+ * <p>
+ * Env-entry {@code settleMillis} (optional, default: 0): The time in
+ *   milliseconds after which a change set is assumed to be committed.
+ *   Change sets younger than that are held back by {@link #allChangesSince},
+ *   and transactions writing for more than half of it are rolled back, see
+ *   above.  It has to be set where {@link #allChangesSince} is read while
+ *   several transactions write, to at least twice the duration of the
+ *   writing transactions plus the clock skew between the application
+ *   servers.  With 0, change sets are returned as soon as they are visible
+ *   and transactions are not checked.
+ * <p>
+ * Env-entry {@code readAhead} (optional, default: 0): The number of batches
+ *   that the iterators returned by {@link #allChanges},
+ *   {@link #allChangesSince} and {@link #changesBetween} fetch and deserialize in the background while
+ *   the previous batch is being consumed, 0 to fetch every batch when it is
+ *   needed.  Batches read ahead are read via {@link #fetchBatch}, each in a
+ *   transaction of its own, so they do not see changes that are not yet
+ *   committed, including those of the transaction iterating.  The calls
+ *   still require an open transaction, as without read ahead.  Reading ahead
+ *   requires a no-interface view of the bean ({@code <local-bean/>} in
+ *   {@code ejb-jar.xml}) and occupies a thread of the container's
+ *   asynchronous pool per iterator while a batch is being fetched.
+ * <p>
+ * Env-entry {@code deserializeThreads} (optional, default: 1): The number of
+ *   threads that deserialize a batch fetched by {@link #allChanges},
+ *   {@link #allChangesSince} and {@link #changesBetween}, including the thread fetching it.  Additional
+ *   threads are taken from the container's asynchronous pool via
+ *   {@link #decodeEntries}, which requires a no-interface view as for
+ *   {@code readAhead}.  The change sets are returned in their original
+ *   order.  Useful for replays that are bound by deserialization.  Not used
+ *   together with {@code readAhead}: a batch read ahead is deserialized by
+ *   the asynchronous call fetching it, since if that call waited for
+ *   further asynchronous calls, iterators reading ahead could take up the
+ *   whole pool and wait for each other.
+ * <p>
+ * Env-entry {@code partitions} (optional, default: none): Assigns buckets to
+ *   a {@link PersistenceContextProvider} of their own, e.g.,
+ *   {@code AUDIT=auditProvider,BILLING=billingProvider}, where every name
+ *   denotes an {@code ejb-local-ref} of this bean.  The persistence unit of
+ *   such a provider maps the entities to tables of the bucket, via an
+ *   {@code orm.xml} overriding the table and sequence names, or to another
+ *   schema or database, such that a busy bucket does not grow the indexes
+ *   that the inserts and reads of the other buckets go through.  All other
+ *   buckets are served by {@code persistenceContextProvider}.  Within the
+ *   tables of a single provider, the buckets may instead be separated by
+ *   partitioning the tables by {@code bucket_id}, see
+ *   {@code src/main/sql/*.sql}.  A transaction writing to buckets of
+ *   different providers spans several persistence units, which requires
+ *   XA data sources unless the units share one.
  */
 public class EventStorePersistenceJPA implements EventStorePersistence {
 
@@ -69,15 +176,130 @@ public class EventStorePersistenceJPA implements EventStorePersistence {
     @EJB(name="serializer")
     private EventSerializer serializer;
     
+    @Resource
+    private SessionContext sessionContext;
+
+    @Resource
+    private TransactionSynchronizationRegistry transactionRegistry;
+
+    @Resource(name="node")
+    private Integer node = 0;
+
     @Resource(name="fetchBatchSize")
     private Integer fetchBatchSize = 500;
 
+    @Resource(name="readAhead")
+    private Integer readAhead = 0;
+
+    @Resource(name="deserializeThreads")
+    private Integer deserializeThreads = 1;
+
+    @Resource(name="settleMillis")
+    private Long settleMillis = 0l;
+
+    @Resource(name="binaryBody")
+    private Boolean binaryBody = false;
+
+    @Resource(name="compression")
+    private String compression = BodyCodec.DEFLATE.name();
+
+    @Resource(name="partitions")
+    private String partitions = "";
+
+    private BodyCodec bodyCodec;
+
+    private CommitClock commitClock;
+
+    private SettlementGuard settlementGuard;
+
+    private Map<String, PersistenceContextProvider> partitionProviders = Collections.emptyMap();
+
+    @PostConstruct
+    public void init() {
+        if (node < 0 || node >= CommitClock.NODES)
+            throw new IllegalStateException("node must be between 0 and "
+                    + (CommitClock.NODES - 1) + ": " + node);
+        commitClock = CommitClock.forNode(node);
+        if (settleMillis < 0)
+            throw new IllegalStateException("settleMillis must not be negative: " + settleMillis);
+        settlementGuard = new SettlementGuard(transactionRegistry, settleMillis);
+        if (readAhead < 0)
+            throw new IllegalStateException("readAhead must not be negative: " + readAhead);
+        if (deserializeThreads < 1)
+            throw new IllegalStateException("deserializeThreads must be at least 1: " + deserializeThreads);
+        try {
+            bodyCodec = binaryBody ? BodyCodec.valueOf(compression.trim()) : null;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Unknown compression: " + compression, e);
+        }
+        Map<String, PersistenceContextProvider> providers = new HashMap<>();
+        for (Map.Entry<String, String> partition : parsePartitions(partitions).entrySet()) {
+            Object provider = sessionContext.lookup(partition.getValue());
+            if (!(provider instanceof PersistenceContextProvider))
+                throw new IllegalStateException("Partition " + partition.getValue()
+                        + " is not a PersistenceContextProvider");
+            providers.put(partition.getKey(), (PersistenceContextProvider) provider);
+        }
+        if (!providers.isEmpty())
+            log.log(Level.INFO, "Storing buckets {0} in partitions of their own", providers.keySet());
+        partitionProviders = providers;
+    }
+
+    /**
+     * Parses the {@code partitions} mapping of bucket ids to reference names.
+     */
+    static Map<String, String> parsePartitions(String mapping) {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (mapping == null)
+            return result;
+        for (String pair : mapping.split(",")) {
+            if (pair.trim().isEmpty())
+                continue;
+            int idx = pair.indexOf('=');
+            if (idx < 0)
+                throw new IllegalStateException("Invalid partition mapping: " + pair);
+            String bucketId = pair.substring(0, idx).trim();
+            String name = pair.substring(idx + 1).trim();
+            if (bucketId.isEmpty() || name.isEmpty())
+                throw new IllegalStateException("Invalid partition mapping: " + pair);
+            if (result.put(bucketId, name) != null)
+                throw new IllegalStateException("Bucket " + bucketId + " is assigned to several partitions");
+        }
+        return result;
+    }
+
     @Override
     @TransactionAttribute(TransactionAttributeType.MANDATORY)
     public Iterator<ChangeSet> allChanges(final String bucketId) {
         if (bucketId == null)
             throw new IllegalArgumentException("bucketId must not be null");
-        return fetchResults(bucketId, allChangesQueryBuilder(bucketId));
+        return fetchResultsAhead(bucketId, allChangesQuery(bucketId));
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> allChangesSince(final String bucketId, final long checkpoint) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        long settled = CommitClock.positionAt(System.currentTimeMillis() - settleMillis);
+        return fetchResultsAhead(bucketId, changesSinceQuery(bucketId, checkpoint, settled));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The changes are ordered by the time persisted, which is taken from the
+     * clock of the application server, and by id.  If the clocks of several
+     * servers are skewed, change sets of a stream written by different
+     * servers within the skew may be returned out of version order.
+     * Expects an index on {@code (bucket_id, persisted_at, id)}.
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> changesBetween(final String bucketId, final long from, final long to) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        return fetchResultsAhead(bucketId, changesBetweenQuery(bucketId, from, to));
     }
 
     @Override
@@ -91,7 +313,32 @@ public class EventStorePersistenceJPA implements EventStorePersistence {
         if (streamId == null)
             throw new IllegalArgumentException("streamId must not be null");
 
-        return fetchResults(bucketId, streamQueryBuilder(bucketId, streamId, minVersion, maxVersion));
+        return fetchResults(bucketId, streamQuery(bucketId, streamId, minVersion, maxVersion));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Reads the stream by descending version, which the database serves by
+     * scanning the unique index on {@code (bucket_id, stream_id, stream_version)}
+     * backwards, and fetches no more rows than requested.
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public Iterator<ChangeSet> getLatest(final String bucketId, final String streamId, final int count) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+        if (count == 0)
+            return Collections.<ChangeSet>emptyIterator();
+
+        return new LazyLoadIterator(entityManagerForReading(bucketId),
+                latestQuery(bucketId, streamId), serialDecoder())
+                .setFetchBatchSize(fetchBatchSize)
+                .setMaxResults(count);
     }
 
     @Override
@@ -102,8 +349,36 @@ public class EventStorePersistenceJPA implements EventStorePersistence {
         if (streamId == null)
             throw new IllegalArgumentException("streamId must not be null");
 
-        CriteriaQueryBuilder cqb = streamQueryBuilder(bucketId, streamId, 0, Long.MAX_VALUE);
-        return QueryUtils.countResults(entityManagerForReading(bucketId), cqb) > 0;
+        return findStreamHead(bucketId, streamId) != null;
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public long streamVersion(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        StreamHead head = findStreamHead(bucketId, streamId);
+        return head == null ? 0 : head.streamVersion();
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        Long version = entityManagerForReading(bucketId)
+                .createNamedQuery(EventStoreEntry.VERSION_AT, Long.class)
+                .setParameter("bucketId", bucketId)
+                .setParameter("streamId", streamId)
+                .setParameter("timestamp", timestamp)
+                .getSingleResult();
+        return version == null ? 0 : version;
     }
 
     @Override
@@ -117,11 +392,116 @@ public class EventStorePersistenceJPA implements EventStorePersistence {
                 new Object[]{changeSet.changeSetId(), body});
         EventStoreEntry entry = createEntry(changeSet, body);
         doPersist(changeSet.bucketId(), entry);
+        updateStreamHead(entry);
         log.log(Level.FINE, "wrote ChangeSet {0} to event store, id #{1}",
                 new Object[]{changeSet.changeSetId(),
                     Long.toString(entry.id() == null ? -1 : entry.id())});
     }
 
+    /**
+     * Looks up the conflicts of the whole batch with a single query per
+     * bucket, persists the other change sets and advances the head of every
+     * stream once.  The entries are written together on commit, which the
+     * persistence provider can send in JDBC batches if configured so
+     * (e.g., {@code hibernate.jdbc.batch_size} or
+     * {@code eclipselink.jdbc.batch-writing}).
+     * A conflict with a transaction that has not committed yet is only
+     * detected by the flush or the commit, and fails the transaction.
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        PersistenceUtils.checkBatch(changeSets);
+
+        List<Exception> failures = findConflicts(changeSets);
+        Map<StreamHead.Key, List<EventStoreEntry>> streams = new LinkedHashMap<>();
+        for (int i = 0; i < changeSets.size(); i++) {
+            if (failures.get(i) != null)
+                continue;
+            ChangeSet changeSet = changeSets.get(i);
+            EventStoreEntry entry = createEntry(changeSet, createSerializedBody(changeSet));
+            doPersist(changeSet.bucketId(), entry);
+            StreamHead.Key key = new StreamHead.Key(changeSet.bucketId(), changeSet.streamId());
+            List<EventStoreEntry> entries = streams.get(key);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                streams.put(key, entries);
+            }
+            entries.add(entry);
+        }
+        for (List<EventStoreEntry> entries : streams.values())
+            updateStreamHead(entries);
+        log.log(Level.FINE, "wrote batch of {0} change sets to {1} streams",
+                new Object[]{changeSets.size(), streams.size()});
+        return failures;
+    }
+
+    /**
+     * Finds the change sets of a batch that conflict with stored change
+     * sets, or with earlier change sets of the batch.
+     *
+     * @return  for each change set, the exception reporting its conflict,
+     *          or {@code null}
+     */
+    protected List<Exception> findConflicts(List<ChangeSet> changeSets) {
+        Map<String, List<ChangeSet>> buckets = new LinkedHashMap<>();
+        for (ChangeSet cs : changeSets) {
+            List<ChangeSet> list = buckets.get(cs.bucketId());
+            if (list == null) {
+                list = new ArrayList<>();
+                buckets.put(cs.bucketId(), list);
+            }
+            list.add(cs);
+        }
+        Set<String> changeSetIds = new HashSet<>();
+        Set<List<Object>> versions = new HashSet<>();
+        for (Map.Entry<String, List<ChangeSet>> bucket : buckets.entrySet())
+            readStored(bucket.getKey(), bucket.getValue(), changeSetIds, versions);
+
+        List<Exception> failures = new ArrayList<>(changeSets.size());
+        for (ChangeSet cs : changeSets) {
+            if (!changeSetIds.add(cs.bucketId() + "/" + cs.changeSetId()))
+                failures.add(new DuplicateCommitException(String.format(
+                        "Duplicate change set %s in bucket %s",
+                        cs.changeSetId(), cs.bucketId())));
+            else if (!versions.add(Arrays.<Object>asList(cs.bucketId(), cs.streamId(), cs.streamVersion())))
+                failures.add(new ConcurrencyException(String.format(
+                        "Version %d already exists in stream %s/%s",
+                        cs.streamVersion(), cs.bucketId(), cs.streamId())));
+            else
+                failures.add(null);
+        }
+        return failures;
+    }
+
+    /**
+     * Adds the stored change set ids and stream versions of the bucket
+     * that the given change sets may conflict with to the given sets.
+     */
+    private void readStored(String bucketId, List<ChangeSet> changeSets,
+            Set<String> changeSetIds, Set<List<Object>> versions) {
+
+        Set<String> ids = new HashSet<>();
+        Set<String> streamIds = new HashSet<>();
+        Set<Long> streamVersions = new HashSet<>();
+        for (ChangeSet cs : changeSets) {
+            ids.add(cs.changeSetId());
+            streamIds.add(cs.streamId());
+            streamVersions.add(cs.streamVersion());
+        }
+        List<Object[]> rows = entityManagerForWriting(bucketId)
+                .createNamedQuery(EventStoreEntry.CONFLICTS, Object[].class)
+                .setParameter("bucketId", bucketId)
+                .setParameter("changeSetIds", ids)
+                .setParameter("streamIds", streamIds)
+                .setParameter("streamVersions", streamVersions)
+                .getResultList();
+        for (Object[] row : rows) {
+            changeSetIds.add(bucketId + "/" + row[2]);
+            versions.add(Arrays.<Object>asList(bucketId, row[0], row[1]));
+        }
+    }
+
     protected String createSerializedBody(ChangeSet changeSet) {
         List<Serializable> list = new ArrayList<>();
         Iterator<Serializable> it = changeSet.events();
@@ -131,71 +511,233 @@ public class EventStorePersistenceJPA implements EventStorePersistence {
     }
 
     protected EventStoreEntry createEntry(ChangeSet changeSet, String body) {
+        settlementGuard.watch();
         return new EventStoreEntry(
                 changeSet.bucketId(),
                 changeSet.streamId(),
                 changeSet.streamVersion(), 
                 System.currentTimeMillis(),
+                commitClock.next(),
                 changeSet.changeSetId().toString(),
-                body);
+                body,
+                bodyCodec);
     }
 
     protected void doPersist(String bucketId, EventStoreEntry entry) {
         EntityManager em = entityManagerForWriting(bucketId);
+        // not flushed, the entry is written together with all other changes on commit
         em.persist(entry);
-        // MySQL requires a flush, as otherwise the autoincrement_ids are not in expected order
-        em.flush();
-        em.detach(entry); // detach entities, pollutes the heap
+        // the id has been taken from the sequence on persist
+        for (EventStoreChunk chunk : entry.chunks())
+            em.persist(chunk);
+    }
+
+    /**
+     * Moves the {@link StreamHead} of the stream of the given entry.
+     */
+    protected void updateStreamHead(EventStoreEntry entry) {
+        updateStreamHead(Collections.singletonList(entry));
+    }
+
+    /**
+     * Moves the {@link StreamHead} of a stream to the highest version and
+     * commit position of the given entries of the stream, creating it for
+     * the first change sets of the stream.
+     * The head is read under a pessimistic write lock, such that concurrent
+     * writers of the stream queue up behind this transaction, and is written
+     * together with the entries when the transaction is flushed.  As the head
+     * stays managed, later reads in the same transaction see it moved.
+     * If the stream was last written at a later commit position, e.g., by
+     * a node whose clock is ahead, the entries are moved beyond that position.
+     */
+    protected void updateStreamHead(List<EventStoreEntry> entries) {
+        EventStoreEntry latest = entries.get(0);
+        long position = latest.commitPosition();
+        for (EventStoreEntry entry : entries) {
+            if (entry.streamVersion() > latest.streamVersion())
+                latest = entry;
+            position = Math.max(position, entry.commitPosition());
+        }
+        EntityManager em = entityManagerForWriting(latest.bucketId());
+        StreamHead head = em.find(StreamHead.class,
+                new StreamHead.Key(latest.bucketId(), latest.streamId()),
+                LockModeType.PESSIMISTIC_WRITE);
+        if (head == null) {
+            // a concurrent writer creating the same head fails on the primary key, just as on event_store
+            em.persist(new StreamHead(latest.bucketId(), latest.streamId(),
+                    latest.streamVersion(), entries.size(), latest.persistedAt(), position));
+            return;
+        }
+        for (EventStoreEntry entry : entries) {
+            if (entry.streamVersion() > head.streamVersion() && entry.commitPosition() <= head.commitPosition())
+                entry.moveTo(commitClock.nextAfter(head.commitPosition()));
+            // otherwise a version at or below the head, which either conflicts or fills a gap
+            head.add(entry.streamVersion(), entry.persistedAt(), entry.commitPosition());
+        }
+    }
+
+    /**
+     * Finds the head of a stream, as an unmanaged copy.  A head written but
+     * not yet flushed in the current transaction is flushed by the query.
+     * Reading the head does not leave it managed, such that the head that
+     * {@link #updateStreamHead} locks is never a stale copy read before.
+     */
+    protected StreamHead findStreamHead(String bucketId, String streamId) {
+        List<StreamHead> heads = entityManagerForReading(bucketId)
+                .createNamedQuery(StreamHead.FIND, StreamHead.class)
+                .setParameter("bucketId", bucketId)
+                .setParameter("streamId", streamId)
+                .getResultList();
+        return heads.isEmpty() ? null : heads.get(0);
     }
 
     protected EntityManager entityManagerForReading(String bucketId) {
-        return this.persistenceContextProvider.entityManagerForReading(bucketId);
+        return providerFor(bucketId).entityManagerForReading(bucketId);
     }
 
     protected EntityManager entityManagerForWriting(String bucketId) {
-        return this.persistenceContextProvider.entityManagerForWriting(bucketId);
+        return providerFor(bucketId).entityManagerForWriting(bucketId);
     }
 
-    protected CriteriaQueryBuilder allChangesQueryBuilder(final String bucketId) {
-        return new CriteriaQueryBuilder() {
-            @Override
-            public void addPredicates(CriteriaBuilder builder,
-                    CriteriaQuery<?> query, Root<EventStoreEntry> root) {
-                query.where(builder.equal(root.get(EventStoreEntry_.bucketId), bucketId));
-            }
+    /**
+     * Gets the provider of the partition the given bucket is assigned to,
+     * or the default provider.
+     */
+    protected PersistenceContextProvider providerFor(String bucketId) {
+        PersistenceContextProvider provider = partitionProviders.get(bucketId);
+        return provider != null ? provider : this.persistenceContextProvider;
+    }
+
+    protected EntryQuery allChangesQuery(String bucketId) {
+        return new EntryQuery(EventStoreEntry.ALL_CHANGES, PageKey.COMMIT_POSITION)
+                .with("bucketId", bucketId);
+    }
+
+    protected EntryQuery changesSinceQuery(String bucketId, long checkpoint, long settled) {
+        return new EntryQuery(EventStoreEntry.CHANGES_SINCE, PageKey.COMMIT_POSITION)
+                .with("bucketId", bucketId)
+                .with("checkpoint", checkpoint)
+                .with("settled", settled);
+    }
+
+    protected EntryQuery changesBetweenQuery(String bucketId, long from, long to) {
+        return new EntryQuery(EventStoreEntry.CHANGES_BETWEEN, PageKey.PERSISTED_AT)
+                .with("bucketId", bucketId)
+                .with("from", from)
+                .with("to", to);
+    }
+
+    protected EntryQuery streamQuery(
+            String bucketId, String streamId,
+            long minVersion, long maxVersion) {
+
+        return new EntryQuery(EventStoreEntry.STREAM, PageKey.STREAM_VERSION)
+                .with("bucketId", bucketId)
+                .with("streamId", streamId)
+                .with("minVersion", minVersion)
+                .with("maxVersion", maxVersion);
+    }
+
+    protected EntryQuery latestQuery(String bucketId, String streamId) {
+        return new EntryQuery(EventStoreEntry.STREAM_LATEST, PageKey.STREAM_VERSION_DESCENDING)
+                .with("bucketId", bucketId)
+                .with("streamId", streamId);
+    }
+
+    protected Iterator<ChangeSet> fetchResults(String bucketId, EntryQuery query) {
+        return fetchResults(bucketId, query, serialDecoder());
+    }
+
+    protected Iterator<ChangeSet> fetchResults(String bucketId, EntryQuery query,
+            ChangeSetBatch.Decoder decoder) {
+        return new LazyLoadIterator(entityManagerForReading(bucketId), query, decoder)
+                .setFetchBatchSize(fetchBatchSize);
+    }
+
+    /**
+     * Like {@link #fetchResults}, but reads ahead and deserializes on
+     * several threads if so configured.
+     */
+    protected Iterator<ChangeSet> fetchResultsAhead(
+            final String bucketId, final EntryQuery query) {
+
+        if (readAhead == 0 || sessionContext == null)
+            return fetchResults(bucketId, query, bulkDecoder());
+        final EventStorePersistenceJPA self = self();
+        LazyLoadIterator.BatchSource source = new LazyLoadIterator.BatchSource() {
             @Override
-            public void addOrderBy(CriteriaBuilder builder,
-                    CriteriaQuery<?> query, Root<EventStoreEntry> root) {
-                query.orderBy(builder.asc(root.get(EventStoreEntry_.id)));
+            public Future<ChangeSetBatch> fetchBatch(EventStoreEntry last, int size) {
+                return self.fetchBatch(bucketId, query, last, size);
             }
         };
+        return new LazyLoadIterator(source, readAhead).setFetchBatchSize(fetchBatchSize);
     }
 
-    protected CriteriaQueryBuilder streamQueryBuilder(
-            final String bucketId, final String streamId,
-            final long minVersion, final long maxVersion) {
+    /**
+     * Fetches and deserializes a batch of change sets in the background,
+     * for an iterator that reads ahead.  Invoked through the container, such
+     * that it runs asynchronously, in a transaction of its own.  The batch is
+     * deserialized on the calling thread only.  Not meant to be called otherwise.
+     *
+     * @param bucketId  the identifier of the bucket from which the changes are fetched
+     * @param query  the query fetching the changes
+     * @param last  the last entry of the previous batch, or {@code null} for the first batch
+     * @param size  the maximum number of change sets in the batch
+     * @return  the future batch
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public Future<ChangeSetBatch> fetchBatch(String bucketId, EntryQuery query,
+            EventStoreEntry last, int size) {
+
+        EntityManager em = entityManagerForReading(bucketId);
+        // waiting for decodeEntries here could take up the whole asynchronous pool
+        return new AsyncResult<>(ChangeSetBatch.fetch(
+                em, query.create(em), query.key(), last, size, serialDecoder()));
+    }
+
+    /**
+     * Deserializes a chunk of a batch in the background, for a batch that
+     * is deserialized on several threads.  Invoked through the container,
+     * such that it runs asynchronously.  Not meant to be called otherwise.
+     *
+     * @param entries  the entries to deserialize
+     * @return  the future change sets, in the order of the entries
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<List<ChangeSet>> decodeEntries(List<EventStoreEntry> entries) {
+        return new AsyncResult<>(ChangeSetBatch.decode(entries, serializer));
+    }
 
-        return new CriteriaQueryBuilder() {
+    private ChangeSetBatch.Decoder serialDecoder() {
+        return new ChangeSetBatch.Decoder() {
             @Override
-            public void addPredicates(CriteriaBuilder builder,
-                    CriteriaQuery<?> query, Root<EventStoreEntry> root) {
-                Predicate matchingBucketId = builder.equal(root.get(EventStoreEntry_.bucketId), bucketId);
-                Predicate matchingStreamId = builder.equal(root.get(EventStoreEntry_.streamId), streamId);
-                Predicate versionGt = builder.gt(root.get(EventStoreEntry_.streamVersion), minVersion);
-                Predicate versionLet = builder.le(root.get(EventStoreEntry_.streamVersion), maxVersion);
-                query.where(builder.and(matchingBucketId, matchingStreamId, versionGt, versionLet));
+            public List<ChangeSet> decode(List<EventStoreEntry> entries) {
+                return ChangeSetBatch.decode(entries, serializer);
             }
+        };
+    }
+
+    /**
+     * The decoder for reading whole buckets, deserializing on
+     * {@code deserializeThreads} threads.
+     */
+    private ChangeSetBatch.Decoder bulkDecoder() {
+        if (deserializeThreads == 1 || sessionContext == null)
+            return serialDecoder();
+        final EventStorePersistenceJPA self = self();
+        ParallelDecoder.Worker worker = new ParallelDecoder.Worker() {
             @Override
-            public void addOrderBy(CriteriaBuilder builder,
-                    CriteriaQuery<?> query, Root<EventStoreEntry> root) {
-                query.orderBy(builder.asc(root.get(EventStoreEntry_.streamVersion)));
+            public Future<List<ChangeSet>> decode(List<EventStoreEntry> entries) {
+                return self.decodeEntries(entries);
             }
         };
+        return new ParallelDecoder(deserializeThreads, worker, serializer);
     }
 
-    protected Iterator<ChangeSet> fetchResults(String bucketId, CriteriaQueryBuilder cqb) {
-        return new LazyLoadIterator(entityManagerForReading(bucketId), cqb, serializer)
-                .setFetchBatchSize(fetchBatchSize);
+    private EventStorePersistenceJPA self() {
+        return sessionContext.getBusinessObject(EventStorePersistenceJPA.class);
     }
 
 }
\ No newline at end of file
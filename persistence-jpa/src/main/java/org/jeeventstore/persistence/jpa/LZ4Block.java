@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.util.Arrays;
+import org.jeeventstore.StorageException;
+
+/**
+ * A compressor for the LZ4 block format, written in plain Java.
+ * <p>
+ * A block is a series of sequences, each made of a run of literal bytes
+ * followed by a back reference of at least four bytes into the preceding
+ * 64 KB.  Matches are found greedily through a hash table of four-byte
+ * prefixes, which trades some compression ratio for speed.  The block does
+ * not record its uncompressed length, the caller has to keep it.
+ */
+final class LZ4Block {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_LOG = 12;
+
+    private LZ4Block() { }
+
+    static byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] out = new byte[n + n / 255 + 16];
+        int op = 0;
+        int anchor = 0;
+        if (n > MATCH_FIND_LIMIT) {
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int ip = 0;
+            // the format requires the last match to start 12 bytes before the end
+            while (ip < n - MATCH_FIND_LIMIT) {
+                int sequence = readInt(src, ip);
+                int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                int length = MIN_MATCH;
+                int maxLength = n - LAST_LITERALS - ip;
+                while (length < maxLength && src[ref + length] == src[ip + length])
+                    length++;
+                op = writeLiterals(out, op, src, anchor, ip - anchor, length - MIN_MATCH);
+                out[op++] = (byte) (ip - ref);
+                out[op++] = (byte) ((ip - ref) >>> 8);
+                op = writeLength(out, op, length - MIN_MATCH);
+                ip += length;
+                anchor = ip;
+            }
+        }
+        op = writeLiterals(out, op, src, anchor, n - anchor, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    static byte[] decompress(byte[] src, int offset, int length, int rawLength) {
+        byte[] dst = new byte[rawLength];
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end)
+                    break;
+                int distance = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - distance;
+                if (distance == 0 || ref < 0)
+                    throw new StorageException("Corrupt LZ4 block, invalid match offset");
+                // byte by byte, as the match may overlap the bytes it produces
+                for (int i = 0; i < matchLength; i++)
+                    dst[op++] = dst[ref++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new StorageException("Corrupt LZ4 block", e);
+        }
+        if (op != rawLength)
+            throw new StorageException("Corrupt LZ4 block, expected " + rawLength + " bytes, got " + op);
+        return dst;
+    }
+
+    private static int writeLiterals(byte[] out, int op, byte[] src, int from, int count, int matchLength) {
+        out[op++] = (byte) (Math.min(count, 15) << 4 | Math.min(matchLength, 15));
+        op = writeLength(out, op, count);
+        System.arraycopy(src, from, out, op, count);
+        return op + count;
+    }
+
+    /**
+     * Writes the bytes extending a length beyond the 15 that fit into the token.
+     */
+    private static int writeLength(byte[] out, int op, int length) {
+        if (length < 15)
+            return op;
+        int rest = length - 15;
+        while (rest >= 255) {
+            out[op++] = (byte) 255;
+            rest -= 255;
+        }
+        out[op++] = (byte) rest;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+}
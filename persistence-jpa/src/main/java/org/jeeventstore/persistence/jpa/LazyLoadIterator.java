@@ -21,22 +21,36 @@
 
 package org.jeeventstore.persistence.jpa;
 
-import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import org.jeeventstore.ChangeSet;
-import org.jeeventstore.EventSerializer;
-import org.jeeventstore.store.DefaultChangeSet;
 
 /**
  * Provides the ability to load events from the EntityManager in batches.
  * This avoids loading all events into memory at once, possibly consuming
  * all heap space.
+ * <p>
+ * Batches are fetched by keyset: each batch starts right after the key of
+ * the last entry of the previous batch (see {@link PageKey}), instead of
+ * skipping a number of rows with an offset.  Thus every batch costs the
+ * same, no matter how far into the results it is.
+ * <p>
+ * The results are not counted up front.  Instead, every batch fetches one
+ * row more than it returns, which tells whether another batch follows.
+ * <p>
+ * Optionally, the iterator reads ahead: batches are then fetched and
+ * deserialized in the background by a {@link BatchSource} while the
+ * previous batch is being consumed, up to a given number of batches ahead.
+ * As every batch starts after the last entry of its predecessor, at most one
+ * batch is fetched at a time.
  */
 class LazyLoadIterator implements Iterator<ChangeSet> {
 
@@ -44,45 +58,73 @@ class LazyLoadIterator implements Iterator<ChangeSet> {
 
     private final EntityManager entityManager;
     private final TypedQuery<EventStoreEntry> query;
-    private final EventSerializer serializer;
-    private final long numResults;
+    private final PageKey key;
+    private final ChangeSetBatch.Decoder decoder;
+    private final BatchSource source;
+    private final int readAhead;
     private int fetchBatchSize = 500;
+    private long maxResults = Long.MAX_VALUE;
 
-    private int current = 0;
-    private final List<EventStoreEntry> currentBatch = new ArrayList<>(fetchBatchSize);
+    private long current = 0;
+    private long fetchedResults = 0;
+    private EventStoreEntry last = null;
+    private boolean moreResults = true;
+    private int batchIndex = 0;
+    private List<ChangeSet> currentBatch = Collections.emptyList();
+    private final Deque<ChangeSetBatch> fetched = new ArrayDeque<>();
+    private Future<ChangeSetBatch> pending = null;
 
     public LazyLoadIterator(
             EntityManager entityManager,
-            CriteriaQueryBuilder cbq,
-            EventSerializer serializer) {
+            EntryQuery query,
+            ChangeSetBatch.Decoder decoder) {
 
         this.entityManager = entityManager;
-        this.query = QueryUtils.buildQuery(entityManager, cbq);
-        this.serializer = serializer;
-        this.numResults = QueryUtils.countResults(entityManager, cbq);
+        this.query = query.create(entityManager);
+        this.key = query.key();
+        this.decoder = decoder;
+        this.source = null;
+        this.readAhead = 0;
+    }
+
+    /**
+     * Creates an iterator that reads ahead.
+     *
+     * @param source  fetches the batches in the background
+     * @param readAhead  the maximum number of batches fetched but not yet
+     *      consumed, at least 1
+     */
+    public LazyLoadIterator(BatchSource source, int readAhead) {
+        if (source == null)
+            throw new IllegalArgumentException("source must not be null");
+        if (readAhead < 1)
+            throw new IllegalArgumentException("readAhead must be at least 1");
+        this.entityManager = null;
+        this.query = null;
+        this.key = null;
+        this.decoder = null;
+        this.source = source;
+        this.readAhead = readAhead;
     }
 
     @Override
     public boolean hasNext() {
-        return current < numResults;
+        if (batchIndex == currentBatch.size()) {
+            ChangeSetBatch batch = source == null ? fetch() : nextFetched();
+            if (batch != null) {
+                currentBatch = batch.changeSets();
+                batchIndex = 0;
+            }
+        }
+        return batchIndex < currentBatch.size();
     }
 
     @Override
     public ChangeSet next() {
         if (!hasNext())
             throw new IllegalStateException("No next ChangeSet");
-        int offset = current % fetchBatchSize;
-        if (offset == 0l)
-            fetch();
-        EventStoreEntry entry = currentBatch.get(offset);
         current++;
-        List<? extends Serializable> events = serializer.deserialize(entry.body());
-        return new DefaultChangeSet(
-                entry.bucketId(),
-                entry.streamId(),
-                entry.streamVersion(),
-                entry.changeSetId(),
-                events);
+        return currentBatch.get(batchIndex++);
     }
 
     @Override
@@ -96,22 +138,75 @@ class LazyLoadIterator implements Iterator<ChangeSet> {
         this.fetchBatchSize = fetchBatchSize;
         return this;
     }
+
+    /**
+     * Limits the total number of results, such that no batch fetches
+     * more rows than needed to reach it.
+     */
+    public LazyLoadIterator setMaxResults(long maxResults) {
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    private int nextBatchSize() {
+        return (int) Math.min(fetchBatchSize, maxResults - fetchedResults);
+    }
     
-    private void fetch() {
-        log.log(Level.FINE, "Fetching results {0}-{1} of {2}",
+    private ChangeSetBatch fetch() {
+        if (!moreResults)
+            return null;
+        log.log(Level.FINE, "Fetching results {0}-{1}",
                 new Object[]{
-                    Integer.toString(current+1),
-                    Long.toString(Math.min(numResults, fetchBatchSize * (current/fetchBatchSize + 1))),
-                    Long.toString(numResults)});
-        query.setMaxResults(fetchBatchSize);
-        query.setFirstResult(current);
-        List<EventStoreEntry> list = query.getResultList();
-
-        currentBatch.clear();
-        for (EventStoreEntry e : list) {
-            entityManager.detach(e);
-            currentBatch.add(e);
+                    Long.toString(current+1),
+                    Long.toString(current + fetchBatchSize)});
+        return received(ChangeSetBatch.fetch(entityManager, query, key, last, nextBatchSize(), decoder));
+    }
+
+    /**
+     * Takes the next batch read ahead, waiting for it if necessary, and
+     * requests further batches up to the read ahead limit.
+     */
+    private ChangeSetBatch nextFetched() {
+        readAhead();
+        if (fetched.isEmpty() && pending != null)
+            fetched.add(received(ChangeSetBatch.await(pending)));
+        ChangeSetBatch batch = fetched.poll();
+        readAhead();
+        return batch;
+    }
+
+    private void readAhead() {
+        if (pending != null && pending.isDone())
+            fetched.add(received(ChangeSetBatch.await(pending)));
+        if (pending == null && moreResults && fetched.size() < readAhead) {
+            log.log(Level.FINE, "Reading ahead results after {0}",
+                    Long.toString(current + fetchBatchSize * fetched.size()));
+            pending = source.fetchBatch(last, nextBatchSize());
         }
     }
-    
-}
\ No newline at end of file
+
+    private ChangeSetBatch received(ChangeSetBatch batch) {
+        pending = null;
+        last = batch.last();
+        fetchedResults += batch.changeSets().size();
+        moreResults = batch.moreResults() && fetchedResults < maxResults;
+        return batch;
+    }
+
+    /**
+     * Fetches the batches of a {@link LazyLoadIterator} that reads ahead.
+     */
+    interface BatchSource {
+
+        /**
+         * Starts to fetch and deserialize a batch in the background.
+         *
+         * @param last  the last entry of the previous batch, or {@code null} for the first batch
+         * @param size  the maximum number of change sets in the batch
+         * @return  the future batch
+         */
+        Future<ChangeSetBatch> fetchBatch(EventStoreEntry last, int size);
+
+    }
+
+}
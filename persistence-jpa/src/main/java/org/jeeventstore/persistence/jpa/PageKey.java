@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import javax.persistence.TypedQuery;
+
+/**
+ * The key by which a {@link LazyLoadIterator} pages through its results.
+ * The results must be ordered by this key, and the key must be
+ * unique among the results, such that the next batch can be found by the
+ * key of the last entry of the previous batch.
+ * The queries select the entries after the key through the parameters
+ * bound by {@link #bind}, see the named queries of {@link EventStoreEntry}.
+ */
+public enum PageKey {
+
+    /**
+     * Pages by commit position and id, for queries spanning several streams.
+     * Binds {@code lastPosition} and {@code lastId}.
+     */
+    COMMIT_POSITION {
+        @Override
+        public void bind(TypedQuery<EventStoreEntry> query, EventStoreEntry last) {
+            query.setParameter(LAST_POSITION, last == null ? Long.MIN_VALUE : last.commitPosition());
+            query.setParameter(LAST_ID, last == null ? Long.MIN_VALUE : last.id());
+        }
+    },
+
+    /**
+     * Pages by the time persisted and id, for queries of a time range.
+     * Binds {@code lastPersistedAt} and {@code lastId}.
+     */
+    PERSISTED_AT {
+        @Override
+        public void bind(TypedQuery<EventStoreEntry> query, EventStoreEntry last) {
+            query.setParameter(LAST_PERSISTED_AT, last == null ? Long.MIN_VALUE : last.persistedAt());
+            query.setParameter(LAST_ID, last == null ? Long.MIN_VALUE : last.id());
+        }
+    },
+
+    /**
+     * Pages by the stream version, for queries of a single stream.
+     * Binds {@code lastVersion}.
+     */
+    STREAM_VERSION {
+        @Override
+        public void bind(TypedQuery<EventStoreEntry> query, EventStoreEntry last) {
+            query.setParameter(LAST_VERSION, last == null ? Long.MIN_VALUE : last.streamVersion());
+        }
+    },
+
+    /**
+     * Pages by the stream version in descending order, for queries reading
+     * a single stream backwards.  Binds {@code lastVersion}.
+     */
+    STREAM_VERSION_DESCENDING {
+        @Override
+        public void bind(TypedQuery<EventStoreEntry> query, EventStoreEntry last) {
+            query.setParameter(LAST_VERSION, last == null ? Long.MAX_VALUE : last.streamVersion());
+        }
+    };
+
+    private static final String LAST_POSITION = "lastPosition";
+    private static final String LAST_ID = "lastId";
+    private static final String LAST_VERSION = "lastVersion";
+    private static final String LAST_PERSISTED_AT = "lastPersistedAt";
+
+    /**
+     * Sets the query parameters that select the entries after a given key.
+     *
+     * @param query  the query
+     * @param last  the last entry of the previous batch, or {@code null}
+     *      to start with the first entry
+     */
+    public abstract void bind(TypedQuery<EventStoreEntry> query, EventStoreEntry last);
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.EventSerializer;
+
+/**
+ * Deserializes the entries of a batch on several threads.
+ * The batch is split into consecutive chunks, all but the first of which
+ * are handed to a {@link Worker}, while the calling thread deserializes
+ * the first chunk itself.  The change sets are then joined in the order of
+ * the chunks, hence in the order of the entries.
+ * <p>
+ * Batches too small to be worth splitting are deserialized on the calling
+ * thread only.
+ */
+class ParallelDecoder implements ChangeSetBatch.Decoder {
+
+    /**
+     * The minimum number of entries handed to a worker.
+     */
+    static final int MIN_CHUNK_SIZE = 16;
+
+    private final int parallelism;
+    private final Worker worker;
+    private final EventSerializer serializer;
+
+    /**
+     * @param parallelism  the maximum number of threads deserializing a batch,
+     *      including the calling thread, at least 2
+     * @param worker  deserializes chunks in the background
+     * @param serializer  the serializer the bodies were written with
+     */
+    ParallelDecoder(int parallelism, Worker worker, EventSerializer serializer) {
+        if (parallelism < 2)
+            throw new IllegalArgumentException("parallelism must be at least 2");
+        if (worker == null)
+            throw new IllegalArgumentException("worker must not be null");
+        this.parallelism = parallelism;
+        this.worker = worker;
+        this.serializer = serializer;
+    }
+
+    @Override
+    public List<ChangeSet> decode(List<EventStoreEntry> entries) {
+        int chunks = Math.min(parallelism, entries.size() / MIN_CHUNK_SIZE);
+        if (chunks < 2)
+            return ChangeSetBatch.decode(entries, serializer);
+
+        int chunkSize = (entries.size() + chunks - 1) / chunks;
+        List<Future<List<ChangeSet>>> futures = new ArrayList<>(chunks - 1);
+        for (int start = chunkSize; start < entries.size(); start += chunkSize) {
+            int end = Math.min(start + chunkSize, entries.size());
+            futures.add(worker.decode(new ArrayList<>(entries.subList(start, end))));
+        }
+        List<ChangeSet> changeSets = new ArrayList<>(entries.size());
+        changeSets.addAll(ChangeSetBatch.decode(entries.subList(0, chunkSize), serializer));
+        for (Future<List<ChangeSet>> future : futures)
+            changeSets.addAll(ChangeSetBatch.await(future));
+        return changeSets;
+    }
+
+    /**
+     * Deserializes a chunk of a batch in the background.
+     */
+    interface Worker {
+
+        /**
+         * @param entries  the entries of the chunk
+         * @return  the future change sets, in the order of the entries
+         */
+        Future<List<ChangeSet>> decode(List<EventStoreEntry> entries);
+
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.SessionContext;
+import javax.persistence.EntityManager;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * PersistenceContextProvider that sends writes to a primary database and
+ * spreads reads over one or more read replicas.
+ * To be configured as a singleton EJB.
+ * <p>
+ * Replicas lag behind the primary.  The provider therefore remembers when
+ * each bucket was last written through it, and routes reads of that bucket
+ * to the primary until {@code replicaLagMillis} have passed since the
+ * writing transaction completed.  This way, a stream that has just been
+ * written is always read back completely.  Writes made by other nodes are
+ * not seen by this provider; a stream read from a lagging replica and then
+ * written to will be rejected by the optimistic concurrency check of the
+ * primary.
+ * <p>
+ * Reads and writes may happen within the same transaction, so the data
+ * sources of the replicas must be able to take part in transactions
+ * together with the primary (e.g., XA data sources).
+ * <p>
+ * The following services are expected to be injected:
+ * <p>
+ * {@code entityManager} of type {@link EntityManager} (via
+ *    persistence-context-ref): the persistence context of the primary
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code replicas} (optional, default: none): Comma-separated
+ *   names of persistence-context-refs declared for this EJB that denote
+ *   the persistence contexts of the replicas.  Without replicas, all reads
+ *   go to the primary.
+ * <p>
+ * Env-entry {@code replicaLagMillis} (optional, default: 5000): The maximum
+ *   expected replication lag in milliseconds.
+ */
+public class ReplicaPersistenceContextProvider implements PersistenceContextProvider {
+
+    private static final Logger log = Logger.getLogger(ReplicaPersistenceContextProvider.class.getName());
+
+    // injected by deployment descriptor
+    private EntityManager entityManager;
+
+    @Resource(name="replicas")
+    private String replicas = "";
+
+    @Resource(name="replicaLagMillis")
+    private Long replicaLagMillis = 5000l;
+
+    @Resource
+    private SessionContext sessionContext;
+
+    @Resource
+    private TransactionSynchronizationRegistry transactionRegistry;
+
+    private final List<EntityManager> replicaEntityManagers = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ConcurrentMap<String, Long> lastWrites = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (entityManager == null)
+            throw new IllegalStateException("No EntityManager has been injected");
+        for (String name : replicas.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+            Object replica = sessionContext.lookup(name);
+            if (!(replica instanceof EntityManager))
+                throw new IllegalStateException("Replica " + name + " is not a persistence context");
+            replicaEntityManagers.add((EntityManager) replica);
+        }
+        log.log(Level.INFO, "Reading from {0} replica(s) with a maximum lag of {1} ms",
+                new Object[]{replicaEntityManagers.size(), replicaLagMillis});
+    }
+
+    @Override
+    @Lock(LockType.READ)
+    public EntityManager entityManagerForReading(String bucketId) {
+        if (replicaEntityManagers.isEmpty() || isRecentlyWritten(bucketId))
+            return entityManager;
+        int next = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+        return replicaEntityManagers.get(next % replicaEntityManagers.size());
+    }
+
+    @Override
+    @Lock(LockType.READ)
+    public EntityManager entityManagerForWriting(final String bucketId) {
+        markWritten(bucketId);
+        Object key = ReplicaPersistenceContextProvider.class.getName() + ":" + bucketId;
+        if (transactionRegistry != null && transactionRegistry.getTransactionKey() != null
+                && transactionRegistry.getResource(key) == null) {
+            // the changes reach the replicas only after the commit
+            transactionRegistry.putResource(key, Boolean.TRUE);
+            transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() { }
+                @Override
+                public void afterCompletion(int status) {
+                    markWritten(bucketId);
+                }
+            });
+        }
+        return entityManager;
+    }
+
+    private boolean isRecentlyWritten(String bucketId) {
+        Long lastWrite = lastWrites.get(bucketId);
+        return lastWrite != null && System.currentTimeMillis() - lastWrite < replicaLagMillis;
+    }
+
+    private void markWritten(String bucketId) {
+        lastWrites.put(bucketId, System.currentTimeMillis());
+    }
+
+}
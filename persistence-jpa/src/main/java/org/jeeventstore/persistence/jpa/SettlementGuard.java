@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Rolls back transactions that keep writing change sets for too long after
+ * they have issued their first commit position.
+ * <p>
+ * Readers of {@code allChangesSince} only see change sets whose commit
+ * position is at least {@code settleMillis} in the past.  A transaction
+ * that commits later than that after issuing its first position would
+ * become visible behind checkpoints that readers may already have passed,
+ * and its change sets would be skipped by them for good.
+ * <p>
+ * The check runs when the transaction completes, which may be before the
+ * changes are flushed, and cannot cover the commit itself.  A transaction
+ * is therefore rolled back once it has been writing for half of
+ * {@code settleMillis}, the other half is left for the flush, the commit
+ * and the skew between the clocks of the application servers.
+ */
+public class SettlementGuard {
+
+    private static final Logger log = Logger.getLogger(SettlementGuard.class.getName());
+
+    private static final Object KEY = SettlementGuard.class.getName();
+
+    private final TransactionSynchronizationRegistry transactionRegistry;
+    private final long settleMillis;
+
+    /**
+     * Creates a guard for readers that hold back change sets for the given
+     * time.
+     *
+     * @param transactionRegistry  the registry of the running transactions,
+     *          may be null if there are none
+     * @param settleMillis  the time change sets are held back, 0 to not
+     *          check any transaction
+     */
+    public SettlementGuard(TransactionSynchronizationRegistry transactionRegistry, long settleMillis) {
+        if (settleMillis < 0)
+            throw new IllegalArgumentException("settleMillis must not be negative");
+        this.transactionRegistry = transactionRegistry;
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Gets the time the transaction may write before it is rolled back.
+     */
+    public long limitMillis() {
+        return settleMillis / 2;
+    }
+
+    /**
+     * Watches the current transaction, to be called before it issues a
+     * commit position.  Only the first call within a transaction starts
+     * the watch, outside of a transaction this does nothing.
+     */
+    public void watch() {
+        if (settleMillis == 0 || transactionRegistry == null
+                || transactionRegistry.getTransactionKey() == null)
+            return;
+        if (transactionRegistry.getResource(KEY) != null)
+            return;
+        final long started = System.currentTimeMillis();
+        final long limit = limitMillis();
+        final TransactionSynchronizationRegistry registry = transactionRegistry;
+        registry.putResource(KEY, started);
+        registry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+                long elapsed = System.currentTimeMillis() - started;
+                if (elapsed < limit)
+                    return;
+                log.log(Level.WARNING, "Rolling back a transaction that has been writing change sets"
+                        + " for {0} ms, settleMillis is {1} ms", new Object[]{elapsed, settleMillis});
+                registry.setRollbackOnly();
+            }
+            @Override
+            public void afterCompletion(int status) { }
+        });
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+/**
+ * JPA entry holding the latest state of an event stream, such that it can be
+ * looked up by primary key instead of scanning the {@link EventStoreEntry}s
+ * of the stream.
+ * Updated in the same transaction as the {@link EventStoreEntry} it describes.
+ */
+@Entity
+@Table(name = "stream_head")
+@IdClass(StreamHead.Key.class)
+@NamedQueries({
+    @NamedQuery(name = StreamHead.FIND, query =
+        "SELECT NEW org.jeeventstore.persistence.jpa.StreamHead("
+        + "h.bucketId, h.streamId, h.streamVersion, h.changeSetCount,"
+        + " h.persistedAt, h.commitPosition)"
+        + " FROM StreamHead h"
+        + " WHERE h.bucketId = :bucketId AND h.streamId = :streamId")
+})
+public class StreamHead implements Serializable {
+
+    /**
+     * Selects an unmanaged copy of the head of a stream.
+     */
+    public static final String FIND = "StreamHead.find";
+
+    @Id
+    @Column(name = "bucket_id")
+    @NotNull
+    private String bucketId;
+
+    @Id
+    @Column(name = "stream_id")
+    @NotNull
+    private String streamId;
+
+    @Column(name = "stream_version")
+    private long streamVersion;
+
+    @Column(name = "change_set_count")
+    private long changeSetCount;
+
+    @Column(name = "persisted_at")
+    private long persistedAt;
+
+    @Column(name = "commit_position")
+    private long commitPosition;
+
+    public StreamHead(
+            String bucketId,
+            String streamId,
+            long streamVersion,
+            long changeSetCount,
+            long persistedAt,
+            long commitPosition) {
+
+        if (bucketId == null || bucketId.isEmpty())
+            throw new IllegalArgumentException("bucketId must not be empty");
+        if (streamId == null || streamId.isEmpty())
+            throw new IllegalArgumentException("streamId must not be empty");
+
+        this.bucketId = bucketId;
+        this.streamId = streamId;
+        this.streamVersion = streamVersion;
+        this.changeSetCount = changeSetCount;
+        this.persistedAt = persistedAt;
+        this.commitPosition = commitPosition;
+    }
+
+    public String bucketId() {
+        return bucketId;
+    }
+
+    public String streamId() {
+        return streamId;
+    }
+
+    public long streamVersion() {
+        return streamVersion;
+    }
+
+    public long changeSetCount() {
+        return changeSetCount;
+    }
+
+    public long persistedAt() {
+        return persistedAt;
+    }
+
+    /**
+     * Gets the commit position of the latest change set of the stream.
+     */
+    public long commitPosition() {
+        return commitPosition;
+    }
+
+    /**
+     * Counts a change set that was persisted to the stream.
+     * The version and the commit position only move forward.
+     */
+    void add(long streamVersion, long persistedAt, long commitPosition) {
+        this.streamVersion = Math.max(this.streamVersion, streamVersion);
+        this.changeSetCount++;
+        this.persistedAt = persistedAt;
+        this.commitPosition = Math.max(this.commitPosition, commitPosition);
+    }
+
+    /**
+     * Required for JPA, do not use.
+     * @deprecated 
+     */
+    @Deprecated
+    protected StreamHead() { }
+
+    /**
+     * Primary key of a {@link StreamHead}.
+     */
+    public static class Key implements Serializable {
+
+        private String bucketId;
+        private String streamId;
+
+        public Key(String bucketId, String streamId) {
+            this.bucketId = bucketId;
+            this.streamId = streamId;
+        }
+
+        /**
+         * Required for JPA, do not use.
+         * @deprecated 
+         */
+        @Deprecated
+        public Key() { }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return bucketId.equals(other.bucketId) && streamId.equals(other.streamId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * bucketId.hashCode() + streamId.hashCode();
+        }
+
+    }
+
+}
@@ -6,9 +6,77 @@ CREATE TABLE `event_store` (
   `stream_version` bigint(20) DEFAULT NULL,
   `change_set_id` varchar(255) DEFAULT NULL,
   `persisted_at` bigint(20) DEFAULT NULL,
+  `commit_position` bigint(20) NOT NULL,
   `body` longtext,
+  `body_data` longblob,
+  `chunk_count` int(11) NOT NULL DEFAULT 0,
   PRIMARY KEY (`id`),
   UNIQUE KEY `UNQ_event_store_optimistic_lock` (`bucket_id`,`stream_id`,`stream_version`),
-  UNIQUE KEY `UNQ_event_store_change_set` (`bucket_id`,`change_set_id`)
+  UNIQUE KEY `UNQ_event_store_change_set` (`bucket_id`,`change_set_id`),
+  KEY `IDX_event_store_bucket_id` (`bucket_id`,`commit_position`,`id`),
+  KEY `IDX_event_store_persisted_at` (`bucket_id`,`persisted_at`,`id`)
 ) ENGINE=InnoDB  DEFAULT CHARSET=utf8;
 
+-- bodies longer than 32672 characters or bytes, see EventStoreChunk
+CREATE TABLE `event_store_chunk` (
+  `entry_id` bigint(20) NOT NULL,
+  `chunk_index` int(11) NOT NULL,
+  `data` blob NOT NULL,
+  PRIMARY KEY (`entry_id`,`chunk_index`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8;
+
+CREATE TABLE `stream_head` (
+  `bucket_id` varchar(255) NOT NULL,
+  `stream_id` varchar(255) NOT NULL,
+  `stream_version` bigint(20) NOT NULL,
+  `change_set_count` bigint(20) NOT NULL,
+  `persisted_at` bigint(20) NOT NULL,
+  `commit_position` bigint(20) NOT NULL,
+  PRIMARY KEY (`bucket_id`,`stream_id`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8;
+
+-- Migration of an existing event_store, while no change sets are written.
+-- Existing entries keep their order, as new commit positions are far above any id.
+-- ALTER TABLE `event_store` ADD COLUMN `commit_position` bigint(20) NOT NULL DEFAULT 0;
+-- UPDATE `event_store` SET `commit_position` = `id`;
+-- ALTER TABLE `event_store` DROP KEY `IDX_event_store_bucket_id`,
+--   ADD KEY `IDX_event_store_bucket_id` (`bucket_id`,`commit_position`,`id`);
+-- INSERT INTO `stream_head` (`bucket_id`, `stream_id`, `stream_version`, `change_set_count`, `persisted_at`, `commit_position`)
+--   SELECT `bucket_id`, `stream_id`, MAX(`stream_version`), COUNT(*), MAX(`persisted_at`), MAX(`commit_position`)
+--   FROM `event_store` GROUP BY `bucket_id`, `stream_id`;
+
+-- Migration to binary bodies, see env-entry binaryBody.  Adding the column
+-- is required in any case, moving the existing bodies is optional, as the
+-- text column remains readable.  Moved bodies are stored uncompressed,
+-- i.e., prefixed with the id 0 of BodyCodec.NONE.
+-- ALTER TABLE `event_store` ADD COLUMN `body_data` longblob;
+-- UPDATE `event_store` SET `body_data` = CONCAT(X'00', CONVERT(`body` USING utf8)), `body` = NULL
+--   WHERE `body` IS NOT NULL;
+
+-- Index for reads by time range, see changesBetween.
+-- ALTER TABLE `event_store` ADD KEY `IDX_event_store_persisted_at` (`bucket_id`,`persisted_at`,`id`);
+
+-- Migration to chunked bodies.  Existing bodies remain inline, new bodies
+-- longer than 32672 characters or bytes are written to event_store_chunk,
+-- so the body columns may be narrowed once no longer body is stored inline.
+-- ALTER TABLE `event_store` ADD COLUMN `chunk_count` int(11) NOT NULL DEFAULT 0;
+-- and CREATE TABLE `event_store_chunk` as above.
+
+-- Buckets in tables of their own, see env-entry partitions.  The persistence
+-- unit of the partition overrides the table names in its orm.xml, see
+-- bucket-orm.xml, e.g., for the bucket AUDIT:
+-- CREATE TABLE `event_store_audit` LIKE `event_store`;
+-- CREATE TABLE `event_store_chunk_audit` LIKE `event_store_chunk`;
+-- CREATE TABLE `stream_head_audit` LIKE `stream_head`;
+
+-- Alternatively, buckets in partitions of the shared tables.  MySQL requires
+-- the partitioning column in every unique key, and rejects rows of buckets
+-- that are not listed, so every bucket has to be known in advance.
+-- ALTER TABLE `event_store` MODIFY `bucket_id` varchar(255) NOT NULL,
+--   DROP PRIMARY KEY, ADD PRIMARY KEY (`id`,`bucket_id`)
+--   PARTITION BY LIST COLUMNS(`bucket_id`) (
+--     PARTITION `p_audit` VALUES IN ('AUDIT'),
+--     PARTITION `p_default` VALUES IN ('DEFAULT'));
+-- ALTER TABLE `stream_head` PARTITION BY LIST COLUMNS(`bucket_id`) (
+--     PARTITION `p_audit` VALUES IN ('AUDIT'),
+--     PARTITION `p_default` VALUES IN ('DEFAULT'));
@@ -1,6 +1,7 @@
 
+-- ids are allocated in blocks of 50, see allocationSize of EventStoreEntry.id
 CREATE SEQUENCE event_store_id_seq
-  INCREMENT 1
+  INCREMENT 50
   MINVALUE 1
   MAXVALUE 9223372036854775807
   START 1
@@ -13,7 +14,10 @@ CREATE TABLE event_store (
   stream_version bigint,
   change_set_id character varying(255),
   persisted_at bigint,
+  commit_position bigint NOT NULL,
   body text,
+  body_data bytea,
+  chunk_count integer NOT NULL DEFAULT 0,
   CONSTRAINT event_store_pkey PRIMARY KEY (id),
   CONSTRAINT unq_event_store_optimistic_lock UNIQUE (bucket_id, stream_id, stream_version),
   CONSTRAINT unq_event_store_change_set UNIQUE (bucket_id, change_set_id)
@@ -22,10 +26,90 @@ WITH (
   OIDS=FALSE
 );
 
-CREATE INDEX idx_bucket_id ON event_store(bucket_id);
+CREATE INDEX idx_bucket_id ON event_store(bucket_id, commit_position, id);
 CREATE INDEX idx_stream_id ON event_store(stream_id);
 CREATE INDEX idx_stream_version ON event_store(stream_version);
+CREATE INDEX idx_persisted_at ON event_store(bucket_id, persisted_at, id);
+
+-- bodies longer than 32672 characters or bytes, see EventStoreChunk
+CREATE TABLE event_store_chunk (
+  entry_id bigint NOT NULL,
+  chunk_index integer NOT NULL,
+  data bytea NOT NULL,
+  CONSTRAINT event_store_chunk_pkey PRIMARY KEY (entry_id, chunk_index)
+)
+WITH (
+  OIDS=FALSE
+);
+
+CREATE TABLE stream_head (
+  bucket_id character varying(255) NOT NULL,
+  stream_id character varying(255) NOT NULL,
+  stream_version bigint NOT NULL,
+  change_set_count bigint NOT NULL,
+  persisted_at bigint NOT NULL,
+  commit_position bigint NOT NULL,
+  CONSTRAINT stream_head_pkey PRIMARY KEY (bucket_id, stream_id)
+)
+WITH (
+  OIDS=FALSE
+);
+
+-- Migration of an existing event_store, while no change sets are written.
+-- Existing entries keep their order, as new commit positions are far above any id.
+-- ALTER SEQUENCE event_store_id_seq INCREMENT 50;
+-- ALTER TABLE event_store ADD COLUMN commit_position bigint;
+-- UPDATE event_store SET commit_position = id;
+-- ALTER TABLE event_store ALTER COLUMN commit_position SET NOT NULL;
+-- DROP INDEX idx_bucket_id;
+-- CREATE INDEX idx_bucket_id ON event_store(bucket_id, commit_position, id);
+-- INSERT INTO stream_head (bucket_id, stream_id, stream_version, change_set_count, persisted_at, commit_position)
+--   SELECT bucket_id, stream_id, MAX(stream_version), COUNT(*), MAX(persisted_at), MAX(commit_position)
+--   FROM event_store GROUP BY bucket_id, stream_id;
+
+-- Migration to binary bodies, see env-entry binaryBody.  Adding the column
+-- is required in any case, moving the existing bodies is optional, as the
+-- text column remains readable.  Moved bodies are stored uncompressed,
+-- i.e., prefixed with the id 0 of BodyCodec.NONE.
+-- ALTER TABLE event_store ADD COLUMN body_data bytea;
+-- UPDATE event_store SET body_data = '\x00'::bytea || convert_to(body, 'UTF8'), body = NULL
+--   WHERE body IS NOT NULL;
+
+-- Index for reads by time range, see changesBetween.
+-- CREATE INDEX idx_persisted_at ON event_store(bucket_id, persisted_at, id);
+
+-- Migration to chunked bodies.  Existing bodies remain inline, new bodies
+-- longer than 32672 characters or bytes are written to event_store_chunk,
+-- so the body columns may be narrowed once no longer body is stored inline.
+-- ALTER TABLE event_store ADD COLUMN chunk_count integer NOT NULL DEFAULT 0;
+-- and CREATE TABLE event_store_chunk as above.
+
+-- Buckets in tables of their own, see env-entry partitions.  The persistence
+-- unit of the partition overrides the table and sequence names in its
+-- orm.xml, see bucket-orm.xml, e.g., for the bucket AUDIT:
+-- CREATE SEQUENCE event_store_audit_id_seq INCREMENT 50 MINVALUE 1 START 1 CACHE 1;
+-- CREATE TABLE event_store_audit (LIKE event_store INCLUDING ALL);
+-- CREATE TABLE event_store_chunk_audit (LIKE event_store_chunk INCLUDING ALL);
+-- CREATE TABLE stream_head_audit (LIKE stream_head INCLUDING ALL);
+
+-- Alternatively, buckets in partitions of the shared tables (PostgreSQL 11
+-- or later), created in place of event_store and stream_head above.  The
+-- primary key of event_store has to include the partitioning column, the
+-- unique constraints start with it already.
+-- CREATE TABLE event_store (
+--   ... columns as above, with bucket_id NOT NULL ...
+--   CONSTRAINT event_store_pkey PRIMARY KEY (bucket_id, id),
+--   CONSTRAINT unq_event_store_optimistic_lock UNIQUE (bucket_id, stream_id, stream_version),
+--   CONSTRAINT unq_event_store_change_set UNIQUE (bucket_id, change_set_id)
+-- ) PARTITION BY LIST (bucket_id);
+-- CREATE TABLE event_store_audit PARTITION OF event_store FOR VALUES IN ('AUDIT');
+-- CREATE TABLE event_store_default PARTITION OF event_store DEFAULT;
+-- CREATE TABLE stream_head ( ... columns as above ... ) PARTITION BY LIST (bucket_id);
+-- CREATE TABLE stream_head_audit PARTITION OF stream_head FOR VALUES IN ('AUDIT');
+-- CREATE TABLE stream_head_default PARTITION OF stream_head DEFAULT;
 
 -- Set the owner to the correct user
 -- ALTER TABLE event_store_id_seq OWNER TO someusername;
 -- ALTER TABLE event_store OWNER TO someusername;
+-- ALTER TABLE stream_head OWNER TO someusername;
+-- ALTER TABLE event_store_chunk OWNER TO someusername;
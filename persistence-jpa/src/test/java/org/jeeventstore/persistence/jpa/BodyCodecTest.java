@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import org.jeeventstore.StorageException;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class BodyCodecTest {
+
+    private static String json(int events) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < events; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append("{\"type\":\"OrderLineAdded\",\"orderId\":\"")
+                    .append(UUID.randomUUID())
+                    .append("\",\"line\":").append(i)
+                    .append(",\"product\":\"Ärmelschoner\",\"quantity\":").append(i % 7)
+                    .append('}');
+        }
+        return builder.append(']').toString();
+    }
+
+    @Test
+    public void test_roundtrip() {
+        String[] bodies = {"[]", "[\"Hello!\"]", json(1), json(100), json(20000)};
+        for (BodyCodec codec : BodyCodec.values())
+            for (String body : bodies)
+                assertEquals(BodyCodec.decode(codec.encode(body)), body, codec.name());
+    }
+
+    @Test
+    public void test_compression_ratio() {
+        String body = json(20000);
+        int raw = body.getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(BodyCodec.DEFLATE.encode(body).length < raw / 2);
+        assertTrue(BodyCodec.LZ4.encode(body).length < raw / 2);
+        assertEquals(BodyCodec.NONE.encode(body).length, raw + 1);
+    }
+
+    @Test
+    public void test_incompressible_body_is_stored_uncompressed() {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            builder.append((char) (' ' + random.nextInt(95)));
+        String body = builder.toString();
+        for (BodyCodec codec : BodyCodec.values()) {
+            byte[] data = codec.encode(body);
+            assertEquals(data[0], 0);
+            assertEquals(BodyCodec.decode(data), body);
+        }
+    }
+
+    @Test
+    public void test_long_runs() {
+        // overlapping matches and long length extensions
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+            builder.append('a');
+        builder.append("xyz");
+        String body = builder.toString();
+        byte[] data = BodyCodec.LZ4.encode(body);
+        assertTrue(data.length < 1000);
+        assertEquals(BodyCodec.decode(data), body);
+    }
+
+    @Test
+    public void test_corrupt_bodies() {
+        byte[] data = BodyCodec.LZ4.encode(json(100));
+        byte[] truncated = Arrays.copyOf(data, data.length / 2);
+        byte[][] corrupt = {new byte[0], {9, 1, 2}, {2, 0}, truncated};
+        for (byte[] c : corrupt) {
+            try {
+                BodyCodec.decode(c);
+                fail("Should have failed by now");
+            } catch (StorageException e) {
+                // expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class CommitClockTest {
+
+    @Test
+    public void test_positions_increase() {
+        CommitClock clock = new CommitClock(0);
+        long before = CommitClock.positionAt(System.currentTimeMillis());
+        long last = clock.next();
+        assertTrue(last >= before);
+        for (int i = 0; i < 10000; i++) {
+            long next = clock.next();
+            assertTrue(next > last);
+            last = next;
+        }
+    }
+
+    @Test
+    public void test_nextAfter_moves_clock_forward() {
+        CommitClock clock = new CommitClock(7);
+        long ahead = clock.next() + CommitClock.positionAt(3600 * 1000);
+        long moved = clock.nextAfter(ahead);
+        assertTrue(moved > ahead);
+        assertTrue(moved - ahead <= CommitClock.NODES);
+        assertEquals(clock.next(), moved + CommitClock.NODES);
+        // positions behind the clock do not move it backwards
+        assertEquals(clock.nextAfter(0), moved + 2 * CommitClock.NODES);
+    }
+
+    @Test
+    public void test_clock_is_shared_per_node() {
+        assertSame(CommitClock.forNode(3), CommitClock.forNode(3));
+        assertNotSame(CommitClock.forNode(3), CommitClock.forNode(4));
+        assertEquals(CommitClock.forNode(3).next() % CommitClock.NODES, 3);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_node_out_of_range() {
+        CommitClock.forNode(CommitClock.NODES);
+    }
+
+    @Test
+    public void test_clocks_of_different_nodes_never_tie() {
+        CommitClock first = new CommitClock(1);
+        CommitClock second = new CommitClock(2);
+        for (int i = 0; i < 1000; i++) {
+            long a = first.next();
+            long b = second.next();
+            assertNotEquals(a, b);
+            assertEquals(a % CommitClock.NODES, 1);
+            assertEquals(b % CommitClock.NODES, 2);
+            // a position issued by another node is passed in any case
+            assertTrue(first.nextAfter(b) > b);
+        }
+    }
+
+}
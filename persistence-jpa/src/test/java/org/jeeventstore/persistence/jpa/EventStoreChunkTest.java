@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class EventStoreChunkTest {
+
+    private static String body(int length) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length)
+            builder.append(UUID.randomUUID());
+        return builder.substring(0, length);
+    }
+
+    @Test
+    public void test_split() {
+        byte[] data = new byte[2 * EventStoreChunk.CHUNK_LENGTH + 5];
+        new Random(42).nextBytes(data);
+        List<EventStoreChunk> chunks = EventStoreChunk.split(7, data);
+        assertEquals(chunks.size(), 3);
+        assertEquals(EventStoreChunk.chunkCount(data.length), 3);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(chunks.get(i).entryId(), 7);
+            assertEquals(chunks.get(i).chunkIndex(), i);
+            joined.write(chunks.get(i).data(), 0, chunks.get(i).data().length);
+        }
+        assertEquals(chunks.get(2).data().length, 5);
+        assertEquals(joined.toByteArray(), data);
+    }
+
+    @Test
+    public void test_short_body_is_stored_inline() {
+        // one byte is taken by the id of the codec
+        String body = body(EventStoreEntry.INLINE_LENGTH - 1);
+        for (BodyCodec codec : new BodyCodec[]{null, BodyCodec.NONE, BodyCodec.LZ4}) {
+            EventStoreEntry entry = new EventStoreEntry("DEFAULT", "STREAM", 1, 0, 0, "ID", body, codec);
+            assertEquals(entry.chunkCount(), 0, String.valueOf(codec));
+            assertTrue(entry.chunks().isEmpty());
+            assertEquals(entry.body(), body);
+        }
+    }
+
+    @Test
+    public void test_long_body_is_stored_in_chunks() {
+        String body = body(3 * EventStoreEntry.INLINE_LENGTH);
+        for (BodyCodec codec : new BodyCodec[]{null, BodyCodec.NONE}) {
+            EventStoreEntry entry = new EventStoreEntry("DEFAULT", "STREAM", 1, 0, 0, "ID", body, codec);
+            assertEquals(entry.chunkCount(), 4, String.valueOf(codec));
+            assertEquals(entry.body(), body);
+            try {
+                entry.chunks();
+                fail("Should have failed by now");
+            } catch (IllegalStateException e) {
+                // expected, no id before the entry is persisted
+            }
+        }
+    }
+
+    @Test
+    public void test_unread_chunks() {
+        EventStoreEntry entry = new EventStoreEntry(
+                7l, "DEFAULT", "STREAM", 1, 0, 0, "ID", null, null, 2);
+        try {
+            entry.body();
+            fail("Should have failed by now");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+}
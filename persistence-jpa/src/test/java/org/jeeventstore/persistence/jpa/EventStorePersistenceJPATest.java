@@ -23,11 +23,14 @@ package org.jeeventstore.persistence.jpa;
 
 import org.jeeventstore.persistence.PersistenceTestHelper;
 import java.io.File;
+import javax.ejb.EJB;
 import javax.ejb.EJBTransactionRequiredException;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.spec.EnterpriseArchive;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
 import org.jeeventstore.StreamNotFoundException;
 import org.jeeventstore.TestUTF8Utils;
 import org.jeeventstore.persistence.AbstractPersistenceTest;
@@ -38,6 +41,9 @@ import org.testng.annotations.Test;
 
 public class EventStorePersistenceJPATest extends AbstractPersistenceTest {
 
+    @EJB(lookup = "java:global/test/ejb/JPATestHelper")
+    private JPATestHelper jpaTestHelper;
+
     @Deployment
     public static EnterpriseArchive deployment() {
         EnterpriseArchive ear = ShrinkWrap.create(EnterpriseArchive.class, "test.ear");
@@ -45,6 +51,7 @@ public class EventStorePersistenceJPATest extends AbstractPersistenceTest {
         ear.addAsModule(ShrinkWrap.create(JavaArchive.class, "ejb.jar")
                 .addAsManifestResource(new File("src/test/resources/META-INF/beans.xml"))
                 .addAsManifestResource(new File("src/test/resources/META-INF/persistence.xml"))
+                .addAsManifestResource(new File("src/main/sql/bucket-orm.xml"), "audit-orm.xml")
                 .addAsManifestResource(new File(
                         "src/test/resources/META-INF/ejb-jar-EventStorePersistenceJPATest.xml"),
                         "ejb-jar.xml")
@@ -73,4 +80,20 @@ public class EventStorePersistenceJPATest extends AbstractPersistenceTest {
         }
     }
 
+    @Test
+    public void test_oversized_event() {
+        getTestHelper().test_oversized_event();
+    }
+
+    @Test
+    public void test_persist_twice_in_transaction() throws ConcurrencyException, DuplicateCommitException {
+        jpaTestHelper.test_persist_twice_in_transaction();
+    }
+
+    @Test
+    public void test_partition() throws ConcurrencyException, DuplicateCommitException, StreamNotFoundException {
+        String streamId = jpaTestHelper.test_partition_write();
+        jpaTestHelper.test_partition_read(streamId);
+    }
+
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import javax.ejb.EJB;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.IteratorUtils;
+import static org.testng.Assert.*;
+
+/**
+ * Runs the tests that need to look at the tables of the JPA persistence
+ * within a single transaction.
+ */
+@Singleton
+@LocalBean
+public class JPATestHelper {
+
+    @EJB(lookup = "java:global/test/ejb/EventStorePersistence")
+    private EventStorePersistence persistence;
+
+    @PersistenceContext(unitName = "TestPU")
+    private EntityManager entityManager;
+
+    @PersistenceContext(unitName = "AuditPU")
+    private EntityManager auditEntityManager;
+
+    public void test_persist_twice_in_transaction() throws ConcurrencyException, DuplicateCommitException {
+        String bucketId = "HEAD";
+        String streamId = UUID.randomUUID().toString();
+        persistence.persistChanges(new DefaultChangeSet(bucketId, streamId, 1,
+                UUID.randomUUID().toString(), new ArrayList<Serializable>()));
+        assertEquals(persistence.streamVersion(bucketId, streamId), 1);
+        assertEquals(head(bucketId, streamId).changeSetCount(), 1);
+
+        persistence.persistChanges(new DefaultChangeSet(bucketId, streamId, 2,
+                UUID.randomUUID().toString(), new ArrayList<Serializable>()));
+        assertEquals(persistence.streamVersion(bucketId, streamId), 2);
+        assertEquals(head(bucketId, streamId).changeSetCount(), 2);
+        assertEquals(head(bucketId, streamId).streamVersion(), 2);
+    }
+
+    /**
+     * Writes a stream of the AUDIT bucket, which is stored in tables of its
+     * own, and checks that nothing went to the tables of the other buckets.
+     *
+     * @return  the identifier of the stream
+     */
+    public String test_partition_write() throws ConcurrencyException, DuplicateCommitException {
+        String streamId = UUID.randomUUID().toString();
+        persistence.persistChanges(changeSet("AUDIT", streamId, 1));
+        List<Exception> failures = persistence.persistBatch(Arrays.asList(
+                changeSet("AUDIT", streamId, 1),
+                changeSet("AUDIT", streamId, 2),
+                changeSet("AUDIT", streamId, 3)));
+        // found by the conflict query on the tables of the partition
+        assertTrue(failures.get(0) instanceof ConcurrencyException);
+        assertNull(failures.get(1));
+        assertNull(failures.get(2));
+
+        assertEquals(count(auditEntityManager, "AUDIT", streamId), 3);
+        assertEquals(count(entityManager, "AUDIT", streamId), 0);
+        StreamHead.Key key = new StreamHead.Key("AUDIT", streamId);
+        assertEquals(auditEntityManager.find(StreamHead.class, key).streamVersion(), 3);
+        assertNull(entityManager.find(StreamHead.class, key));
+        assertEquals(persistence.streamVersion("AUDIT", streamId), 3);
+        return streamId;
+    }
+
+    /**
+     * Reads the stream written by {@link #test_partition_write} in a later
+     * transaction, such that the batches read ahead see it.
+     */
+    public void test_partition_read(String streamId) throws StreamNotFoundException {
+        List<Long> versions = new ArrayList<>();
+        Iterator<ChangeSet> it = persistence.allChanges("AUDIT");
+        while (it.hasNext()) {
+            ChangeSet changeSet = it.next();
+            assertEquals(changeSet.bucketId(), "AUDIT");
+            if (changeSet.streamId().equals(streamId))
+                versions.add(changeSet.streamVersion());
+        }
+        assertEquals(versions, Arrays.asList(1l, 2l, 3l));
+        assertEquals(IteratorUtils.toList(persistence.getFrom("AUDIT", streamId, 1, Long.MAX_VALUE)).size(), 2);
+        assertFalse(persistence.existsStream("TEST", streamId));
+    }
+
+    private static long count(EntityManager em, String bucketId, String streamId) {
+        return em.createQuery("SELECT COUNT(e) FROM EventStoreEntry e"
+                + " WHERE e.bucketId = :bucketId AND e.streamId = :streamId", Long.class)
+                .setParameter("bucketId", bucketId)
+                .setParameter("streamId", streamId)
+                .getSingleResult();
+    }
+
+    private static ChangeSet changeSet(String bucketId, String streamId, long version) {
+        return new DefaultChangeSet(bucketId, streamId, version,
+                UUID.randomUUID().toString(), new ArrayList<Serializable>());
+    }
+
+    private StreamHead head(String bucketId, String streamId) {
+        return entityManager.find(StreamHead.class, new StreamHead.Key(bucketId, streamId));
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.StorageException;
+import org.jeeventstore.store.DefaultChangeSet;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LazyLoadIteratorTest {
+
+    private ExecutorService executor;
+
+    @BeforeMethod(alwaysRun = true)
+    public void init() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void test_readAhead_keeps_order() {
+        Source source = new Source(23, -1);
+        Iterator<ChangeSet> it = new LazyLoadIterator(source, 2).setFetchBatchSize(5);
+        long expected = 0;
+        while (it.hasNext()) {
+            assertEquals(it.next().streamVersion(), ++expected);
+            // never more than two batches beyond the one being consumed
+            assertTrue(source.requested <= (expected + 4) / 5 + 2, "requested: " + source.requested);
+        }
+        assertEquals(expected, 23);
+        assertEquals(source.requested, 5);
+    }
+
+    @Test
+    public void test_readAhead_empty() {
+        Source source = new Source(0, -1);
+        Iterator<ChangeSet> it = new LazyLoadIterator(source, 3).setFetchBatchSize(5);
+        assertFalse(it.hasNext());
+        assertEquals(source.requested, 1);
+    }
+
+    @Test
+    public void test_readAhead_failure() {
+        Iterator<ChangeSet> it = new LazyLoadIterator(new Source(20, 12), 1).setFetchBatchSize(5);
+        for (int i = 0; i < 10; i++)
+            it.next();
+        try {
+            while (it.hasNext())
+                it.next();
+            fail("Should have failed by now");
+        } catch (StorageException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Serves the versions 1..count of a single stream, failing to read
+     * the batch containing the given version.
+     */
+    private class Source implements LazyLoadIterator.BatchSource {
+
+        private final int count;
+        private final int failAt;
+        private volatile int requested = 0;
+
+        Source(int count, int failAt) {
+            this.count = count;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public Future<ChangeSetBatch> fetchBatch(final EventStoreEntry last, final int size) {
+            requested++;
+            return executor.submit(new Callable<ChangeSetBatch>() {
+                @Override
+                public ChangeSetBatch call() {
+                    long from = last == null ? 1 : last.streamVersion() + 1;
+                    long to = Math.min(count, from + size - 1);
+                    if (failAt >= from && failAt <= to)
+                        throw new StorageException("cannot read " + failAt);
+                    List<ChangeSet> changeSets = new ArrayList<>();
+                    for (long version = from; version <= to; version++)
+                        changeSets.add(new DefaultChangeSet("DEFAULT", "STREAM", version,
+                                "ID_" + version, new ArrayList<Serializable>()));
+                    EventStoreEntry entry = to < from ? last : new EventStoreEntry(
+                            "DEFAULT", "STREAM", to, 0, 0, "ID_" + to, "body", null);
+                    return new ChangeSetBatch(changeSets, entry, to < count);
+                }
+            });
+        }
+
+    }
+
+}
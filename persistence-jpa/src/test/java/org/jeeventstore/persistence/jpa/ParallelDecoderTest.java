@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.EventSerializer;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ParallelDecoderTest {
+
+    private ExecutorService executor;
+    private AtomicInteger chunks;
+
+    @BeforeMethod(alwaysRun = true)
+    public void init() {
+        executor = Executors.newFixedThreadPool(3);
+        chunks = new AtomicInteger();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void test_keeps_order() {
+        ParallelDecoder decoder = new ParallelDecoder(4, worker(), new Serializer());
+        List<ChangeSet> changeSets = decoder.decode(entries(101));
+        assertEquals(changeSets.size(), 101);
+        for (int i = 0; i < 101; i++) {
+            ChangeSet cs = changeSets.get(i);
+            assertEquals(cs.streamVersion(), i + 1);
+            assertEquals(cs.events().next(), "EVENT_" + (i + 1));
+            assertEquals(cs.checkpoint(), 1000 + i + 1);
+        }
+        // the calling thread takes one of the four chunks
+        assertEquals(chunks.get(), 3);
+    }
+
+    @Test
+    public void test_small_batches_stay_on_calling_thread() {
+        ParallelDecoder decoder = new ParallelDecoder(4, worker(), new Serializer());
+        assertEquals(decoder.decode(entries(ParallelDecoder.MIN_CHUNK_SIZE + 1)).size(),
+                ParallelDecoder.MIN_CHUNK_SIZE + 1);
+        assertEquals(decoder.decode(Collections.<EventStoreEntry>emptyList()).size(), 0);
+        assertEquals(chunks.get(), 0);
+    }
+
+    @Test
+    public void test_failing_chunk() {
+        Serializer serializer = new Serializer();
+        serializer.failOn = "EVENT_90";
+        ParallelDecoder decoder = new ParallelDecoder(4, worker(serializer), serializer);
+        try {
+            decoder.decode(entries(100));
+            fail("Should have failed by now");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private ParallelDecoder.Worker worker() {
+        return worker(new Serializer());
+    }
+
+    private ParallelDecoder.Worker worker(final EventSerializer serializer) {
+        return new ParallelDecoder.Worker() {
+            @Override
+            public Future<List<ChangeSet>> decode(final List<EventStoreEntry> entries) {
+                chunks.incrementAndGet();
+                return executor.submit(new Callable<List<ChangeSet>>() {
+                    @Override
+                    public List<ChangeSet> call() {
+                        return ChangeSetBatch.decode(entries, serializer);
+                    }
+                });
+            }
+        };
+    }
+
+    private static List<EventStoreEntry> entries(int count) {
+        List<EventStoreEntry> entries = new ArrayList<>();
+        for (int i = 1; i <= count; i++)
+            entries.add(new EventStoreEntry("DEFAULT", "STREAM", i, 0, 1000 + i,
+                    "ID_" + i, "EVENT_" + i, null));
+        return entries;
+    }
+
+    /**
+     * Takes the body as the only event.
+     */
+    private static class Serializer implements EventSerializer {
+
+        private String failOn = null;
+
+        @Override
+        public String serialize(List<? extends Serializable> events) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<? extends Serializable> deserialize(String body) {
+            if (body.equals(failOn))
+                throw new IllegalStateException("cannot deserialize " + body);
+            return Collections.singletonList(body);
+        }
+
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.UUID;
+import javax.ejb.EJB;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.IteratorUtils;
+import static org.testng.Assert.*;
+
+/**
+ * Runs the tests that check which persistence unit the
+ * {@link ReplicaPersistenceContextProvider} routes a call to.  The units
+ * are told apart by the property {@code jeeventstore.test.unit}.
+ */
+@Singleton
+@LocalBean
+public class ReplicaTestHelper {
+
+    @EJB(lookup = "java:global/test/ejb/EventStorePersistence")
+    private EventStorePersistence persistence;
+
+    /**
+     * Writes a stream to a new bucket, whose reads then go to the primary.
+     *
+     * @return  the identifier of the bucket, which is also that of the stream
+     */
+    public String test_reads_after_write_go_to_primary() throws ConcurrencyException, DuplicateCommitException {
+        PersistenceContextProvider provider = provider();
+        String bucketId = UUID.randomUUID().toString();
+        assertEquals(unit(provider.entityManagerForReading(bucketId)), "replica");
+        persistence.persistChanges(new DefaultChangeSet(bucketId, bucketId, 1,
+                UUID.randomUUID().toString(), new ArrayList<Serializable>()));
+        assertEquals(unit(provider.entityManagerForWriting(bucketId)), "primary");
+        assertEquals(unit(provider.entityManagerForReading(bucketId)), "primary");
+        return bucketId;
+    }
+
+    /**
+     * Reads the stream written by {@link #test_reads_after_write_go_to_primary}
+     * once the replication lag has passed, which is served by the replica.
+     */
+    public void test_reads_go_to_replica(String bucketId) throws StreamNotFoundException {
+        assertEquals(unit(provider().entityManagerForReading(bucketId)), "replica");
+        assertEquals(IteratorUtils.toList(persistence.getFrom(bucketId, bucketId, 0, Long.MAX_VALUE)).size(), 1);
+    }
+
+    private static PersistenceContextProvider provider() {
+        try {
+            // looked up, as the provider is only deployed by the replica test
+            return InitialContext.doLookup("java:global/test/ejb/ReplicaPersistenceContextProvider");
+        } catch (NamingException e) {
+            throw new IllegalStateException("Cannot look up the provider", e);
+        }
+    }
+
+    private static Object unit(EntityManager em) {
+        return em.getEntityManagerFactory().getProperties().get("jeeventstore.test.unit");
+    }
+
+}
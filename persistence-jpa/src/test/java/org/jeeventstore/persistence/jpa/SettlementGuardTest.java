@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.jpa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+public class SettlementGuardTest {
+
+    @Test
+    public void test_short_transaction_commits() {
+        Transaction tx = new Transaction();
+        SettlementGuard guard = new SettlementGuard(tx, 60000);
+        guard.watch();
+        guard.watch();
+        assertEquals(tx.synchronizations.size(), 1);
+        assertEquals(tx.complete(), Status.STATUS_COMMITTED);
+    }
+
+    @Test
+    public void test_long_transaction_is_rolled_back() throws Exception {
+        Transaction tx = new Transaction();
+        SettlementGuard guard = new SettlementGuard(tx, 20);
+        guard.watch();
+        Thread.sleep(guard.limitMillis() + 10);
+        // only the first write starts the watch
+        guard.watch();
+        assertEquals(tx.complete(), Status.STATUS_ROLLEDBACK);
+    }
+
+    @Test
+    public void test_disabled_guard_does_not_watch() throws Exception {
+        Transaction tx = new Transaction();
+        SettlementGuard guard = new SettlementGuard(tx, 0);
+        guard.watch();
+        assertTrue(tx.synchronizations.isEmpty());
+        assertEquals(tx.complete(), Status.STATUS_COMMITTED);
+    }
+
+    @Test
+    public void test_no_transaction() {
+        new SettlementGuard(null, 20).watch();
+        Transaction none = new Transaction();
+        none.key = null;
+        new SettlementGuard(none, 20).watch();
+        assertTrue(none.synchronizations.isEmpty());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_negative_settleMillis() {
+        new SettlementGuard(null, -1);
+    }
+
+    /**
+     * A transaction that runs the synchronizations on completion, as the
+     * transaction manager of the container does.
+     */
+    private static class Transaction implements TransactionSynchronizationRegistry {
+
+        private Object key = new Object();
+        private final Map<Object, Object> resources = new HashMap<>();
+        private final List<Synchronization> synchronizations = new ArrayList<>();
+        private boolean rollbackOnly = false;
+
+        int complete() {
+            for (Synchronization sync : synchronizations)
+                sync.beforeCompletion();
+            int status = rollbackOnly ? Status.STATUS_ROLLEDBACK : Status.STATUS_COMMITTED;
+            for (Synchronization sync : synchronizations)
+                sync.afterCompletion(status);
+            return status;
+        }
+
+        @Override
+        public Object getTransactionKey() {
+            return key;
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            resources.put(key, value);
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            return resources.get(key);
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization sync) {
+            synchronizations.add(sync);
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return rollbackOnly ? Status.STATUS_MARKED_ROLLBACK : Status.STATUS_ACTIVE;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            rollbackOnly = true;
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return rollbackOnly;
+        }
+
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bloom filter over the keys of a sorted run, such that point lookups
+ * can skip runs that do not contain the key without reading any block.
+ * With 10 bits per key, about 1% of the lookups for absent keys pass.
+ */
+final class BloomFilter {
+
+    static final int BITS_PER_KEY = 10;
+
+    private final long[] bits;
+    private final int hashes;
+
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param expectedKeys  the (maximum) number of keys to be added
+     */
+    static BloomFilter create(long expectedKeys) {
+        long bitCount = Math.max(64, expectedKeys * BITS_PER_KEY);
+        int longs = (int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) / 64);
+        // k = ln(2) * bits per key is optimal
+        return new BloomFilter(new long[longs], 7);
+    }
+
+    void add(byte[] key) {
+        long h = hash(key);
+        long h2 = Long.rotateLeft(h, 32) | 1;
+        long size = bits.length * 64l;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h + i * h2) & Long.MAX_VALUE) % size;
+            bits[(int) (bit >>> 6)] |= 1l << bit;
+        }
+    }
+
+    boolean mightContain(byte[] key) {
+        long h = hash(key);
+        long h2 = Long.rotateLeft(h, 32) | 1;
+        long size = bits.length * 64l;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h + i * h2) & Long.MAX_VALUE) % size;
+            if ((bits[(int) (bit >>> 6)] & (1l << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    int serializedSize() {
+        return 8 + bits.length * 8;
+    }
+
+    void writeTo(ByteBuffer buf) {
+        buf.putInt(hashes);
+        buf.putInt(bits.length);
+        for (long l : bits)
+            buf.putLong(l);
+    }
+
+    static BloomFilter readFrom(ByteBuffer buf) {
+        int hashes = buf.getInt();
+        long[] bits = new long[buf.getInt()];
+        buf.asLongBuffer().get(bits);
+        return new BloomFilter(bits, hashes);
+    }
+
+    /**
+     * 64-bit FNV-1a hash, finalized with the MurmurHash3 mix to spread the
+     * bits of similar keys.
+     */
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325l;
+        for (byte b : key)
+            h = (h ^ (b & 0xff)) * 0x100000001b3l;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdl;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53l;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventSerializer;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StorageException;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.PersistenceUtils;
+
+/**
+ * EventStorePersistence that stores the change sets in an embedded
+ * log-structured merge tree on the local disk, see {@link LSMTree}.
+ * To be configured as a singleton EJB.
+ * <p>
+ * Every change set is stored under a key made of (bucket, stream, version),
+ * so that {@link #getFrom} is a range scan over adjacent keys.  Additional
+ * small entries record the order of the change sets within each bucket for
+ * {@link #allChanges}, the change set ids in use and the most recent version
+ * of each stream.  The latter two are point lookups that are mostly
+ * answered by the bloom filters of the sorted runs without reading the disk.
+ * The order is given by a sequence number that is shared by all buckets
+ * and serves as {@link ChangeSet#checkpoint}; change sets read by
+ * {@link #getFrom} carry no checkpoint.
+ * <p>
+ * The time a change set is persisted never decreases with the sequence
+ * number, even if the clock is set back.  A time index of small entries
+ * made of (bucket, time, sequence number) lets {@link #changesBetween}
+ * look up the range of sequence numbers persisted within a time range,
+ * which is then read like {@link #allChangesSince}.
+ * {@link #streamVersionAt} reads the stream up to the requested time.
+ * <p>
+ * Similar to the file persistence, {@link #persistChanges} fails with a
+ * {@link ConcurrencyException} if the stream already contains a change set
+ * with the same or a higher version, and with a {@link DuplicateCommitException}
+ * if the bucket already contains a change set with the same id.
+ * Changes do not take part in transactions and are not rolled back.
+ * <p>
+ * The following EJBs and services are expected to be injected:
+ * <p>
+ * {@code serializer} of type {@link EventSerializer} denotes the serialization
+ *    strategy used to serialize objects before writing them to the tree
+ * <p>
+ * This EJB accepts the following configuration parameters:
+ * <p>
+ * Env-entry {@code directory} (required): The directory that holds the tree.
+ * <p>
+ * Env-entry {@code memTableSize} (optional, default: 4194304): The size in
+ *   bytes at which the in-memory table is flushed to disk.
+ * <p>
+ * Env-entry {@code mergeFactor} (optional, default: 4): The number of sorted
+ *   runs of similar size that are merged into one by compaction.
+ * <p>
+ * Env-entry {@code syncOnCommit} (optional, default: true): Whether every
+ *   change set is forced to the storage device before {@link #persistChanges}
+ *   returns.  Without it, a crash of the operating system may lose the most
+ *   recent change sets.
+ * <p>
+ * Env-entry {@code fetchBatchSize} (optional, default: 500): The number of
+ *   change sets that are read at once while iterating.
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class EventStorePersistenceLSM implements EventStorePersistence {
+
+    private static final Logger log = Logger.getLogger(EventStorePersistenceLSM.class.getName());
+
+    private static final byte STREAM = 's';
+    private static final byte COMMIT = 'c';
+    private static final byte CHANGE_SET = 'i';
+    private static final byte HEAD = 'h';
+    private static final byte TIME = 't';
+    private static final byte[] SEQUENCE_KEY = {'q'};
+    private static final int MAX_ID_LENGTH = 0xFFFF;
+
+    @EJB(name="serializer")
+    private EventSerializer serializer;
+
+    @Resource(name="directory")
+    private String directory;
+
+    @Resource(name="memTableSize")
+    private Integer memTableSize = 4 * 1024 * 1024;
+
+    @Resource(name="mergeFactor")
+    private Integer mergeFactor = 4;
+
+    @Resource(name="syncOnCommit")
+    private Boolean syncOnCommit = true;
+
+    @Resource(name="fetchBatchSize")
+    private Integer fetchBatchSize = 500;
+
+    private final Object writeLock = new Object();
+    private LSMTree tree;
+    private volatile long sequence;
+    private long lastPersistedAt = Long.MIN_VALUE;
+
+    /**
+     * Required for EJB, do not use.
+     */
+    public EventStorePersistenceLSM() { }
+
+    /**
+     * Creates a persistence outside of an EJB container.
+     * {@link #init()} must be called before use.
+     */
+    public EventStorePersistenceLSM(EventSerializer serializer, String directory,
+            int memTableSize, int mergeFactor, boolean syncOnCommit) {
+        this.serializer = serializer;
+        this.directory = directory;
+        this.memTableSize = memTableSize;
+        this.mergeFactor = mergeFactor;
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (serializer == null)
+            throw new IllegalStateException("No serializer has been injected");
+        if (directory == null || directory.isEmpty())
+            throw new IllegalStateException("No directory has been configured");
+
+        LSMTree t = new LSMTree(new File(directory), memTableSize, mergeFactor, syncOnCommit);
+        try {
+            t.open();
+            byte[] seq = t.get(SEQUENCE_KEY);
+            if (seq != null) {
+                // the last sequence number and the time it was persisted at
+                ByteBuffer buf = ByteBuffer.wrap(seq);
+                this.sequence = buf.getLong();
+                this.lastPersistedAt = buf.getLong();
+            }
+        } catch (IOException e) {
+            throw new StorageException("Cannot open tree in " + directory, e);
+        }
+        this.tree = t;
+        log.log(Level.INFO, "Opened event store tree in {0}, {1} change sets",
+                new Object[]{directory, Long.toString(sequence)});
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (writeLock) {
+            try {
+                tree.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error closing event store tree", e);
+            }
+        }
+    }
+
+    LSMTree tree() {
+        return tree;
+    }
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return get(headKey(bucketId, streamId)) != null;
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        byte[] head = get(headKey(bucketId, streamId));
+        return head == null ? 0 : ByteBuffer.wrap(head).getLong();
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        // versions are persisted in increasing order, and so are the times
+        byte[] from = streamKey(bucketId, streamId, Long.MIN_VALUE);
+        byte[] to = streamKey(bucketId, streamId, Long.MAX_VALUE);
+        long version = 0;
+        while (true) {
+            List<KeyValue> batch = tree.scan(from, to, fetchBatchSize);
+            for (KeyValue kv : batch) {
+                if (ByteBuffer.wrap(kv.value()).getLong() > timestamp)
+                    return version;
+                version = numberOf(kv.key());
+            }
+            if (batch.size() < fetchBatchSize)
+                return version;
+            from = KeyValue.successor(batch.get(batch.size() - 1).key());
+        }
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        return new CommitIterator(bucketId, 0, sequence);
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        long upTo = sequence;
+        if (checkpoint >= upTo)
+            return Collections.<ChangeSet>emptyIterator();
+        return new CommitIterator(bucketId, checkpoint, upTo);
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        long upTo = sequence;
+        long first = firstSequenceAt(bucketId, from);
+        long end = firstSequenceAt(bucketId, to);
+        long last = Math.min(upTo, end == 0 ? upTo : end - 1);
+        if (first == 0 || first > last)
+            return Collections.<ChangeSet>emptyIterator();
+        return new CommitIterator(bucketId, first - 1, last);
+    }
+
+    /**
+     * Looks up the sequence number of the first change set of the bucket
+     * persisted at or after the given time in the time index.
+     *
+     * @return  the sequence number, or {@code 0} if there is none
+     */
+    private long firstSequenceAt(String bucketId, long timestamp) {
+        List<KeyValue> first = tree.scan(
+                timeKey(bucketId, timestamp, Long.MIN_VALUE),
+                timeKey(bucketId, Long.MAX_VALUE, Long.MAX_VALUE), 1);
+        return first.isEmpty() ? 0 : numberOf(first.get(0).key());
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(
+            String bucketId, String streamId,
+            long minVersion, long maxVersion) throws StreamNotFoundException {
+
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        return new StreamIterator(bucketId, streamId, minVersion, maxVersion);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Starting from the head of the stream, the last {@code count} versions
+     * are read with a single range scan.  Only if the versions of the stream
+     * have gaps, the change sets before that range are scanned as well.
+     */
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+
+        byte[] head = get(headKey(bucketId, streamId));
+        if (head == null || count == 0)
+            return Collections.<ChangeSet>emptyIterator();
+        long latest = ByteBuffer.wrap(head).getLong();
+        long first = latest < Long.MIN_VALUE + count ? Long.MIN_VALUE : latest - count + 1;
+        List<KeyValue> range = tree.scan(
+                streamKey(bucketId, streamId, first), streamKey(bucketId, streamId, latest), count);
+
+        Deque<ChangeSet> changeSets = new ArrayDeque<>(count);
+        if (range.size() < count && first > Long.MIN_VALUE) {
+            Iterator<ChangeSet> before = new StreamIterator(bucketId, streamId, Long.MIN_VALUE, first - 1);
+            while (before.hasNext()) {
+                changeSets.addFirst(before.next());
+                if (changeSets.size() > count - range.size())
+                    changeSets.removeLast();
+            }
+        }
+        for (KeyValue kv : range)
+            changeSets.addFirst(toChangeSet(bucketId, streamId, numberOf(kv.key()), kv.value(), 0));
+        return changeSets.iterator();
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (changeSet == null)
+            throw new IllegalArgumentException("changeSet must not be null");
+
+        String bucketId = changeSet.bucketId();
+        String streamId = changeSet.streamId();
+        long version = changeSet.streamVersion();
+        byte[] streamKey = streamKey(bucketId, streamId, version);
+        byte[] body = createSerializedBody(changeSet).getBytes(StandardCharsets.UTF_8);
+        byte[] changeSetId = idBytes(changeSet.changeSetId(), "changeSetId");
+        byte[] changeSetKey = changeSetKey(bucketId, changeSet.changeSetId());
+        byte[] headKey = headKey(bucketId, streamId);
+        ByteBuffer value = ByteBuffer.allocate(8 + 2 + changeSetId.length + body.length);
+        value.putLong(0); // persistedAt, set below
+        value.putShort((short) changeSetId.length).put(changeSetId);
+        value.put(body);
+
+        synchronized (writeLock) {
+            if (get(changeSetKey) != null)
+                throw new DuplicateCommitException(String.format(
+                        "Duplicate change set %s in bucket %s",
+                        changeSet.changeSetId(), bucketId));
+            byte[] head = get(headKey);
+            // the head must only move forward, a writer that is behind the
+            // head of the stream has missed the latest changes anyway
+            if (head != null && version <= ByteBuffer.wrap(head).getLong())
+                throw new ConcurrencyException(String.format(
+                        "Stream %s/%s already contains version %d or later",
+                        bucketId, streamId, version));
+
+            long seq = sequence + 1;
+            long persistedAt = Math.max(System.currentTimeMillis(), lastPersistedAt);
+            value.putLong(0, persistedAt);
+            byte[] stream = idBytes(streamId, "streamId");
+            ByteBuffer commit = ByteBuffer.allocate(2 + stream.length + 8);
+            commit.putShort((short) stream.length).put(stream).putLong(version);
+
+            // the change set itself comes first, readers that find the other
+            // entries are thus guaranteed to find the change set as well
+            List<KeyValue> batch = new ArrayList<>(6);
+            batch.add(new KeyValue(streamKey, value.array()));
+            batch.add(new KeyValue(headKey, ByteBuffer.allocate(8).putLong(version).array()));
+            batch.add(new KeyValue(changeSetKey, new byte[0]));
+            batch.add(new KeyValue(commitKey(bucketId, seq), commit.array()));
+            batch.add(new KeyValue(timeKey(bucketId, persistedAt, seq), new byte[0]));
+            batch.add(new KeyValue(SEQUENCE_KEY, ByteBuffer.allocate(16).putLong(seq).putLong(persistedAt).array()));
+            try {
+                tree.write(batch);
+            } catch (IOException e) {
+                throw new StorageException("Cannot write to event store tree", e);
+            }
+            sequence = seq;
+            lastPersistedAt = persistedAt;
+            log.log(Level.FINE, "wrote ChangeSet {0} to event store tree", changeSet.changeSetId());
+        }
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        return PersistenceUtils.persistEach(this, changeSets);
+    }
+
+    protected String createSerializedBody(ChangeSet changeSet) {
+        List<Serializable> list = new ArrayList<>();
+        Iterator<Serializable> it = changeSet.events();
+        while (it.hasNext())
+            list.add(it.next());
+        return serializer.serialize(list);
+    }
+
+    private byte[] get(byte[] key) {
+        try {
+            return tree.get(key);
+        } catch (IOException e) {
+            throw new StorageException("Cannot read from event store tree", e);
+        }
+    }
+
+    private ChangeSet toChangeSet(String bucketId, String streamId, long version, byte[] value, long checkpoint) {
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        buf.getLong(); // persistedAt
+        String changeSetId = readId(buf);
+        String body = new String(value, buf.position(), buf.remaining(), StandardCharsets.UTF_8);
+        List<? extends Serializable> events = serializer.deserialize(body);
+        return new DefaultChangeSet(bucketId, streamId, version, changeSetId, events, checkpoint);
+    }
+
+    private static byte[] streamKey(String bucketId, String streamId, long version) {
+        return key(STREAM, bucketId, streamId, version);
+    }
+
+    private static byte[] headKey(String bucketId, String streamId) {
+        return key(HEAD, bucketId, streamId, null);
+    }
+
+    private static byte[] changeSetKey(String bucketId, String changeSetId) {
+        return key(CHANGE_SET, bucketId, changeSetId, null);
+    }
+
+    private static byte[] commitKey(String bucketId, long sequence) {
+        return key(COMMIT, bucketId, null, sequence);
+    }
+
+    /**
+     * Builds a key of the time index, ordered by time and sequence number.
+     * The sequence number is found by {@link #numberOf}.
+     */
+    private static byte[] timeKey(String bucketId, long persistedAt, long sequence) {
+        byte[] prefix = key(TIME, bucketId, null, persistedAt);
+        return ByteBuffer.allocate(prefix.length + 8)
+                .put(prefix)
+                .putLong(sequence ^ Long.MIN_VALUE)
+                .array();
+    }
+
+    /**
+     * Builds a key of a type byte, length-prefixed UTF-8 identifiers and an
+     * optional number, such that keys sharing the identifiers are ordered
+     * by the number.
+     */
+    private static byte[] key(byte type, String first, String second, Long number) {
+        byte[] a = idBytes(first, "bucketId");
+        byte[] b = second == null ? null : idBytes(second, "id");
+        ByteBuffer buf = ByteBuffer.allocate(1 + 2 + a.length
+                + (b == null ? 0 : 2 + b.length) + (number == null ? 0 : 8));
+        buf.put(type);
+        buf.putShort((short) a.length).put(a);
+        if (b != null)
+            buf.putShort((short) b.length).put(b);
+        if (number != null)
+            buf.putLong(number ^ Long.MIN_VALUE); // order negative numbers first
+        return buf.array();
+    }
+
+    private static long numberOf(byte[] key) {
+        return ByteBuffer.wrap(key, key.length - 8, 8).getLong() ^ Long.MIN_VALUE;
+    }
+
+    private static byte[] idBytes(String id, String name) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_ID_LENGTH)
+            throw new IllegalArgumentException(name + " is too long");
+        return bytes;
+    }
+
+    private static String readId(ByteBuffer buf) {
+        int length = buf.getShort() & MAX_ID_LENGTH;
+        String id = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return id;
+    }
+
+    /**
+     * Reads a range of keys in batches of {@code fetchBatchSize}, each
+     * batch starting right after the last key of the previous one.
+     */
+    private abstract class BatchIterator implements Iterator<ChangeSet> {
+
+        private byte[] from;
+        private final byte[] to;
+        private Iterator<KeyValue> batch = null;
+        private boolean exhausted = false;
+
+        BatchIterator(byte[] from, byte[] to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batch != null && batch.hasNext())
+                return true;
+            if (exhausted)
+                return false;
+            List<KeyValue> list = tree.scan(from, to, fetchBatchSize);
+            exhausted = list.size() < fetchBatchSize;
+            if (!list.isEmpty())
+                from = KeyValue.successor(list.get(list.size() - 1).key());
+            batch = list.iterator();
+            return batch.hasNext();
+        }
+
+        @Override
+        public ChangeSet next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No next ChangeSet");
+            return toChangeSet(batch.next());
+        }
+
+        protected abstract ChangeSet toChangeSet(KeyValue kv);
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+    private class StreamIterator extends BatchIterator {
+
+        private final String bucketId;
+        private final String streamId;
+
+        StreamIterator(String bucketId, String streamId, long minVersion, long maxVersion) {
+            super(minVersion == Long.MAX_VALUE
+                    ? KeyValue.successor(streamKey(bucketId, streamId, Long.MAX_VALUE))
+                    : streamKey(bucketId, streamId, minVersion + 1),
+                    streamKey(bucketId, streamId, maxVersion));
+            this.bucketId = bucketId;
+            this.streamId = streamId;
+        }
+
+        @Override
+        protected ChangeSet toChangeSet(KeyValue kv) {
+            // the sequence is only recorded in the commit entry, not next to the change set
+            return EventStorePersistenceLSM.this.toChangeSet(bucketId, streamId, numberOf(kv.key()), kv.value(), 0);
+        }
+
+    }
+
+    /**
+     * Iterates over the change sets of a bucket in the order they were
+     * persisted, from the given sequence number (exclusive) up to the change
+     * sets persisted before the iterator was created.
+     */
+    private class CommitIterator extends BatchIterator {
+
+        private final String bucketId;
+
+        CommitIterator(String bucketId, long after, long upTo) {
+            super(commitKey(bucketId, after + 1), commitKey(bucketId, upTo));
+            this.bucketId = bucketId;
+        }
+
+        @Override
+        protected ChangeSet toChangeSet(KeyValue kv) {
+            ByteBuffer commit = ByteBuffer.wrap(kv.value());
+            String streamId = readId(commit);
+            long version = commit.getLong();
+            byte[] value = get(streamKey(bucketId, streamId, version));
+            if (value == null)
+                throw new StorageException(String.format(
+                        "Change set %s/%s/%d is missing", bucketId, streamId, version));
+            return EventStorePersistenceLSM.this.toChangeSet(bucketId, streamId, version, value, numberOf(kv.key()));
+        }
+
+    }
+
+}
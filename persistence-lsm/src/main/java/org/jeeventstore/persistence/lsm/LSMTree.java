@@ -0,0 +1,521 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A log-structured merge tree of byte string keys and values, stored in
+ * a single directory.
+ * <p>
+ * Writes go to the write-ahead log and to the active {@link MemTable}.
+ * When the memtable is full, it is replaced by an empty one and flushed to
+ * a new {@link SortedRun} in the background.  Writes only wait if the
+ * previous memtable is still being flushed, so the write throughput does
+ * not depend on the amount of data in the tree.
+ * <p>
+ * Runs are compacted in the background using size-tiered compaction:
+ * flushed runs start in tier 0, and as soon as a tier holds
+ * {@code mergeFactor} runs, they are merged into a single run of the next
+ * tier.  Every entry is thus rewritten once per tier, that is, a logarithmic
+ * number of times, and the number of runs stays logarithmic in the size of
+ * the tree.  As the runs of a tier are always adjacent in age, a merged run
+ * replaces them in place, and newer runs keep precedence for equal keys.
+ * <p>
+ * Writes must be synchronized by the caller if they depend on previous
+ * reads.  Reads are thread-safe and never block: they work on a snapshot
+ * of the tree, whose runs are kept open until the read is done.
+ */
+final class LSMTree implements Closeable {
+
+    private static final Logger log = Logger.getLogger(LSMTree.class.getName());
+
+    private final File directory;
+    private final long memTableSize;
+    private final int mergeFactor;
+    private final boolean syncOnWrite;
+
+    private volatile State state;
+    private WriteAheadLog wal;
+    private long logNumber;
+    private long nextFileNumber;
+    private boolean compacting = false;
+    private volatile boolean closed = false;
+    private Throwable backgroundError = null;
+    private Throwable walError = null;
+    private ExecutorService flusher;
+    private ExecutorService compactor;
+
+    /**
+     * @param directory  the directory that holds the files of the tree
+     * @param memTableSize  the size in bytes at which a memtable is flushed
+     * @param mergeFactor  the number of runs per tier that triggers a compaction
+     * @param syncOnWrite  whether every write is forced to the storage device
+     */
+    LSMTree(File directory, long memTableSize, int mergeFactor, boolean syncOnWrite) {
+        if (mergeFactor < 2)
+            throw new IllegalArgumentException("mergeFactor must be at least 2");
+        this.directory = directory;
+        this.memTableSize = memTableSize;
+        this.mergeFactor = mergeFactor;
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    /**
+     * Opens the tree.  Write-ahead logs that have not been flushed before
+     * the tree was last closed are flushed right away, files that do not
+     * belong to the tree are deleted.
+     */
+    synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+        Manifest manifest = Manifest.read(directory);
+
+        List<SortedRun> runs = new ArrayList<>();
+        Set<Long> live = new HashSet<>();
+        long maxNumber = manifest.logNumber();
+        for (long[] r : manifest.runs()) {
+            runs.add(SortedRun.open(runFile(r[0]), r[0], (int) r[1]));
+            live.add(r[0]);
+            maxNumber = Math.max(maxNumber, r[0]);
+        }
+        List<Long> logs = new ArrayList<>();
+        for (File f : directory.listFiles()) {
+            String name = f.getName();
+            if (name.matches("\\d{20}\\.(run|wal)")) {
+                long number = Long.parseLong(name.substring(0, 20));
+                maxNumber = Math.max(maxNumber, number);
+                if (name.endsWith(".wal") && number >= manifest.logNumber())
+                    logs.add(number);
+                else if (!live.contains(number))
+                    delete(f); // already flushed, or left over from an interrupted flush or compaction
+            } else if (name.endsWith(".tmp")) {
+                delete(f);
+            }
+        }
+        Collections.sort(logs);
+        nextFileNumber = maxNumber + 1;
+
+        if (!logs.isEmpty()) {
+            MemTable recovered = new MemTable(logs.get(0));
+            for (long number : logs)
+                if (!WriteAheadLog.replay(walFile(number), recovered))
+                    log.log(Level.WARNING, "Discarded incomplete record at the end of {0}", walFile(number));
+            if (!recovered.isEmpty())
+                runs.add(writeRun(recovered));
+        }
+        logNumber = nextFileNumber++;
+        new Manifest(logNumber, describe(runs)).write(directory);
+        for (long number : logs)
+            delete(walFile(number));
+
+        wal = new WriteAheadLog(walFile(logNumber));
+        state = new State(new MemTable(logNumber), null, Collections.unmodifiableList(runs));
+        flusher = Executors.newSingleThreadExecutor(new NamedThreadFactory("flush"));
+        compactor = Executors.newSingleThreadExecutor(new NamedThreadFactory("compaction"));
+        log.log(Level.FINE, "Opened tree in {0} with {1} runs",
+                new Object[]{directory, Integer.toString(runs.size())});
+        scheduleCompaction();
+    }
+
+    /**
+     * Writes a batch of entries atomically.  Entries replace existing
+     * entries with the same key.  If the write-ahead log cannot be written
+     * and may have been left with a partial or unsynced record, the tree
+     * refuses all further writes.
+     */
+    synchronized void write(List<KeyValue> batch) throws IOException {
+        checkUsable();
+        if (state.active.bytes() >= memTableSize) {
+            while (state.flushing != null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the memtable to be flushed");
+                }
+                checkUsable();
+            }
+            rotate();
+        }
+        try {
+            wal.append(batch);
+            if (syncOnWrite)
+                wal.sync();
+        } catch (IOException e) {
+            if (!wal.intact()) {
+                log.log(Level.SEVERE, "Cannot write the write-ahead log of " + directory, e);
+                walError = e;
+            }
+            throw e;
+        }
+        MemTable active = state.active;
+        for (KeyValue kv : batch)
+            active.put(kv.key(), kv.value());
+    }
+
+    /**
+     * Looks up a single key.
+     *
+     * @return  the value, or {@code null} if the tree does not contain the key
+     */
+    byte[] get(byte[] key) throws IOException {
+        State s = acquire();
+        try {
+            byte[] value = s.active.get(key);
+            if (value == null && s.flushing != null)
+                value = s.flushing.get(key);
+            for (int i = s.runs.size() - 1; value == null && i >= 0; i--)
+                value = s.runs.get(i).get(key);
+            return value;
+        } finally {
+            release(s);
+        }
+    }
+
+    /**
+     * Gets the entries between {@code from} and {@code to} (both inclusive)
+     * in key order.
+     *
+     * @param limit  the maximum number of entries to return
+     */
+    List<KeyValue> scan(byte[] from, byte[] to, int limit) {
+        if (KeyValue.compare(from, to) > 0)
+            return Collections.emptyList();
+        State s = acquire();
+        try {
+            List<Iterator<KeyValue>> sources = new ArrayList<>();
+            sources.add(s.active.iterator(from, to));
+            if (s.flushing != null)
+                sources.add(s.flushing.iterator(from, to));
+            for (int i = s.runs.size() - 1; i >= 0; i--)
+                if (s.runs.get(i).overlaps(from, to))
+                    sources.add(s.runs.get(i).iterator(from));
+            Iterator<KeyValue> it = new MergingIterator(sources);
+            List<KeyValue> result = new ArrayList<>();
+            while (result.size() < limit && it.hasNext()) {
+                KeyValue kv = it.next();
+                if (KeyValue.compare(kv.key(), to) > 0)
+                    break;
+                result.add(kv);
+            }
+            return result;
+        } finally {
+            release(s);
+        }
+    }
+
+    /**
+     * Gets the number of sorted runs.
+     */
+    int runCount() {
+        return state.runs.size();
+    }
+
+    /**
+     * Waits until no flush or compaction is pending.  Used by tests.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while ((state.flushing != null || compacting) && backgroundError == null && !closed)
+            wait();
+    }
+
+    /**
+     * Stops the background work and closes all files.  Entries that have
+     * not been flushed yet remain in the write-ahead log and are restored
+     * when the tree is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed || state == null)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            wal.close();
+            for (SortedRun run : state.runs)
+                run.close();
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (closed)
+            throw new IllegalStateException("Tree in " + directory + " has been closed");
+        if (backgroundError != null)
+            throw new IOException("Flushing the memtable failed", backgroundError);
+        if (walError != null)
+            throw new IOException("Writing the write-ahead log failed", walError);
+    }
+
+    private void rotate() throws IOException {
+        long number = nextFileNumber++;
+        WriteAheadLog next = new WriteAheadLog(walFile(number));
+        wal.close();
+        wal = next;
+        final MemTable full = state.active;
+        state = new State(new MemTable(number), full, state.runs);
+        flusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush(full);
+            }
+        });
+    }
+
+    private void flush(MemTable memTable) {
+        try {
+            SortedRun run = writeRun(memTable);
+            synchronized (this) {
+                List<SortedRun> runs = new ArrayList<>(state.runs);
+                runs.add(run);
+                logNumber = state.active.logNumber();
+                new Manifest(logNumber, describe(runs)).write(directory);
+                state = new State(state.active, null, Collections.unmodifiableList(runs));
+                scheduleCompaction();
+                notifyAll();
+            }
+            delete(walFile(memTable.logNumber()));
+            log.log(Level.FINE, "Flushed {0} entries to run #{1}",
+                    new Object[]{Integer.toString(memTable.size()), Long.toString(run.number())});
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Cannot flush memtable of " + directory, e);
+            synchronized (this) {
+                backgroundError = e;
+                notifyAll();
+            }
+        }
+    }
+
+    private SortedRun writeRun(MemTable memTable) throws IOException {
+        long number;
+        synchronized (this) {
+            number = nextFileNumber++;
+        }
+        File file = runFile(number);
+        SortedRunWriter writer = new SortedRunWriter(file, memTable.size());
+        try {
+            Iterator<KeyValue> it = memTable.iterator();
+            while (it.hasNext()) {
+                KeyValue kv = it.next();
+                writer.add(kv.key(), kv.value());
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+        return SortedRun.open(file, number, 0);
+    }
+
+    private synchronized void scheduleCompaction() {
+        if (compacting || closed || backgroundError != null)
+            return;
+        final List<SortedRun> group = pickCompaction(state.runs);
+        if (group == null)
+            return;
+        compacting = true;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(group);
+            }
+        });
+    }
+
+    /**
+     * Picks the runs of the lowest tier that holds {@code mergeFactor} runs.
+     * Tiers do not increase from the oldest to the newest run, so the runs
+     * of a tier are adjacent.
+     */
+    private List<SortedRun> pickCompaction(List<SortedRun> runs) {
+        int end = runs.size();
+        while (end > 0) {
+            int tier = runs.get(end - 1).tier();
+            int start = end - 1;
+            while (start > 0 && runs.get(start - 1).tier() == tier)
+                start--;
+            if (end - start >= mergeFactor)
+                return new ArrayList<>(runs.subList(start, end));
+            end = start;
+        }
+        return null;
+    }
+
+    private void compact(List<SortedRun> group) {
+        boolean done = false;
+        try {
+            List<Iterator<KeyValue>> sources = new ArrayList<>();
+            long expectedKeys = 0;
+            for (int i = group.size() - 1; i >= 0; i--) {
+                sources.add(group.get(i).iterator());
+                expectedKeys += group.get(i).entries();
+            }
+            long number;
+            synchronized (this) {
+                number = nextFileNumber++;
+            }
+            File file = runFile(number);
+            SortedRunWriter writer = new SortedRunWriter(file, expectedKeys);
+            try {
+                Iterator<KeyValue> it = new MergingIterator(sources);
+                while (it.hasNext()) {
+                    if (closed) {
+                        writer.abort();
+                        return;
+                    }
+                    KeyValue kv = it.next();
+                    writer.add(kv.key(), kv.value());
+                }
+                writer.finish();
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+            SortedRun merged = SortedRun.open(file, number, group.get(0).tier() + 1);
+            synchronized (this) {
+                List<SortedRun> runs = new ArrayList<>(state.runs);
+                int index = runs.indexOf(group.get(0));
+                runs.subList(index, index + group.size()).clear();
+                runs.add(index, merged);
+                new Manifest(logNumber, describe(runs)).write(directory);
+                state = new State(state.active, state.flushing, Collections.unmodifiableList(runs));
+            }
+            for (SortedRun run : group)
+                run.retire();
+            log.log(Level.FINE, "Merged {0} runs into run #{1} of tier {2}", new Object[]{
+                Integer.toString(group.size()), Long.toString(number), Integer.toString(merged.tier())});
+            done = true;
+        } catch (IOException | RuntimeException e) {
+            // the tree remains usable, only reads get slower
+            log.log(Level.SEVERE, "Cannot compact runs of " + directory, e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                if (done)
+                    scheduleCompaction();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gets the current state and acquires all of its runs.
+     */
+    private State acquire() {
+        while (true) {
+            State s = state;
+            int acquired = 0;
+            while (acquired < s.runs.size() && s.runs.get(acquired).acquire())
+                acquired++;
+            if (acquired == s.runs.size())
+                return s;
+            // a run has been retired in the meantime, so the state has changed
+            for (int i = 0; i < acquired; i++)
+                s.runs.get(i).release();
+        }
+    }
+
+    private static void release(State s) {
+        for (SortedRun run : s.runs)
+            run.release();
+    }
+
+    private static List<long[]> describe(List<SortedRun> runs) {
+        List<long[]> result = new ArrayList<>();
+        for (SortedRun run : runs)
+            result.add(new long[]{run.number(), run.tier()});
+        return result;
+    }
+
+    private File runFile(long number) {
+        return new File(directory, SortedRun.fileName(number));
+    }
+
+    private File walFile(long number) {
+        return new File(directory, WriteAheadLog.fileName(number));
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete())
+            throw new IOException("Cannot delete " + file);
+    }
+
+    /**
+     * The memtables and runs that make up the tree at a point in time.
+     */
+    private static final class State {
+
+        private final MemTable active;
+        private final MemTable flushing;
+        private final List<SortedRun> runs;
+
+        State(MemTable active, MemTable flushing, List<SortedRun> runs) {
+            this.active = active;
+            this.flushing = flushing;
+            this.runs = runs;
+        }
+
+    }
+
+    private class NamedThreadFactory implements ThreadFactory {
+
+        private final String purpose;
+
+        NamedThreadFactory(String purpose) {
+            this.purpose = purpose;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jeeventstore-lsm-" + purpose + " " + directory.getName());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+}
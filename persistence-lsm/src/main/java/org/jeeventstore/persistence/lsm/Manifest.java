@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records which files make up the tree: the sorted runs, oldest first,
+ * and the number of the oldest write-ahead log that has not been flushed.
+ * The manifest is replaced atomically, so it always describes a
+ * consistent tree, and files not listed in it can safely be deleted.
+ */
+final class Manifest {
+
+    static final String FILE_NAME = "MANIFEST";
+    private static final String MAGIC = "JEESLSM1";
+
+    private final long logNumber;
+    private final List<long[]> runs;
+
+    /**
+     * @param logNumber  write-ahead logs with a lower number have been flushed
+     * @param runs  (number, tier) of each run, oldest first
+     */
+    Manifest(long logNumber, List<long[]> runs) {
+        this.logNumber = logNumber;
+        this.runs = Collections.unmodifiableList(runs);
+    }
+
+    long logNumber() {
+        return logNumber;
+    }
+
+    List<long[]> runs() {
+        return runs;
+    }
+
+    /**
+     * Reads the manifest of a directory.
+     *
+     * @return  the manifest, or an empty one if the directory does not contain a manifest
+     */
+    static Manifest read(File directory) throws IOException {
+        File file = new File(directory, FILE_NAME);
+        List<long[]> runs = new ArrayList<>();
+        if (!file.isFile())
+            return new Manifest(0, runs);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!MAGIC.equals(reader.readLine()))
+                throw new IOException("Not a manifest: " + file);
+            long logNumber = Long.parseLong(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                String[] parts = line.split(" ");
+                runs.add(new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+            }
+            return new Manifest(logNumber, runs);
+        }
+    }
+
+    void write(File directory) throws IOException {
+        File tmp = new File(directory, FILE_NAME + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(MAGIC + "\n" + logNumber + "\n");
+            for (long[] run : runs)
+                writer.write(run[0] + " " + run[1] + "\n");
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(directory, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
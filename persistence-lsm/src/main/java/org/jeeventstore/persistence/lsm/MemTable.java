@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory part of the tree that receives all writes.
+ * Its entries are also found in the write-ahead log with the same number,
+ * until the memtable has been flushed to a sorted run.
+ * <p>
+ * Writes must be synchronized by the caller, reads are thread-safe.
+ */
+final class MemTable {
+
+    /** Rough per-entry overhead of the skip list, in bytes. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long logNumber;
+    private final ConcurrentSkipListMap<byte[], byte[]> entries = new ConcurrentSkipListMap<>(KeyValue.KEY_ORDER);
+    private final AtomicLong bytes = new AtomicLong();
+
+    MemTable(long logNumber) {
+        this.logNumber = logNumber;
+    }
+
+    long logNumber() {
+        return logNumber;
+    }
+
+    void put(byte[] key, byte[] value) {
+        byte[] old = entries.put(key, value);
+        bytes.addAndGet(old == null
+                ? key.length + value.length + ENTRY_OVERHEAD
+                : value.length - old.length);
+    }
+
+    byte[] get(byte[] key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Gets the approximate memory used by the entries.
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Iterates over the entries between {@code from} and {@code to}, both inclusive.
+     */
+    Iterator<KeyValue> iterator(byte[] from, byte[] to) {
+        return new EntryIterator(entries.subMap(from, true, to, true));
+    }
+
+    Iterator<KeyValue> iterator() {
+        return new EntryIterator(entries);
+    }
+
+    private static class EntryIterator implements Iterator<KeyValue> {
+
+        private final Iterator<Map.Entry<byte[], byte[]>> it;
+
+        EntryIterator(NavigableMap<byte[], byte[]> map) {
+            this.it = map.entrySet().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public KeyValue next() {
+            Map.Entry<byte[], byte[]> e = it.next();
+            return new KeyValue(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+}
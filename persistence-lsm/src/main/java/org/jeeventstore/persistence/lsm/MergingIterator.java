@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted iterators into a single sorted iterator.  If several
+ * sources contain the same key, only the entry of the newest source is
+ * returned.
+ */
+final class MergingIterator implements Iterator<KeyValue> {
+
+    private final PriorityQueue<Source> queue;
+
+    /**
+     * @param sources  the sources, newest first
+     */
+    MergingIterator(List<Iterator<KeyValue>> sources) {
+        this.queue = new PriorityQueue<>(Math.max(1, sources.size()));
+        int rank = 0;
+        for (Iterator<KeyValue> it : sources) {
+            if (it.hasNext())
+                queue.add(new Source(it, rank));
+            rank++;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public KeyValue next() {
+        Source source = queue.poll();
+        if (source == null)
+            throw new NoSuchElementException("No next entry");
+        KeyValue result = source.current;
+        advance(source);
+        // drop older versions of the same key
+        while (!queue.isEmpty() && KeyValue.compare(queue.peek().current.key(), result.key()) == 0)
+            advance(queue.poll());
+        return result;
+    }
+
+    private void advance(Source source) {
+        if (source.it.hasNext()) {
+            source.current = source.it.next();
+            queue.add(source);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    private static final class Source implements Comparable<Source> {
+
+        private final Iterator<KeyValue> it;
+        private final int rank;
+        private KeyValue current;
+
+        Source(Iterator<KeyValue> it, int rank) {
+            this.it = it;
+            this.rank = rank;
+            this.current = it.next();
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            int c = KeyValue.compare(current.key(), other.current.key());
+            return c != 0 ? c : Integer.compare(rank, other.rank);
+        }
+
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jeeventstore.StorageException;
+
+/**
+ * An immutable, sorted file of entries as written by {@link SortedRunWriter}.
+ * <p>
+ * The block index and the bloom filter are kept on the heap, the data
+ * blocks are read on demand, relying on the page cache of the operating
+ * system.  A point lookup reads at most one block, and none at all if the
+ * bloom filter rules the key out.
+ * <p>
+ * Runs are reference counted: the tree holds one reference while the run
+ * is live, and every reader holds one while it accesses the run.  A run
+ * that has been replaced by compaction is deleted once the last reader
+ * has released it.
+ */
+final class SortedRun implements Closeable {
+
+    private final long number;
+    private final int tier;
+    private final File file;
+    private final FileChannel channel;
+    private final byte[][] firstKeys;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final byte[] lastKey;
+    private final BloomFilter bloom;
+    private final long entries;
+    private final long size;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean obsolete = false;
+
+    private SortedRun(long number, int tier, File file, FileChannel channel,
+            byte[][] firstKeys, long[] offsets, int[] lengths,
+            byte[] lastKey, BloomFilter bloom, long entries, long size) {
+
+        this.number = number;
+        this.tier = tier;
+        this.file = file;
+        this.channel = channel;
+        this.firstKeys = firstKeys;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.lastKey = lastKey;
+        this.bloom = bloom;
+        this.entries = entries;
+        this.size = size;
+    }
+
+    static SortedRun open(File file, long number, int tier) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < SortedRunWriter.FOOTER_SIZE)
+                throw new IOException("Run file " + file + " is truncated");
+            ByteBuffer footer = read(channel, size - SortedRunWriter.FOOTER_SIZE, SortedRunWriter.FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long entries = footer.getLong();
+            if (footer.getLong() != SortedRunWriter.MAGIC)
+                throw new IOException("Run file " + file + " is damaged");
+
+            ByteBuffer index = read(channel, indexOffset, (int) (bloomOffset - indexOffset));
+            int count = index.getInt();
+            byte[][] firstKeys = new byte[count][];
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                firstKeys[i] = new byte[index.getInt()];
+                index.get(firstKeys[i]);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+            byte[] lastKey = new byte[index.getInt()];
+            index.get(lastKey);
+            BloomFilter bloom = BloomFilter.readFrom(read(channel, bloomOffset,
+                    (int) (size - SortedRunWriter.FOOTER_SIZE - bloomOffset)));
+            return new SortedRun(number, tier, file, channel, firstKeys, offsets, lengths,
+                    lastKey, bloom, entries, size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static String fileName(long number) {
+        return String.format("%020d.run", number);
+    }
+
+    long number() {
+        return number;
+    }
+
+    int tier() {
+        return tier;
+    }
+
+    long entries() {
+        return entries;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Looks up a single key.
+     *
+     * @return  the value, or {@code null} if the run does not contain the key
+     */
+    byte[] get(byte[] key) throws IOException {
+        if (!bloom.mightContain(key))
+            return null;
+        int b = blockFor(key);
+        if (b < 0)
+            return null;
+        ByteBuffer block = read(channel, offsets[b], lengths[b]);
+        while (block.hasRemaining()) {
+            byte[] k = new byte[block.getInt()];
+            int valueLength = block.getInt();
+            block.get(k);
+            int c = KeyValue.compare(k, key);
+            if (c == 0) {
+                byte[] value = new byte[valueLength];
+                block.get(value);
+                return value;
+            }
+            if (c > 0)
+                return null;
+            block.position(block.position() + valueLength);
+        }
+        return null;
+    }
+
+    /**
+     * Tests whether the run may contain keys between {@code from} and
+     * {@code to} (both inclusive).
+     */
+    boolean overlaps(byte[] from, byte[] to) {
+        return firstKeys.length > 0
+                && KeyValue.compare(firstKeys[0], to) <= 0
+                && KeyValue.compare(lastKey, from) >= 0;
+    }
+
+    /**
+     * Iterates over all entries starting with the first key that is equal
+     * to or greater than {@code from}.  The caller must hold a reference
+     * until the iterator is no longer used.
+     */
+    Iterator<KeyValue> iterator(byte[] from) {
+        return new RunIterator(Math.max(0, blockFor(from)), from);
+    }
+
+    Iterator<KeyValue> iterator() {
+        return new RunIterator(0, null);
+    }
+
+    /**
+     * Acquires a reference for reading.
+     *
+     * @return  false if the run has already been closed
+     */
+    boolean acquire() {
+        while (true) {
+            int current = references.get();
+            if (current == 0)
+                return false;
+            if (references.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            if (obsolete)
+                file.delete();
+        }
+    }
+
+    /**
+     * Releases the reference of the tree and deletes the file as soon as
+     * it is no longer read.
+     */
+    void retire() {
+        obsolete = true;
+        release();
+    }
+
+    /**
+     * Releases the reference of the tree, keeping the file.
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * Finds the last block whose first key is not greater than {@code key}.
+     *
+     * @return  the block, or -1 if the key is smaller than all keys in the run
+     */
+    private int blockFor(byte[] key) {
+        int low = 0;
+        int high = firstKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (KeyValue.compare(firstKeys[mid], key) <= 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0)
+                throw new EOFException("Unexpected end of run file");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private class RunIterator implements Iterator<KeyValue> {
+
+        private int nextBlock;
+        private ByteBuffer block = null;
+        private KeyValue next = null;
+
+        RunIterator(int firstBlock, byte[] from) {
+            this.nextBlock = firstBlock;
+            advance();
+            if (from != null)
+                while (next != null && KeyValue.compare(next.key(), from) < 0)
+                    advance();
+        }
+
+        private void advance() {
+            try {
+                while (block == null || !block.hasRemaining()) {
+                    if (nextBlock >= firstKeys.length) {
+                        next = null;
+                        return;
+                    }
+                    block = read(channel, offsets[nextBlock], lengths[nextBlock]);
+                    nextBlock++;
+                }
+            } catch (IOException e) {
+                throw new StorageException("Cannot read " + file, e);
+            }
+            byte[] key = new byte[block.getInt()];
+            byte[] value = new byte[block.getInt()];
+            block.get(key);
+            block.get(value);
+            next = new KeyValue(key, value);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public KeyValue next() {
+            if (next == null)
+                throw new NoSuchElementException("No next entry");
+            KeyValue current = next;
+            advance();
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+
+    }
+
+}
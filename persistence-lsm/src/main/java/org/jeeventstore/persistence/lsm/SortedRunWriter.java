@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a {@link SortedRun} file.  Keys must be added in strictly
+ * increasing order.
+ * <p>
+ * Layout of a run file, all numbers big-endian:
+ * <pre>
+ * data blocks   entries of (int key length, int value length, key, value)
+ * block index   int block count, then per block
+ *               (int key length, first key, long offset, int length),
+ *               then (int key length, last key of the run)
+ * bloom filter  see {@link BloomFilter}
+ * footer        long index offset, long bloom filter offset,
+ *               long entry count, long magic
+ * </pre>
+ */
+final class SortedRunWriter implements Closeable {
+
+    static final long MAGIC = 0x4a4545534c534d31l; // "JEESLSM1"
+    static final int FOOTER_SIZE = 32;
+    static final int BLOCK_SIZE = 8 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final BloomFilter bloom;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private final List<byte[]> firstKeys = new ArrayList<>();
+    private final List<long[]> blocks = new ArrayList<>();
+    private byte[] blockFirstKey = null;
+    private byte[] lastKey = null;
+    private long position = 0;
+    private long entries = 0;
+
+    /**
+     * @param file  the file to create
+     * @param expectedKeys  an upper bound for the number of keys, to size the bloom filter
+     */
+    SortedRunWriter(File file, long expectedKeys) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.bloom = BloomFilter.create(expectedKeys);
+    }
+
+    void add(byte[] key, byte[] value) throws IOException {
+        if (lastKey != null && KeyValue.compare(lastKey, key) >= 0)
+            throw new IllegalArgumentException("Keys must be added in increasing order");
+        if (blockFirstKey == null)
+            blockFirstKey = key;
+        blockOut.writeInt(key.length);
+        blockOut.writeInt(value.length);
+        blockOut.write(key);
+        blockOut.write(value);
+        bloom.add(key);
+        lastKey = key;
+        entries++;
+        if (block.size() >= BLOCK_SIZE)
+            writeBlock();
+    }
+
+    /**
+     * Writes index, bloom filter and footer and forces the file to the
+     * storage device.
+     */
+    void finish() throws IOException {
+        writeBlock();
+        long indexOffset = position;
+        byte[] last = lastKey == null ? new byte[0] : lastKey;
+        int indexSize = 4 + 4 + last.length;
+        for (byte[] key : firstKeys)
+            indexSize += 4 + key.length + 12;
+        ByteBuffer index = ByteBuffer.allocate(indexSize);
+        index.putInt(firstKeys.size());
+        for (int i = 0; i < firstKeys.size(); i++) {
+            index.putInt(firstKeys.get(i).length);
+            index.put(firstKeys.get(i));
+            index.putLong(blocks.get(i)[0]);
+            index.putInt((int) blocks.get(i)[1]);
+        }
+        index.putInt(last.length);
+        index.put(last);
+        write(index);
+
+        long bloomOffset = position;
+        ByteBuffer filter = ByteBuffer.allocate(bloom.serializedSize());
+        bloom.writeTo(filter);
+        write(filter);
+
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        footer.putLong(indexOffset).putLong(bloomOffset).putLong(entries).putLong(MAGIC);
+        write(footer);
+        channel.force(true);
+        channel.close();
+    }
+
+    /**
+     * Discards an unfinished run.
+     */
+    void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore, the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void writeBlock() throws IOException {
+        if (block.size() == 0)
+            return;
+        firstKeys.add(blockFirstKey);
+        blocks.add(new long[]{position, block.size()});
+        write(ByteBuffer.wrap(block.toByteArray()));
+        block.reset();
+        blockFirstKey = null;
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        buf.rewind();
+        while (buf.hasRemaining())
+            position += channel.write(buf);
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the writes to a {@link MemTable}, such that the memtable can be
+ * restored after a crash.  Every write batch is a single record, so
+ * batches are restored either completely or not at all.  If appending a
+ * record fails, the part already written is truncated again.
+ * <p>
+ * Layout of a record, all numbers big-endian:
+ * <pre>
+ * int    payload length (excluding this header)
+ * int    CRC32 of the payload
+ * int    number of entries, then per entry
+ *        (int key length, int value length, key, value)
+ * </pre>
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private boolean intact = true;
+
+    WriteAheadLog(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static String fileName(long number) {
+        return String.format("%020d.wal", number);
+    }
+
+    void append(List<KeyValue> batch) throws IOException {
+        int payload = 4;
+        for (KeyValue kv : batch)
+            payload += 8 + kv.key().length + kv.value().length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload);
+        buf.putInt(payload);
+        buf.putInt(0); // checksum, filled in below
+        buf.putInt(batch.size());
+        for (KeyValue kv : batch) {
+            buf.putInt(kv.key().length);
+            buf.putInt(kv.value().length);
+            buf.put(kv.key());
+            buf.put(kv.value());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_SIZE, payload);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        long start = channel.size();
+        try {
+            while (buf.hasRemaining())
+                channel.write(buf);
+        } catch (IOException e) {
+            // replay stops at a partial record, so it would hide all records behind it
+            try {
+                channel.truncate(start);
+            } catch (IOException te) {
+                intact = false;
+                e.addSuppressed(te);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forces all appended records to the storage device.
+     */
+    void sync() throws IOException {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            // it is unknown which records have reached the device
+            intact = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Whether records can still be appended.  Not the case after an append
+     * whose partial record could not be removed, or after a failed sync.
+     */
+    boolean intact() {
+        return intact;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Restores the complete records of a log into a memtable.  Reading
+     * stops at the first incomplete or damaged record, which can only be
+     * the result of a crash while the record was written.
+     *
+     * @return  whether the log ended cleanly
+     */
+    static boolean replay(File file, MemTable memTable) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position < size) {
+                header.clear();
+                if (!readFully(ch, header, position))
+                    return false;
+                int length = header.getInt(0);
+                if (length < 4 || position + HEADER_SIZE + length > size)
+                    return false;
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                if (!readFully(ch, payload, position + HEADER_SIZE))
+                    return false;
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, length);
+                if ((int) crc.getValue() != header.getInt(4))
+                    return false;
+                payload.flip();
+                int count = payload.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] key = new byte[payload.getInt()];
+                    byte[] value = new byte[payload.getInt()];
+                    payload.get(key);
+                    payload.get(value);
+                    memTable.put(key, value);
+                }
+                position += HEADER_SIZE + length;
+            }
+            return true;
+        }
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            if (ch.read(buf, position + buf.position()) < 0)
+                return false;
+        return true;
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.lsm;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.serialization.XMLSerializer;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.IteratorUtils;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class EventStorePersistenceLSMReopenTest {
+
+    private static final int MEMTABLE_SIZE = 4096;
+    private static final int MERGE_FACTOR = 3;
+
+    private File directory;
+    private EventStorePersistenceLSM persistence;
+
+    @BeforeMethod(alwaysRun = true)
+    public void init() {
+        directory = new File("target/eventtree-" + UUID.randomUUID().toString());
+        persistence = open();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void cleanup() {
+        persistence.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void test_flushes_compacts_and_reopens() throws Exception {
+        for (int i = 1; i <= 500; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        persistence.tree().awaitIdle();
+        // 500 change sets fill dozens of memtables, compaction keeps
+        // at most MERGE_FACTOR - 1 runs per tier
+        assertTrue(persistence.tree().runCount() < 4 * MERGE_FACTOR);
+
+        persistence.close();
+        persistence = open();
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 100, 120));
+        assertEquals(changes.size(), 20);
+        assertEquals(changes.get(0).streamVersion(), 101);
+        assertEquals(IteratorUtils.toList(changes.get(0).events()), events(101));
+        assertEquals(IteratorUtils.toList(persistence.allChanges("DEFAULT")).size(), 500);
+
+        try {
+            persistence.persistChanges(changeSet("FOO", 500));
+            fail("Should have failed by now");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        persistence.persistChanges(changeSet("FOO", 501));
+    }
+
+    @Test
+    public void test_duplicate_detected_after_reopen() throws Exception {
+        ChangeSet cs = changeSet("FOO", 1);
+        persistence.persistChanges(cs);
+        for (int i = 0; i < 100; i++)
+            persistence.persistChanges(changeSet("BAR" + i, 1));
+        persistence.close();
+        persistence = open();
+        try {
+            persistence.persistChanges(new DefaultChangeSet("DEFAULT", "FOO", 2, cs.changeSetId(), events(2)));
+            fail("Should have failed by now");
+        } catch (DuplicateCommitException e) {
+            // expected
+        }
+        // same id in another bucket is fine
+        persistence.persistChanges(new DefaultChangeSet("OTHER", "FOO", 1, cs.changeSetId(), events(1)));
+    }
+
+    @Test
+    public void test_allChanges_in_commit_order() throws Exception {
+        for (int i = 1; i <= 100; i++) {
+            persistence.persistChanges(changeSet("S" + (i % 7), i));
+            persistence.persistChanges(new DefaultChangeSet("OTHER", "FOO", i,
+                    UUID.randomUUID().toString(), events(i)));
+        }
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.allChanges("DEFAULT"));
+        assertEquals(changes.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(changes.get(i).bucketId(), "DEFAULT");
+            assertEquals(changes.get(i).streamId(), "S" + ((i + 1) % 7));
+            assertEquals(changes.get(i).streamVersion(), i + 1);
+        }
+        assertFalse(persistence.allChanges("NONE").hasNext());
+    }
+
+    @Test
+    public void test_recovers_unflushed_changes_after_crash() throws Exception {
+        for (int i = 1; i <= 30; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        // do not close, the memtable only exists in the write-ahead log
+        EventStorePersistenceLSM crashed = persistence;
+        crashed.tree().awaitIdle();
+        persistence = open();
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 0, Long.MAX_VALUE)).size(), 30);
+        assertTrue(persistence.existsStream("DEFAULT", "FOO"));
+        persistence.persistChanges(changeSet("FOO", 31));
+        crashed.close();
+    }
+
+    @Test
+    public void test_recovers_from_torn_write() throws Exception {
+        for (int i = 1; i <= 3; i++)
+            persistence.persistChanges(changeSet("FOO", i));
+        persistence.close();
+        persistence = open();
+        persistence.persistChanges(changeSet("FOO", 4));
+        EventStorePersistenceLSM crashed = persistence;
+        crashed.tree().awaitIdle();
+
+        // simulate a crash in the middle of writing the fifth change set
+        File wal = null;
+        for (File f : directory.listFiles())
+            if (f.getName().endsWith(".wal"))
+                wal = f;
+        try (RandomAccessFile raf = new RandomAccessFile(wal, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(500);
+            raf.writeInt(12345);
+            raf.writeInt(5);
+        }
+
+        persistence = open();
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 0, Long.MAX_VALUE)).size(), 4);
+        persistence.persistChanges(changeSet("FOO", 5));
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 0, Long.MAX_VALUE)).size(), 5);
+        crashed.close();
+    }
+
+    @Test
+    public void test_seeks_version_ranges() throws Exception {
+        for (int i = 1; i <= 300; i++) {
+            persistence.persistChanges(changeSet("FOO", 2 * i));
+            persistence.persistChanges(changeSet("BAR", i));
+        }
+        long[][] ranges = {{0, 600}, {0, 1}, {0, 2}, {17, 18}, {17, 19}, {100, 257}, {598, 1000}, {600, 700}};
+        for (long[] range : ranges) {
+            List<ChangeSet> changes = IteratorUtils.toList(
+                    persistence.getFrom("DEFAULT", "FOO", range[0], range[1]));
+            long expected = range[0] + 1 + (range[0] + 1) % 2;
+            for (ChangeSet cs : changes) {
+                assertEquals(cs.streamVersion(), expected);
+                expected += 2;
+            }
+            assertTrue(expected > Math.min(range[1], 600));
+        }
+        assertFalse(persistence.getFrom("DEFAULT", "FOO", 10, 5).hasNext());
+    }
+
+    @Test
+    public void test_many_streams() throws Exception {
+        for (int i = 0; i < 5000; i++)
+            persistence.persistChanges(changeSet("S" + i, 1));
+        persistence.close();
+        persistence = open();
+        for (int i = 0; i < 5000; i += 97)
+            assertTrue(persistence.existsStream("DEFAULT", "S" + i));
+        assertFalse(persistence.existsStream("DEFAULT", "S5000"));
+        persistence.persistChanges(changeSet("S42", 2));
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "S42", 0, 2)).size(), 2);
+    }
+
+    @Test
+    public void test_rejects_versions_behind_head() throws Exception {
+        persistence.persistChanges(changeSet("FOO", 5));
+        try {
+            persistence.persistChanges(changeSet("FOO", 3));
+            fail("Should have failed by now");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        persistence.persistChanges(changeSet("FOO", 7));
+    }
+
+    private EventStorePersistenceLSM open() {
+        EventStorePersistenceLSM p = new EventStorePersistenceLSM(
+                new XMLSerializer(), directory.getPath(), MEMTABLE_SIZE, MERGE_FACTOR, false);
+        p.init();
+        return p;
+    }
+
+    private static List<Serializable> events(long version) {
+        List<Serializable> events = new ArrayList<>();
+        events.add("event " + version);
+        return events;
+    }
+
+    private static ChangeSet changeSet(String streamId, long version) {
+        return new DefaultChangeSet("DEFAULT", streamId, version, UUID.randomUUID().toString(), events(version));
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.EventStorePersistence;
+import org.jeeventstore.StreamNotFoundException;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.IteratorUtils;
+import org.jeeventstore.util.PersistenceUtils;
+
+/**
+ * EventStorePersistence that keeps all change sets in main memory.
+ * To be configured as a singleton EJB.  Persisted changes are lost when the
+ * application stops, so this is meant for test suites and for ephemeral
+ * buckets that do not need durable storage.
+ * <p>
+ * Every stream keeps its own version index.  Appending to a stream only
+ * locks that stream, so writers to different streams never contend with
+ * each other, and readers never block.  Only handing out the checkpoint and
+ * appending to the bucket history is serialized per bucket.  The bean
+ * therefore uses bean-managed concurrency.
+ * <p>
+ * Like the JPA persistence, {@link #persistChanges} fails with a
+ * {@link ConcurrencyException} if the stream already contains a change set
+ * with the same version, and with a {@link DuplicateCommitException} if the
+ * bucket already contains a change set with the same id.
+ * Changes do not take part in transactions and are not rolled back.
+ * <p>
+ * The time a change set is persisted is taken when it enters the bucket
+ * history and never decreases within a bucket, even if the clock is set
+ * back.  Hence {@link #changesBetween} returns a contiguous part of the
+ * history, which each bucket indexes by time.
+ * <p>
+ * The events of a change set are stored by reference, they must not be
+ * modified after they have been persisted.
+ */
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class EventStorePersistenceMemory implements EventStorePersistence {
+
+    private static final Logger log = Logger.getLogger(EventStorePersistenceMemory.class.getName());
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean existsStream(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        Stream stream = existingStream(bucketId, streamId);
+        return stream != null && !stream.changes.isEmpty();
+    }
+
+    @Override
+    public long streamVersion(String bucketId, String streamId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        Stream stream = existingStream(bucketId, streamId);
+        if (stream == null)
+            return 0;
+        Map.Entry<Long, ChangeSet> last = stream.changes.lastEntry();
+        return last == null ? 0 : last.getKey();
+    }
+
+    @Override
+    public long streamVersionAt(String bucketId, String streamId, long timestamp) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        Stream stream = existingStream(bucketId, streamId);
+        if (stream == null)
+            return 0;
+        // versions may have been filled in late, the highest one already persisted counts
+        for (Map.Entry<Long, Long> e : stream.persistedAt.descendingMap().entrySet())
+            if (e.getValue() <= timestamp)
+                return e.getKey();
+        return 0;
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChanges(String bucketId) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        Bucket bucket = bucketFor(bucketId, false);
+        if (bucket == null)
+            return Collections.<ChangeSet>emptyIterator();
+        return Collections.unmodifiableCollection(bucket.history.values()).iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> allChangesSince(String bucketId, long checkpoint) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        Bucket bucket = bucketFor(bucketId, false);
+        if (bucket == null)
+            return Collections.<ChangeSet>emptyIterator();
+        return Collections.unmodifiableCollection(
+                bucket.history.tailMap(checkpoint, false).values())
+                .iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> changesBetween(String bucketId, long from, long to) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+
+        Bucket bucket = bucketFor(bucketId, false);
+        if (bucket == null || from >= to)
+            return Collections.<ChangeSet>emptyIterator();
+        Map.Entry<Long, Long> first = bucket.times.ceilingEntry(from);
+        if (first == null)
+            return Collections.<ChangeSet>emptyIterator();
+        Map.Entry<Long, Long> end = bucket.times.ceilingEntry(to);
+        Map<Long, ChangeSet> range = end == null
+                ? bucket.history.tailMap(first.getValue(), true)
+                : bucket.history.subMap(first.getValue(), true, end.getValue(), false);
+        return Collections.unmodifiableCollection(range.values()).iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> getFrom(
+            String bucketId, String streamId,
+            long minVersion, long maxVersion) throws StreamNotFoundException {
+
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+
+        Stream stream = existingStream(bucketId, streamId);
+        if (stream == null || minVersion >= maxVersion)
+            return Collections.<ChangeSet>emptyIterator();
+        return Collections.unmodifiableCollection(
+                stream.changes.subMap(minVersion, false, maxVersion, true).values())
+                .iterator();
+    }
+
+    @Override
+    public Iterator<ChangeSet> getLatest(String bucketId, String streamId, int count) {
+        if (bucketId == null)
+            throw new IllegalArgumentException("bucketId must not be null");
+        if (streamId == null)
+            throw new IllegalArgumentException("streamId must not be null");
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+
+        Stream stream = existingStream(bucketId, streamId);
+        if (stream == null)
+            return Collections.<ChangeSet>emptyIterator();
+        List<ChangeSet> latest = new ArrayList<>(Math.min(count, stream.changes.size()));
+        Iterator<ChangeSet> it = stream.changes.descendingMap().values().iterator();
+        while (latest.size() < count && it.hasNext())
+            latest.add(it.next());
+        return Collections.unmodifiableList(latest).iterator();
+    }
+
+    @Override
+    public void persistChanges(ChangeSet changeSet) throws ConcurrencyException, DuplicateCommitException {
+        if (changeSet == null)
+            throw new IllegalArgumentException("changeSet must not be null");
+
+        List<Serializable> events = IteratorUtils.toList(changeSet.events());
+        Bucket bucket = bucketFor(changeSet.bucketId(), true);
+        Stream stream = bucket.streamFor(changeSet.streamId());
+
+        if (bucket.changeSetIds.putIfAbsent(changeSet.changeSetId(), changeSet.streamId()) != null)
+            throw new DuplicateCommitException(String.format(
+                    "Duplicate change set %s in bucket %s",
+                    changeSet.changeSetId(), changeSet.bucketId()));
+
+        // The version index alone would not need the lock, but the change set
+        // must enter the bucket history in the same order as it enters the stream.
+        ChangeSet copy;
+        synchronized (stream) {
+            if (stream.changes.containsKey(changeSet.streamVersion())) {
+                bucket.changeSetIds.remove(changeSet.changeSetId());
+                throw new ConcurrencyException(String.format(
+                        "Version %d already exists in stream %s/%s",
+                        changeSet.streamVersion(), changeSet.bucketId(), changeSet.streamId()));
+            }
+            // checkpoints are handed out in history order, so readers never see a gap
+            long persistedAt;
+            synchronized (bucket) {
+                copy = new DefaultChangeSet(
+                        changeSet.bucketId(),
+                        changeSet.streamId(),
+                        changeSet.streamVersion(),
+                        changeSet.changeSetId(),
+                        events,
+                        ++bucket.checkpoint);
+                persistedAt = Math.max(System.currentTimeMillis(), bucket.lastPersistedAt);
+                bucket.lastPersistedAt = persistedAt;
+                // the first change set of every millisecond, the time index never moves backwards
+                bucket.times.putIfAbsent(persistedAt, copy.checkpoint());
+                bucket.history.put(copy.checkpoint(), copy);
+            }
+            stream.persistedAt.put(copy.streamVersion(), persistedAt);
+            stream.changes.put(copy.streamVersion(), copy);
+        }
+        log.log(Level.FINE, "wrote ChangeSet {0} to stream {1}/{2}",
+                new Object[]{copy.changeSetId(), copy.bucketId(), copy.streamId()});
+    }
+
+    @Override
+    public List<Exception> persistBatch(List<ChangeSet> changeSets) {
+        return PersistenceUtils.persistEach(this, changeSets);
+    }
+
+    private Bucket bucketFor(String bucketId, boolean create) {
+        Bucket bucket = buckets.get(bucketId);
+        if (bucket == null && create) {
+            Bucket created = new Bucket();
+            bucket = buckets.putIfAbsent(bucketId, created);
+            if (bucket == null)
+                bucket = created;
+        }
+        return bucket;
+    }
+
+    private Stream existingStream(String bucketId, String streamId) {
+        Bucket bucket = bucketFor(bucketId, false);
+        return bucket == null ? null : bucket.streams.get(streamId);
+    }
+
+    /**
+     * The streams, change set ids and the history of a bucket, indexed by
+     * checkpoint, and the first checkpoint persisted in every millisecond.
+     * The last checkpoint and time are guarded by the bucket's monitor.
+     */
+    private static class Bucket {
+
+        private final ConcurrentMap<String, Stream> streams = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, String> changeSetIds = new ConcurrentHashMap<>();
+        private final ConcurrentNavigableMap<Long, ChangeSet> history = new ConcurrentSkipListMap<>();
+        private final ConcurrentNavigableMap<Long, Long> times = new ConcurrentSkipListMap<>();
+        private long checkpoint = 0;
+        private long lastPersistedAt = Long.MIN_VALUE;
+
+        private Stream streamFor(String streamId) {
+            Stream stream = streams.get(streamId);
+            if (stream == null) {
+                Stream created = new Stream();
+                stream = streams.putIfAbsent(streamId, created);
+                if (stream == null)
+                    stream = created;
+            }
+            return stream;
+        }
+
+    }
+
+    /**
+     * The change sets of a single stream and the times they were persisted,
+     * indexed by stream version.
+     */
+    private static class Stream {
+
+        private final ConcurrentNavigableMap<Long, ChangeSet> changes = new ConcurrentSkipListMap<>();
+        private final ConcurrentNavigableMap<Long, Long> persistedAt = new ConcurrentSkipListMap<>();
+
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013 Red Rainbow IT Solutions GmbH, Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.jeeventstore.persistence.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jeeventstore.ChangeSet;
+import org.jeeventstore.ConcurrencyException;
+import org.jeeventstore.DuplicateCommitException;
+import org.jeeventstore.store.DefaultChangeSet;
+import org.jeeventstore.util.IteratorUtils;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class EventStorePersistenceMemoryConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int VERSIONS = 200;
+
+    private EventStorePersistenceMemory persistence;
+
+    @BeforeMethod(alwaysRun = true)
+    public void init() {
+        this.persistence = new EventStorePersistenceMemory();
+    }
+
+    @Test
+    public void test_parallel_streams() throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final String streamId = "STREAM_" + t;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int v = 1; v <= VERSIONS; v++)
+                        persistence.persistChanges(changeSet(streamId, v));
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        for (int t = 0; t < THREADS; t++) {
+            List<ChangeSet> changes = IteratorUtils.toList(
+                    persistence.getFrom("DEFAULT", "STREAM_" + t, 0, Long.MAX_VALUE));
+            assertEquals(changes.size(), VERSIONS);
+            for (int v = 1; v <= VERSIONS; v++)
+                assertEquals(changes.get(v - 1).streamVersion(), v);
+        }
+        assertEquals(IteratorUtils.toList(persistence.allChanges("DEFAULT")).size(), THREADS * VERSIONS);
+    }
+
+    @Test
+    public void test_conflicting_writers() throws Exception {
+        final AtomicInteger conflicts = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int v = 1; v <= VERSIONS; v++) {
+                        try {
+                            persistence.persistChanges(changeSet("SHARED", v));
+                        } catch (ConcurrencyException e) {
+                            conflicts.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        assertEquals(conflicts.get(), (THREADS - 1) * VERSIONS);
+        Iterator<ChangeSet> it = persistence.allChanges("DEFAULT");
+        long last = 0;
+        while (it.hasNext()) {
+            ChangeSet cs = it.next();
+            assertEquals(cs.streamVersion(), last + 1);
+            last = cs.streamVersion();
+        }
+        assertEquals(last, VERSIONS);
+    }
+
+    @Test
+    public void test_duplicate_commit_keeps_version_free() throws Exception {
+        ChangeSet cs = changeSet("FOO", 1);
+        persistence.persistChanges(cs);
+        try {
+            persistence.persistChanges(new DefaultChangeSet("DEFAULT", "FOO", 2, cs.changeSetId(),
+                    Collections.<Serializable>emptyList()));
+            fail("Should have failed by now");
+        } catch (DuplicateCommitException e) {
+            // expected
+        }
+        persistence.persistChanges(changeSet("FOO", 2));
+        assertEquals(IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 0, Long.MAX_VALUE)).size(), 2);
+    }
+
+    @Test
+    public void test_failed_version_releases_changeset_id() throws Exception {
+        persistence.persistChanges(changeSet("FOO", 1));
+        ChangeSet conflicting = changeSet("FOO", 1);
+        try {
+            persistence.persistChanges(conflicting);
+            fail("Should have failed by now");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        persistence.persistChanges(new DefaultChangeSet("DEFAULT", "FOO", 2, conflicting.changeSetId(),
+                Collections.<Serializable>emptyList()));
+    }
+
+    @Test
+    public void test_getFrom_range() throws Exception {
+        for (int v = 1; v <= 20; v++)
+            persistence.persistChanges(changeSet("FOO", v));
+        List<ChangeSet> changes = IteratorUtils.toList(persistence.getFrom("DEFAULT", "FOO", 4, 10));
+        assertEquals(changes.size(), 6);
+        assertEquals(changes.get(0).streamVersion(), 5);
+        assertEquals(changes.get(5).streamVersion(), 10);
+        assertFalse(persistence.getFrom("DEFAULT", "BAR", 0, Long.MAX_VALUE).hasNext());
+        assertFalse(persistence.existsStream("DEFAULT", "BAR"));
+        assertTrue(persistence.existsStream("DEFAULT", "FOO"));
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (Future<Void> f : executor.invokeAll(tasks))
+                f.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ChangeSet changeSet(String streamId, long version) {
+        List<Serializable> events = new ArrayList<>();
+        events.add("event " + version);
+        return new DefaultChangeSet("DEFAULT", streamId, version, UUID.randomUUID().toString(), events);
+    }
+
+}
@@ -48,6 +48,10 @@ public class AbstractPersistenceTest extends Arquillian {
         return this.persistence;
     }
 
+    protected PersistenceTestHelper getTestHelper() {
+        return this.testHelper;
+    }
+
     @Test
     public void test_allChanges_testBucket() {
         testHelper.test_allChanges_testBucket();
@@ -58,6 +62,11 @@ public class AbstractPersistenceTest extends Arquillian {
         testHelper.test_allChanges_inorder();
     }
 
+    @Test
+    public void test_allChangesSince() {
+        testHelper.test_allChangesSince();
+    }
+
     @Test
     public void test_getFrom_regular() throws StreamNotFoundException {
         testHelper.test_getFrom_regular();
@@ -68,6 +77,11 @@ public class AbstractPersistenceTest extends Arquillian {
         testHelper.test_getFrom_substream();
     }
 
+    @Test
+    public void test_streamVersion() {
+        testHelper.test_streamVersion();
+    }
+
     @Test
     public void test_optimistic_lock() throws DuplicateCommitException {
         ChangeSet cs = new DefaultChangeSet(
@@ -102,11 +116,31 @@ public class AbstractPersistenceTest extends Arquillian {
 
     }
     
+    @Test
+    public void test_changesBetween() throws ConcurrencyException, DuplicateCommitException {
+        testHelper.test_changesBetween();
+    }
+
+    @Test
+    public void test_getLatest() throws ConcurrencyException, DuplicateCommitException {
+        testHelper.test_getLatest();
+    }
+
+    @Test
+    public void test_persistBatch() throws StreamNotFoundException {
+        testHelper.test_persistBatch();
+    }
+
     @Test
     public void test_allChanges_nullarg() {
         testHelper.test_allChanges_nullarg();
     }
 
+    @Test
+    public void test_allChangesSince_nullarg() {
+        testHelper.test_allChangesSince_nullarg();
+    }
+
     @Test
     public void test_getFrom_nullarg() throws StreamNotFoundException {
         testHelper.test_getFrom_nullarg();
@@ -128,6 +162,22 @@ public class AbstractPersistenceTest extends Arquillian {
         }
     }
 
+    @Test
+    public void test_streamVersion_nullarg() {
+        try {
+            persistence.streamVersion(null, "TEST");
+            fail("Should have failed by now");
+        } catch (EJBException e) {
+            // expected
+        }
+        try {
+            persistence.streamVersion("DEFAULT", null);
+            fail("Should have failed by now");
+        } catch (EJBException e) {
+            // expected
+        }
+    }
+
     @Test
     public void test_persistChanges_nullarg() throws ConcurrencyException, DuplicateCommitException {
         try {
@@ -120,6 +120,21 @@ public class PersistenceTestHelper {
         assertEquals(count, data_default.size());
     }
 
+    public void test_allChangesSince() {
+        List<ChangeSet> all = IteratorUtils.toList(persistence.allChangesSince("TEST", 0));
+        compare(all.iterator(), data_test, true);
+        long last = 0;
+        for (ChangeSet cs : all) {
+            assertTrue(cs.checkpoint() > last);
+            last = cs.checkpoint();
+        }
+        // resuming from a checkpoint yields exactly the change sets after it
+        Iterator<ChangeSet> it = persistence.allChangesSince("TEST", all.get(99).checkpoint());
+        compare(it, data_test.subList(100, data_test.size()), true);
+        assertFalse(persistence.allChangesSince("TEST", last).hasNext());
+        assertFalse(persistence.allChangesSince("NOT_THERE", 0).hasNext());
+    }
+
     public void test_getFrom_regular() throws StreamNotFoundException {
         List<ChangeSet> expected = filter("DEFAULT", "TEST_45", 0, Long.MAX_VALUE);
         Iterator<ChangeSet> have = persistence.getFrom("DEFAULT", "TEST_45", 0, Long.MAX_VALUE);
@@ -132,6 +147,148 @@ public class PersistenceTestHelper {
         compare(have, expected, true);
     }
 
+    public void test_streamVersion() {
+        List<ChangeSet> stream = filter("DEFAULT", "TEST_45", 0, Long.MAX_VALUE);
+        long expected = stream.get(stream.size() - 1).streamVersion();
+        assertEquals(persistence.streamVersion("DEFAULT", "TEST_45"), expected);
+        assertEquals(persistence.streamVersion("DEFAULT", "TEST_NOT_THERE"), 0);
+        assertEquals(persistence.streamVersion("NOT_THERE", "TEST_45"), 0);
+    }
+
+    public void test_changesBetween() throws ConcurrencyException, DuplicateCommitException {
+        String bucketId = "TIMED";
+        String streamId = "TIMED_STREAM";
+        long before = System.currentTimeMillis();
+        long middle = 0;
+        List<ChangeSet> early = new ArrayList<>();
+        List<ChangeSet> late = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            if (i == 4) {
+                // a time between the two groups of change sets
+                pause();
+                middle = System.currentTimeMillis();
+                pause();
+            }
+            ChangeSet cs = new DefaultChangeSet(bucketId, streamId, i,
+                    UUID.randomUUID().toString(), new ArrayList<Serializable>());
+            persistence.persistChanges(cs);
+            (i < 4 ? early : late).add(cs);
+        }
+        pause();
+        long after = System.currentTimeMillis();
+
+        compare(persistence.changesBetween(bucketId, before, middle), early, true);
+        compare(persistence.changesBetween(bucketId, middle, after), late, true);
+        List<ChangeSet> all = new ArrayList<>(early);
+        all.addAll(late);
+        compare(persistence.changesBetween(bucketId, before, after), all, true);
+        assertFalse(persistence.changesBetween(bucketId, after, Long.MAX_VALUE).hasNext());
+        assertFalse(persistence.changesBetween(bucketId, middle, middle).hasNext());
+        assertFalse(persistence.changesBetween("NOT_THERE", before, after).hasNext());
+
+        assertEquals(persistence.streamVersionAt(bucketId, streamId, before - 1), 0);
+        assertEquals(persistence.streamVersionAt(bucketId, streamId, middle), 3);
+        assertEquals(persistence.streamVersionAt(bucketId, streamId, after), 5);
+        assertEquals(persistence.streamVersionAt(bucketId, "TIMED_NOT_THERE", after), 0);
+    }
+
+    public void test_getLatest() throws ConcurrencyException, DuplicateCommitException {
+        String bucketId = "LATEST";
+        String streamId = "LATEST_STREAM";
+        List<ChangeSet> stream = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            List<Serializable> events = new ArrayList<>();
+            events.add("event " + i);
+            ChangeSet cs = new DefaultChangeSet(bucketId, streamId, i,
+                    UUID.randomUUID().toString(), events);
+            persistence.persistChanges(cs);
+            stream.add(cs);
+        }
+
+        compare(latest(bucketId, streamId, 5), stream.subList(15, 20), true);
+        compare(latest(bucketId, streamId, 1), stream.subList(19, 20), true);
+        compare(latest(bucketId, streamId, 20), stream, true);
+        compare(latest(bucketId, streamId, 100), stream, true);
+        assertFalse(persistence.getLatest(bucketId, streamId, 0).hasNext());
+        assertFalse(persistence.getLatest(bucketId, "LATEST_NOT_THERE", 5).hasNext());
+    }
+
+    /**
+     * Reads the last change sets of a stream, checking that they are
+     * returned by decreasing version, and returns them in stream order.
+     */
+    private Iterator<ChangeSet> latest(String bucketId, String streamId, int count) {
+        List<ChangeSet> latest = IteratorUtils.toList(persistence.getLatest(bucketId, streamId, count));
+        for (int i = 1; i < latest.size(); i++)
+            assertTrue(latest.get(i - 1).streamVersion() > latest.get(i).streamVersion());
+        Collections.reverse(latest);
+        return latest.iterator();
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void test_persistBatch() throws StreamNotFoundException {
+        String bucketId = "BATCH";
+        String duplicate = UUID.randomUUID().toString();
+        List<ChangeSet> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            batch.add(new DefaultChangeSet(bucketId, "STREAM_" + (i % 4), i / 4 + 1,
+                    i == 5 ? duplicate : UUID.randomUUID().toString(),
+                    new ArrayList<Serializable>()));
+        // conflicts with an earlier change set of the batch
+        batch.add(new DefaultChangeSet(bucketId, "STREAM_0", 2,
+                UUID.randomUUID().toString(), new ArrayList<Serializable>()));
+        batch.add(new DefaultChangeSet(bucketId, "STREAM_9", 1,
+                duplicate, new ArrayList<Serializable>()));
+
+        List<Exception> failures = persistence.persistBatch(batch);
+        assertEquals(failures.size(), batch.size());
+        for (int i = 0; i < 20; i++)
+            assertNull(failures.get(i));
+        assertTrue(failures.get(20) instanceof ConcurrencyException);
+        assertTrue(failures.get(21) instanceof DuplicateCommitException);
+        for (int s = 0; s < 4; s++) {
+            assertEquals(persistence.streamVersion(bucketId, "STREAM_" + s), 5);
+            List<ChangeSet> stream = IteratorUtils.toList(
+                    persistence.getFrom(bucketId, "STREAM_" + s, 0, Long.MAX_VALUE));
+            assertEquals(stream.size(), 5);
+        }
+        assertFalse(persistence.existsStream(bucketId, "STREAM_9"));
+
+        // conflicts with stored change sets
+        failures = persistence.persistBatch(batch.subList(0, 1));
+        assertTrue(failures.get(0) instanceof DuplicateCommitException);
+        assertTrue(persistence.persistBatch(new ArrayList<ChangeSet>()).isEmpty());
+    }
+
+    public void test_persistBatch_stored_conflict() throws ConcurrencyException, DuplicateCommitException {
+        String bucketId = "BATCH_STORED";
+        persistence.persistChanges(new DefaultChangeSet(bucketId, "STREAM_2", 1,
+                UUID.randomUUID().toString(), new ArrayList<Serializable>()));
+        List<ChangeSet> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            batch.add(new DefaultChangeSet(bucketId, "STREAM_" + i, 1,
+                    UUID.randomUUID().toString(), new ArrayList<Serializable>()));
+
+        // only the change set conflicting with the stored one is rejected
+        List<Exception> failures = persistence.persistBatch(batch);
+        assertEquals(failures.size(), batch.size());
+        for (int i = 0; i < 5; i++) {
+            if (i == 2) {
+                assertTrue(failures.get(i) instanceof ConcurrencyException);
+                continue;
+            }
+            assertNull(failures.get(i));
+            assertEquals(persistence.streamVersion(bucketId, "STREAM_" + i), 1);
+        }
+    }
+
     public void test_allChanges_nullarg() {
         try {
             persistence.allChanges(null);
@@ -141,6 +298,15 @@ public class PersistenceTestHelper {
         }
     }
 
+    public void test_allChangesSince_nullarg() {
+        try {
+            persistence.allChangesSince(null, 0);
+            fail("Should have failed by now");
+        } catch (EJBException e) {
+            // expected
+        }
+    }
+
     public void test_getFrom_nullarg() throws StreamNotFoundException {
         try {
             persistence.getFrom(null, "TEST", 0, Long.MAX_VALUE);
@@ -169,6 +335,26 @@ public class PersistenceTestHelper {
         assertEquals(body, result);
     }
 
+    /**
+     * Test a change set far beyond the usual column sizes, which some
+     * persistence implementations store in several parts.  Reads it both
+     * from the stream and from the bucket.
+     */
+    public void test_oversized_event() {
+        String streamId = UUID.randomUUID().toString();
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 250000 / 32; i++)
+            builder.append(UUID.randomUUID().toString());
+        String body = builder.toString();
+
+        store(streamId, streamId, body);
+        assertEquals(load(streamId, streamId), body);
+        List<ChangeSet> all = IteratorUtils.toList(persistence.allChanges(streamId));
+        assertEquals(all.size(), 1);
+        assertEquals(all.get(0).events().next(), body);
+    }
+
     /**
      * Test against broken UTF8 encodings in the PostgreSQL/Hibernate combination,
      * when the @Lob annotation is used.